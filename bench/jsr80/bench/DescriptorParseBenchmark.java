@@ -0,0 +1,147 @@
+/*
+ * Copyright (c) 1999 - 2001, International Business Machines Corporation.
+ * All Rights Reserved.
+ *
+ * This software is provided and licensed under the terms and conditions
+ * of the Common Public License:
+ * http://oss.software.ibm.com/developerworks/opensource/license-cpl.html
+ */
+
+package jsr80.bench;
+
+import java.nio.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import javax.usb.*;
+import javax.usb.util.*;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.*;
+
+import jsr80.examples.*;
+
+/**
+ * Benchmark the handling of raw descriptors.
+ * <p>
+ * This compares the hex dump DefaultControlPipe does with the DescriptorView
+ * flyweights, and with a parse that copies each descriptor out of the bundle.
+ * The descriptors are fetched once from a simulated composite device.
+ * Run with the gc profiler (the default for the Ant bench target) to see the allocation rates.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DescriptorParseBenchmark
+{
+	@Setup
+	public void setup() throws UsbException
+	{
+		SimulatedUsbServices services = new SimulatedUsbServices("controllers=1,devices=2,kinds=composite");
+		UsbHub rootUsbHub = (UsbHub)services.getRootUsbHub().getAttachedUsbDevices().get(0);
+		UsbDevice usbDevice = (UsbDevice)rootUsbHub.getAttachedUsbDevices().get(0);
+
+		byte[] buffer = new byte[256];
+		int length = StandardRequest.getDescriptor(usbDevice, UsbConst.DESCRIPTOR_TYPE_DEVICE, (byte)0, (short)0, buffer);
+		deviceDescriptor = Arrays.copyOf(buffer, length);
+
+		length = StandardRequest.getDescriptor(usbDevice, UsbConst.DESCRIPTOR_TYPE_CONFIGURATION, (byte)0, (short)0, buffer);
+		configurationBundle = Arrays.copyOf(buffer, length);
+		directConfigurationBundle = ByteBuffer.allocateDirect(length);
+		directConfigurationBundle.put(configurationBundle);
+	}
+
+	@Benchmark
+	public String hexDumpDeviceDescriptor()
+	{
+		return UsbUtil.toHexString(" 0x", deviceDescriptor, deviceDescriptor.length);
+	}
+
+	@Benchmark
+	public int parseDeviceDescriptorView()
+	{
+		deviceView.wrap(deviceDescriptor, 0);
+		return deviceView.idVendor() + deviceView.idProduct() + deviceView.bDeviceClass() + deviceView.bNumConfigurations();
+	}
+
+	@Benchmark
+	public String hexDumpConfigurationBundle()
+	{
+		return UsbUtil.toHexString(" 0x", configurationBundle, configurationBundle.length);
+	}
+
+	@Benchmark
+	public void walkConfigurationByteArray(Blackhole blackhole)
+	{
+		visitor.blackhole = blackhole;
+		configurationView.wrap(configurationBundle, 0);
+		configurationView.walk(visitor);
+	}
+
+	@Benchmark
+	public void walkConfigurationDirectBuffer(Blackhole blackhole)
+	{
+		visitor.blackhole = blackhole;
+		configurationView.wrap(directConfigurationBundle, 0);
+		configurationView.walk(visitor);
+	}
+
+	@Benchmark
+	public void parseConfigurationCopying(Blackhole blackhole)
+	{
+		/* This is how parsing usually goes: one new object per descriptor. */
+		int index = 0;
+		while (index + 2 <= configurationBundle.length) {
+			int length = UsbUtil.unsignedInt(configurationBundle[index]);
+			if (2 > length)
+				break;
+			blackhole.consume(Arrays.copyOfRange(configurationBundle, index, index + length));
+			index += length;
+		}
+	}
+
+	/**
+	 * Visitor that consumes every field.
+	 */
+	private static class ConsumingVisitor implements DescriptorView.Visitor
+	{
+		public void visitInterface(DescriptorView.InterfaceView view)
+		{
+			blackhole.consume(view.bInterfaceNumber());
+			blackhole.consume(view.bAlternateSetting());
+			blackhole.consume(view.bInterfaceClass());
+			blackhole.consume(view.bInterfaceSubClass());
+			blackhole.consume(view.bInterfaceProtocol());
+		}
+
+		public void visitEndpoint(DescriptorView.EndpointView view)
+		{
+			blackhole.consume(view.bEndpointAddress());
+			blackhole.consume(view.bmAttributes());
+			blackhole.consume(view.wMaxPacketSize());
+			blackhole.consume(view.bInterval());
+		}
+
+		public void visitHid(DescriptorView.HidView view)
+		{
+			blackhole.consume(view.getReportDescriptorLength());
+		}
+
+		public void visitOther(DescriptorView.OtherView view)
+		{
+			blackhole.consume(view.bDescriptorType());
+		}
+
+		public Blackhole blackhole = null;
+	}
+
+	private byte[] deviceDescriptor = null;
+	private byte[] configurationBundle = null;
+	private ByteBuffer directConfigurationBundle = null;
+	private DescriptorView.DeviceView deviceView = new DescriptorView.DeviceView();
+	private DescriptorView.ConfigurationView configurationView = new DescriptorView.ConfigurationView();
+	private ConsumingVisitor visitor = new ConsumingVisitor();
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright (c) 1999 - 2001, International Business Machines Corporation.
+ * All Rights Reserved.
+ *
+ * This software is provided and licensed under the terms and conditions
+ * of the Common Public License:
+ * http://oss.software.ibm.com/developerworks/opensource/license-cpl.html
+ */
+
+package jsr80.bench;
+
+import java.io.*;
+import java.util.concurrent.*;
+
+import javax.usb.*;
+
+import org.openjdk.jmh.annotations.*;
+
+import jsr80.examples.*;
+
+/**
+ * Benchmark the report handling in MouseDriver.HidMouseRunnable.
+ * <p>
+ * One second's worth of reports at the specified report rate is recorded
+ * from a simulated mouse, and each benchmark operation handles the whole
+ * recording.  So the score is the time it takes to handle one second of
+ * reports; anything near (or over) 1000 ms means the reader can't keep up
+ * with the device.  Output goes to a discarding PrintStream, so console
+ * speed is not measured, only the formatting.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HidReportBenchmark
+{
+	@Param({ "125", "1000", "8000" })
+	public int reportRate;
+
+	@Setup
+	public void setup() throws UsbException
+	{
+		/* Record as fast as the simulator goes; only the data matters here. */
+		SimulatedUsbServices services = new SimulatedUsbServices("controllers=1,devices=2,kinds=mouse,reportRate=1000000");
+		UsbHub rootUsbHub = (UsbHub)services.getRootUsbHub().getAttachedUsbDevices().get(0);
+		UsbDevice usbDevice = (UsbDevice)rootUsbHub.getAttachedUsbDevices().get(0);
+		UsbInterface usbInterface = (UsbInterface)usbDevice.getActiveUsbConfiguration().getUsbInterfaces().get(0);
+		UsbPipe usbPipe = ((UsbEndpoint)usbInterface.getUsbEndpoints().get(0)).getUsbPipe();
+
+		usbInterface.claim();
+		usbPipe.open();
+
+		reports = new byte[reportRate][4];
+		lengths = new int[reportRate];
+		for (int i=0; i<reportRate; i++)
+			lengths[i] = usbPipe.syncSubmit(reports[i]);
+
+		usbPipe.close();
+		usbInterface.release();
+
+		hidMouseRunnable = new MouseDriver.HidMouseRunnable(usbPipe);
+
+		systemOut = System.out;
+		System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+	}
+
+	@TearDown
+	public void tearDown()
+	{
+		System.setOut(systemOut);
+	}
+
+	@Benchmark
+	public void handleOneSecondOfReports()
+	{
+		for (int i=0; i<reports.length; i++)
+			hidMouseRunnable.handleData(reports[i], lengths[i]);
+	}
+
+	private byte[][] reports = null;
+	private int[] lengths = null;
+	private MouseDriver.HidMouseRunnable hidMouseRunnable = null;
+	private PrintStream systemOut = null;
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright (c) 1999 - 2001, International Business Machines Corporation.
+ * All Rights Reserved.
+ *
+ * This software is provided and licensed under the terms and conditions
+ * of the Common Public License:
+ * http://oss.software.ibm.com/developerworks/opensource/license-cpl.html
+ */
+
+package jsr80.bench;
+
+import java.util.concurrent.*;
+
+import javax.usb.*;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.*;
+
+import jsr80.examples.*;
+
+/**
+ * Benchmark decoding HID mouse reports one at a time against HidReportBatchDecoder's blocks.
+ * <p>
+ * Like HidReportBenchmark, one second's worth of reports at the specified report rate
+ * is recorded from a simulated mouse, and each benchmark operation decodes the whole
+ * recording, for the specified number of devices; so the score is the time it takes to
+ * decode one second of reports from all of them.  The one-at-a-time benchmark has each
+ * report in its own buffer, as HidMouseRunnable gets them; the block benchmarks have
+ * them all in one buffer.
+ * <p>
+ * decodeBlockVector needs the Vector API classes, which only the bench-vector Ant
+ * targets compile; without them, it fails with an UnsupportedOperationException.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HidReportDecodeBenchmark
+{
+	@Param({ "1000", "8000" })
+	public int reportRate;
+
+	@Param({ "1", "16" })
+	public int devices;
+
+	@Setup
+	public void setup() throws UsbException
+	{
+		/* Record as fast as the simulator goes; only the data matters here. */
+		SimulatedUsbServices services = new SimulatedUsbServices("controllers=1,devices=2,kinds=mouse,reportRate=1000000");
+		UsbHub rootUsbHub = (UsbHub)services.getRootUsbHub().getAttachedUsbDevices().get(0);
+		UsbDevice usbDevice = (UsbDevice)rootUsbHub.getAttachedUsbDevices().get(0);
+		UsbInterface usbInterface = (UsbInterface)usbDevice.getActiveUsbConfiguration().getUsbInterfaces().get(0);
+		UsbEndpoint usbEndpoint = (UsbEndpoint)usbInterface.getUsbEndpoints().get(0);
+
+		decoder = HidReportBatchDecoder.MOUSE;
+		int reportLength = decoder.getReportLength();
+		int count = reportRate * devices;
+
+		/* Every device gets the same recording; the decoding doesn't care. */
+		byte[] recording = new byte[reportRate * reportLength];
+		HidReportBatchDecoder.record(usbEndpoint, recording, reportLength);
+
+		block = new byte[count * reportLength];
+		reports = new byte[count][reportLength];
+		for (int i=0; i<count; i++) {
+			System.arraycopy(recording, (i % reportRate) * reportLength, block, i * reportLength, reportLength);
+			System.arraycopy(block, i * reportLength, reports[i], 0, reportLength);
+		}
+
+		columns = new HidReportBatchDecoder.Columns(count);
+	}
+
+	@Benchmark
+	public void decodeOneAtATime(Blackhole blackhole)
+	{
+		columns.clear();
+		for (int i=0; i<reports.length; i++)
+			decoder.decodeReport(reports[i], 0, columns);
+		blackhole.consume(columns.getTotalX());
+	}
+
+	@Benchmark
+	public void decodeBlockScalar(Blackhole blackhole)
+	{
+		columns.clear();
+		decoder.decodeScalar(block, 0, reports.length, columns);
+		blackhole.consume(columns.getTotalX());
+	}
+
+	@Benchmark
+	public void decodeBlockPacked(Blackhole blackhole)
+	{
+		columns.clear();
+		decoder.decodePacked(block, 0, reports.length, columns);
+		blackhole.consume(columns.getTotalX());
+	}
+
+	@Benchmark
+	@Fork(value = 1, jvmArgsAppend = "--add-modules=jdk.incubator.vector")
+	public void decodeBlockVector(Blackhole blackhole)
+	{
+		columns.clear();
+		decoder.decodeVector(block, 0, reports.length, columns);
+		blackhole.consume(columns.getTotalX());
+	}
+
+	private HidReportBatchDecoder decoder = null;
+	private byte[] block = null;
+	private byte[][] reports = null;
+	private HidReportBatchDecoder.Columns columns = null;
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) 1999 - 2001, International Business Machines Corporation.
+ * All Rights Reserved.
+ *
+ * This software is provided and licensed under the terms and conditions
+ * of the Common Public License:
+ * http://oss.software.ibm.com/developerworks/opensource/license-cpl.html
+ */
+
+package jsr80.bench;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import javax.usb.*;
+
+import org.openjdk.jmh.annotations.*;
+
+import jsr80.examples.*;
+
+/**
+ * Benchmark the recursive topology searches in FindUsbDevice and FindUsbInterface.
+ * <p>
+ * Each search runs against a simulated topology of the specified number of
+ * devices, with no transfer latency; so the manufacturer string search
+ * measures only the cost of the (simulated) control transfers it makes.
+ * The find benchmarks use the lazy Stream searches, which stop at the first match.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TopologySearchBenchmark
+{
+	@Param({ "10", "100", "1000", "10000" })
+	public int devices;
+
+	@Setup
+	public void setup()
+	{
+		virtualRootUsbHub = new SimulatedUsbServices("devices=" + devices + ",seed=1").getRootUsbHub();
+	}
+
+	@Benchmark
+	public List getAllUsbDevices()
+	{
+		return FindUsbDevice.getAllUsbDevices(virtualRootUsbHub);
+	}
+
+	@Benchmark
+	public List getUsbDevicesWithId()
+	{
+		return FindUsbDevice.getUsbDevicesWithId(virtualRootUsbHub, SimulatedUsbServices.VENDOR_ID, MOUSE_PRODUCT_ID);
+	}
+
+	@Benchmark
+	public List getUsbDevicesWithDeviceClass()
+	{
+		return FindUsbDevice.getUsbDevicesWithDeviceClass(virtualRootUsbHub, UsbConst.HUB_CLASSCODE);
+	}
+
+	@Benchmark
+	public List getUsbDevicesWithManufacturerString()
+	{
+		return FindUsbDevice.getUsbDevicesWithManufacturerString(virtualRootUsbHub, "Simulated");
+	}
+
+	@Benchmark
+	public List getUsbInterfacesWithInterfaceClass()
+	{
+		return FindUsbInterface.getUsbInterfacesWithInterfaceClass(virtualRootUsbHub, MouseDriver.HID_CLASS);
+	}
+
+	@Benchmark
+	public UsbDevice findUsbDeviceWithId()
+	{
+		return FindUsbDevice.findUsbDeviceWithId(virtualRootUsbHub, SimulatedUsbServices.VENDOR_ID, MOUSE_PRODUCT_ID);
+	}
+
+	@Benchmark
+	public UsbInterface findUsbInterfaceWithInterfaceClass()
+	{
+		return FindUsbInterface.findUsbInterfaceWithInterfaceClass(virtualRootUsbHub, MouseDriver.HID_CLASS);
+	}
+
+	@Benchmark
+	public long countUsbDevicesWithDeviceClassParallel()
+	{
+		return FindUsbDevice.streamUsbDevicesWithDeviceClass(virtualRootUsbHub, UsbConst.HUB_CLASSCODE).parallel().count();
+	}
+
+	private UsbHub virtualRootUsbHub = null;
+
+	private static final short MOUSE_PRODUCT_ID = 0x0002;
+}
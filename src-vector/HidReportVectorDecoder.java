@@ -0,0 +1,66 @@
+/*
+ * Copyright (c) 1999 - 2001, International Business Machines Corporation.
+ * All Rights Reserved.
+ *
+ * This software is provided and licensed under the terms and conditions
+ * of the Common Public License:
+ * http://oss.software.ibm.com/developerworks/opensource/license-cpl.html
+ */
+
+import java.util.*;
+
+import jdk.incubator.vector.*;
+
+/**
+ * Decode blocks of 4-byte HID reports with the Vector API.
+ * <p>
+ * HidReportBatchDecoder.decodePacked() leaves it to the JIT to notice that its loop
+ * can use SIMD instructions, which it may or may not do.  This does the same shifts
+ * explicitly, with jdk.incubator.vector: each step loads a whole vector of bytes, views
+ * it as ints (one report per int, in little-endian order), and does each shift on all
+ * of those reports at once.  The reports left over at the end, fewer than one vector's
+ * worth, are decoded one at a time.
+ * <p>
+ * jdk.incubator.vector is an incubator module, which has to be added explicitly both to
+ * compile and to run, so this is kept out of the other examples' source directory.
+ * It is compiled by the <code>vector</code> (or <code>bench-vector-compile</code>) Ant target,
+ * and HidReportBatchDecoder only loads it when the module is present, i.e. when run with
+ * <code>--add-modules jdk.incubator.vector</code>; see HidReportBatchDecoder.decodeVector().
+ * <p>
+ * This class should not be used except by other example code.
+ */
+public class HidReportVectorDecoder implements HidReportBatchDecoder.PackedDecoder
+{
+	public void decode(byte[] block, int offset, int count, int[] buttons, int[] x, int[] y, int[] wheel, int base,
+		int buttonsShift, int xShift, int yShift, int wheelShift)
+	{
+		int lanes = INTS.length();
+		int i = 0;
+
+		for (; i<count-lanes+1; i+=lanes) {
+			IntVector words = ByteVector.fromArray(BYTES, block, offset + i * HidReportBatchDecoder.PACKED_REPORT_LENGTH).reinterpretAsInts();
+			words.lanewise(VectorOperators.LSHL, buttonsShift).lanewise(VectorOperators.LSHR, 24).intoArray(buttons, base + i);
+			words.lanewise(VectorOperators.LSHL, xShift).lanewise(VectorOperators.ASHR, 24).intoArray(x, base + i);
+			words.lanewise(VectorOperators.LSHL, yShift).lanewise(VectorOperators.ASHR, 24).intoArray(y, base + i);
+			if (0 <= wheelShift)
+				words.lanewise(VectorOperators.LSHL, wheelShift).lanewise(VectorOperators.ASHR, 24).intoArray(wheel, base + i);
+		}
+
+		for (; i<count; i++) {
+			int report = offset + i * HidReportBatchDecoder.PACKED_REPORT_LENGTH;
+			int word = (block[report] & 0xff) | (block[report+1] & 0xff) << 8 | (block[report+2] & 0xff) << 16 | block[report+3] << 24;
+			buttons[base + i] = (word << buttonsShift) >>> 24;
+			x[base + i] = (word << xShift) >> 24;
+			y[base + i] = (word << yShift) >> 24;
+			if (0 <= wheelShift)
+				wheel[base + i] = (word << wheelShift) >> 24;
+		}
+
+		if (0 > wheelShift)
+			Arrays.fill(wheel, base, base + count, 0);
+	}
+
+	/* The byte vectors are the same size as the int vectors, so each holds one int vector's worth of reports. */
+	private static final VectorSpecies<Integer> INTS = IntVector.SPECIES_PREFERRED;
+	private static final VectorSpecies<Byte> BYTES = ByteVector.SPECIES_PREFERRED;
+}
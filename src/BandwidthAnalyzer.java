@@ -0,0 +1,469 @@
+/*
+ * Copyright (c) 1999 - 2001, International Business Machines Corporation.
+ * All Rights Reserved.
+ *
+ * This software is provided and licensed under the terms and conditions
+ * of the Common Public License:
+ * http://oss.software.ibm.com/developerworks/opensource/license-cpl.html
+ */
+
+import java.util.*;
+
+import javax.usb.*;
+import javax.usb.event.*;
+import javax.usb.util.*;
+
+/**
+ * Analyze the periodic (interrupt and isochronous) bandwidth used in the topology.
+ * <p>
+ * Periodic transfers are guaranteed bus time in every frame they are scheduled in,
+ * and the USB spec limits the total to 90% of each (1 ms) frame.  When a bus is
+ * oversubscribed, devices start missing their scheduled transfers, which shows up
+ * as e.g. dropped HID reports.  This totals each endpoint's bus time, per hub
+ * (including everything below it) and per root hub port, so oversubscribed parts
+ * of the topology can be found before that happens.
+ * <p>
+ * The bus time of one transaction is from the USB 2.0 spec, section 5.11.3; it depends
+ * on the device speed, the endpoint type and direction, and wMaxPacketSize.  The
+ * average time per frame divides that by the endpoint's period in frames: bInterval
+ * for interrupt endpoints, and 2^(bInterval-1) for isochronous endpoints.
+ * The peak is the total if every endpoint landed in the same frame, which a host
+ * controller's scheduler normally avoids; the average is what must fit.
+ * Only the active configuration and the active alternate settings are counted.
+ * javax.usb 1.0 only distinguishes low and full speed; other speeds are treated as full speed.
+ * <p>
+ * The totals are kept current by listening for devices being attached and detached.
+ * <p>
+ * This class should not be used except by other example code.
+ */
+public class BandwidthAnalyzer implements UsbServicesListener
+{
+	public static void main(String argv[])
+	{
+		parseArgv(argv);
+
+		BandwidthAnalyzer bandwidthAnalyzer = null;
+
+		try {
+			bandwidthAnalyzer = new BandwidthAnalyzer(ShowTopology.getUsbServices());
+		} catch ( UsbException uE ) {
+			UsbLog.println("Could not analyze the topology : " + uE.getMessage());
+			return;
+		}
+
+		/* This uses the same walk as ShowTopology.processUsingGetUsbPorts(). */
+		bandwidthAnalyzer.show(ShowTopology.getVirtualRootUsbHub(), "");
+
+		if (0 >= staticWatchTime)
+			return;
+
+		/* Watch for changes to the topology, and report hubs going over or under budget. */
+		bandwidthAnalyzer.setBudgetListener(new BudgetListener() {
+				public void budgetChanged(UsbHub usbHub, Load load)
+				{
+					UsbLog.println((load.isOverBudget() ? "Over budget : " : "Back within budget : ") +
+						getName(usbHub) + " " + load);
+				}
+			});
+
+		UsbLog.println("Watching for " + staticWatchTime + " ms.");
+
+		try {
+			Thread.sleep(staticWatchTime);
+		} catch ( InterruptedException iE ) {
+		}
+
+		bandwidthAnalyzer.close();
+	}
+
+	/**
+	 * Constructor.
+	 * <p>
+	 * This registers with the UsbServices and adds all currently connected devices.
+	 * @param usbServices The UsbServices.
+	 * @exception UsbException If the virtual root UsbHub could not be gotten.
+	 */
+	public BandwidthAnalyzer(UsbServices usbServices) throws UsbException
+	{
+		this.usbServices = usbServices;
+
+		usbServices.addUsbServicesListener(this);
+
+		List usbDevices = FindUsbDevice.getAllUsbDevices(usbServices.getRootUsbHub());
+		for (int i=0; i<usbDevices.size(); i++)
+			add((UsbDevice)usbDevices.get(i));
+	}
+
+	/**
+	 * Stop listening for topology changes.
+	 */
+	public void close()
+	{
+		usbServices.removeUsbServicesListener(this);
+	}
+
+	/**
+	 * Set the BudgetListener.
+	 * @param budgetListener The BudgetListener, or null.
+	 */
+	public synchronized void setBudgetListener(BudgetListener budgetListener) { this.budgetListener = budgetListener; }
+
+	/**
+	 * Get the Load of a device; for a hub, this includes all devices below it.
+	 * @param usbDevice The UsbDevice.
+	 * @return A copy of its Load, or null if it isn't known.
+	 */
+	public synchronized Load getLoad(UsbDevice usbDevice)
+	{
+		Load load = (Load)subtreeLoads.get(usbDevice);
+		if (null == load) {
+			DeviceEntry entry = (DeviceEntry)devices.get(usbDevice);
+			load = null == entry ? null : entry.load;
+		}
+		return null == load ? null : load.copy();
+	}
+
+	/**
+	 * Get all hubs that are over budget.
+	 * @return A List of UsbHubs.
+	 */
+	public synchronized List getOverBudgetUsbHubs()
+	{
+		List list = new ArrayList();
+		Iterator iterator = subtreeLoads.entrySet().iterator();
+		while (iterator.hasNext()) {
+			Map.Entry mapEntry = (Map.Entry)iterator.next();
+			if (((Load)mapEntry.getValue()).isOverBudget())
+				list.add(mapEntry.getKey());
+		}
+		return list;
+	}
+
+	/**
+	 * Show the topology with the Load of every hub and root hub port.
+	 * @param usbDevice The UsbDevice to start at.
+	 * @param prefix The prefix for each line.
+	 */
+	public void show(UsbDevice usbDevice, String prefix)
+	{
+		Load load = getLoad(usbDevice);
+
+		if (!usbDevice.isUsbHub()) {
+			UsbLog.println(prefix + "Device " + getName(usbDevice) + (null == load || 0 == load.averageNanos ? "" : " " + load));
+			return;
+		}
+
+		UsbHub usbHub = (UsbHub)usbDevice;
+		boolean isRootUsbHub = usbHub.isRootUsbHub();
+
+		if (isRootUsbHub)
+			UsbLog.println(prefix + "Virtual root UsbHub");
+		else if (null == load)
+			UsbLog.println(prefix + "UsbHub " + getName(usbHub));
+		else
+			UsbLog.println(prefix + "UsbHub " + getName(usbHub) + " " + load + (load.isOverBudget() ? " OVER BUDGET" : ""));
+
+		/* The children of the virtual root hub are the root hubs, one per bus. */
+		boolean isBus = !isRootUsbHub && usbHub.getParentUsbPort().getUsbHub().isRootUsbHub();
+		List usbPorts = usbHub.getUsbPorts();
+
+		for (int i=0; i<usbPorts.size(); i++) {
+			UsbPort usbPort = (UsbPort)usbPorts.get(i);
+
+			if (isBus) {
+				Load portLoad = usbPort.isUsbDeviceAttached() ? getLoad(usbPort.getUsbDevice()) : null;
+				UsbLog.println(prefix+ShowTopology.PREFIX + "Root port " + UsbUtil.unsignedInt(usbPort.getPortNumber()) +
+					(null == portLoad ? " (empty)" : " " + portLoad));
+			}
+
+			if (usbPort.isUsbDeviceAttached())
+				show(usbPort.getUsbDevice(), prefix+ShowTopology.PREFIX);
+		}
+	}
+
+	public void usbDeviceAttached(UsbServicesEvent usbServicesEvent) { add(usbServicesEvent.getUsbDevice()); }
+
+	public void usbDeviceDetached(UsbServicesEvent usbServicesEvent) { remove(usbServicesEvent.getUsbDevice()); }
+
+	/**
+	 * Add a device's Load to it and each hub above it.
+	 * <p>
+	 * Only the hubs above the device are updated; nothing else is recalculated.
+	 * @param usbDevice The UsbDevice.
+	 */
+	protected void add(UsbDevice usbDevice)
+	{
+		/* The virtual root hub isn't a bus; totals across buses mean nothing. */
+		if (usbDevice.isUsbHub() && ((UsbHub)usbDevice).isRootUsbHub())
+			return;
+
+		/* Calculate outside the lock; this only uses descriptors. */
+		Load load = getDeviceLoad(usbDevice);
+		List ancestors = new ArrayList();
+
+		try {
+			UsbPort usbPort = usbDevice.getParentUsbPort();
+			while (null != usbPort && !usbPort.getUsbHub().isRootUsbHub()) {
+				ancestors.add(usbPort.getUsbHub());
+				usbPort = usbPort.getUsbHub().getParentUsbPort();
+			}
+		} catch ( UsbDisconnectedException udE ) {
+			/* It's already gone again; the detach event will follow (or already came). */
+			return;
+		}
+
+		synchronized (this) {
+			if (devices.containsKey(usbDevice))
+				return;
+
+			devices.put(usbDevice, new DeviceEntry(load, (UsbHub[])ancestors.toArray(new UsbHub[ancestors.size()])));
+
+			if (usbDevice.isUsbHub())
+				addTo(usbDevice, load);
+			for (int i=0; i<ancestors.size(); i++)
+				addTo((UsbDevice)ancestors.get(i), load);
+		}
+	}
+
+	/**
+	 * Remove a device's Load from it and each hub it was below.
+	 * @param usbDevice The UsbDevice.
+	 */
+	protected synchronized void remove(UsbDevice usbDevice)
+	{
+		DeviceEntry entry = (DeviceEntry)devices.remove(usbDevice);
+
+		if (null == entry)
+			return;
+
+		/* The parent hubs were recorded when the device was added, since a
+		 * disconnected device can't be asked for its parent port.
+		 */
+		subtreeLoads.remove(usbDevice);
+		for (int i=0; i<entry.ancestors.length; i++)
+			subtractFrom(entry.ancestors[i], entry.load);
+	}
+
+	/* These must be called while synchronized on this. */
+
+	protected void addTo(UsbDevice usbHub, Load load)
+	{
+		Load subtreeLoad = (Load)subtreeLoads.get(usbHub);
+		if (null == subtreeLoad) {
+			subtreeLoad = new Load();
+			subtreeLoads.put(usbHub, subtreeLoad);
+		}
+		boolean wasOverBudget = subtreeLoad.isOverBudget();
+		subtreeLoad.add(load, 1);
+		if (wasOverBudget != subtreeLoad.isOverBudget())
+			fireBudgetChanged((UsbHub)usbHub, subtreeLoad);
+	}
+
+	protected void subtractFrom(UsbDevice usbHub, Load load)
+	{
+		Load subtreeLoad = (Load)subtreeLoads.get(usbHub);
+		if (null == subtreeLoad)
+			return;
+		boolean wasOverBudget = subtreeLoad.isOverBudget();
+		subtreeLoad.add(load, -1);
+		if (wasOverBudget != subtreeLoad.isOverBudget())
+			fireBudgetChanged((UsbHub)usbHub, subtreeLoad);
+	}
+
+	protected void fireBudgetChanged(UsbHub usbHub, Load load)
+	{
+		if (null != budgetListener)
+			budgetListener.budgetChanged(usbHub, load.copy());
+	}
+
+	/**
+	 * Get the Load of one device's own periodic endpoints.
+	 * @param usbDevice The UsbDevice.
+	 * @return Its Load.
+	 */
+	public static Load getDeviceLoad(UsbDevice usbDevice)
+	{
+		Load load = new Load();
+
+		if (!usbDevice.isConfigured())
+			return load;
+
+		boolean lowSpeed = UsbConst.DEVICE_SPEED_LOW == usbDevice.getSpeed();
+		List usbInterfaces = usbDevice.getActiveUsbConfiguration().getUsbInterfaces();
+
+		for (int i=0; i<usbInterfaces.size(); i++) {
+			List usbEndpoints = ((UsbInterface)usbInterfaces.get(i)).getUsbEndpoints();
+
+			for (int j=0; j<usbEndpoints.size(); j++) {
+				UsbEndpoint usbEndpoint = (UsbEndpoint)usbEndpoints.get(j);
+				UsbEndpointDescriptor desc = usbEndpoint.getUsbEndpointDescriptor();
+				byte type = usbEndpoint.getType();
+				int period = 0;
+
+				if (UsbConst.ENDPOINT_TYPE_INTERRUPT == type)
+					period = Math.max(1, UsbUtil.unsignedInt(desc.bInterval()));
+				else if (UsbConst.ENDPOINT_TYPE_ISOCHRONOUS == type)
+					period = 1 << (Math.max(1, Math.min(16, UsbUtil.unsignedInt(desc.bInterval()))) - 1);
+				else
+					continue;
+
+				long nanos = getTransactionNanos(lowSpeed, UsbConst.ENDPOINT_TYPE_ISOCHRONOUS == type,
+					UsbConst.ENDPOINT_DIRECTION_IN == usbEndpoint.getDirection(), UsbUtil.unsignedInt(desc.wMaxPacketSize()));
+
+				load.peakNanos += nanos;
+				load.averageNanos += nanos / period;
+				load.endpoints++;
+			}
+		}
+
+		return load;
+	}
+
+	/**
+	 * Get the bus time of one transaction, from the USB 2.0 spec section 5.11.3.
+	 * @param lowSpeed If the device is low speed.
+	 * @param isochronous If the transfer is isochronous (otherwise interrupt).
+	 * @param in If the transfer is in-direction.
+	 * @param bytes The number of data bytes.
+	 * @return The bus time, in ns.
+	 */
+	public static long getTransactionNanos(boolean lowSpeed, boolean isochronous, boolean in, int bytes)
+	{
+		/* Worst case bit stuffing adds one bit for every six. */
+		double bits = Math.floor(3.167 + (7 * 8 * bytes) / 6.0);
+
+		if (lowSpeed)
+			return (long)((in ? 64060 : 64107) + 2 * HUB_LS_SETUP_NANOS + (in ? 676.67 : 667.0) * bits + HOST_DELAY_NANOS);
+		else if (isochronous)
+			return (long)((in ? 7268 : 6265) + 83.54 * bits + HOST_DELAY_NANOS);
+		else
+			return (long)(9107 + 83.54 * bits + HOST_DELAY_NANOS);
+	}
+
+	/**
+	 * Get a short name for a device.
+	 * @param usbDevice The UsbDevice.
+	 * @return The name.
+	 */
+	public static String getName(UsbDevice usbDevice)
+	{
+		UsbDeviceDescriptor desc = usbDevice.getUsbDeviceDescriptor();
+		return "0x" + UsbUtil.toHexString(desc.idVendor()) + ":0x" + UsbUtil.toHexString(desc.idProduct()) +
+			(UsbConst.DEVICE_SPEED_LOW == usbDevice.getSpeed() ? " (low speed)" : "");
+	}
+
+	/**
+	 * Parse the parameters.
+	 * @param argv The command-line parameters.
+	 */
+	public static void parseArgv(String argv[])
+	{
+		for (int i=0; i<argv.length; i++) {
+			int equalsIndex = argv[i].indexOf('=');
+			try {
+				String key = argv[i].substring(0, equalsIndex);
+				String value = argv[i].substring(equalsIndex+1);
+				if (key.equals(WATCH_KEY))
+					staticWatchTime = Long.decode(value).longValue();
+				else {
+					System.err.println("Unrecognized key \"" + key + "\"\n" + USAGE);
+					System.exit(1);
+				}
+			} catch ( Exception e ) {
+				System.err.println("Invalid key-value pair \"" + argv[i] + "\"\n" + USAGE);
+				System.exit(1);
+			}
+		}
+	}
+
+	/**
+	 * Periodic bus time per frame.
+	 */
+	public static class Load
+	{
+		/** @return If the average is more than the periodic budget. */
+		public boolean isOverBudget() { return PERIODIC_BUDGET_NANOS < averageNanos; }
+
+		/** @return The average as a percentage of the periodic budget. */
+		public double getBudgetPercent() { return (100.0 * averageNanos) / PERIODIC_BUDGET_NANOS; }
+
+		public Load copy()
+		{
+			Load load = new Load();
+			load.add(this, 1);
+			return load;
+		}
+
+		protected void add(Load load, int sign)
+		{
+			averageNanos += sign * load.averageNanos;
+			peakNanos += sign * load.peakNanos;
+			endpoints += sign * load.endpoints;
+		}
+
+		public String toString()
+		{
+			return "periodic " + (averageNanos / 1000) + " us/frame avg (" + Math.round(getBudgetPercent()) + "% of budget), " +
+				(peakNanos / 1000) + " us peak, " + endpoints + " endpoints";
+		}
+
+		/** The average bus time per frame, in ns. */
+		public long averageNanos = 0;
+		/** The bus time if all endpoints were in the same frame, in ns. */
+		public long peakNanos = 0;
+		/** The number of periodic endpoints. */
+		public int endpoints = 0;
+	}
+
+	/**
+	 * Interface to be told when a hub goes over or back within budget.
+	 */
+	public static interface BudgetListener
+	{
+		/**
+		 * Called (while the analyzer is locked) when a hub's Load goes over or back within budget.
+		 * @param usbHub The UsbHub.
+		 * @param load A copy of its Load.
+		 */
+		public void budgetChanged(UsbHub usbHub, Load load);
+	}
+
+	protected static class DeviceEntry
+	{
+		public DeviceEntry(Load load, UsbHub[] ancestors)
+		{
+			this.load = load;
+			this.ancestors = ancestors;
+		}
+
+		public final Load load;
+		public final UsbHub[] ancestors;
+	}
+
+	private UsbServices usbServices = null;
+	private BudgetListener budgetListener = null;
+
+	/* UsbDevice -> DeviceEntry, and UsbHub -> Load of everything at and below it. */
+	private Map devices = new HashMap();
+	private Map subtreeLoads = new HashMap();
+
+	private static long staticWatchTime = 0;
+
+	/* 90% of a 1 ms frame may be used for periodic transfers. */
+	public static final long FRAME_NANOS = 1000000;
+	public static final long PERIODIC_BUDGET_NANOS = FRAME_NANOS * 90 / 100;
+
+	/* These are implementation-dependent; these are typical values. */
+	public static final long HOST_DELAY_NANOS = 1000;
+	public static final long HUB_LS_SETUP_NANOS = 333;
+
+	private static final String WATCH_KEY = "watch";
+
+	private static final String KEYS =
+		"\t" + WATCH_KEY + " (ms to keep watching for topology changes)";
+
+	private static final String USAGE =
+		"Usage : java BandwidthAnalyzer <key=value>\n" +
+		"\n" +
+		"\tvalid keys are:\n" + KEYS;
+}
@@ -0,0 +1,610 @@
+/*
+ * Copyright (c) 1999 - 2001, International Business Machines Corporation.
+ * All Rights Reserved.
+ *
+ * This software is provided and licensed under the terms and conditions
+ * of the Common Public License:
+ * http://oss.software.ibm.com/developerworks/opensource/license-cpl.html
+ */
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+
+import javax.usb.*;
+import javax.usb.util.*;
+
+/**
+ * Stream bulk data through a UsbPipe, keeping several UsbIrps in flight.
+ * <p>
+ * A single synchronous submission (as used in MouseDriver.HidMouseRunnable)
+ * leaves the pipe idle between the end of one transfer and the submission
+ * of the next.  For bulk pipes that idle time directly reduces throughput,
+ * so this keeps a queue of UsbIrps submitted to the pipe; as each one
+ * completes, its data is handed to (or refilled from) a FileChannel or
+ * ByteBuffer and it is immediately resubmitted.
+ * <p>
+ * Each UsbIrp has its own data buffer, which is wrapped in a ByteBuffer
+ * only once, so data moves between the UsbIrp buffers and the file without
+ * any intermediate copies by this class.  The javax.usb UsbIrp only accepts
+ * a byte[], so direct ByteBuffers can't be handed to the pipe itself;
+ * for a memory-mapped file there is one copy, between the mapping and the UsbIrp buffer.
+ * <p>
+ * This class should not be used except by other example code.
+ */
+public class BulkPipeStreamer
+{
+	public static void main(String argv[])
+	{
+		parseArgv(argv);
+
+		UsbHub virtualRootUsbHub = ShowTopology.getVirtualRootUsbHub();
+		UsbEndpoint usbEndpoint = getFirstBulkUsbEndpoint(virtualRootUsbHub, staticDirection);
+
+		if (null == usbEndpoint) {
+			UsbLog.println("No bulk " + (UsbConst.ENDPOINT_DIRECTION_IN == staticDirection ? "in" : "out") + "-direction endpoints were found.");
+			return;
+		}
+
+		UsbInterface usbInterface = usbEndpoint.getUsbInterface();
+		UsbPipe usbPipe = UsbMetrics.getDefault().meter(usbEndpoint.getUsbPipe());
+
+		try {
+			usbInterface.claim();
+		} catch ( UsbException uE ) {
+			UsbLog.println("Could not claim interface : " + uE.getMessage());
+			return;
+		}
+
+		RandomAccessFile file = null;
+
+		try {
+			usbPipe.open();
+
+			BulkPipeStreamer streamer = new BulkPipeStreamer(usbPipe, staticDepth, staticTransferSize);
+			Statistics statistics = null;
+
+			if (UsbConst.ENDPOINT_DIRECTION_IN == staticDirection) {
+				file = new RandomAccessFile(staticFileName, "rw");
+				if (staticMapped)
+					statistics = streamer.streamIn(file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, staticCount));
+				else
+					statistics = streamer.streamIn(file.getChannel(), staticCount);
+			} else {
+				file = new RandomAccessFile(staticFileName, "r");
+				long count = 0 > staticCount ? file.length() : Math.min(staticCount, file.length());
+				if (staticMapped)
+					statistics = streamer.streamOut(file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, count));
+				else
+					statistics = streamer.streamOut(file.getChannel(), count);
+			}
+
+			UsbLog.println(statistics.toString());
+		} catch ( UsbException uE ) {
+			UsbLog.println("Bulk streaming failed : " + uE.getMessage());
+		} catch ( IOException ioE ) {
+			UsbLog.println("File I/O failed : " + ioE.getMessage());
+		} finally {
+			try { if (null != file) file.close(); }
+			catch ( IOException ioE ) { }
+			try { if (usbPipe.isOpen()) usbPipe.close(); }
+			catch ( UsbException uE ) { }
+			try { usbInterface.release(); }
+			catch ( UsbException uE ) { }
+		}
+
+		if (null != System.getProperty(UsbMetrics.PRINT_PROPERTY))
+			UsbLog.print(UsbMetrics.getDefault().snapshot());
+	}
+
+	/**
+	 * Constructor.
+	 * <p>
+	 * The pipe must be an open bulk pipe.  For an in-direction pipe, the transfer size
+	 * is rounded up to a multiple of the endpoint's wMaxPacketSize, since a device may
+	 * always send a full packet and a UsbIrp with no room for it would babble.
+	 * @param usbPipe The UsbPipe to stream through.
+	 * @param depth The number of UsbIrps to keep in flight.
+	 * @param transferSize The size of each UsbIrp's data buffer.
+	 */
+	public BulkPipeStreamer(UsbPipe usbPipe, int depth, int transferSize)
+	{
+		if (1 > depth || 1 > transferSize)
+			throw new IllegalArgumentException("Depth and transfer size must be positive");
+
+		this.usbPipe = usbPipe;
+
+		UsbEndpoint usbEndpoint = usbPipe.getUsbEndpoint();
+		in = UsbConst.ENDPOINT_DIRECTION_IN == usbEndpoint.getDirection();
+		/* Bits 10..0 are the packet size; for bulk endpoints the rest are reserved. */
+		packetSize = Math.max(1, usbEndpoint.getUsbEndpointDescriptor().wMaxPacketSize() & 0x7ff);
+		if (in)
+			transferSize = (int)roundUp(transferSize);
+
+		usbIrps = new UsbIrp[depth];
+		buffers = new ByteBuffer[depth];
+
+		for (int i=0; i<depth; i++) {
+			byte[] data = new byte[transferSize];
+			/* Let the implementation create the UsbIrp, it may be optimized (see DefaultControlPipe). */
+			usbIrps[i] = usbPipe.createUsbIrp();
+			usbIrps[i].setData(data);
+			buffers[i] = ByteBuffer.wrap(data);
+		}
+	}
+
+	/**
+	 * Stream in-direction data into a FileChannel.
+	 * <p>
+	 * Data is written at the channel's current position.
+	 * @param channel The FileChannel to write to.
+	 * @param count The number of bytes to read from the pipe, or -1 to stream until {@link #stop() stopped}.
+	 * @return The Statistics for the stream.
+	 * @exception UsbException If a submission fails.
+	 * @exception IOException If writing to the channel fails.
+	 */
+	public Statistics streamIn(final FileChannel channel, long count) throws UsbException,IOException
+	{
+		return stream(count, new Transfer() {
+				public int fill(ByteBuffer buffer) { return buffer.remaining(); }
+				public void drain(ByteBuffer buffer) throws IOException
+				{
+					while (buffer.hasRemaining())
+						channel.write(buffer);
+				}
+			});
+	}
+
+	/**
+	 * Stream in-direction data into a ByteBuffer, e.g. a MappedByteBuffer.
+	 * <p>
+	 * Data is put at the buffer's position, until the buffer is full.
+	 * @param destination The ByteBuffer to put the data in.
+	 * @return The Statistics for the stream.
+	 * @exception UsbException If a submission fails.
+	 */
+	public Statistics streamIn(final ByteBuffer destination) throws UsbException
+	{
+		try {
+			return stream(destination.remaining(), new Transfer() {
+					public int fill(ByteBuffer buffer) { return buffer.remaining(); }
+					public void drain(ByteBuffer buffer)
+					{
+						if (buffer.remaining() > destination.remaining())
+							buffer.limit(buffer.position() + destination.remaining());
+						destination.put(buffer);
+					}
+				});
+		} catch ( IOException ioE ) {
+			/* Nothing in this Transfer throws IOException. */
+			throw new RuntimeException(ioE.getMessage());
+		}
+	}
+
+	/**
+	 * Stream out-direction data from a FileChannel.
+	 * <p>
+	 * Data is read from the channel's current position.
+	 * @param channel The FileChannel to read from.
+	 * @param count The number of bytes to send.
+	 * @return The Statistics for the stream.
+	 * @exception UsbException If a submission fails.
+	 * @exception IOException If reading from the channel fails.
+	 */
+	public Statistics streamOut(final FileChannel channel, long count) throws UsbException,IOException
+	{
+		return stream(count, new Transfer() {
+				public int fill(ByteBuffer buffer) throws IOException
+				{
+					while (buffer.hasRemaining())
+						if (0 > channel.read(buffer))
+							break;
+					return buffer.position();
+				}
+				public void drain(ByteBuffer buffer) { }
+			});
+	}
+
+	/**
+	 * Stream out-direction data from a ByteBuffer, e.g. a MappedByteBuffer.
+	 * <p>
+	 * Data is taken from the buffer's position until its limit.
+	 * @param source The ByteBuffer to send.
+	 * @return The Statistics for the stream.
+	 * @exception UsbException If a submission fails.
+	 */
+	public Statistics streamOut(final ByteBuffer source) throws UsbException
+	{
+		try {
+			return stream(source.remaining(), new Transfer() {
+					public int fill(ByteBuffer buffer)
+					{
+						int length = Math.min(buffer.remaining(), source.remaining());
+						int limit = source.limit();
+						source.limit(source.position() + length);
+						buffer.put(source);
+						source.limit(limit);
+						return length;
+					}
+					public void drain(ByteBuffer buffer) { }
+				});
+		} catch ( IOException ioE ) {
+			/* Nothing in this Transfer throws IOException. */
+			throw new RuntimeException(ioE.getMessage());
+		}
+	}
+
+	/**
+	 * Stop streaming.
+	 * <p>
+	 * All in-flight UsbIrps are aborted.  The stream method returns
+	 * normally, with the Statistics up to this point.
+	 */
+	public void stop()
+	{
+		running = false;
+		try {
+			usbPipe.abortAllSubmissions();
+		} catch ( UsbNotOpenException unoE ) {
+			/* The pipe isn't open any more, so there's nothing to abort. */
+		}
+	}
+
+	/**
+	 * Get the current Statistics.
+	 * <p>
+	 * This may be called from any Thread while streaming.
+	 * @return The current Statistics.
+	 */
+	public Statistics getStatistics() { return statistics.copy(); }
+
+	/**
+	 * Run the stream.
+	 * <p>
+	 * For an in-direction stream, the count is of bytes actually received: a UsbIrp that
+	 * completes short (e.g. with a short packet) only accounts for what it got, and the rest
+	 * is asked for again.  UsbIrps ask for what is left, less what the UsbIrps already in
+	 * flight may still get, rounded up to a whole number of packets; anything received
+	 * beyond the count is discarded.
+	 * @param count The number of bytes to transfer, or -1 for unlimited.
+	 * @param transfer The Transfer to fill/drain the UsbIrp buffers.
+	 * @return The Statistics.
+	 */
+	protected Statistics stream(long count, Transfer transfer) throws UsbException,IOException
+	{
+		int depth = usbIrps.length;
+		int oldest = 0;
+		int outstanding = 0;
+		/* Bytes not received yet (in), or not taken from the source yet (out). */
+		long remaining = 0 > count ? Long.MAX_VALUE : count;
+		/* Bytes asked for by the in-direction UsbIrps in flight. */
+		long requested = 0;
+
+		running = true;
+		statistics = new Statistics();
+		statistics.start();
+
+		try {
+			while (true) {
+				/* Keep every UsbIrp submitted, while there's anything left to ask for.
+				 * UsbIrps on a single pipe complete in the order they were submitted,
+				 * so they're submitted in ring order after the oldest one in flight.
+				 */
+				while (running && depth > outstanding && 0 < remaining - requested) {
+					int index = (oldest + outstanding) % depth;
+					int length = prepare(index, transfer, remaining - requested);
+					if (0 == length) {
+						/* The source is empty, so there's nothing more to send. */
+						remaining = requested;
+						break;
+					}
+					if (in)
+						requested += length;
+					else
+						remaining -= length;
+					usbPipe.asyncSubmit(usbIrps[index]);
+					outstanding++;
+				}
+
+				if (0 == outstanding)
+					break;
+
+				int index = oldest;
+				UsbIrp usbIrp = usbIrps[index];
+
+				usbIrp.waitUntilComplete();
+
+				statistics.record(outstanding);
+				oldest = (oldest + 1) % depth;
+				outstanding--;
+				if (in)
+					requested -= usbIrp.getLength();
+
+				if (usbIrp.isUsbException()) {
+					/* An abort after stop() is expected; anything else ends the stream. */
+					if (!running)
+						continue;
+					running = false;
+					usbPipe.abortAllSubmissions();
+					drain(index, outstanding);
+					throw usbIrp.getUsbException();
+				}
+
+				int actualLength = usbIrp.getActualLength();
+
+				if (in) {
+					/* The last UsbIrp may get more than was asked for, to fill its last packet. */
+					actualLength = (int)Math.min(actualLength, remaining);
+					remaining -= actualLength;
+					ByteBuffer buffer = buffers[index];
+					buffer.clear();
+					buffer.limit(actualLength);
+					transfer.drain(buffer);
+				}
+
+				statistics.completed(actualLength);
+			}
+		} finally {
+			running = false;
+			statistics.end();
+		}
+
+		return statistics.copy();
+	}
+
+	/**
+	 * Prepare a UsbIrp for (re)submission.
+	 * @param index The index of the UsbIrp.
+	 * @param transfer The Transfer to fill the buffer.
+	 * @param remaining The number of bytes remaining in the stream; for an in-direction
+	 * stream, this is rounded up to a whole number of packets.
+	 * @return The length of the UsbIrp's data, or 0 if there is no more data.
+	 */
+	protected int prepare(int index, Transfer transfer, long remaining) throws IOException
+	{
+		if (in)
+			remaining = roundUp(remaining);
+
+		ByteBuffer buffer = buffers[index];
+		buffer.clear();
+		if (remaining < buffer.capacity())
+			buffer.limit((int)remaining);
+
+		int length = transfer.fill(buffer);
+
+		UsbIrp usbIrp = usbIrps[index];
+		usbIrp.setComplete(false);
+		usbIrp.setUsbException(null);
+		usbIrp.setActualLength(0);
+		usbIrp.setData(buffer.array(), 0, length);
+		return length;
+	}
+
+	/**
+	 * Round a length up to a whole number of packets.
+	 * @param length The length.
+	 * @return The length, rounded up to a multiple of the endpoint's wMaxPacketSize.
+	 */
+	protected long roundUp(long length)
+	{
+		/* An unlimited stream's length is already more than any UsbIrp can ask for. */
+		if (Long.MAX_VALUE - packetSize < length)
+			return length;
+		return (length + packetSize - 1) / packetSize * packetSize;
+	}
+
+	/**
+	 * Wait for the remaining (aborted) UsbIrps after a failure.
+	 * @param index The index of the failed UsbIrp.
+	 * @param outstanding The number still outstanding.
+	 */
+	protected void drain(int index, int outstanding)
+	{
+		for (int i=(index + 1) % usbIrps.length; 0 < outstanding; i = (i + 1) % usbIrps.length, outstanding--)
+			usbIrps[i].waitUntilComplete();
+	}
+
+	/**
+	 * Find the first bulk endpoint with the specified direction.
+	 * @param usbDevice The UsbDevice to start searching at.
+	 * @param direction The endpoint direction.
+	 * @return The UsbEndpoint, or null if there isn't one.
+	 */
+	public static UsbEndpoint getFirstBulkUsbEndpoint(UsbDevice usbDevice, byte direction)
+	{
+		List usbDevices = FindUsbDevice.getAllUsbDevices(usbDevice);
+
+		for (int i=0; i<usbDevices.size(); i++) {
+			UsbDevice device = (UsbDevice)usbDevices.get(i);
+
+			if (!device.isConfigured())
+				continue;
+
+			List usbInterfaces = device.getActiveUsbConfiguration().getUsbInterfaces();
+			for (int j=0; j<usbInterfaces.size(); j++) {
+				List usbEndpoints = ((UsbInterface)usbInterfaces.get(j)).getUsbEndpoints();
+				for (int k=0; k<usbEndpoints.size(); k++) {
+					UsbEndpoint usbEndpoint = (UsbEndpoint)usbEndpoints.get(k);
+					if (UsbConst.ENDPOINT_TYPE_BULK == usbEndpoint.getType() && direction == usbEndpoint.getDirection())
+						return usbEndpoint;
+				}
+			}
+		}
+
+		return null;
+	}
+
+	/**
+	 * Parse the parameters.
+	 * @param argv The command-line parameters.
+	 */
+	public static void parseArgv(String argv[])
+	{
+		for (int i=0; i<argv.length; i++) {
+			int equalsIndex = argv[i].indexOf('=');
+			try {
+				String key = argv[i].substring(0, equalsIndex);
+				String value = argv[i].substring(equalsIndex+1);
+				if (key.equals(DIRECTION_KEY)) {
+					if (value.equals("in"))
+						staticDirection = UsbConst.ENDPOINT_DIRECTION_IN;
+					else if (value.equals("out"))
+						staticDirection = UsbConst.ENDPOINT_DIRECTION_OUT;
+					else
+						throw new IllegalArgumentException(value);
+				} else if (key.equals(FILE_KEY))
+					staticFileName = value;
+				else if (key.equals(COUNT_KEY))
+					staticCount = Long.decode(value).longValue();
+				else if (key.equals(DEPTH_KEY))
+					staticDepth = Integer.decode(value).intValue();
+				else if (key.equals(TRANSFER_SIZE_KEY))
+					staticTransferSize = Integer.decode(value).intValue();
+				else if (key.equals(MAPPED_KEY))
+					staticMapped = Boolean.valueOf(value).booleanValue();
+				else {
+					System.err.println("Unrecognized key \"" + key + "\"\n" + USAGE);
+					System.exit(1);
+				}
+			} catch ( Exception e ) {
+				System.err.println("Invalid key-value pair \"" + argv[i] + "\"\n" + USAGE);
+				System.exit(1);
+			}
+		}
+
+		/* A mapping has to have a size, and an in-direction stream's only size is its count. */
+		if (staticMapped && UsbConst.ENDPOINT_DIRECTION_IN == staticDirection && 0 > staticCount) {
+			System.err.println("A " + COUNT_KEY + " is required for a " + MAPPED_KEY + " in-direction stream\n" + USAGE);
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Fills and drains UsbIrp buffers.
+	 */
+	protected static interface Transfer
+	{
+		/**
+		 * Fill the buffer for an out-direction UsbIrp.
+		 * <p>
+		 * For in-direction streams this just returns the buffer's remaining bytes.
+		 * @param buffer The (cleared) UsbIrp buffer.
+		 * @return The number of bytes to submit.
+		 */
+		public int fill(ByteBuffer buffer) throws IOException;
+
+		/**
+		 * Drain the buffer of a completed in-direction UsbIrp.
+		 * @param buffer The UsbIrp buffer, positioned at the received data.
+		 */
+		public void drain(ByteBuffer buffer) throws IOException;
+	}
+
+	/**
+	 * Statistics for a stream.
+	 * <p>
+	 * The streaming Thread only changes a stream's Statistics while synchronized on them,
+	 * and other Threads only see copies (see {@link #getStatistics()}), so the fields of
+	 * any Statistics returned are consistent with each other.
+	 */
+	public static class Statistics
+	{
+		/** @return The elapsed time in nanoseconds. */
+		public long getElapsedNanos() { return (0 == endTime ? System.nanoTime() : endTime) - startTime; }
+
+		/** @return The sustained throughput in bytes per second. */
+		public double getBytesPerSecond()
+		{
+			long elapsed = getElapsedNanos();
+			return 0 == elapsed ? 0 : (bytes * 1000000000.0) / elapsed;
+		}
+
+		/** @return The average number of UsbIrps in flight, sampled at each completion. */
+		public double getAverageDepth() { return 0 == samples ? 0 : (double)depthTotal / samples; }
+
+		public String toString()
+		{
+			return "Transferred " + bytes + " bytes in " + irps + " UsbIrps, " +
+				(getElapsedNanos() / 1000000) + " ms, " +
+				(long)getBytesPerSecond() + " bytes/sec, " +
+				"queue depth avg " + ((long)(getAverageDepth() * 100) / 100.0) + " min " + (0 == samples ? 0 : minDepth) + " max " + maxDepth;
+		}
+
+		protected synchronized void start() { startTime = System.nanoTime(); }
+
+		protected synchronized void end() { endTime = System.nanoTime(); }
+
+		protected synchronized void record(int depth)
+		{
+			samples++;
+			depthTotal += depth;
+			minDepth = Math.min(minDepth, depth);
+			maxDepth = Math.max(maxDepth, depth);
+		}
+
+		protected synchronized void completed(int actualLength)
+		{
+			irps++;
+			bytes += actualLength;
+		}
+
+		protected synchronized Statistics copy()
+		{
+			Statistics copy = new Statistics();
+			copy.bytes = bytes;
+			copy.irps = irps;
+			copy.startTime = startTime;
+			copy.endTime = endTime;
+			copy.samples = samples;
+			copy.depthTotal = depthTotal;
+			copy.minDepth = minDepth;
+			copy.maxDepth = maxDepth;
+			return copy;
+		}
+
+		public long bytes = 0;
+		public long irps = 0;
+		public long startTime = 0;
+		public long endTime = 0;
+		public long samples = 0;
+		public long depthTotal = 0;
+		public int minDepth = Integer.MAX_VALUE;
+		public int maxDepth = 0;
+	}
+
+	private UsbPipe usbPipe = null;
+	private boolean in = false;
+	private int packetSize = 1;
+	private UsbIrp[] usbIrps = null;
+	private ByteBuffer[] buffers = null;
+	private volatile boolean running = false;
+	private volatile Statistics statistics = new Statistics();
+
+	private static byte staticDirection = UsbConst.ENDPOINT_DIRECTION_IN;
+	private static String staticFileName = "bulk.dat";
+	private static long staticCount = 1024 * 1024;
+	private static int staticDepth = 8;
+	private static int staticTransferSize = 16 * 1024;
+	private static boolean staticMapped = false;
+
+	private static final String DIRECTION_KEY = "direction";
+	private static final String FILE_KEY = "file";
+	private static final String COUNT_KEY = "count";
+	private static final String DEPTH_KEY = "depth";
+	private static final String TRANSFER_SIZE_KEY = "transferSize";
+	private static final String MAPPED_KEY = "mapped";
+
+	private static final String KEYS =
+		"\t" + DIRECTION_KEY + " (in or out)\n" +
+		"\t" + FILE_KEY + "\n" +
+		"\t" + COUNT_KEY + " (bytes, or -1 for unlimited (in) or the whole file (out))\n" +
+		"\t" + DEPTH_KEY + "\n" +
+		"\t" + TRANSFER_SIZE_KEY + "\n" +
+		"\t" + MAPPED_KEY + " (true or false)";
+
+	private static final String USAGE =
+		"Usage : java BulkPipeStreamer <key=value>\n" +
+		"\n" +
+		"\tvalid keys are:\n" + KEYS;
+}
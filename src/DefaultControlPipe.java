@@ -27,25 +27,31 @@ public class DefaultControlPipe
 		List allUsbDevices = FindUsbDevice.getAllUsbDevices(virtualRootUsbHub);
 		List usbHubs = FindUsbDevice.getUsbDevicesWithDeviceClass(virtualRootUsbHub, UsbConst.HUB_CLASSCODE);
 
-		System.out.println("Found " + allUsbDevices.size() + " devices total.");
-		System.out.println("Found " + usbHubs.size() + " hubs.");
+		UsbLog.println("Found " + allUsbDevices.size() + " devices total.");
+		UsbLog.println("Found " + usbHubs.size() + " hubs.");
 
 		allUsbDevices.removeAll(usbHubs);
 
-		System.out.println("Found " + allUsbDevices.size() + " non-hub devices.");
+		UsbLog.println("Found " + allUsbDevices.size() + " non-hub devices.");
 
 		if (0 < allUsbDevices.size()) {
-			/* We'll just use the first non-hub device. */
-			UsbDevice usbDevice = (UsbDevice)allUsbDevices.get(0);
+			/* We'll just use the first non-hub device, metered so its control transfers are counted. */
+			UsbDevice usbDevice = UsbMetrics.getDefault().meter((UsbDevice)allUsbDevices.get(0));
 
 			/* Show how to communicate using the StandardRequest utility class. */
 			showStandardRequestCommunication(usbDevice);
 
 			/* Show how to communicate using UsbControlIrp objects. */
 			showUsbControlIrpCommunication(usbDevice);
+
+			/* Show how to parse the raw configuration descriptors. */
+			showConfigurationDescriptorParsing(usbDevice);
 		} else {
-			System.out.println("No non-hub devices were found.");
+			UsbLog.println("No non-hub devices were found.");
 		}
+
+		if (null != System.getProperty(UsbMetrics.PRINT_PROPERTY))
+			UsbLog.print(UsbMetrics.getDefault().snapshot());
 	}
 
 	/**
@@ -110,8 +116,8 @@ public class DefaultControlPipe
 		/* The device descriptor is binary, as specified by the USB spec.
 		 * We're not going to parse it here, but we can print it out.
 		 */
-		System.out.println("Got device descriptor (length " + length + ") :");
-		System.out.println(UsbUtil.toHexString(" 0x", buffer, length));
+		UsbLog.println("Got device descriptor (length " + length + ") :");
+		UsbLog.println(UsbUtil.toHexString(" 0x", buffer, length));
 
 		/* Now let's try getting the current configuration number. */
 		bmRequestType =
@@ -132,9 +138,9 @@ public class DefaultControlPipe
 
 		/* If we didn't get 1 byte, something went wrong... */
 		if (1 > length)
-			System.out.println("Got no data during submission!");
+			UsbLog.println("Got no data during submission!");
 		else
-			System.out.println("Got current configuration number : " + UsbUtil.unsignedInt(buffer[0]));
+			UsbLog.println("Got current configuration number : " + UsbUtil.unsignedInt(buffer[0]));
 	}
 
 	/**
@@ -157,7 +163,7 @@ public class DefaultControlPipe
 			/* The exception sould indicate the reason for the failure.
 			 * For this example, we'll just stop trying.
 			 */
-			System.out.println("DCP submission failed : " + uE.getMessage());
+			UsbLog.println("DCP submission failed : " + uE.getMessage());
 			return false;
 		}
 	}
@@ -188,21 +194,117 @@ public class DefaultControlPipe
 			/* The device descriptor is binary, as specified by the USB spec.
 			 * We're not going to parse it here, but we can print it out.
 			 */
-			System.out.println("Got device descriptor (length " + length + ") :");
-			System.out.println(UsbUtil.toHexString(" 0x", buffer, length));
+			UsbLog.println("Got device descriptor (length " + length + ") :");
+			UsbLog.println(UsbUtil.toHexString(" 0x", buffer, length));
+
+			/* The DescriptorView classes can read the fields straight out of the buffer. */
+			DescriptorView.DeviceView deviceView = new DescriptorView.DeviceView();
+			deviceView.wrap(buffer, 0, length);
+			if (deviceView.isValid()) {
+				UsbLog.print("Parsed device descriptor :");
+				UsbLog.print(" idVendor 0x" + UsbUtil.toHexString(deviceView.idVendor()));
+				UsbLog.print(" idProduct 0x" + UsbUtil.toHexString(deviceView.idProduct()));
+				UsbLog.print(" bDeviceClass 0x" + UsbUtil.toHexString(deviceView.bDeviceClass()));
+				UsbLog.println(" bNumConfigurations " + UsbUtil.unsignedInt(deviceView.bNumConfigurations()));
+			}
 		} catch ( UsbException uE ) {
-			System.out.println("Couldn't get device descriptor : " + uE.getMessage());
+			UsbLog.println("Couldn't get device descriptor : " + uE.getMessage());
 		}
 
 		/* Now we'll get the current configuration number. */
 		try {
 			byte configuration = StandardRequest.getConfiguration(usbDevice);
 
-			System.out.println("Got current configuration number : " + UsbUtil.unsignedInt(configuration));
+			UsbLog.println("Got current configuration number : " + UsbUtil.unsignedInt(configuration));
 		} catch ( UsbException uE ) {
-			System.out.println("Couldn't get current configuration number : " + uE.getMessage());
+			UsbLog.println("Couldn't get current configuration number : " + uE.getMessage());
 		}
 	}
 
+	/**
+	 * Show how to parse the raw configuration descriptors, of the active configuration.
+	 * @param usbDevice The UsbDevice to use.
+	 */
+	public static void showConfigurationDescriptorParsing(UsbDevice usbDevice)
+	{
+		/* A configuration descriptor is followed by all of its interface,
+		 * endpoint, and class-specific descriptors.  The whole bundle is
+		 * wTotalLength bytes long, and is returned by a single request.
+		 * We don't know wTotalLength yet, so first we only get the
+		 * configuration descriptor itself.
+		 * The request takes the configuration's descriptor index (0 to bNumConfigurations - 1),
+		 * which isn't its bConfigurationValue (the number the device is configured with),
+		 * and the only way to find which index has the active configuration is to look;
+		 * usually it is the first one.  An unconfigured device has no active configuration,
+		 * so for that we just use the first one.
+		 */
+		byte[] buffer = new byte[UsbConst.DESCRIPTOR_MIN_LENGTH_CONFIGURATION];
+		DescriptorView.ConfigurationView configurationView = new DescriptorView.ConfigurationView();
+		int configurations = UsbUtil.unsignedInt(usbDevice.getUsbDeviceDescriptor().bNumConfigurations());
+		byte active = usbDevice.isConfigured() ? usbDevice.getActiveUsbConfigurationNumber() : 0;
+		/* An int, since a byte would wrap before reaching a bNumConfigurations over 127. */
+		int index = 0;
+
+		try {
+			int length = 0;
+
+			for (index=0; index<configurations; index++) {
+				length = StandardRequest.getDescriptor(usbDevice, UsbConst.DESCRIPTOR_TYPE_CONFIGURATION, (byte)index, (short)0, buffer);
+
+				configurationView.wrap(buffer, 0, length);
+				if (!configurationView.isValid()) {
+					UsbLog.println("Got invalid configuration descriptor (length " + length + ")");
+					return;
+				}
+
+				if (0 == active || active == configurationView.bConfigurationValue())
+					break;
+			}
+
+			if (index == configurations) {
+				UsbLog.println("No configuration descriptor has the active configuration number " + UsbUtil.unsignedInt(active));
+				return;
+			}
+
+			/* Now we know how big the bundle is, so get all of it. */
+			buffer = new byte[configurationView.getTotalLength()];
+			length = StandardRequest.getDescriptor(usbDevice, UsbConst.DESCRIPTOR_TYPE_CONFIGURATION, (byte)index, (short)0, buffer);
+			configurationView.wrap(buffer, 0, length);
+		} catch ( UsbException uE ) {
+			UsbLog.println("Couldn't get configuration descriptor : " + uE.getMessage());
+			return;
+		}
+
+		UsbLog.println("Got configuration " + UsbUtil.unsignedInt(configurationView.bConfigurationValue()) +
+			" (descriptor index " + index + ", total length " + configurationView.getTotalLength() + ")" +
+			(0 == active ? "" : " (active)") + " :");
+
+		/* The walk re-uses the same few views for every descriptor in the bundle,
+		 * so no objects are created while parsing (except for our Strings here).
+		 */
+		configurationView.walk(new DescriptorView.Visitor() {
+				public void visitInterface(DescriptorView.InterfaceView view)
+				{
+					UsbLog.println(ShowTopology.PREFIX + "Interface " + UsbUtil.unsignedInt(view.bInterfaceNumber()) +
+						" setting " + UsbUtil.unsignedInt(view.bAlternateSetting()) +
+						" class 0x" + UsbUtil.toHexString(view.bInterfaceClass()));
+				}
+				public void visitEndpoint(DescriptorView.EndpointView view)
+				{
+					UsbLog.println(ShowTopology.PREFIX + ShowTopology.PREFIX + "Endpoint 0x" + UsbUtil.toHexString(view.bEndpointAddress()) +
+						" type " + view.getType() + " wMaxPacketSize " + UsbUtil.unsignedInt(view.wMaxPacketSize()));
+				}
+				public void visitHid(DescriptorView.HidView view)
+				{
+					UsbLog.println(ShowTopology.PREFIX + ShowTopology.PREFIX + "HID descriptor, Report descriptor length " +
+						view.getReportDescriptorLength());
+				}
+				public void visitOther(DescriptorView.OtherView view)
+				{
+					UsbLog.println(ShowTopology.PREFIX + ShowTopology.PREFIX + "Descriptor type 0x" +
+						UsbUtil.toHexString(view.bDescriptorType()) + " (length " + view.getLength() + ")");
+				}
+			});
+	}
 
 }
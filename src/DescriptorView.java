@@ -0,0 +1,487 @@
+/*
+ * Copyright (c) 1999 - 2001, International Business Machines Corporation.
+ * All Rights Reserved.
+ *
+ * This software is provided and licensed under the terms and conditions
+ * of the Common Public License:
+ * http://oss.software.ibm.com/developerworks/opensource/license-cpl.html
+ */
+
+import java.nio.*;
+
+import javax.usb.*;
+import javax.usb.util.*;
+
+/**
+ * Flyweight view of a raw USB descriptor.
+ * <p>
+ * A DescriptorView does not copy anything out of the raw descriptor bytes;
+ * each field accessor reads directly from the backing byte[] or ByteBuffer
+ * at the view's offset.  A single view can be re-{@link #wrap(byte[],int) wrapped}
+ * over any number of descriptors, so parsing does not need to allocate an
+ * object per descriptor.  The subclasses implement the matching javax.usb
+ * descriptor interfaces, so they may be passed to code that expects those.
+ * <p>
+ * The {@link ConfigurationView} can walk an entire configuration bundle
+ * (the configuration descriptor followed by all its interface, endpoint and
+ * class-specific descriptors) using a single set of child views it owns,
+ * which means walking a configuration tree creates no garbage.
+ * <p>
+ * Note that views do not check their bounds on every access.  Use
+ * {@link #isValid() isValid()} to check a view before using it with untrusted data.
+ * This class should not be used except by other example code.
+ */
+public abstract class DescriptorView implements UsbDescriptor
+{
+	/**
+	 * Wrap this view around the descriptor at the specified offset of a byte[].
+	 * @param array The raw descriptor bytes.
+	 * @param offset The offset of the descriptor in the array.
+	 * @return This view.
+	 */
+	public DescriptorView wrap(byte[] array, int offset)
+	{
+		return wrap(array, offset, array.length);
+	}
+
+	/**
+	 * Wrap this view around the descriptor at the specified offset of a byte[].
+	 * @param array The raw descriptor bytes.
+	 * @param offset The offset of the descriptor in the array.
+	 * @param limit The number of valid bytes in the array.
+	 * @return This view.
+	 */
+	public DescriptorView wrap(byte[] array, int offset, int limit)
+	{
+		this.array = array;
+		this.buffer = null;
+		this.offset = offset;
+		this.limit = limit;
+		return this;
+	}
+
+	/**
+	 * Wrap this view around the descriptor at the specified offset of a ByteBuffer.
+	 * <p>
+	 * The ByteBuffer may be direct.  Only absolute get methods are used,
+	 * so the position of the buffer is never changed.
+	 * @param buffer The raw descriptor bytes.
+	 * @param offset The (absolute) offset of the descriptor in the buffer.
+	 * @return This view.
+	 */
+	public DescriptorView wrap(ByteBuffer buffer, int offset)
+	{
+		this.array = null;
+		this.buffer = buffer;
+		this.offset = offset;
+		this.limit = buffer.limit();
+		return this;
+	}
+
+	/**
+	 * Wrap this view around the same backing bytes as another view.
+	 * @param view The view whose backing bytes to use.
+	 * @param offset The offset of the descriptor.
+	 * @return This view.
+	 */
+	public DescriptorView wrap(DescriptorView view, int offset)
+	{
+		this.array = view.array;
+		this.buffer = view.buffer;
+		this.offset = offset;
+		this.limit = view.limit;
+		return this;
+	}
+
+	/**
+	 * Get the offset of this descriptor in its backing bytes.
+	 * @return The offset.
+	 */
+	public int getOffset() { return offset; }
+
+	/**
+	 * Get the unsigned length of this descriptor.
+	 * @return The unsigned bLength.
+	 */
+	public int getLength() { return UsbUtil.unsignedInt(bLength()); }
+
+	/**
+	 * Get the offset of the descriptor immediately following this one.
+	 * @return The offset of the next descriptor.
+	 */
+	public int getNextOffset() { return offset + getLength(); }
+
+	/**
+	 * If this view's descriptor lies completely within the backing bytes.
+	 * <p>
+	 * This also checks that the descriptor is at least as long as the
+	 * minimum length this view requires to read all its fields.
+	 * @return If this view is valid.
+	 */
+	public boolean isValid()
+	{
+		if (null == array && null == buffer)
+			return false;
+		if (0 > offset || offset + 2 > limit)
+			return false;
+		int length = getLength();
+		return getMinimumLength() <= length && offset + length <= limit;
+	}
+
+	/**
+	 * Get the minimum length this view needs to read all its fields.
+	 * @return The minimum descriptor length.
+	 */
+	protected int getMinimumLength() { return 2; }
+
+	/** @return This descriptor's bLength. */
+	public byte bLength() { return getByte(0); }
+
+	/** @return This descriptor's bDescriptorType. */
+	public byte bDescriptorType() { return getByte(1); }
+
+	/**
+	 * Get a byte from this descriptor.
+	 * @param index The index (from the start of the descriptor) of the byte.
+	 * @return The byte.
+	 */
+	protected byte getByte(int index)
+	{
+		if (null == buffer)
+			return array[offset + index];
+		else
+			return buffer.get(offset + index);
+	}
+
+	/**
+	 * Get a (little-endian) short from this descriptor.
+	 * <p>
+	 * All multi-byte descriptor fields are little-endian, as specified by
+	 * the USB specification.
+	 * @param index The index (from the start of the descriptor) of the short.
+	 * @return The short.
+	 */
+	protected short getShort(int index)
+	{
+		return UsbUtil.toShort(getByte(index + 1), getByte(index));
+	}
+
+	/**
+	 * Flyweight view of a device descriptor.
+	 */
+	public static class DeviceView extends DescriptorView implements UsbDeviceDescriptor
+	{
+		protected int getMinimumLength() { return LENGTH; }
+
+		public short bcdUSB() { return getShort(2); }
+		public byte bDeviceClass() { return getByte(4); }
+		public byte bDeviceSubClass() { return getByte(5); }
+		public byte bDeviceProtocol() { return getByte(6); }
+		public byte bMaxPacketSize0() { return getByte(7); }
+		public short idVendor() { return getShort(8); }
+		public short idProduct() { return getShort(10); }
+		public short bcdDevice() { return getShort(12); }
+		public byte iManufacturer() { return getByte(14); }
+		public byte iProduct() { return getByte(15); }
+		public byte iSerialNumber() { return getByte(16); }
+		public byte bNumConfigurations() { return getByte(17); }
+
+		public static final int LENGTH = 18;
+	}
+
+	/**
+	 * Flyweight view of a configuration descriptor.
+	 * <p>
+	 * When wrapped around a full configuration bundle (i.e. wTotalLength bytes,
+	 * as returned by a get-configuration-descriptor request), the view can
+	 * {@link #walk(Visitor) walk} all the descriptors in the bundle.
+	 */
+	public static class ConfigurationView extends DescriptorView implements UsbConfigurationDescriptor
+	{
+		protected int getMinimumLength() { return UsbConst.DESCRIPTOR_MIN_LENGTH_CONFIGURATION; }
+
+		public short wTotalLength() { return getShort(2); }
+		public byte bNumInterfaces() { return getByte(4); }
+		public byte bConfigurationValue() { return getByte(5); }
+		public byte iConfiguration() { return getByte(6); }
+		public byte bmAttributes() { return getByte(7); }
+		public byte bMaxPower() { return getByte(8); }
+
+		/**
+		 * Get the unsigned total length of this configuration bundle.
+		 * @return The unsigned wTotalLength.
+		 */
+		public int getTotalLength() { return UsbUtil.unsignedInt(wTotalLength()); }
+
+		/**
+		 * If the complete bundle (all wTotalLength bytes) is available.
+		 * @return If the complete configuration bundle is available.
+		 */
+		public boolean isComplete() { return isValid() && offset + getTotalLength() <= limit; }
+
+		/**
+		 * Walk all the descriptors following this configuration descriptor.
+		 * <p>
+		 * Each descriptor in the bundle is passed to the Visitor in order.
+		 * The views passed to the Visitor are owned by this ConfigurationView
+		 * and are re-wrapped for each descriptor, so the Visitor must not keep
+		 * references to them.  The walk stops at the end of the bundle
+		 * (or the end of the available bytes, if the bundle is truncated),
+		 * or at the first malformed descriptor.
+		 * <p>
+		 * Other classes reuse the HID descriptor type (0x21) for their own class-specific
+		 * descriptors, so a 0x21 descriptor is only handed over as a HID descriptor if it
+		 * follows a HID class interface descriptor; otherwise it's an 'other' descriptor.
+		 * @param visitor The Visitor.
+		 * @return The number of descriptors visited.
+		 */
+		public int walk(Visitor visitor)
+		{
+			int end = Math.min(offset + getTotalLength(), limit);
+			int index = getNextOffset();
+			int count = 0;
+			/* The bInterfaceClass of the interface the current descriptor belongs to. */
+			byte interfaceClass = 0;
+
+			while (index + 2 <= end) {
+				DescriptorView view = otherView;
+
+				otherView.wrap(this, index);
+
+				int length = otherView.getLength();
+
+				/* A zero (or one) length would loop forever, and a length past
+				 * the end of the bundle is truncated; either way we stop here.
+				 */
+				if (2 > length || index + length > end)
+					break;
+
+				switch (otherView.bDescriptorType()) {
+				case UsbConst.DESCRIPTOR_TYPE_INTERFACE:
+					view = interfaceView.wrap(this, index);
+					break;
+				case UsbConst.DESCRIPTOR_TYPE_ENDPOINT:
+					view = endpointView.wrap(this, index);
+					break;
+				case HidView.DESCRIPTOR_TYPE_HID:
+					if (HidView.INTERFACE_CLASS_HID == interfaceClass)
+						view = hidView.wrap(this, index);
+					break;
+				}
+
+				/* A descriptor too short for its type is handed over as an 'other' descriptor. */
+				if (!view.isValid())
+					view = otherView;
+
+				if (view == interfaceView)
+					interfaceClass = interfaceView.bInterfaceClass();
+
+				if (view == interfaceView)
+					visitor.visitInterface(interfaceView);
+				else if (view == endpointView)
+					visitor.visitEndpoint(endpointView);
+				else if (view == hidView)
+					visitor.visitHid(hidView);
+				else
+					visitor.visitOther(otherView);
+
+				count++;
+				index += length;
+			}
+
+			return count;
+		}
+
+		private InterfaceView interfaceView = new InterfaceView();
+		private EndpointView endpointView = new EndpointView();
+		private HidView hidView = new HidView();
+		private OtherView otherView = new OtherView();
+	}
+
+	/**
+	 * Flyweight view of an interface descriptor.
+	 */
+	public static class InterfaceView extends DescriptorView implements UsbInterfaceDescriptor
+	{
+		protected int getMinimumLength() { return LENGTH; }
+
+		public byte bInterfaceNumber() { return getByte(2); }
+		public byte bAlternateSetting() { return getByte(3); }
+		public byte bNumEndpoints() { return getByte(4); }
+		public byte bInterfaceClass() { return getByte(5); }
+		public byte bInterfaceSubClass() { return getByte(6); }
+		public byte bInterfaceProtocol() { return getByte(7); }
+		public byte iInterface() { return getByte(8); }
+
+		public static final int LENGTH = 9;
+	}
+
+	/**
+	 * Flyweight view of an endpoint descriptor.
+	 */
+	public static class EndpointView extends DescriptorView implements UsbEndpointDescriptor
+	{
+		protected int getMinimumLength() { return LENGTH; }
+
+		public byte bEndpointAddress() { return getByte(2); }
+		public byte bmAttributes() { return getByte(3); }
+		public short wMaxPacketSize() { return getShort(4); }
+		public byte bInterval() { return getByte(6); }
+
+		/**
+		 * Get the direction of this endpoint.
+		 * @return Either UsbConst.ENDPOINT_DIRECTION_IN or UsbConst.ENDPOINT_DIRECTION_OUT.
+		 */
+		public byte getDirection() { return (byte)(UsbConst.ENDPOINT_DIRECTION_MASK & bEndpointAddress()); }
+
+		/**
+		 * Get the transfer type of this endpoint.
+		 * @return One of the UsbConst.ENDPOINT_TYPE_* values.
+		 */
+		public byte getType() { return (byte)(UsbConst.ENDPOINT_TYPE_MASK & bmAttributes()); }
+
+		public static final int LENGTH = 7;
+	}
+
+	/**
+	 * Flyweight view of a HID class descriptor.
+	 * <p>
+	 * See the HID specification section 6.2.1 for the layout.
+	 */
+	public static class HidView extends DescriptorView
+	{
+		protected int getMinimumLength() { return LENGTH; }
+
+		public short bcdHID() { return getShort(2); }
+		public byte bCountryCode() { return getByte(4); }
+		public byte bNumDescriptors() { return getByte(5); }
+
+		/**
+		 * Get the type of one of the class descriptors this HID descriptor lists.
+		 * @param index The index of the class descriptor, starting at 0.
+		 * @return The class descriptor type (e.g. 0x22 for a Report descriptor).
+		 */
+		public byte bClassDescriptorType(int index) { return getByte(6 + 3*index); }
+
+		/**
+		 * Get the length of one of the class descriptors this HID descriptor lists.
+		 * @param index The index of the class descriptor, starting at 0.
+		 * @return The class descriptor length.
+		 */
+		public short wClassDescriptorLength(int index) { return getShort(7 + 3*index); }
+
+		/**
+		 * Get the length of the first Report descriptor this HID descriptor lists.
+		 * <p>
+		 * This is the size buffer needed to get the Report descriptor.
+		 * @return The unsigned Report descriptor length, or 0 if there isn't one listed.
+		 */
+		public int getReportDescriptorLength()
+		{
+			int count = Math.min(UsbUtil.unsignedInt(bNumDescriptors()), (getLength() - 6) / 3);
+			for (int i=0; i<count; i++)
+				if (MouseDriver.HID_DESCRIPTOR_TYPE_REPORT == bClassDescriptorType(i))
+					return UsbUtil.unsignedInt(wClassDescriptorLength(i));
+			return 0;
+		}
+
+		public static final byte DESCRIPTOR_TYPE_HID = 0x21;
+		public static final byte INTERFACE_CLASS_HID = 0x03;
+
+		public static final int LENGTH = 9;
+	}
+
+	/**
+	 * Flyweight view of a string descriptor.
+	 * <p>
+	 * The string may be read one char at a time, without creating a String.
+	 * Note that string descriptor 0 is not a string; it is the list of
+	 * supported LANGIDs (each of which may be read using charAt()).
+	 */
+	public static class StringView extends DescriptorView implements UsbStringDescriptor, CharSequence
+	{
+		/**
+		 * Get a copy of the UNICODE encoded bString bytes.
+		 * @return A new copy of the bString.
+		 */
+		public byte[] bString()
+		{
+			byte[] bString = new byte[Math.max(0, getLength() - 2)];
+			for (int i=0; i<bString.length; i++)
+				bString[i] = getByte(2 + i);
+			return bString;
+		}
+
+		/** @return A new String of this descriptor's string. */
+		public String getString() { return toString(); }
+
+		/** @return The number of (16-bit) chars in the string. */
+		public int length() { return Math.max(0, getLength() - 2) / 2; }
+
+		/** @return The char at the specified index. */
+		public char charAt(int index) { return (char)getShort(2 + 2*index); }
+
+		/**
+		 * Compare the string against some CharSequence, without creating a String.
+		 * @param chars The CharSequence to compare against.
+		 * @return If the string matches.
+		 */
+		public boolean contentEquals(CharSequence chars)
+		{
+			int length = length();
+			if (length != chars.length())
+				return false;
+			for (int i=0; i<length; i++)
+				if (charAt(i) != chars.charAt(i))
+					return false;
+			return true;
+		}
+
+		public CharSequence subSequence(int start, int end) { return toString().substring(start, end); }
+
+		public String toString()
+		{
+			int length = length();
+			StringBuffer stringBuffer = new StringBuffer(length);
+			for (int i=0; i<length; i++)
+				stringBuffer.append(charAt(i));
+			return stringBuffer.toString();
+		}
+	}
+
+	/**
+	 * Flyweight view of any other descriptor.
+	 * <p>
+	 * Only the bLength and bDescriptorType fields are available,
+	 * but any other byte can be read with getByte().
+	 */
+	public static class OtherView extends DescriptorView
+	{
+		public byte getByte(int index) { return super.getByte(index); }
+	}
+
+	/**
+	 * Visitor for walking a configuration bundle.
+	 * <p>
+	 * The views passed in are re-used by the walker; don't keep references to them.
+	 */
+	public static interface Visitor
+	{
+		/** @param view The interface descriptor. */
+		public void visitInterface(InterfaceView view);
+
+		/** @param view The endpoint descriptor. */
+		public void visitEndpoint(EndpointView view);
+
+		/** @param view The HID descriptor. */
+		public void visitHid(HidView view);
+
+		/** @param view Any other (e.g. class- or vendor-specific) descriptor. */
+		public void visitOther(OtherView view);
+	}
+
+	protected byte[] array = null;
+	protected ByteBuffer buffer = null;
+	protected int offset = 0;
+	protected int limit = 0;
+}
@@ -9,6 +9,8 @@
 
 import java.io.*;
 import java.util.*;
+import java.util.function.*;
+import java.util.stream.*;
 
 import javax.usb.*;
 import javax.usb.util.*;
@@ -17,6 +19,15 @@ import javax.usb.util.*;
  * Find a specific UsbDevice.
  * <p>
  * This finds a specific UsbDevice based on some of the device's properties.
+ * <p>
+ * With the batch key, this instead reads queries (one line of key=value pairs each)
+ * from a file or stdin, and answers all of them from a single enumeration; see
+ * {@link #runBatch(Reader,Writer)}.
+ * <p>
+ * Each search that builds a List has a lazy Stream version too, e.g.
+ * {@link #streamUsbDevicesWithId(UsbDevice,short,short)}; a Stream only walks
+ * as much of the topology as it needs, so finding the first match stops there.
+ * <p>
  * This class should not be used except by other example code.
  * @author Dan Streetman
  */
@@ -26,35 +37,120 @@ public class FindUsbDevice
 	{
 		parseArgv(argv);
 
+		if (null != staticBatchFileName) {
+			runBatch(staticBatchFileName);
+			if (null != System.getProperty(UsbMetrics.PRINT_PROPERTY))
+				UsbLog.print(UsbMetrics.getDefault().snapshot());
+			return;
+		}
+
 		UsbHub virtualRootUsbHub = ShowTopology.getVirtualRootUsbHub();
 		List usbDevices = null;
+		UsbMetrics usbMetrics = UsbMetrics.getDefault();
 
-		/* This gets all connected devices. */
+		/* This gets all connected devices.  Each walk is timed; see UsbMetrics. */
+		long start = System.nanoTime();
 		usbDevices = getAllUsbDevices(virtualRootUsbHub);
+		usbMetrics.recordEnumeration("FindUsbDevice.getAllUsbDevices", System.nanoTime() - start, usbDevices.size());
 
-		System.out.println("Found " + usbDevices.size() + " devices total.");
+		UsbLog.println("Found " + usbDevices.size() + " devices total.");
 
 		/* This will recursively search for all devices with the specified vendor and product id. */
+		start = System.nanoTime();
 		usbDevices = getUsbDevicesWithId(virtualRootUsbHub, getVendorId(), getProductId());
+		usbMetrics.recordEnumeration("FindUsbDevice.getUsbDevicesWithId", System.nanoTime() - start, usbDevices.size());
 
-		System.out.print("Found " + usbDevices.size() + " devices with");
-		System.out.print(" vendor ID 0x" + UsbUtil.toHexString(getVendorId()));
-		System.out.print(" product ID 0x" + UsbUtil.toHexString(getProductId()));
-		System.out.println("");
+		UsbLog.print("Found " + usbDevices.size() + " devices with");
+		UsbLog.print(" vendor ID 0x" + UsbUtil.toHexString(getVendorId()));
+		UsbLog.print(" product ID 0x" + UsbUtil.toHexString(getProductId()));
+		UsbLog.println();
+
+		/* This will search only until it finds the first device with the specified vendor and product id. */
+		start = System.nanoTime();
+		UsbDevice usbDevice = findUsbDeviceWithId(virtualRootUsbHub, getVendorId(), getProductId());
+		long nanos = System.nanoTime() - start;
+		usbMetrics.recordEnumeration("FindUsbDevice.findUsbDeviceWithId", nanos, null == usbDevice ? 0 : 1);
+
+		UsbLog.println("First device with those IDs : " + (null == usbDevice ? "none" : "at " + UsbPortPath.getUsbPortPath(usbDevice)) +
+			", searched in " + (nanos / 1000) + " us");
 
 		/* This will recursively search for all devices with the specified device class. */
+		start = System.nanoTime();
 		usbDevices = getUsbDevicesWithDeviceClass(virtualRootUsbHub, getDeviceClass());
+		usbMetrics.recordEnumeration("FindUsbDevice.getUsbDevicesWithDeviceClass", System.nanoTime() - start, usbDevices.size());
 
-		System.out.print("Found " + usbDevices.size() + " devices with");
-		System.out.print(" device class 0x" + UsbUtil.toHexString(getDeviceClass()));
-		System.out.println("");
+		UsbLog.print("Found " + usbDevices.size() + " devices with");
+		UsbLog.print(" device class 0x" + UsbUtil.toHexString(getDeviceClass()));
+		UsbLog.println();
 
 		/* This will recursively search for all devices with the specified manufacturer string. */
+		start = System.nanoTime();
 		usbDevices = getUsbDevicesWithManufacturerString(virtualRootUsbHub, getManufacturerString());
+		usbMetrics.recordEnumeration("FindUsbDevice.getUsbDevicesWithManufacturerString", System.nanoTime() - start, usbDevices.size());
+
+		UsbLog.print("Found " + usbDevices.size() + " devices with");
+		UsbLog.print(" manufacturer string \"" + getManufacturerString() + "\"");
+		UsbLog.println();
+
+		if (null != System.getProperty(UsbMetrics.PRINT_PROPERTY))
+			UsbLog.print(usbMetrics.snapshot());
+	}
+
+	/**
+	 * Answer a batch of queries.
+	 * @param batchFileName The file to read queries from, or "-" for stdin.
+	 */
+	public static void runBatch(String batchFileName)
+	{
+		Reader reader = null;
+
+		try {
+			if (BATCH_STDIN.equals(batchFileName))
+				reader = new InputStreamReader(System.in);
+			else
+				reader = new FileReader(batchFileName);
+
+			Writer writer = UsbLog.getWriter();
+			runBatch(reader, writer);
+			writer.flush();
+		} catch ( UsbException uE ) {
+			UsbLog.println("Could not enumerate the topology : " + uE.getMessage());
+		} catch ( IOException ioE ) {
+			UsbLog.println("Batch I/O failed : " + ioE.getMessage());
+		} finally {
+			try { if (null != reader) reader.close(); }
+			catch ( IOException ioE ) { }
+		}
+	}
+
+	/**
+	 * Answer a batch of queries.
+	 * <p>
+	 * Each line is one query, using the same keys as the command line (plus
+	 * FindUsbInterface's bInterfaceClass); all given keys must match.  The topology
+	 * is enumerated once into a {@link UsbDeviceIndex}, and each device's manufacturer
+	 * string is fetched at most once, the first time a query needs it, no matter how
+	 * many queries ask about it.  Each query's answer (in the UsbQueryDaemon format)
+	 * is written and flushed as soon as it is known, so a consumer can stream results.
+	 * @param reader Where to read the queries from.
+	 * @param writer Where to write the answers.
+	 * @exception UsbException If the topology could not be enumerated.
+	 * @exception IOException If reading or writing failed.
+	 */
+	public static void runBatch(Reader reader, Writer writer) throws UsbException,IOException
+	{
+		BufferedReader bufferedReader = new BufferedReader(reader);
+		UsbDeviceIndex usbDeviceIndex = new UsbDeviceIndex(ShowTopology.getUsbServices(), false);
+		String line = null;
 
-		System.out.print("Found " + usbDevices.size() + " devices with");
-		System.out.print(" manufacturer string \"" + getManufacturerString() + "\"");
-		System.out.println("");
+		try {
+			while (null != (line = bufferedReader.readLine())) {
+				UsbQueryDaemon.answer(usbDeviceIndex, line, writer);
+				writer.flush();
+			}
+		} finally {
+			usbDeviceIndex.close();
+		}
 	}
 
 	/**
@@ -204,75 +300,166 @@ public class FindUsbDevice
 		return list;
 	}
 
+	/**
+	 * Get a lazy Stream of a UsbDevice and all devices connected to it.
+	 * <p>
+	 * This is in the same order as getAllUsbDevices(); see UsbTopologySpliterator.
+	 * @param usbDevice The UsbDevice to use.
+	 * @return A Stream of the UsbDevice and all connected UsbDevices.
+	 */
+	public static Stream<UsbDevice> streamAllUsbDevices(UsbDevice usbDevice)
+	{
+		return UsbTopologySpliterator.stream(usbDevice, false);
+	}
+
+	/**
+	 * Get a lazy Stream of all devices that match the specified vendor and product id.
+	 * @param usbDevice The UsbDevice to check.
+	 * @param vendorId The vendor id to match.
+	 * @param productId The product id to match.
+	 * @return A Stream of any matching UsbDevice(s).
+	 */
+	public static Stream<UsbDevice> streamUsbDevicesWithId(UsbDevice usbDevice, final short vendorId, final short productId)
+	{
+		/* See getUsbDevicesWithId() about comparing unsigned numbers. */
+		return streamAllUsbDevices(usbDevice).filter(new Predicate<UsbDevice>() {
+				public boolean test(UsbDevice device)
+				{
+					return vendorId == device.getUsbDeviceDescriptor().idVendor() &&
+						productId == device.getUsbDeviceDescriptor().idProduct();
+				}
+			});
+	}
+
+	/**
+	 * Get a lazy Stream of all devices that match the specified device class.
+	 * @param usbDevice The UsbDevice to check.
+	 * @param deviceClass The device class to match.
+	 * @return A Stream of any matching UsbDevice(s).
+	 */
+	public static Stream<UsbDevice> streamUsbDevicesWithDeviceClass(UsbDevice usbDevice, final byte deviceClass)
+	{
+		return streamAllUsbDevices(usbDevice).filter(new Predicate<UsbDevice>() {
+				public boolean test(UsbDevice device) { return deviceClass == device.getUsbDeviceDescriptor().bDeviceClass(); }
+			});
+	}
+
+	/**
+	 * Get a lazy Stream of all devices that match the specified manufacturer string.
+	 * <p>
+	 * Each device's string is only fetched when the Stream gets to it.
+	 * As in getUsbDevicesWithManufacturerString(), a failure to get a string is
+	 * thrown as a RuntimeException, and a string that can't be decoded doesn't match.
+	 * @param usbDevice The UsbDevice to check.
+	 * @param manufacturerString The manufacturer string to match.
+	 * @return A Stream of any matching UsbDevice(s).
+	 */
+	public static Stream<UsbDevice> streamUsbDevicesWithManufacturerString(UsbDevice usbDevice, final String manufacturerString)
+	{
+		return streamAllUsbDevices(usbDevice).filter(new Predicate<UsbDevice>() {
+				public boolean test(UsbDevice device)
+				{
+					try {
+						return manufacturerString.equals(device.getManufacturerString());
+					} catch ( UsbException uE ) {
+						throw new RuntimeException("Couldn't get manufacturer string : " + uE.toString());
+					} catch ( UnsupportedEncodingException usE ) {
+						return false;
+					}
+				}
+			});
+	}
+
+	/**
+	 * Find the first device (in getAllUsbDevices() order) that matches the specified vendor and product id.
+	 * <p>
+	 * This stops searching as soon as it finds one.
+	 * @param usbDevice The UsbDevice to check.
+	 * @param vendorId The vendor id to match.
+	 * @param productId The product id to match.
+	 * @return The first matching UsbDevice, or null if there is none.
+	 */
+	public static UsbDevice findUsbDeviceWithId(UsbDevice usbDevice, short vendorId, short productId)
+	{
+		return streamUsbDevicesWithId(usbDevice, vendorId, productId).findFirst().orElse(null);
+	}
+
 	/**
 	 * Get a vendor ID.
 	 * @return A vendor ID.
 	 */
-	public static short getVendorId() { return staticVendorId; }
+	public static short getVendorId() { return staticQuery.hasVendorId() ? staticQuery.getVendorId() : DEFAULT_VENDOR_ID; }
 
 	/**
 	 * Get a product ID.
 	 * @return A product ID.
 	 */
-	public static short getProductId() { return staticProductId; }
+	public static short getProductId() { return staticQuery.hasProductId() ? staticQuery.getProductId() : DEFAULT_PRODUCT_ID; }
 
 	/**
 	 * Get a device class.
 	 * @return A device class.
 	 */
-	public static byte getDeviceClass() { return staticDeviceClass; }
+	public static byte getDeviceClass() { return staticQuery.hasDeviceClass() ? staticQuery.getDeviceClass() : DEFAULT_DEVICE_CLASS; }
 
 	/**
 	 * Get a manufacturer string.
 	 * @return A manufacturer string.
 	 */
-	public static String getManufacturerString() { return staticManufacturerString; }
+	public static String getManufacturerString() { return staticQuery.hasManufacturerString() ? staticQuery.getManufacturerString() : DEFAULT_MANUFACTURER_STRING; }
 
 	/**
 	 * Parse the parameters.
+	 * <p>
+	 * The criteria are parsed into a query object, the same as each line in batch mode.
 	 * @param argv The command-line parameters.
 	 */
 	public static void parseArgv(String argv[])
 	{
+		List criteria = new ArrayList();
+
 		for (int i=0; i<argv.length; i++) {
-			int equalsIndex = argv[i].indexOf('=');
-			try {
-				String key = argv[i].substring(0, equalsIndex);
-				String value = argv[i].substring(equalsIndex+1);
-				if (key.equals(VENDOR_ID_KEY))
-					staticVendorId = (short)Integer.decode(value).intValue();
-				else if (key.equals(PRODUCT_ID_KEY))
-					staticProductId = (short)Integer.decode(value).intValue();
-				else if (key.equals(DEVICE_CLASS_KEY))
-					staticDeviceClass = (byte)Integer.decode(value).intValue();
-				else if (key.equals(MANUFACTURER_STRING_KEY))
-					staticManufacturerString = value;
-				else {
-					System.err.println("Unrecognized key \"" + key + "\"\n" + USAGE);
-					System.exit(1);
-				}
-			} catch ( Exception e ) {
-				System.err.println("Invalid key-value pair \"" + argv[i] + "\"\n" + USAGE);
-				System.exit(1);
-			}
+			if (argv[i].startsWith(BATCH_KEY + "="))
+				staticBatchFileName = argv[i].substring(BATCH_KEY.length() + 1);
+			else
+				criteria.add(argv[i]);
+		}
+
+		try {
+			staticQuery = UsbDeviceIndex.Query.parse((String[])criteria.toArray(new String[criteria.size()]));
+		} catch ( IllegalArgumentException iaE ) {
+			System.err.println(iaE.getMessage() + "\n" + USAGE);
+			System.exit(1);
+		}
+
+		if (staticQuery.hasInterfaceClass()) {
+			System.err.println("Unrecognized key \"" + FindUsbInterface.INTERFACE_CLASS_KEY + "\"\n" + USAGE);
+			System.exit(1);
 		}
 	}
 
-	private static short staticVendorId = (short)0xffff; /* This probably will never match */
-	private static short staticProductId = (short)0xffff; /* This probably will never match */
-	private static byte staticDeviceClass = UsbConst.HUB_CLASSCODE; /* This will match all hubs. :) */
-	private static String staticManufacturerString = "This probably won't match anything";
+	private static UsbDeviceIndex.Query staticQuery = new UsbDeviceIndex.Query();
+	private static String staticBatchFileName = null;
+
+	private static final short DEFAULT_VENDOR_ID = (short)0xffff; /* This probably will never match */
+	private static final short DEFAULT_PRODUCT_ID = (short)0xffff; /* This probably will never match */
+	private static final byte DEFAULT_DEVICE_CLASS = UsbConst.HUB_CLASSCODE; /* This will match all hubs. :) */
+	private static final String DEFAULT_MANUFACTURER_STRING = "This probably won't match anything";
+
+	public static final String VENDOR_ID_KEY = "idVendor";
+	public static final String PRODUCT_ID_KEY = "idProduct";
+	public static final String DEVICE_CLASS_KEY = "bDeviceClass";
+	public static final String MANUFACTURER_STRING_KEY = "manufacturer";
+	public static final String BATCH_KEY = "batch";
 
-	private static final String VENDOR_ID_KEY = "idVendor";
-	private static final String PRODUCT_ID_KEY = "idProduct";
-	private static final String DEVICE_CLASS_KEY = "bDeviceClass";
-	private static final String MANUFACTURER_STRING_KEY = "manufacturer";
+	public static final String BATCH_STDIN = "-";
 
 	private static final String KEYS =
 		"\t" + VENDOR_ID_KEY + "\n" +
 		"\t" + PRODUCT_ID_KEY + "\n" +
 		"\t" + DEVICE_CLASS_KEY + "\n" +
-		"\t" + MANUFACTURER_STRING_KEY;
+		"\t" + MANUFACTURER_STRING_KEY + "\n" +
+		"\t" + BATCH_KEY + " (a file of queries, one per line, or " + BATCH_STDIN + " for stdin)";
 
 	private static final String USAGE =
 		"Usage : java FindUsbDevice <key=value>\n" +
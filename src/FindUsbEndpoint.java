@@ -0,0 +1,160 @@
+/*
+ * Copyright (c) 1999 - 2001, International Business Machines Corporation.
+ * All Rights Reserved.
+ *
+ * This software is provided and licensed under the terms and conditions
+ * of the Common Public License:
+ * http://oss.software.ibm.com/developerworks/opensource/license-cpl.html
+ */
+
+import java.util.*;
+
+import javax.usb.*;
+import javax.usb.util.*;
+
+/**
+ * Find specific UsbEndpoints.
+ * <p>
+ * This finds UsbEndpoints based on their transfer type, direction, max packet size
+ * and interval, and the class of the interface they belong to, across the whole
+ * topology.  It uses a {@link UsbEndpointIndex}, so e.g. finding all interrupt-in
+ * endpoints on HID interfaces is one lookup instead of a walk through every device.
+ * This class should not be used except by other example code.
+ */
+public class FindUsbEndpoint
+{
+	public static void main(String argv[])
+	{
+		parseArgv(argv);
+
+		UsbEndpointIndex usbEndpointIndex = null;
+
+		try {
+			usbEndpointIndex = UsbEndpointIndex.getDefault();
+		} catch ( UsbException uE ) {
+			UsbLog.println("Could not index the topology : " + uE.getMessage());
+			return;
+		}
+
+		UsbLog.println("Indexed " + usbEndpointIndex.size() + " endpoints.");
+
+		long start = System.nanoTime();
+		List usbEndpoints = usbEndpointIndex.find(getQuery());
+		long nanos = System.nanoTime() - start;
+
+		for (int i=0; i<usbEndpoints.size(); i++)
+			UsbLog.println(toString((UsbEndpoint)usbEndpoints.get(i)));
+
+		UsbLog.println("Found " + usbEndpoints.size() + " endpoints in " + (nanos / 1000) + " us.");
+	}
+
+	/**
+	 * Get a one-line description of a UsbEndpoint.
+	 * @param usbEndpoint The UsbEndpoint.
+	 * @return The description.
+	 */
+	public static String toString(UsbEndpoint usbEndpoint)
+	{
+		UsbEndpointDescriptor desc = usbEndpoint.getUsbEndpointDescriptor();
+		UsbInterface usbInterface = usbEndpoint.getUsbInterface();
+		UsbDeviceDescriptor deviceDesc = usbInterface.getUsbConfiguration().getUsbDevice().getUsbDeviceDescriptor();
+
+		return "Endpoint 0x" + UsbUtil.toHexString(desc.bEndpointAddress()) +
+			" " + TYPE_NAMES[usbEndpoint.getType() & UsbConst.ENDPOINT_TYPE_MASK] +
+			" " + (UsbConst.ENDPOINT_DIRECTION_IN == usbEndpoint.getDirection() ? DIRECTION_IN : DIRECTION_OUT) +
+			" wMaxPacketSize " + UsbUtil.unsignedInt(desc.wMaxPacketSize()) +
+			" bInterval " + UsbUtil.unsignedInt(desc.bInterval()) +
+			" on interface " + UsbUtil.unsignedInt(usbInterface.getUsbInterfaceDescriptor().bInterfaceNumber()) +
+			" class 0x" + UsbUtil.toHexString(usbInterface.getUsbInterfaceDescriptor().bInterfaceClass()) +
+			" of device 0x" + UsbUtil.toHexString(deviceDesc.idVendor()) + ":0x" + UsbUtil.toHexString(deviceDesc.idProduct());
+	}
+
+	/**
+	 * Get the query.
+	 * @return The query.
+	 */
+	public static UsbEndpointIndex.Query getQuery() { return staticQuery; }
+
+	/**
+	 * Parse a transfer type.
+	 * @param value The name (e.g. "interrupt") or number of the type.
+	 * @return The type.
+	 */
+	public static byte parseType(String value)
+	{
+		for (int i=0; i<TYPE_NAMES.length; i++)
+			if (TYPE_NAMES[i].equalsIgnoreCase(value))
+				return (byte)i;
+		return (byte)Integer.decode(value).intValue();
+	}
+
+	/**
+	 * Parse a direction.
+	 * @param value "in", "out", or the direction bit's value.
+	 * @return The direction.
+	 */
+	public static byte parseDirection(String value)
+	{
+		if (DIRECTION_IN.equalsIgnoreCase(value))
+			return UsbConst.ENDPOINT_DIRECTION_IN;
+		if (DIRECTION_OUT.equalsIgnoreCase(value))
+			return UsbConst.ENDPOINT_DIRECTION_OUT;
+		return (byte)Integer.decode(value).intValue();
+	}
+
+	/**
+	 * Parse the parameters.
+	 * @param argv The command-line parameters.
+	 */
+	public static void parseArgv(String argv[])
+	{
+		for (int i=0; i<argv.length; i++) {
+			int equalsIndex = argv[i].indexOf('=');
+			try {
+				String key = argv[i].substring(0, equalsIndex);
+				String value = argv[i].substring(equalsIndex+1);
+				if (key.equals(TYPE_KEY))
+					staticQuery.setType(parseType(value));
+				else if (key.equals(DIRECTION_KEY))
+					staticQuery.setDirection(parseDirection(value));
+				else if (key.equals(FindUsbInterface.INTERFACE_CLASS_KEY))
+					staticQuery.setInterfaceClass((byte)Integer.decode(value).intValue());
+				else if (key.equals(MAX_PACKET_SIZE_KEY))
+					staticQuery.setMinMaxPacketSize(Integer.decode(value).intValue());
+				else if (key.equals(INTERVAL_KEY))
+					staticQuery.setMaxInterval(Integer.decode(value).intValue());
+				else {
+					System.err.println("Unrecognized key \"" + key + "\"\n" + USAGE);
+					System.exit(1);
+				}
+			} catch ( Exception e ) {
+				System.err.println("Invalid key-value pair \"" + argv[i] + "\"\n" + USAGE);
+				System.exit(1);
+			}
+		}
+	}
+
+	private static UsbEndpointIndex.Query staticQuery = new UsbEndpointIndex.Query();
+
+	/* These are in the order of the UsbConst.ENDPOINT_TYPE_* values. */
+	public static final String[] TYPE_NAMES = { "control", "isochronous", "bulk", "interrupt" };
+	public static final String DIRECTION_IN = "in";
+	public static final String DIRECTION_OUT = "out";
+
+	public static final String TYPE_KEY = "type";
+	public static final String DIRECTION_KEY = "direction";
+	public static final String MAX_PACKET_SIZE_KEY = "wMaxPacketSize";
+	public static final String INTERVAL_KEY = "bInterval";
+
+	private static final String KEYS =
+		"\t" + TYPE_KEY + " (control, isochronous, bulk or interrupt)\n" +
+		"\t" + DIRECTION_KEY + " (in or out)\n" +
+		"\t" + FindUsbInterface.INTERFACE_CLASS_KEY + "\n" +
+		"\t" + MAX_PACKET_SIZE_KEY + " (the minimum)\n" +
+		"\t" + INTERVAL_KEY + " (the maximum)";
+
+	private static final String USAGE =
+		"Usage : java FindUsbEndpoint <key=value>\n" +
+		"\n" +
+		"\tvalid keys are:\n" + KEYS;
+}
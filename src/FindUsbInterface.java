@@ -9,6 +9,8 @@
 
 import java.io.*;
 import java.util.*;
+import java.util.function.*;
+import java.util.stream.*;
 
 import javax.usb.*;
 import javax.usb.util.*;
@@ -17,6 +19,10 @@ import javax.usb.util.*;
  * Find a specific UsbInterface.
  * <p>
  * This finds a specific UsbInterface based on some of the interface's properties.
+ * <p>
+ * {@link #streamUsbInterfacesWithInterfaceClass(UsbDevice,byte)} is a lazy Stream version
+ * of the search; it only walks as much of the topology as it needs.
+ * <p>
  * This class should not be used except by other example code.
  * @author Dan Streetman
  */
@@ -26,6 +32,11 @@ public class FindUsbInterface
 	{
 		parseArgv(argv);
 
+		if (getAllConfigurations()) {
+			showAllConfigurations();
+			return;
+		}
+
 		UsbHub virtualRootUsbHub = ShowTopology.getVirtualRootUsbHub();
 		List usbInterfaces = null;
 
@@ -34,9 +45,42 @@ public class FindUsbInterface
 		 */
 		usbInterfaces = getUsbInterfacesWithInterfaceClass(virtualRootUsbHub, getInterfaceClass());
 
-		System.out.print("Found " + usbInterfaces.size() + " interfaces with");
-		System.out.print(" interface class 0x" + UsbUtil.toHexString(getInterfaceClass()));
-		System.out.println("");
+		UsbLog.print("Found " + usbInterfaces.size() + " interfaces with");
+		UsbLog.print(" interface class 0x" + UsbUtil.toHexString(getInterfaceClass()));
+		UsbLog.println();
+	}
+
+	/**
+	 * Show all interface settings with the interface class, in all configurations of all devices.
+	 * <p>
+	 * Unlike getUsbInterfacesWithInterfaceClass(), this includes unconfigured devices,
+	 * inactive configurations and alternate settings; see UsbConfigurationEnumerator.
+	 */
+	public static void showAllConfigurations()
+	{
+		UsbConfigurationEnumerator usbConfigurationEnumerator = null;
+
+		try {
+			usbConfigurationEnumerator = UsbConfigurationEnumerator.getDefault();
+		} catch ( UsbException uE ) {
+			UsbLog.println("Could not enumerate the configurations : " + uE.getMessage());
+			return;
+		}
+
+		List entries = usbConfigurationEnumerator.find(getInterfaceClass());
+		int inactive = 0;
+
+		for (int i=0; i<entries.size(); i++) {
+			UsbConfigurationEnumerator.Entry entry = (UsbConfigurationEnumerator.Entry)entries.get(i);
+			if (!entry.isActive())
+				inactive++;
+			UsbLog.println(entry.toString());
+		}
+
+		UsbLog.print("Found " + entries.size() + " interface settings (" + inactive + " not in an active configuration) with");
+		UsbLog.print(" interface class 0x" + UsbUtil.toHexString(getInterfaceClass()));
+		UsbLog.print(" using " + usbConfigurationEnumerator.getTransfers() + " requests");
+		UsbLog.println();
 	}
 
 	/**
@@ -82,12 +126,54 @@ public class FindUsbInterface
 		return list;
 	}
 
+	/**
+	 * Get a lazy Stream of all interfaces that match the specified interface class.
+	 * <p>
+	 * As with getUsbInterfacesWithInterfaceClass(), unconfigured devices are ignored.
+	 * @param usbDevice The UsbDevice to check.
+	 * @param interfaceClass The interface class to match.
+	 * @return A Stream of any matching UsbInterface(s).
+	 */
+	public static Stream<UsbInterface> streamUsbInterfacesWithInterfaceClass(UsbDevice usbDevice, final byte interfaceClass)
+	{
+		return FindUsbDevice.streamAllUsbDevices(usbDevice).flatMap(new Function<UsbDevice,Stream<UsbInterface>>() {
+				public Stream<UsbInterface> apply(UsbDevice device)
+				{
+					if (!device.isConfigured())
+						return null;
+					List ifaces = device.getActiveUsbConfiguration().getUsbInterfaces();
+					return ((List<UsbInterface>)ifaces).stream();
+				}
+			}).filter(new Predicate<UsbInterface>() {
+				public boolean test(UsbInterface usbInterface) { return interfaceClass == usbInterface.getUsbInterfaceDescriptor().bInterfaceClass(); }
+			});
+	}
+
+	/**
+	 * Find the first interface (in getUsbInterfacesWithInterfaceClass() order) that matches the specified interface class.
+	 * <p>
+	 * This stops searching as soon as it finds one.
+	 * @param usbDevice The UsbDevice to check.
+	 * @param interfaceClass The interface class to match.
+	 * @return The first matching UsbInterface, or null if there is none.
+	 */
+	public static UsbInterface findUsbInterfaceWithInterfaceClass(UsbDevice usbDevice, byte interfaceClass)
+	{
+		return streamUsbInterfacesWithInterfaceClass(usbDevice, interfaceClass).findFirst().orElse(null);
+	}
+
 	/**
 	 * Get an interface class.
 	 * @return An interface class.
 	 */
 	public static byte getInterfaceClass() { return staticInterfaceClass; }
 
+	/**
+	 * If all configurations should be searched.
+	 * @return If all configurations should be searched.
+	 */
+	public static boolean getAllConfigurations() { return staticAllConfigurations; }
+
 	/**
 	 * Parse the parameters.
 	 * @param argv The command-line parameters.
@@ -101,6 +187,8 @@ public class FindUsbInterface
 				String value = argv[i].substring(equalsIndex+1);
 				if (key.equals(INTERFACE_CLASS_KEY))
 					staticInterfaceClass = (byte)Integer.decode(value).intValue();
+				else if (key.equals(ALL_CONFIGURATIONS_KEY))
+					staticAllConfigurations = Boolean.valueOf(value).booleanValue();
 				else {
 					System.err.println("Unrecognized key \"" + key + "\"\n" + USAGE);
 					System.exit(1);
@@ -113,11 +201,14 @@ public class FindUsbInterface
 	}
 
 	private static byte staticInterfaceClass = UsbConst.HUB_CLASSCODE; /* This will match all hubs. :) */
+	private static boolean staticAllConfigurations = false;
 
-	private static final String INTERFACE_CLASS_KEY = "bInterfaceClass";
+	public static final String INTERFACE_CLASS_KEY = "bInterfaceClass";
+	public static final String ALL_CONFIGURATIONS_KEY = "allConfigurations";
 
 	private static final String KEYS =
-		"\t" + INTERFACE_CLASS_KEY;
+		"\t" + INTERFACE_CLASS_KEY + "\n" +
+		"\t" + ALL_CONFIGURATIONS_KEY + " (true to also search unconfigured devices, other configurations and alternate settings)";
 
 	private static final String USAGE =
 		"Usage : java FindUsbInterface <key=value>\n" +
@@ -0,0 +1,557 @@
+/*
+ * Copyright (c) 1999 - 2001, International Business Machines Corporation.
+ * All Rights Reserved.
+ *
+ * This software is provided and licensed under the terms and conditions
+ * of the Common Public License:
+ * http://oss.software.ibm.com/developerworks/opensource/license-cpl.html
+ */
+
+import java.lang.invoke.*;
+import java.nio.*;
+import java.util.*;
+
+import javax.usb.*;
+import javax.usb.util.*;
+
+/**
+ * Decode blocks of HID mouse reports into columns.
+ * <p>
+ * MouseDriver.HidMouseRunnable handles each report as it arrives, which is
+ * what a driver has to do to be responsive.  But anything that looks at many reports
+ * at once (a recorded segment, or whatever has piled up in a buffer) can decode them
+ * much faster as a batch: the reports are laid out one after another in a single
+ * byte[], all with the same layout, and each field is extracted into its own
+ * primitive array (a column), so the report at index i has its buttons in
+ * buttons[i], its X movement in x[i], etc.  Totals like the overall movement are then
+ * simple loops over an int[].
+ * <p>
+ * There are three ways to decode a block:
+ * <ul>
+ * <li>The scalar way, which works for any layout, and reads each field byte by byte,
+ * just like decoding one report at a time.</li>
+ * <li>The packed way, for 4-byte reports (like the usual mouse report: buttons, X, Y, and
+ * wheel).  Each report is read as a single int, and each field is just a shift of
+ * that int.  The loop does the same thing for every report and has no branches, so the
+ * JIT can compile it to SIMD instructions where the CPU has them, doing several reports
+ * per instruction.</li>
+ * <li>The vector way, which is the packed way written explicitly with the Vector API
+ * (jdk.incubator.vector), so it uses SIMD instructions whether or not the JIT would have.
+ * It is in HidReportVectorDecoder, which is only compiled by the <code>vector</code> Ant target
+ * and only loaded when run with <code>--add-modules jdk.incubator.vector</code>;
+ * see {@link #isVectorAvailable()}.</li>
+ * </ul>
+ * {@link #decode(byte[], int, int, Columns) decode()} picks the packed way when it can.
+ * <p>
+ * The main method records reports from a mouse and compares decoding them one at a
+ * time with each way of decoding them as a block.
+ * <p>
+ * This class should not be used except by other example code.
+ */
+public class HidReportBatchDecoder
+{
+	public static void main(String argv[])
+	{
+		parseArgv(argv);
+
+		UsbEndpointIndex.Query query = new UsbEndpointIndex.Query();
+		query.setType(UsbConst.ENDPOINT_TYPE_INTERRUPT);
+		query.setDirection(UsbConst.ENDPOINT_DIRECTION_IN);
+		query.setInterfaceClass(MouseDriver.HID_CLASS);
+
+		List usbEndpoints = null;
+		try {
+			usbEndpoints = UsbEndpointIndex.getDefault().find(query);
+		} catch ( UsbException uE ) {
+			UsbLog.println("Could not index the topology : " + uE.getMessage());
+			return;
+		}
+
+		UsbEndpoint usbEndpoint = null;
+		for (int i=0; i<usbEndpoints.size() && null == usbEndpoint; i++)
+			if (MouseDriver.checkUsbInterfaceIsMouse(((UsbEndpoint)usbEndpoints.get(i)).getUsbInterface()))
+				usbEndpoint = (UsbEndpoint)usbEndpoints.get(i);
+
+		if (null == usbEndpoint) {
+			UsbLog.println("No HID mouse interrupt-in endpoints were found.");
+			return;
+		}
+
+		HidReportBatchDecoder decoder = MOUSE;
+		byte[] block = new byte[staticReports * decoder.getReportLength()];
+
+		UsbLog.println("Recording " + staticReports + " reports from endpoint 0x" +
+			UsbUtil.toHexString(usbEndpoint.getUsbEndpointDescriptor().bEndpointAddress()) + ".");
+		try {
+			record(usbEndpoint, block, decoder.getReportLength());
+		} catch ( UsbException uE ) {
+			UsbLog.println("Could not record reports : " + uE.getMessage());
+			return;
+		}
+
+		/* The one-at-a-time way gets each report in its own buffer, as HidMouseRunnable does. */
+		byte[][] reports = new byte[staticReports][decoder.getReportLength()];
+		for (int i=0; i<staticReports; i++)
+			System.arraycopy(block, i * decoder.getReportLength(), reports[i], 0, decoder.getReportLength());
+
+		Columns columns = new Columns(staticReports);
+		String[] names = { "One report at a time", "Block, scalar", "Block, packed", "Block, vector" };
+		long decoded = (long)staticReports * staticRounds;
+
+		if (!isVectorAvailable())
+			UsbLog.println("The Vector API decoder isn't available; compile it with \"ant vector\" and run with --add-modules " + VECTOR_MODULE + ".");
+
+		for (int way=0; way<(isVectorAvailable() ? names.length : names.length - 1); way++) {
+			/* The first rounds are warmup, so the JIT has compiled it before it's timed. */
+			time(decoder, way, reports, block, columns, staticRounds);
+			long nanos = time(decoder, way, reports, block, columns, staticRounds);
+			UsbLog.println(names[way] + " : " + ((double)nanos / decoded) + " ns/report, " +
+				(0 == nanos ? 0 : (decoded * 1000000000L / nanos)) + " reports/s");
+		}
+
+		UsbLog.println(columns);
+	}
+
+	/**
+	 * Decode some reports a number of times, one of four ways.
+	 * @param decoder The HidReportBatchDecoder.
+	 * @param way 0 for one report at a time, 1 for a scalar block, 2 for a packed block, 3 for a vector block.
+	 * @param reports The reports, one per buffer.
+	 * @param block The same reports, in one buffer.
+	 * @param columns The Columns to decode to.
+	 * @param rounds How many times to decode them.
+	 * @return The time it took, in ns.
+	 */
+	protected static long time(HidReportBatchDecoder decoder, int way, byte[][] reports, byte[] block, Columns columns, int rounds)
+	{
+		long start = System.nanoTime();
+		for (int round=0; round<rounds; round++) {
+			columns.clear();
+			if (0 == way) {
+				for (int i=0; i<reports.length; i++)
+					decoder.decodeReport(reports[i], 0, columns);
+			} else if (1 == way) {
+				decoder.decodeScalar(block, 0, reports.length, columns);
+			} else if (2 == way) {
+				decoder.decodePacked(block, 0, reports.length, columns);
+			} else {
+				decoder.decodeVector(block, 0, reports.length, columns);
+			}
+		}
+		return System.nanoTime() - start;
+	}
+
+	/**
+	 * Constructor.
+	 * <p>
+	 * Each field is one byte; the buttons are unsigned bits, and the movements are signed.
+	 * @param reportLength The length of each report.
+	 * @param buttonsOffset The offset of the buttons in each report.
+	 * @param xOffset The offset of the X movement in each report.
+	 * @param yOffset The offset of the Y movement in each report.
+	 * @param wheelOffset The offset of the wheel movement in each report, or -1 if there is no wheel.
+	 * @exception IllegalArgumentException If an offset is not within the report.
+	 */
+	public HidReportBatchDecoder(int reportLength, int buttonsOffset, int xOffset, int yOffset, int wheelOffset) throws IllegalArgumentException
+	{
+		if (0 > buttonsOffset || buttonsOffset >= reportLength || 0 > xOffset || xOffset >= reportLength ||
+			0 > yOffset || yOffset >= reportLength || -1 > wheelOffset || wheelOffset >= reportLength)
+			throw new IllegalArgumentException("Invalid offsets for report length " + reportLength);
+
+		this.reportLength = reportLength;
+		this.buttonsOffset = buttonsOffset;
+		this.xOffset = xOffset;
+		this.yOffset = yOffset;
+		this.wheelOffset = wheelOffset;
+	}
+
+	/** @return The length of each report. */
+	public int getReportLength() { return reportLength; }
+
+	/** @return If blocks can be decoded the packed way. */
+	public boolean isPacked() { return PACKED_REPORT_LENGTH == reportLength; }
+
+	/** @return If blocks of packed reports can be decoded the vector way. */
+	public static boolean isVectorAvailable() { return null != VECTOR_DECODER; }
+
+	/**
+	 * Decode one report, and add it to the columns.
+	 * @param report The buffer with the report.
+	 * @param offset The offset of the report in the buffer.
+	 * @param columns The Columns to add it to.
+	 */
+	public void decodeReport(byte[] report, int offset, Columns columns)
+	{
+		int index = columns.count;
+		columns.ensureCapacity(index + 1);
+		columns.buttons[index] = UsbUtil.unsignedInt(report[offset + buttonsOffset]);
+		columns.x[index] = report[offset + xOffset];
+		columns.y[index] = report[offset + yOffset];
+		columns.wheel[index] = -1 == wheelOffset ? 0 : report[offset + wheelOffset];
+		columns.count = index + 1;
+	}
+
+	/**
+	 * Decode a block of reports, and add them to the columns.
+	 * <p>
+	 * This uses the packed way if it can, otherwise the scalar way.
+	 * @param block The buffer with the reports, one after another.
+	 * @param offset The offset of the first report in the buffer.
+	 * @param count The number of reports.
+	 * @param columns The Columns to add them to.
+	 * @exception IndexOutOfBoundsException If the buffer doesn't hold that many reports.
+	 */
+	public void decode(byte[] block, int offset, int count, Columns columns) throws IndexOutOfBoundsException
+	{
+		if (isPacked())
+			decodePacked(block, offset, count, columns);
+		else
+			decodeScalar(block, offset, count, columns);
+	}
+
+	/**
+	 * Decode a block of reports the scalar way, and add them to the columns.
+	 * @param block The buffer with the reports, one after another.
+	 * @param offset The offset of the first report in the buffer.
+	 * @param count The number of reports.
+	 * @param columns The Columns to add them to.
+	 * @exception IndexOutOfBoundsException If the buffer doesn't hold that many reports.
+	 */
+	public void decodeScalar(byte[] block, int offset, int count, Columns columns) throws IndexOutOfBoundsException
+	{
+		checkBlock(block, offset, count);
+
+		int base = columns.count;
+		columns.ensureCapacity(base + count);
+		int[] buttons = columns.buttons, x = columns.x, y = columns.y, wheel = columns.wheel;
+
+		for (int i=0, report=offset; i<count; i++, report+=reportLength) {
+			buttons[base + i] = block[report + buttonsOffset] & 0xff;
+			x[base + i] = block[report + xOffset];
+			y[base + i] = block[report + yOffset];
+			wheel[base + i] = -1 == wheelOffset ? 0 : block[report + wheelOffset];
+		}
+
+		columns.count = base + count;
+	}
+
+	/**
+	 * Decode a block of 4-byte reports the packed way, and add them to the columns.
+	 * @param block The buffer with the reports, one after another.
+	 * @param offset The offset of the first report in the buffer.
+	 * @param count The number of reports.
+	 * @param columns The Columns to add them to.
+	 * @exception IllegalStateException If the reports aren't 4 bytes.
+	 * @exception IndexOutOfBoundsException If the buffer doesn't hold that many reports.
+	 */
+	public void decodePacked(byte[] block, int offset, int count, Columns columns) throws IllegalStateException,IndexOutOfBoundsException
+	{
+		if (!isPacked())
+			throw new IllegalStateException("Reports of " + reportLength + " bytes can't be decoded packed");
+		checkBlock(block, offset, count);
+
+		int base = columns.count;
+		columns.ensureCapacity(base + count);
+		int[] buttons = columns.buttons, x = columns.x, y = columns.y, wheel = columns.wheel;
+
+		/* Each report is read as one little-endian int, so report byte n is bits 8n to 8n+7;
+		 * shifting it left to the top byte then right to the bottom extracts it, and an
+		 * arithmetic shift right sign-extends it too.  The shift counts are the same for every
+		 * report, so the loop is the same operations on every element, which is what the JIT
+		 * can vectorize.
+		 */
+		int buttonsShift = 24 - 8 * buttonsOffset, xShift = 24 - 8 * xOffset, yShift = 24 - 8 * yOffset;
+		if (-1 == wheelOffset) {
+			for (int i=0; i<count; i++) {
+				int word = (int)LITTLE_ENDIAN_INT.get(block, offset + i * PACKED_REPORT_LENGTH);
+				buttons[base + i] = (word << buttonsShift) >>> 24;
+				x[base + i] = (word << xShift) >> 24;
+				y[base + i] = (word << yShift) >> 24;
+			}
+			Arrays.fill(wheel, base, base + count, 0);
+		} else {
+			int wheelShift = 24 - 8 * wheelOffset;
+			for (int i=0; i<count; i++) {
+				int word = (int)LITTLE_ENDIAN_INT.get(block, offset + i * PACKED_REPORT_LENGTH);
+				buttons[base + i] = (word << buttonsShift) >>> 24;
+				x[base + i] = (word << xShift) >> 24;
+				y[base + i] = (word << yShift) >> 24;
+				wheel[base + i] = (word << wheelShift) >> 24;
+			}
+		}
+
+		columns.count = base + count;
+	}
+
+	/**
+	 * Decode a block of 4-byte reports the vector way, and add them to the columns.
+	 * <p>
+	 * This decodes the same as {@link #decodePacked(byte[], int, int, Columns) decodePacked()},
+	 * but with the Vector API.
+	 * @param block The buffer with the reports, one after another.
+	 * @param offset The offset of the first report in the buffer.
+	 * @param count The number of reports.
+	 * @param columns The Columns to add them to.
+	 * @exception UnsupportedOperationException If the vector way isn't available; see {@link #isVectorAvailable()}.
+	 * @exception IllegalStateException If the reports aren't 4 bytes.
+	 * @exception IndexOutOfBoundsException If the buffer doesn't hold that many reports.
+	 */
+	public void decodeVector(byte[] block, int offset, int count, Columns columns) throws UnsupportedOperationException,IllegalStateException,IndexOutOfBoundsException
+	{
+		if (!isVectorAvailable())
+			throw new UnsupportedOperationException(VECTOR_DECODER_CLASS + " isn't compiled, or " + VECTOR_MODULE + " isn't present");
+		if (!isPacked())
+			throw new IllegalStateException("Reports of " + reportLength + " bytes can't be decoded packed");
+		checkBlock(block, offset, count);
+
+		int base = columns.count;
+		columns.ensureCapacity(base + count);
+
+		VECTOR_DECODER.decode(block, offset, count, columns.buttons, columns.x, columns.y, columns.wheel, base,
+			24 - 8 * buttonsOffset, 24 - 8 * xOffset, 24 - 8 * yOffset, -1 == wheelOffset ? -1 : 24 - 8 * wheelOffset);
+
+		columns.count = base + count;
+	}
+
+	/**
+	 * Check that a block holds the reports.
+	 * @param block The buffer.
+	 * @param offset The offset of the first report.
+	 * @param count The number of reports.
+	 * @exception IndexOutOfBoundsException If it doesn't.
+	 */
+	protected void checkBlock(byte[] block, int offset, int count) throws IndexOutOfBoundsException
+	{
+		if (0 > offset || 0 > count || offset > block.length || count > (block.length - offset) / reportLength)
+			throw new IndexOutOfBoundsException(count + " reports of " + reportLength + " bytes at offset " + offset +
+				" don't fit in " + block.length + " bytes");
+	}
+
+	/**
+	 * Record a block of reports from an interrupt-in endpoint.
+	 * @param usbEndpoint The UsbEndpoint.
+	 * @param block The buffer to fill with reports.
+	 * @param reportLength The length of each report; short reports are padded with zeroes.
+	 * @exception UsbException If the interface couldn't be claimed, the pipe couldn't be opened, or a submission failed.
+	 */
+	public static void record(UsbEndpoint usbEndpoint, byte[] block, int reportLength) throws UsbException
+	{
+		UsbHandlePool.Lease interfaceLease = UsbHandlePool.getDefault().lease(usbEndpoint.getUsbInterface());
+		UsbHandlePool.Lease pipeLease = null;
+
+		try {
+			pipeLease = UsbHandlePool.getDefault().lease(usbEndpoint.getUsbPipe());
+			byte[] buffer = new byte[UsbUtil.unsignedInt(usbEndpoint.getUsbEndpointDescriptor().wMaxPacketSize())];
+			for (int offset=0; offset+reportLength<=block.length; offset+=reportLength) {
+				int length = pipeLease.getUsbPipe().syncSubmit(buffer);
+				System.arraycopy(buffer, 0, block, offset, Math.min(length, reportLength));
+			}
+		} finally {
+			if (null != pipeLease)
+				pipeLease.release();
+			interfaceLease.release();
+		}
+	}
+
+	/**
+	 * Load the vector way's PackedDecoder, if it can be.
+	 * <p>
+	 * The class is only loaded if the jdk.incubator.vector module is present, since it can't be linked otherwise.
+	 * @return The PackedDecoder, or null if the module isn't present or the class wasn't compiled.
+	 */
+	protected static PackedDecoder loadVectorDecoder()
+	{
+		if (!ModuleLayer.boot().findModule(VECTOR_MODULE).isPresent())
+			return null;
+
+		/* It's in this class's package, which is the default package except in the benchmarks' copy. */
+		String name = HidReportBatchDecoder.class.getName();
+		name = name.substring(0, name.lastIndexOf('.') + 1) + VECTOR_DECODER_CLASS;
+
+		try {
+			return (PackedDecoder)Class.forName(name).getDeclaredConstructor().newInstance();
+		} catch ( ReflectiveOperationException roE ) {
+			return null;
+		} catch ( LinkageError lE ) {
+			return null;
+		}
+	}
+
+	public static void parseArgv(String argv[])
+	{
+		for (int i=0; i<argv.length; i++) {
+			int equalsIndex = argv[i].indexOf('=');
+			try {
+				String key = argv[i].substring(0, equalsIndex);
+				String value = argv[i].substring(equalsIndex+1);
+				if (key.equals(REPORTS_KEY))
+					staticReports = Integer.decode(value).intValue();
+				else if (key.equals(ROUNDS_KEY))
+					staticRounds = Integer.decode(value).intValue();
+				else {
+					System.err.println("Unrecognized key \"" + key + "\"\n" + USAGE);
+					System.exit(1);
+				}
+			} catch ( Exception e ) {
+				System.err.println("Invalid key-value pair \"" + argv[i] + "\"\n" + USAGE);
+				System.exit(1);
+			}
+		}
+	}
+
+	/**
+	 * Decodes a block of packed reports into column arrays.
+	 * <p>
+	 * Each field is extracted from a report's little-endian int by shifting it left by its
+	 * shift, then right by 24 (unsigned for the buttons, signed for the movements).
+	 */
+	public static interface PackedDecoder
+	{
+		/**
+		 * Decode a block of packed reports.
+		 * <p>
+		 * The block and the arrays have already been checked to be big enough.
+		 * @param block The buffer with the reports, one after another.
+		 * @param offset The offset of the first report in the buffer.
+		 * @param count The number of reports.
+		 * @param buttons The buttons column.
+		 * @param x The X movement column.
+		 * @param y The Y movement column.
+		 * @param wheel The wheel movement column.
+		 * @param base The index in the columns of the first report.
+		 * @param buttonsShift The left shift of the buttons.
+		 * @param xShift The left shift of the X movement.
+		 * @param yShift The left shift of the Y movement.
+		 * @param wheelShift The left shift of the wheel movement, or -1 if there is no wheel (the wheel column gets zeroes).
+		 */
+		public void decode(byte[] block, int offset, int count, int[] buttons, int[] x, int[] y, int[] wheel, int base,
+			int buttonsShift, int xShift, int yShift, int wheelShift);
+	}
+
+	/**
+	 * Decoded reports, one primitive array per field.
+	 * <p>
+	 * The first getCount() elements of each array are the decoded reports, in order.
+	 * The arrays are replaced when they need to grow, so get them again after decoding.
+	 */
+	public static class Columns
+	{
+		/**
+		 * Constructor.
+		 * @param capacity The number of reports to make room for.
+		 */
+		public Columns(int capacity)
+		{
+			buttons = new int[capacity];
+			x = new int[capacity];
+			y = new int[capacity];
+			wheel = new int[capacity];
+		}
+
+		/** @return The number of reports. */
+		public int getCount() { return count; }
+
+		/** @return The button bits of each report. */
+		public int[] getButtons() { return buttons; }
+
+		/** @return The X movement of each report. */
+		public int[] getX() { return x; }
+
+		/** @return The Y movement of each report. */
+		public int[] getY() { return y; }
+
+		/** @return The wheel movement of each report, or 0 if there is no wheel. */
+		public int[] getWheel() { return wheel; }
+
+		/** Forget all reports, keeping the arrays. */
+		public void clear() { count = 0; }
+
+		/** @return The total X movement. */
+		public long getTotalX() { return sum(x); }
+
+		/** @return The total Y movement. */
+		public long getTotalY() { return sum(y); }
+
+		/** @return The total wheel movement. */
+		public long getTotalWheel() { return sum(wheel); }
+
+		/** @return The buttons that were pressed in any report. */
+		public int getButtonsPressed()
+		{
+			int pressed = 0;
+			for (int i=0; i<count; i++)
+				pressed |= buttons[i];
+			return pressed;
+		}
+
+		/**
+		 * Make sure there is room for some number of reports.
+		 * @param capacity The number of reports.
+		 */
+		public void ensureCapacity(int capacity)
+		{
+			if (capacity <= buttons.length)
+				return;
+			int newCapacity = Math.max(capacity, 2 * buttons.length);
+			buttons = Arrays.copyOf(buttons, newCapacity);
+			x = Arrays.copyOf(x, newCapacity);
+			y = Arrays.copyOf(y, newCapacity);
+			wheel = Arrays.copyOf(wheel, newCapacity);
+		}
+
+		public String toString()
+		{
+			return count + " reports : total X " + getTotalX() + ", Y " + getTotalY() + ", wheel " + getTotalWheel() +
+				", buttons pressed 0x" + UsbUtil.toHexString((byte)getButtonsPressed());
+		}
+
+		protected long sum(int[] column)
+		{
+			long sum = 0;
+			for (int i=0; i<count; i++)
+				sum += column[i];
+			return sum;
+		}
+
+		protected int count = 0;
+		protected int[] buttons = null;
+		protected int[] x = null;
+		protected int[] y = null;
+		protected int[] wheel = null;
+	}
+
+	private int reportLength = 0;
+	private int buttonsOffset = 0;
+	private int xOffset = 0;
+	private int yOffset = 0;
+	private int wheelOffset = 0;
+
+	private static int staticReports = 8000;
+	private static int staticRounds = 2000;
+
+	/** The reports of a mouse with a wheel: buttons, X, Y, wheel. */
+	public static final HidReportBatchDecoder MOUSE = new HidReportBatchDecoder(4, 0, 1, 2, 3);
+
+	/** The boot protocol mouse report: buttons, X, Y. */
+	public static final HidReportBatchDecoder BOOT_MOUSE = new HidReportBatchDecoder(3, 0, 1, 2, -1);
+
+	public static final int PACKED_REPORT_LENGTH = 4;
+
+	private static final VarHandle LITTLE_ENDIAN_INT = MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.LITTLE_ENDIAN);
+
+	public static final String VECTOR_MODULE = "jdk.incubator.vector";
+	private static final String VECTOR_DECODER_CLASS = "HidReportVectorDecoder";
+	private static final PackedDecoder VECTOR_DECODER = loadVectorDecoder();
+
+	public static final String REPORTS_KEY = "reports";
+	public static final String ROUNDS_KEY = "rounds";
+
+	private static final String KEYS =
+		"\t" + REPORTS_KEY + " (the number of reports to record)\n" +
+		"\t" + ROUNDS_KEY + " (the number of times to decode them)";
+
+	private static final String USAGE =
+		"Usage : java HidReportBatchDecoder <key=value>\n" +
+		"\n" +
+		"\tvalid keys are:\n" + KEYS;
+}
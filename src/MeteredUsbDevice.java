@@ -0,0 +1,151 @@
+/*
+ * Copyright (c) 1999 - 2001, International Business Machines Corporation.
+ * All Rights Reserved.
+ *
+ * This software is provided and licensed under the terms and conditions
+ * of the Common Public License:
+ * http://oss.software.ibm.com/developerworks/opensource/license-cpl.html
+ */
+
+import java.io.*;
+import java.util.*;
+
+import javax.usb.*;
+import javax.usb.event.*;
+
+/**
+ * UsbDevice wrapper that counts Default Control Pipe submissions.
+ * <p>
+ * This counts the same way {@link MeteredUsbPipe} does.  Note that the
+ * string getters (e.g. getManufacturerString()) are passed straight through;
+ * the implementation's own control transfers for those don't go through
+ * this wrapper, so they aren't counted.
+ * <p>
+ * Use {@link UsbMetrics#meter(UsbDevice)} to get one of these.
+ * <p>
+ * This class should not be used except by other example code.
+ */
+public class MeteredUsbDevice implements UsbDevice
+{
+	/**
+	 * Constructor.
+	 * @param usbDevice The real UsbDevice.
+	 * @param counters The counters to update.
+	 */
+	public MeteredUsbDevice(UsbDevice usbDevice, UsbMetrics.SubmissionCounters counters)
+	{
+		this.usbDevice = usbDevice;
+		this.counters = counters;
+	}
+
+	/** @return The real UsbDevice. */
+	public UsbDevice getUsbDevice() { return usbDevice; }
+
+	/** @return The counters. */
+	public UsbMetrics.SubmissionCounters getCounters() { return counters; }
+
+	public UsbPort getParentUsbPort() throws UsbDisconnectedException { return usbDevice.getParentUsbPort(); }
+	public boolean isUsbHub() { return usbDevice.isUsbHub(); }
+	public String getManufacturerString() throws UsbException,UnsupportedEncodingException,UsbDisconnectedException { return usbDevice.getManufacturerString(); }
+	public String getSerialNumberString() throws UsbException,UnsupportedEncodingException,UsbDisconnectedException { return usbDevice.getSerialNumberString(); }
+	public String getProductString() throws UsbException,UnsupportedEncodingException,UsbDisconnectedException { return usbDevice.getProductString(); }
+	public Object getSpeed() { return usbDevice.getSpeed(); }
+	public List getUsbConfigurations() { return usbDevice.getUsbConfigurations(); }
+	public UsbConfiguration getUsbConfiguration(byte number) { return usbDevice.getUsbConfiguration(number); }
+	public boolean containsUsbConfiguration(byte number) { return usbDevice.containsUsbConfiguration(number); }
+	public byte getActiveUsbConfigurationNumber() { return usbDevice.getActiveUsbConfigurationNumber(); }
+	public UsbConfiguration getActiveUsbConfiguration() { return usbDevice.getActiveUsbConfiguration(); }
+	public boolean isConfigured() { return usbDevice.isConfigured(); }
+	public UsbDeviceDescriptor getUsbDeviceDescriptor() { return usbDevice.getUsbDeviceDescriptor(); }
+	public UsbStringDescriptor getUsbStringDescriptor(byte index) throws UsbException,UsbDisconnectedException { return usbDevice.getUsbStringDescriptor(index); }
+	public String getString(byte index) throws UsbException,UnsupportedEncodingException,UsbDisconnectedException { return usbDevice.getString(index); }
+
+	public void syncSubmit(UsbControlIrp irp) throws UsbException,IllegalArgumentException,UsbDisconnectedException
+	{
+		counters.submissions.increment();
+		try {
+			usbDevice.syncSubmit(irp);
+		} finally {
+			counted(irp);
+		}
+	}
+
+	public void asyncSubmit(UsbControlIrp irp) throws UsbException,IllegalArgumentException,UsbDisconnectedException
+	{
+		MeteredUsbPipe.MeteredUsbControlIrp meteredIrp = new MeteredUsbPipe.MeteredUsbControlIrp(irp, counters);
+		counters.submissions.increment();
+		try {
+			usbDevice.asyncSubmit(meteredIrp);
+		} catch ( UsbException uE ) {
+			meteredIrp.failed(uE);
+			throw uE;
+		} catch ( RuntimeException rE ) {
+			meteredIrp.failed(rE);
+			throw rE;
+		}
+	}
+
+	public void syncSubmit(List list) throws UsbException,IllegalArgumentException,UsbDisconnectedException
+	{
+		counters.submissions.add(list.size());
+		try {
+			usbDevice.syncSubmit(list);
+		} finally {
+			for (int i=0; i<list.size(); i++)
+				counted((UsbIrp)list.get(i));
+		}
+	}
+
+	public void asyncSubmit(List list) throws UsbException,IllegalArgumentException,UsbDisconnectedException
+	{
+		List meteredList = new ArrayList(list.size());
+		for (int i=0; i<list.size(); i++)
+			meteredList.add(new MeteredUsbPipe.MeteredUsbControlIrp((UsbControlIrp)list.get(i), counters));
+
+		counters.submissions.add(list.size());
+		try {
+			usbDevice.asyncSubmit(meteredList);
+		} catch ( UsbException uE ) {
+			failed(meteredList, uE);
+			throw uE;
+		} catch ( RuntimeException rE ) {
+			failed(meteredList, rE);
+			throw rE;
+		}
+	}
+
+	public UsbControlIrp createUsbControlIrp(byte bmRequestType, byte bRequest, short wValue, short wIndex) { return usbDevice.createUsbControlIrp(bmRequestType, bRequest, wValue, wIndex); }
+	public void addUsbDeviceListener(UsbDeviceListener listener) { usbDevice.addUsbDeviceListener(listener); }
+	public void removeUsbDeviceListener(UsbDeviceListener listener) { usbDevice.removeUsbDeviceListener(listener); }
+
+	/**
+	 * Count a synchronously submitted UsbIrp.
+	 * <p>
+	 * If the submission was rejected before it was ever run, the UsbIrp isn't complete;
+	 * that is counted as an error.
+	 */
+	protected void counted(UsbIrp usbIrp)
+	{
+		if (usbIrp.isComplete())
+			counters.complete(usbIrp);
+		else
+			counters.errors.increment();
+	}
+
+	/**
+	 * Count an asynchronous List submission that threw.
+	 * <p>
+	 * There's no telling how much of the List was submitted before it threw, so all
+	 * of it that hasn't already completed is counted as failed.
+	 * @param meteredList The MeteredUsbControlIrps submitted.
+	 * @param e What the submission threw.
+	 */
+	protected void failed(List meteredList, Exception e)
+	{
+		for (int i=0; i<meteredList.size(); i++)
+			((MeteredUsbPipe.MeteredUsbIrp)meteredList.get(i)).failed(e);
+	}
+
+	private UsbDevice usbDevice;
+	private UsbMetrics.SubmissionCounters counters;
+}
@@ -0,0 +1,279 @@
+/*
+ * Copyright (c) 1999 - 2001, International Business Machines Corporation.
+ * All Rights Reserved.
+ *
+ * This software is provided and licensed under the terms and conditions
+ * of the Common Public License:
+ * http://oss.software.ibm.com/developerworks/opensource/license-cpl.html
+ */
+
+import java.util.*;
+
+import javax.usb.*;
+import javax.usb.event.*;
+
+/**
+ * UsbPipe wrapper that counts submissions.
+ * <p>
+ * Synchronous submissions are counted inline when they return.  Asynchronous
+ * submissions are counted when they complete; the UsbIrp actually submitted
+ * to the real pipe is a thin {@link MeteredUsbIrp} that passes everything
+ * through to the caller's UsbIrp, and updates the counters just before completing it.
+ * No UsbPipeListener is used, so metering doesn't cause a UsbPipeEvent per
+ * completion.
+ * <p>
+ * Use {@link UsbMetrics#meter(UsbPipe)} to get one of these.
+ * <p>
+ * This class should not be used except by other example code.
+ */
+public class MeteredUsbPipe implements UsbPipe
+{
+	/**
+	 * Constructor.
+	 * @param usbPipe The real UsbPipe.
+	 * @param counters The counters to update.
+	 */
+	public MeteredUsbPipe(UsbPipe usbPipe, UsbMetrics.SubmissionCounters counters)
+	{
+		this.usbPipe = usbPipe;
+		this.counters = counters;
+	}
+
+	/** @return The real UsbPipe. */
+	public UsbPipe getUsbPipe() { return usbPipe; }
+
+	/** @return The counters. */
+	public UsbMetrics.SubmissionCounters getCounters() { return counters; }
+
+	public void open() throws UsbException,UsbNotActiveException,UsbNotClaimedException,UsbDisconnectedException { usbPipe.open(); }
+	public void close() throws UsbException,UsbNotActiveException,UsbNotOpenException,UsbDisconnectedException { usbPipe.close(); }
+	public boolean isActive() { return usbPipe.isActive(); }
+	public boolean isOpen() { return usbPipe.isOpen(); }
+	public UsbEndpoint getUsbEndpoint() { return usbPipe.getUsbEndpoint(); }
+
+	public int syncSubmit(byte[] data) throws UsbException,UsbNotActiveException,UsbNotOpenException,IllegalArgumentException,UsbDisconnectedException
+	{
+		counters.submissions.increment();
+		int length;
+		try {
+			length = usbPipe.syncSubmit(data);
+		} catch ( UsbException uE ) {
+			failed(uE);
+			throw uE;
+		} catch ( RuntimeException rE ) {
+			failed(rE);
+			throw rE;
+		}
+		counters.completions.increment();
+		counters.bytes.add(length);
+		return length;
+	}
+
+	public UsbIrp asyncSubmit(byte[] data) throws UsbException,UsbNotActiveException,UsbNotOpenException,IllegalArgumentException,UsbDisconnectedException
+	{
+		UsbIrp usbIrp = usbPipe.createUsbIrp();
+		usbIrp.setData(data);
+		asyncSubmit(usbIrp);
+		return usbIrp;
+	}
+
+	public void syncSubmit(UsbIrp irp) throws UsbException,UsbNotActiveException,UsbNotOpenException,IllegalArgumentException,UsbDisconnectedException
+	{
+		counters.submissions.increment();
+		try {
+			usbPipe.syncSubmit(irp);
+		} finally {
+			counted(irp);
+		}
+	}
+
+	public void asyncSubmit(UsbIrp irp) throws UsbException,UsbNotActiveException,UsbNotOpenException,IllegalArgumentException,UsbDisconnectedException
+	{
+		MeteredUsbIrp meteredIrp = new MeteredUsbIrp(irp, counters);
+		counters.submissions.increment();
+		try {
+			usbPipe.asyncSubmit(meteredIrp);
+		} catch ( UsbException uE ) {
+			meteredIrp.failed(uE);
+			throw uE;
+		} catch ( RuntimeException rE ) {
+			meteredIrp.failed(rE);
+			throw rE;
+		}
+	}
+
+	public void syncSubmit(List list) throws UsbException,UsbNotActiveException,UsbNotOpenException,IllegalArgumentException,UsbDisconnectedException
+	{
+		counters.submissions.add(list.size());
+		try {
+			usbPipe.syncSubmit(list);
+		} finally {
+			for (int i=0; i<list.size(); i++)
+				counted((UsbIrp)list.get(i));
+		}
+	}
+
+	public void asyncSubmit(List list) throws UsbException,UsbNotActiveException,UsbNotOpenException,IllegalArgumentException,UsbDisconnectedException
+	{
+		List meteredList = new ArrayList(list.size());
+		for (int i=0; i<list.size(); i++)
+			meteredList.add(new MeteredUsbIrp((UsbIrp)list.get(i), counters));
+
+		counters.submissions.add(list.size());
+		try {
+			usbPipe.asyncSubmit(meteredList);
+		} catch ( UsbException uE ) {
+			failed(meteredList, uE);
+			throw uE;
+		} catch ( RuntimeException rE ) {
+			failed(meteredList, rE);
+			throw rE;
+		}
+	}
+
+	public void abortAllSubmissions() throws UsbNotActiveException,UsbNotOpenException,UsbDisconnectedException
+	{
+		counters.abortRequests.increment();
+		usbPipe.abortAllSubmissions();
+	}
+
+	public UsbIrp createUsbIrp() { return usbPipe.createUsbIrp(); }
+	public UsbControlIrp createUsbControlIrp(byte bmRequestType, byte bRequest, short wValue, short wIndex) { return usbPipe.createUsbControlIrp(bmRequestType, bRequest, wValue, wIndex); }
+	public void addUsbPipeListener(UsbPipeListener listener) { usbPipe.addUsbPipeListener(listener); }
+	public void removeUsbPipeListener(UsbPipeListener listener) { usbPipe.removeUsbPipeListener(listener); }
+
+	/**
+	 * Count a synchronously submitted UsbIrp.
+	 * <p>
+	 * If the submission was rejected before it was ever run, the UsbIrp isn't complete;
+	 * that is counted as an error.
+	 */
+	protected void counted(UsbIrp usbIrp)
+	{
+		if (usbIrp.isComplete())
+			counters.complete(usbIrp);
+		else
+			counters.errors.increment();
+	}
+
+	/**
+	 * Count a synchronous submission that threw.
+	 * @param e What the submission threw.
+	 */
+	protected void failed(Exception e)
+	{
+		if (e instanceof UsbAbortException)
+			counters.aborts.increment();
+		else
+			counters.errors.increment();
+	}
+
+	/**
+	 * Count an asynchronous List submission that threw.
+	 * <p>
+	 * There's no telling how much of the List was submitted before it threw, so all
+	 * of it that hasn't already completed is counted as failed.
+	 * @param meteredList The MeteredUsbIrps submitted.
+	 * @param e What the submission threw.
+	 */
+	protected void failed(List meteredList, Exception e)
+	{
+		for (int i=0; i<meteredList.size(); i++)
+			((MeteredUsbIrp)meteredList.get(i)).failed(e);
+	}
+
+	/**
+	 * UsbIrp that passes everything through to another UsbIrp, counting it when it completes.
+	 * <p>
+	 * It is counted only once; if its submission threw and it was counted as failed, but
+	 * it was submitted after all and completes later, the completion isn't counted.
+	 */
+	public static class MeteredUsbIrp implements UsbIrp
+	{
+		public MeteredUsbIrp(UsbIrp usbIrp, UsbMetrics.SubmissionCounters counters)
+		{
+			this.usbIrp = usbIrp;
+			this.counters = counters;
+		}
+
+		public byte[] getData() { return usbIrp.getData(); }
+		public int getOffset() { return usbIrp.getOffset(); }
+		public int getLength() { return usbIrp.getLength(); }
+		public int getActualLength() { return usbIrp.getActualLength(); }
+		public void setData(byte[] data) { usbIrp.setData(data); }
+		public void setData(byte[] data, int offset, int length) { usbIrp.setData(data, offset, length); }
+		public void setOffset(int offset) { usbIrp.setOffset(offset); }
+		public void setLength(int length) { usbIrp.setLength(length); }
+		public void setActualLength(int length) { usbIrp.setActualLength(length); }
+		public boolean isUsbException() { return usbIrp.isUsbException(); }
+		public UsbException getUsbException() { return usbIrp.getUsbException(); }
+		public void setUsbException(UsbException usbException) { usbIrp.setUsbException(usbException); }
+		public boolean getAcceptShortPacket() { return usbIrp.getAcceptShortPacket(); }
+		public void setAcceptShortPacket(boolean accept) { usbIrp.setAcceptShortPacket(accept); }
+		public boolean isComplete() { return usbIrp.isComplete(); }
+		public void setComplete(boolean complete) { usbIrp.setComplete(complete); }
+		public void waitUntilComplete() { usbIrp.waitUntilComplete(); }
+		public void waitUntilComplete(long timeout) { usbIrp.waitUntilComplete(timeout); }
+
+		/* Count before completing, so anyone woken by the completion sees the counters updated. */
+		public void complete()
+		{
+			if (count())
+				counters.complete(usbIrp);
+			usbIrp.complete();
+		}
+
+		/**
+		 * Count this as failed, because its submission threw; unless it's already been counted.
+		 * @param e What the submission threw.
+		 */
+		public void failed(Exception e)
+		{
+			if (!count())
+				return;
+
+			if (e instanceof UsbAbortException)
+				counters.aborts.increment();
+			else
+				counters.errors.increment();
+		}
+
+		/**
+		 * Check if this should be counted, which it should only be once.
+		 * @return If this hasn't been counted yet.
+		 */
+		protected synchronized boolean count()
+		{
+			if (counted)
+				return false;
+			counted = true;
+			return true;
+		}
+
+		protected UsbIrp usbIrp;
+		protected UsbMetrics.SubmissionCounters counters;
+		private boolean counted = false;
+	}
+
+	/**
+	 * UsbControlIrp version of MeteredUsbIrp.
+	 */
+	public static class MeteredUsbControlIrp extends MeteredUsbIrp implements UsbControlIrp
+	{
+		public MeteredUsbControlIrp(UsbControlIrp usbControlIrp, UsbMetrics.SubmissionCounters counters)
+		{
+			super(usbControlIrp, counters);
+			this.usbControlIrp = usbControlIrp;
+		}
+
+		public byte bmRequestType() { return usbControlIrp.bmRequestType(); }
+		public byte bRequest() { return usbControlIrp.bRequest(); }
+		public short wValue() { return usbControlIrp.wValue(); }
+		public short wIndex() { return usbControlIrp.wIndex(); }
+
+		protected UsbControlIrp usbControlIrp;
+	}
+
+	private UsbPipe usbPipe;
+	private UsbMetrics.SubmissionCounters counters;
+}
@@ -0,0 +1,338 @@
+/*
+ * Copyright (c) 1999 - 2001, International Business Machines Corporation.
+ * All Rights Reserved.
+ *
+ * This software is provided and licensed under the terms and conditions
+ * of the Common Public License:
+ * http://oss.software.ibm.com/developerworks/opensource/license-cpl.html
+ */
+
+import java.io.*;
+import java.util.*;
+
+import javax.usb.*;
+import javax.usb.util.*;
+
+/**
+ * Remember where the HID mice were found, so MouseDriver can skip finding them next time.
+ * <p>
+ * Finding a mouse means searching the whole topology for HID interfaces, checking each
+ * one's SubClass/Protocol and Report descriptor (the latter is a transfer), then looking
+ * for its interrupt-in endpoint.  But the mouse is usually plugged into the same port as
+ * last time.  So each mouse that was driven is saved (as a {@link Binding}) in a
+ * properties file: where it is (its {@link UsbPortPath}), what it is (idVendor, idProduct
+ * and bcdDevice), and which configuration, interface and endpoint to use.
+ * <p>
+ * On the next run, each Binding is checked against the device now at its port path,
+ * found by following the ports down rather than searching, using only the descriptors
+ * the implementation already has; no transfers are needed.  If everything still matches,
+ * the interface can be claimed and the pipe opened right away.  If not (e.g. a
+ * different device is plugged in there), the Binding is dropped and MouseDriver
+ * does the full search.
+ * <p>
+ * Caching is off unless the {@link #CACHE_PROPERTY} system property is set, since it
+ * writes a file.  Set it to the file to use, or to an empty string to use
+ * {@link #DEFAULT_CACHE_FILE} in the user's home directory.
+ * <p>
+ * This class should not be used except by other example code.
+ */
+public class MouseBindingCache
+{
+	/**
+	 * Constructor.
+	 * <p>
+	 * This loads the file, if it exists.
+	 * @param file The file, or null to not save anything.
+	 */
+	public MouseBindingCache(File file)
+	{
+		this.file = file;
+
+		if (null == file || !file.exists())
+			return;
+
+		Properties properties = new Properties();
+
+		try {
+			InputStream input = new FileInputStream(file);
+			try {
+				properties.load(input);
+			} finally {
+				input.close();
+			}
+		} catch ( IOException ioE ) {
+			/* A cache that can't be read is just empty. */
+			return;
+		}
+
+		Enumeration names = properties.propertyNames();
+		while (names.hasMoreElements()) {
+			String name = (String)names.nextElement();
+			if (!name.endsWith(ID_VENDOR))
+				continue;
+			try {
+				Binding binding = Binding.load(properties, name.substring(0, name.length() - ID_VENDOR.length()));
+				bindings.put(binding.getUsbPortPath(), binding);
+			} catch ( RuntimeException rE ) {
+				/* Skip anything malformed. */
+			}
+		}
+	}
+
+	/**
+	 * Get the default MouseBindingCache, using the file from the {@link #CACHE_PROPERTY} system property.
+	 * <p>
+	 * If the property isn't set (or is "none"), the default MouseBindingCache is empty and saves nothing.
+	 * @return The default MouseBindingCache.
+	 */
+	public static synchronized MouseBindingCache getDefault()
+	{
+		if (null == defaultMouseBindingCache) {
+			String fileName = System.getProperty(CACHE_PROPERTY);
+			if (null != fileName && 0 == fileName.length())
+				fileName = System.getProperty("user.home") + File.separator + DEFAULT_CACHE_FILE;
+			defaultMouseBindingCache = new MouseBindingCache(null == fileName || NO_CACHE.equals(fileName) ? null : new File(fileName));
+		}
+		return defaultMouseBindingCache;
+	}
+
+	/**
+	 * Get the interrupt-in endpoints of the cached mice that are still where they were.
+	 * <p>
+	 * Bindings that no longer match are removed (and the file saved).
+	 * @param virtualRootUsbHub The virtual root UsbHub.
+	 * @return A List of the UsbEndpoints.
+	 */
+	public synchronized List getUsbEndpoints(UsbHub virtualRootUsbHub)
+	{
+		List list = new ArrayList();
+		boolean changed = false;
+
+		Iterator iterator = bindings.values().iterator();
+		while (iterator.hasNext()) {
+			UsbEndpoint usbEndpoint = ((Binding)iterator.next()).resolve(virtualRootUsbHub);
+			if (null == usbEndpoint) {
+				iterator.remove();
+				changed = true;
+			} else {
+				list.add(usbEndpoint);
+			}
+		}
+
+		if (changed)
+			save();
+
+		return list;
+	}
+
+	/**
+	 * Remember a mouse, and save the file.
+	 * @param usbEndpoint The mouse's interrupt-in endpoint.
+	 */
+	public synchronized void remember(UsbEndpoint usbEndpoint)
+	{
+		Binding binding = Binding.create(usbEndpoint);
+
+		if (null == binding || binding.equals(bindings.get(binding.getUsbPortPath())))
+			return;
+
+		bindings.put(binding.getUsbPortPath(), binding);
+		save();
+	}
+
+	/** @return The number of Bindings. */
+	public synchronized int size() { return bindings.size(); }
+
+	/**
+	 * Save the Bindings to the file.
+	 */
+	protected void save()
+	{
+		if (null == file)
+			return;
+
+		Properties properties = new Properties();
+		Iterator iterator = bindings.values().iterator();
+		while (iterator.hasNext())
+			((Binding)iterator.next()).store(properties);
+
+		try {
+			OutputStream output = new FileOutputStream(file);
+			try {
+				properties.store(output, "MouseDriver bindings");
+			} finally {
+				output.close();
+			}
+		} catch ( IOException ioE ) {
+			UsbLog.println("Could not save mouse bindings to " + file + " : " + ioE.getMessage());
+		}
+	}
+
+	/**
+	 * Where a mouse is, what it is, and how to talk to it.
+	 */
+	public static class Binding
+	{
+		public Binding(UsbPortPath usbPortPath, short idVendor, short idProduct, short bcdDevice,
+			byte bConfigurationValue, byte bInterfaceNumber, byte bEndpointAddress, short wMaxPacketSize)
+		{
+			this.usbPortPath = usbPortPath;
+			this.idVendor = idVendor;
+			this.idProduct = idProduct;
+			this.bcdDevice = bcdDevice;
+			this.bConfigurationValue = bConfigurationValue;
+			this.bInterfaceNumber = bInterfaceNumber;
+			this.bEndpointAddress = bEndpointAddress;
+			this.wMaxPacketSize = wMaxPacketSize;
+		}
+
+		/**
+		 * Create a Binding for an endpoint.
+		 * @param usbEndpoint The interrupt-in UsbEndpoint.
+		 * @return The Binding, or null if the device is disconnected.
+		 */
+		public static Binding create(UsbEndpoint usbEndpoint)
+		{
+			UsbInterface usbInterface = usbEndpoint.getUsbInterface();
+			UsbConfiguration usbConfiguration = usbInterface.getUsbConfiguration();
+			UsbDevice usbDevice = usbConfiguration.getUsbDevice();
+			UsbDeviceDescriptor desc = usbDevice.getUsbDeviceDescriptor();
+			UsbPortPath usbPortPath = UsbPortPath.getUsbPortPath(usbDevice);
+
+			if (null == usbPortPath)
+				return null;
+
+			return new Binding(usbPortPath, desc.idVendor(), desc.idProduct(), desc.bcdDevice(),
+				usbConfiguration.getUsbConfigurationDescriptor().bConfigurationValue(),
+				usbInterface.getUsbInterfaceDescriptor().bInterfaceNumber(),
+				usbEndpoint.getUsbEndpointDescriptor().bEndpointAddress(),
+				usbEndpoint.getUsbEndpointDescriptor().wMaxPacketSize());
+		}
+
+		/**
+		 * Find this Binding's endpoint, if the same device is still at the same place.
+		 * <p>
+		 * This only uses descriptors the implementation already has; there are no transfers.
+		 * @param virtualRootUsbHub The virtual root UsbHub.
+		 * @return The interrupt-in UsbEndpoint, or null if anything doesn't match.
+		 */
+		public UsbEndpoint resolve(UsbHub virtualRootUsbHub)
+		{
+			UsbDevice usbDevice = usbPortPath.getUsbDevice(virtualRootUsbHub);
+
+			try {
+				if (null == usbDevice || !usbDevice.isConfigured())
+					return null;
+
+				UsbDeviceDescriptor desc = usbDevice.getUsbDeviceDescriptor();
+				if (idVendor != desc.idVendor() || idProduct != desc.idProduct() || bcdDevice != desc.bcdDevice())
+					return null;
+
+				UsbConfiguration usbConfiguration = usbDevice.getActiveUsbConfiguration();
+				if (bConfigurationValue != usbConfiguration.getUsbConfigurationDescriptor().bConfigurationValue() ||
+					!usbConfiguration.containsUsbInterface(bInterfaceNumber))
+					return null;
+
+				UsbInterface usbInterface = usbConfiguration.getUsbInterface(bInterfaceNumber);
+				if (MouseDriver.HID_CLASS != usbInterface.getUsbInterfaceDescriptor().bInterfaceClass() ||
+					!usbInterface.containsUsbEndpoint(bEndpointAddress))
+					return null;
+
+				UsbEndpoint usbEndpoint = usbInterface.getUsbEndpoint(bEndpointAddress);
+				if (UsbConst.ENDPOINT_TYPE_INTERRUPT != usbEndpoint.getType() ||
+					UsbConst.ENDPOINT_DIRECTION_IN != usbEndpoint.getDirection() ||
+					wMaxPacketSize != usbEndpoint.getUsbEndpointDescriptor().wMaxPacketSize())
+					return null;
+
+				return usbEndpoint;
+			} catch ( UsbDisconnectedException uDE ) {
+				return null;
+			}
+		}
+
+		/** @return The UsbPortPath. */
+		public UsbPortPath getUsbPortPath() { return usbPortPath; }
+
+		/**
+		 * Load a Binding.
+		 * @param properties The Properties.
+		 * @param prefix The Binding's prefix, its port path and a '.'.
+		 * @return The Binding.
+		 * @exception RuntimeException If a property is missing or invalid.
+		 */
+		public static Binding load(Properties properties, String prefix)
+		{
+			return new Binding(UsbPortPath.parse(prefix.substring(0, prefix.length() - 1)),
+				(short)getInt(properties, prefix + ID_VENDOR),
+				(short)getInt(properties, prefix + ID_PRODUCT),
+				(short)getInt(properties, prefix + BCD_DEVICE),
+				(byte)getInt(properties, prefix + CONFIGURATION_VALUE),
+				(byte)getInt(properties, prefix + INTERFACE_NUMBER),
+				(byte)getInt(properties, prefix + ENDPOINT_ADDRESS),
+				(short)getInt(properties, prefix + MAX_PACKET_SIZE));
+		}
+
+		/**
+		 * Store this Binding, with property names prefixed by its port path.
+		 * @param properties The Properties.
+		 */
+		public void store(Properties properties)
+		{
+			String prefix = usbPortPath + ".";
+			properties.setProperty(prefix + ID_VENDOR, "0x" + UsbUtil.toHexString(idVendor));
+			properties.setProperty(prefix + ID_PRODUCT, "0x" + UsbUtil.toHexString(idProduct));
+			properties.setProperty(prefix + BCD_DEVICE, "0x" + UsbUtil.toHexString(bcdDevice));
+			properties.setProperty(prefix + CONFIGURATION_VALUE, Integer.toString(UsbUtil.unsignedInt(bConfigurationValue)));
+			properties.setProperty(prefix + INTERFACE_NUMBER, Integer.toString(UsbUtil.unsignedInt(bInterfaceNumber)));
+			properties.setProperty(prefix + ENDPOINT_ADDRESS, "0x" + UsbUtil.toHexString(bEndpointAddress));
+			properties.setProperty(prefix + MAX_PACKET_SIZE, Integer.toString(UsbUtil.unsignedInt(wMaxPacketSize)));
+		}
+
+		public boolean equals(Object object)
+		{
+			if (!(object instanceof Binding))
+				return false;
+			Binding binding = (Binding)object;
+			return usbPortPath.equals(binding.usbPortPath) && idVendor == binding.idVendor && idProduct == binding.idProduct &&
+				bcdDevice == binding.bcdDevice && bConfigurationValue == binding.bConfigurationValue &&
+				bInterfaceNumber == binding.bInterfaceNumber && bEndpointAddress == binding.bEndpointAddress &&
+				wMaxPacketSize == binding.wMaxPacketSize;
+		}
+
+		public int hashCode() { return usbPortPath.hashCode(); }
+
+		protected static int getInt(Properties properties, String name)
+		{
+			String value = properties.getProperty(name);
+			if (null == value)
+				throw new IllegalArgumentException("Missing " + name);
+			return Integer.decode(value).intValue();
+		}
+
+		private UsbPortPath usbPortPath = null;
+		private short idVendor = 0;
+		private short idProduct = 0;
+		private short bcdDevice = 0;
+		private byte bConfigurationValue = 0;
+		private byte bInterfaceNumber = 0;
+		private byte bEndpointAddress = 0;
+		private short wMaxPacketSize = 0;
+	}
+
+	private File file = null;
+	private Map bindings = new LinkedHashMap();
+
+	private static MouseBindingCache defaultMouseBindingCache = null;
+
+	public static final String CACHE_PROPERTY = "jsr80.example.mouseCache";
+	public static final String DEFAULT_CACHE_FILE = ".jsr80-mouse-bindings";
+	public static final String NO_CACHE = "none";
+
+	private static final String ID_VENDOR = "idVendor";
+	private static final String ID_PRODUCT = "idProduct";
+	private static final String BCD_DEVICE = "bcdDevice";
+	private static final String CONFIGURATION_VALUE = "bConfigurationValue";
+	private static final String INTERFACE_NUMBER = "bInterfaceNumber";
+	private static final String ENDPOINT_ADDRESS = "bEndpointAddress";
+	private static final String MAX_PACKET_SIZE = "wMaxPacketSize";
+}
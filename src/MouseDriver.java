@@ -29,36 +29,61 @@ public class MouseDriver
 {
 	public static void main(String argv[])
 	{
+		staticStartNanos = System.nanoTime();
+
 		UsbHub virtualRootUsbHub = ShowTopology.getVirtualRootUsbHub();
+
+		/* If the mice found last time are still where they were, there's no need to check them again. */
+		List cachedUsbEndpoints = MouseBindingCache.getDefault().getUsbEndpoints(virtualRootUsbHub);
+		Set drivenUsbInterfaces = new HashSet();
+
+		if (0 < cachedUsbEndpoints.size())
+			UsbLog.println("Found " + cachedUsbEndpoints.size() + " cached HID mice.");
+
+		for (int i=0; i<cachedUsbEndpoints.size(); i++) {
+			UsbEndpoint usbEndpoint = (UsbEndpoint)cachedUsbEndpoints.get(i);
+			UsbLog.println("Found HID mouse at " + UsbPortPath.getUsbPortPath(usbEndpoint.getUsbInterface().getUsbConfiguration().getUsbDevice()) + ".");
+			driveHidMouse(usbEndpoint.getUsbInterface(), usbEndpoint);
+			drivenUsbInterfaces.add(usbEndpoint.getUsbInterface());
+		}
+
+		/* There may be other mice too (or mice on new ports), so still look at all the HID interfaces. */
 		List usbInterfaces = FindUsbInterface.getUsbInterfacesWithInterfaceClass(virtualRootUsbHub, HID_CLASS);
 
-		System.out.println("Found " + usbInterfaces.size() + " HID-type interfaces.");
+		UsbLog.println("Found " + usbInterfaces.size() + " HID-type interfaces.");
 
 		/* Each object in the list is a UsbInterface of class HID. */
 		for (int i=0; i<usbInterfaces.size(); i++) {
 			UsbInterface usbInterface = (UsbInterface)usbInterfaces.get(i);
 
+			/* The cached mice have already been driven. */
+			if (drivenUsbInterfaces.contains(usbInterface))
+				continue;
+
 			boolean isMouse = false;
 
 			/* Check the UsbInterface by its SubClass and Protocol */
 			if (checkUsbInterfaceIsMouse(usbInterface)) {
-				System.out.println("Found mouse by SubClass/Protocol");
+				UsbLog.println("Found mouse by SubClass/Protocol");
 				isMouse = true;
 			}
 
 			/* Check the UsbInterface by its Usage Page and Usage ID */
 			if (checkHidInterface(usbInterface, HID_MOUSE_USAGE_PAGE, HID_MOUSE_USAGE_ID)) {
-				System.out.println("Found mouse by Usage Page/Usage ID");
+				UsbLog.println("Found mouse by Usage Page/Usage ID");
 				isMouse = true;
 			}
 
 			/* Really, both of the above checks should agree. */
 			if (isMouse) {
-				System.out.println("Found HID mouse.");
+				UsbLog.println("Found HID mouse.");
 
 				driveHidMouse(usbInterface);
 			}
 		}
+
+		/* Release whatever the pool is still holding open. */
+		UsbHandlePool.getDefault().close();
 	}
 
 	/**
@@ -67,9 +92,43 @@ public class MouseDriver
 	 */
 	public static void driveHidMouse(UsbInterface usbInterface)
 	{
-		/* We have to claim the interface to communicate with this mouse. */
+		/* A HID mouse uses an interrupt-type in-direction endpoint for movement events.
+		 * This endpoint is required by the HID spec.  The HID spec does not
+		 * prohibit multiple interrupt-type in-direction endpoints per HID interface,
+		 * but this is rarely done in practice, as the HID spec presumes there is only
+		 * one endpoint of this type present per HID interface.  We use the first found.
+		 * See the HID spec for more details.
+		 * UsbEndpointIndex.getFirstUsbEndpoint() just scans this interface's endpoints;
+		 * it doesn't need (or build) the index of the whole topology.
+		 */
+		UsbEndpoint usbEndpoint = UsbEndpointIndex.getFirstUsbEndpoint(usbInterface, UsbConst.ENDPOINT_TYPE_INTERRUPT, UsbConst.ENDPOINT_DIRECTION_IN);
+
+		/* If the endpoint is null, we didn't find any endpoints we can use; this device does not
+		 * meet the HID spec (it is fundamentally broken!).
+		 */
+		if (null == usbEndpoint) {
+			UsbLog.println("This HID interface does not have the required interrupt-in endpoint.");
+			return;
+		}
+
+		driveHidMouse(usbInterface, usbEndpoint);
+	}
+
+	/**
+	 * Drive the HID mouse until the user aborts.
+	 * @param usbInterface The UsbInterface for the mouse.
+	 * @param usbEndpoint The mouse's interrupt-in UsbEndpoint.
+	 */
+	public static void driveHidMouse(UsbInterface usbInterface, UsbEndpoint usbEndpoint)
+	{
+		UsbHandlePool.Lease interfaceLease = null;
+
+		/* We have to claim the interface to communicate with this mouse.
+		 * The claim is leased from the pool; if checkHidInterface() just
+		 * used this interface, it is still claimed and this costs nothing.
+		 */
 		try {
-			usbInterface.claim();
+			interfaceLease = UsbHandlePool.getDefault().lease(usbInterface);
 		} catch ( UsbException uE ) {
 			/* If we can't claim the interface, that means someone else is
 			 * using the interface (probably some other non-Java program).
@@ -77,61 +136,41 @@ public class MouseDriver
 			 * need to move out of the way (in an OS-specific way) before
 			 * you can use javax.usb to communicate with the device.
 			 */
-			System.out.println("Could not claim interface to drive HID mouse : " + uE.getMessage());
+			UsbLog.println("Could not claim interface to drive HID mouse : " + uE.getMessage());
 			return;
 		}
 
-		/* This is a list of all this interface's endpoints. */
-		List usbEndpoints = usbInterface.getUsbEndpoints();
-
-		UsbEndpoint usbEndpoint = null;
+		UsbHandlePool.Lease pipeLease = null;
 
-		for (int i=0; i<usbEndpoints.size(); i++) {
-			usbEndpoint = (UsbEndpoint)usbEndpoints.get(i);
-
-			/* A HID mouse uses an interrupt-type in-direction endpoint for movement events.
-			 * This endpoint is required by the HID spec.  The HID spec does not
-			 * prohibit multiple interrupt-type in-direction endpoints per HID interface,
-			 * but this is rarely done in practice, as the HID spec presumes there is only
-			 * one endpoint of this type present per HID interface.  We use the first found.
-			 * See the HID spec for more details.
-			 */
-			if (UsbConst.ENDPOINT_TYPE_INTERRUPT == usbEndpoint.getType() && UsbConst.ENDPOINT_DIRECTION_IN == usbEndpoint.getDirection())
-				break;
-			else
-				usbEndpoint = null;
-		}
-
-		/* If the endpoint is null, we didn't find any endpoints we can use; this device does not
-		 * meet the HID spec (it is fundamentally broken!).
-		 */
-		if (null == usbEndpoint) {
-			System.out.println("This HID interface does not have the required interrupt-in endpoint.");
-			return;
-		}
-
-		UsbPipe usbPipe = usbEndpoint.getUsbPipe();
-
-		/* We need to open the endpoint's pipe. */
+		/* We need to open the endpoint's pipe; this is also leased from the pool. */
 		try {
-			usbPipe.open();
+			pipeLease = UsbHandlePool.getDefault().lease(usbEndpoint.getUsbPipe());
 		} catch ( UsbException uE ) {
 			/* If we couldn't open the pipe, we can't talk to the HID interface.
 			 * This is not a usualy condition, so error recovery needs to look at
 			 * the specific error to determine what to do now.
 			 * We will just bail out.
 			 */
-			System.out.println("Could not open endpoint to communicate with HID mouse : " + uE.getMessage());
-			try { usbInterface.release(); }
-			catch ( UsbException uE2 ) { /* FIXME - define why this might happen. */ }
+			UsbLog.println("Could not open endpoint to communicate with HID mouse : " + uE.getMessage());
+			interfaceLease.release();
 			return;
 		}
 
+		/* This mouse works, so remember it for next time; see MouseBindingCache. */
+		MouseBindingCache.getDefault().remember(usbEndpoint);
+
+		/* The pipe is supervised, so a halted endpoint (or the mouse being unplugged and
+		 * plugged back in) doesn't stop the driver; see SupervisedUsbPipe.
+		 * It is also metered; run with -Djsr80.example.jmx to watch it from a JMX console.
+		 */
+		SupervisedUsbPipe supervisedUsbPipe = new SupervisedUsbPipe(pipeLease.getUsbPipe());
+		UsbPipe usbPipe = UsbMetrics.getDefault().meter(supervisedUsbPipe);
+
 		HidMouseRunnable hmR = new HidMouseRunnable(usbPipe);
 		Thread t = new Thread(hmR);
 
-		System.out.println("Driving HID mouse, move mouse to see movement events.");
-		System.out.println("Press Enter when done.");
+		UsbLog.println("Driving HID mouse, move mouse to see movement events.");
+		UsbLog.println("Press Enter when done.");
 
 		t.start();
 
@@ -139,17 +178,26 @@ public class MouseDriver
 			/* This just waits for Enter to get pressed. */
 			System.in.read();
 		} catch ( Exception e ) {
-			System.out.println("Exception while waiting for Enter : " + e.getMessage());
+			UsbLog.println("Exception while waiting for Enter : " + e.getMessage());
 		}
 
 		hmR.stop();
 
-		try {
-			usbPipe.close();
-			usbInterface.release();
-		} catch ( UsbException uE ) { /* FIXME - define why this might happen. */ }
-
-		System.out.println("Done driving HID mouse.");
+		/* Show how long it took from starting to the first report, and how the
+		 * actual report rate compared to what the endpoint advertises.
+		 */
+		PollingRateAnalyzer pollingRateAnalyzer = hmR.getPollingRateAnalyzer();
+		if (0 < pollingRateAnalyzer.getCompletions())
+			UsbLog.println("Time to first report : " + ((pollingRateAnalyzer.getFirstCompletionNanos() - staticStartNanos) / 1000) + " us");
+		UsbLog.print(pollingRateAnalyzer);
+		UsbLog.println(supervisedUsbPipe);
+
+		/* The pool closes the pipe and releases the interface once they have been idle for a while. */
+		supervisedUsbPipe.release();
+		pipeLease.release();
+		interfaceLease.release();
+
+		UsbLog.println("Done driving HID mouse.");
 	}
 
 	/**
@@ -186,8 +234,13 @@ public class MouseDriver
 		 * If you think that is a strange way to design things, go complain to the
 		 * USB designers ;)
 		 */
+		UsbHandlePool.Lease lease = null;
+
+		/* The claim is leased from the pool, so the interface stays claimed for
+		 * a while after this, in case (like in main()) it's going to be used next.
+		 */
 		try {
-			usbInterface.claim();
+			lease = UsbHandlePool.getDefault().lease(usbInterface);
 		} catch ( UsbException uE ) {
 			/* If claiming the interface fails, we will still try to check the usage.
 			 * It may or may not work depending on how things are implemented lower down.
@@ -233,12 +286,14 @@ public class MouseDriver
 			 */
 			return false;
 		} finally {
-			/* Make sure to try and release the interface. */
-			try { usbInterface.release(); }
-			catch ( UsbException uE ) { /* FIXME - define why this may happen */ }
+			/* Make sure to release the lease. */
+			if (null != lease)
+				lease.release();
 		}
 	}
 
+	private static long staticStartNanos = System.nanoTime();
+
 	public static final byte HID_CLASS = 0x03;
 	public static final byte HID_SUBCLASS_BOOT_INTERFACE = 0x01;
 	public static final byte HID_PROTOCOL_MOUSE = 0x02;
@@ -262,7 +317,11 @@ public class MouseDriver
 	public static class HidMouseRunnable implements Runnable
 	{
 		/* This pipe must be the HID interface's interrupt-type in-direction endpoint's pipe. */
-		public HidMouseRunnable(UsbPipe pipe) { usbPipe = pipe; }
+		public HidMouseRunnable(UsbPipe pipe)
+		{
+			usbPipe = pipe;
+			pollingRateAnalyzer = new PollingRateAnalyzer(pipe.getUsbEndpoint());
+		}
 
 		public void run()
 		{
@@ -302,7 +361,9 @@ public class MouseDriver
 					 * various implementations.  Interrupt-out (and bulk-out) shouldn't
 					 * block indefinitely.
 					 */
+					pollingRateAnalyzer.recordSubmit();
 					length = usbPipe.syncSubmit(buffer);
+					pollingRateAnalyzer.recordCompletion(length);
 				} catch ( UsbException uE ) {
 					/* If we're _not_ running, this exception was probably generated
 					 * because the in-progress submission was aborted.
@@ -314,22 +375,32 @@ public class MouseDriver
 						 * gone wrong with the pipe/endpoint, interface, and/or device.
 						 * What exactly that error is should be indicated by the exception,
 						 * and the application should try to fix it if possible.
-						 * We will just bail out here.
+						 * A SupervisedUsbPipe has already tried (and failed) to fix it,
+						 * so we will just bail out here.
 						 */
-						System.out.println("Unable to submit data buffer to HID mouse : " + uE.getMessage());
+						UsbLog.println("Unable to submit data buffer to HID mouse : " + uE.getMessage());
 						break;
 					}
 				}
 
-				if (running) {
-					System.out.print("Got " + length + " bytes of data from HID mouse :");
-					for (int i=0; i<length; i++)
-						System.out.print(" 0x" + UsbUtil.toHexString(buffer[i]));
-					System.out.println("");
-				}
+				if (running)
+					handleData(buffer, length);
 			}
 		}
 
+		/**
+		 * Handle one data event from the HID device.
+		 * <p>
+		 * This just shows the data; a real driver would decode the report here.
+		 * @param buffer The data buffer.
+		 * @param length The number of bytes of data in the buffer.
+		 */
+		public void handleData(byte[] buffer, int length)
+		{
+			/* This only copies the data; it's formatted by the log's writer, not this thread. */
+			UsbLog.data("HID mouse", buffer, 0, length);
+		}
+
 		/**
 		 * Stop/abort listening for data events.
 		 */
@@ -339,7 +410,14 @@ public class MouseDriver
 			usbPipe.abortAllSubmissions();
 		}
 
+		/**
+		 * Get the PollingRateAnalyzer, which measures how often data actually arrives.
+		 * @return The PollingRateAnalyzer.
+		 */
+		public PollingRateAnalyzer getPollingRateAnalyzer() { return pollingRateAnalyzer; }
+
 		public boolean running = true;
 		public UsbPipe usbPipe = null;
+		public PollingRateAnalyzer pollingRateAnalyzer = null;
 	}
 }
@@ -0,0 +1,242 @@
+/*
+ * Copyright (c) 1999 - 2001, International Business Machines Corporation.
+ * All Rights Reserved.
+ *
+ * This software is provided and licensed under the terms and conditions
+ * of the Common Public License:
+ * http://oss.software.ibm.com/developerworks/opensource/license-cpl.html
+ */
+
+import javax.usb.*;
+import javax.usb.util.*;
+
+/**
+ * Compare how often an interrupt (or isochronous) pipe actually completes with how often its bInterval says it's polled.
+ * <p>
+ * The reader calls {@link #recordSubmit()} just before each submission and
+ * {@link #recordCompletion(int)} just after it completes.  That splits each
+ * report-to-report gap into the time the reader took between getting one
+ * report and submitting for the next one (the turnaround), and the time the
+ * submission then waited for the device (the wait).  A device with data to send
+ * completes a waiting submission at its next poll, so if the gaps are longer than
+ * the polling interval and mostly turnaround, the reader (not the device) is what
+ * limits the report rate; with only one submission outstanding, any polls that
+ * happen during the turnaround are lost.
+ * <p>
+ * Recording is a few arithmetic operations on fields and no allocation, so
+ * it can run continuously beside the reader.  It must be called by one thread;
+ * other threads may read the results at any time, which may be very slightly stale.
+ * Averages are exponentially weighted, so they follow changes in the cadence, and
+ * the gaps are also kept in a histogram with power-of-2 microsecond buckets.
+ * <p>
+ * This class should not be used except by other example code.
+ */
+public class PollingRateAnalyzer
+{
+	/**
+	 * Constructor.
+	 * @param usbEndpoint The UsbEndpoint being read.
+	 */
+	public PollingRateAnalyzer(UsbEndpoint usbEndpoint)
+	{
+		this.usbEndpoint = usbEndpoint;
+		this.expectedPeriodNanos = getExpectedPeriodNanos(usbEndpoint);
+	}
+
+	/**
+	 * Get the polling period an endpoint's bInterval advertises.
+	 * <p>
+	 * For (low and full speed) interrupt endpoints this is bInterval frames,
+	 * for isochronous endpoints 2^(bInterval-1) frames; a frame is 1 ms.
+	 * @param usbEndpoint The UsbEndpoint.
+	 * @return The period in ns, or 0 if the endpoint isn't periodic.
+	 */
+	public static long getExpectedPeriodNanos(UsbEndpoint usbEndpoint)
+	{
+		int bInterval = UsbUtil.unsignedInt(usbEndpoint.getUsbEndpointDescriptor().bInterval());
+
+		if (UsbConst.ENDPOINT_TYPE_INTERRUPT == usbEndpoint.getType())
+			return Math.max(1, bInterval) * FRAME_NANOS;
+		else if (UsbConst.ENDPOINT_TYPE_ISOCHRONOUS == usbEndpoint.getType())
+			return (1L << (Math.max(1, Math.min(16, bInterval)) - 1)) * FRAME_NANOS;
+		else
+			return 0;
+	}
+
+	/**
+	 * Record that a submission is about to be made.
+	 */
+	public void recordSubmit()
+	{
+		long now = System.nanoTime();
+
+		if (0 != lastCompletion)
+			turnaroundNanos += ((now - lastCompletion) - turnaroundNanos) >> EWMA_SHIFT;
+
+		lastSubmit = now;
+	}
+
+	/**
+	 * Record that a submission completed.
+	 * @param length The number of bytes it transferred.
+	 */
+	public void recordCompletion(int length)
+	{
+		long now = System.nanoTime();
+		long wait = now - lastSubmit;
+
+		waitNanos += (wait - waitNanos) >> EWMA_SHIFT;
+
+		if (0 == lastCompletion) {
+			firstCompletion = now;
+		} else {
+			long gap = now - lastCompletion;
+
+			/* The first gap seeds the average, instead of it climbing up from 0. */
+			if (0 == gapNanos)
+				gapNanos = gap;
+			else
+				gapNanos += (gap - gapNanos) >> EWMA_SHIFT;
+
+			if (gap < minGapNanos)
+				minGapNanos = gap;
+			if (gap > maxGapNanos)
+				maxGapNanos = gap;
+
+			long micros = gap / 1000;
+			int bucket = 64 - Long.numberOfLeadingZeros(micros);
+			histogram[Math.min(bucket, BUCKETS - 1)]++;
+		}
+
+		lastCompletion = now;
+		bytes += length;
+
+		/* This is volatile, and written last, so readers see the rest. */
+		completions = completions + 1;
+	}
+
+	/** @return The UsbEndpoint. */
+	public UsbEndpoint getUsbEndpoint() { return usbEndpoint; }
+
+	/** @return The polling period bInterval advertises, in ns. */
+	public long getExpectedPeriodNanos() { return expectedPeriodNanos; }
+
+	/** @return The number of completions. */
+	public long getCompletions() { return completions; }
+
+	/** @return The System.nanoTime() of the first completion, or 0 if there hasn't been one. */
+	public long getFirstCompletionNanos() { return completions < 1 ? 0 : firstCompletion; }
+
+	/** @return The number of bytes transferred. */
+	public long getBytes() { return bytes; }
+
+	/** @return The recent (exponentially weighted) average time between completions, in ns. */
+	public long getGapNanos() { return completions < 2 ? 0 : gapNanos; }
+
+	/** @return The recent average time from a completion to the next submission, in ns. */
+	public long getTurnaroundNanos() { return turnaroundNanos; }
+
+	/** @return The recent average time from a submission to its completion, in ns. */
+	public long getWaitNanos() { return waitNanos; }
+
+	/** @return The shortest time between completions, in ns. */
+	public long getMinGapNanos() { return completions < 2 ? 0 : minGapNanos; }
+
+	/** @return The longest time between completions, in ns. */
+	public long getMaxGapNanos() { return maxGapNanos; }
+
+	/** @return The effective report rate over all completions, per second. */
+	public double getEffectiveRate()
+	{
+		long count = completions;
+		long elapsed = lastCompletion - firstCompletion;
+		return count < 2 || 0 == elapsed ? 0 : (count - 1) * 1000000000.0 / elapsed;
+	}
+
+	/** @return The recent report rate, per second. */
+	public double getRecentRate()
+	{
+		long gap = getGapNanos();
+		return 0 == gap ? 0 : 1000000000.0 / gap;
+	}
+
+	/** @return The report rate bInterval advertises, per second. */
+	public double getExpectedRate()
+	{
+		return 0 == expectedPeriodNanos ? 0 : 1000000000.0 / expectedPeriodNanos;
+	}
+
+	/**
+	 * Check if the reader is limiting the report rate.
+	 * <p>
+	 * This is the case if reports are coming in more slowly than the polling
+	 * interval allows, and more of each gap is spent in the reader than waiting for the device.
+	 * A device that simply has nothing to report spends the gaps waiting.
+	 * @return If the reader is the bottleneck.
+	 */
+	public boolean isReaderBottleneck()
+	{
+		long gap = getGapNanos();
+		return 0 != gap && gap > (expectedPeriodNanos + (expectedPeriodNanos >> 2)) && turnaroundNanos > waitNanos;
+	}
+
+	/**
+	 * Get the gap histogram.
+	 * <p>
+	 * Bucket 0 counts gaps under 1 us, and bucket n (for n &gt; 0) counts gaps
+	 * from 2^(n-1) us up to 2^n us; the last bucket also counts everything longer.
+	 * @return A copy of the histogram.
+	 */
+	public long[] getHistogram() { return (long[])histogram.clone(); }
+
+	public String toString()
+	{
+		StringBuffer stringBuffer = new StringBuffer();
+		UsbEndpointDescriptor desc = usbEndpoint.getUsbEndpointDescriptor();
+
+		stringBuffer.append("Endpoint 0x" + UsbUtil.toHexString(desc.bEndpointAddress()) +
+			" bInterval " + UsbUtil.unsignedInt(desc.bInterval()) + " : expected " + format(getExpectedRate()) + " reports/s," +
+			" effective " + format(getEffectiveRate()) + " reports/s over " + getCompletions() + " reports," +
+			" recently " + format(getRecentRate()) + " reports/s\n");
+		stringBuffer.append("  recent gap avg " + format(getGapNanos() / 1000.0) + " us; gap min " + format(getMinGapNanos() / 1000.0) +
+			" us max " + format(getMaxGapNanos() / 1000.0) + " us; reader turnaround " + format(getTurnaroundNanos() / 1000.0) +
+			" us, device wait " + format(getWaitNanos() / 1000.0) + " us\n");
+		stringBuffer.append(isReaderBottleneck() ? "  The reader is the bottleneck.\n" : "  The reader is keeping up.\n");
+
+		long[] counts = getHistogram();
+		for (int i=0; i<counts.length; i++) {
+			if (0 == counts[i])
+				continue;
+			stringBuffer.append("  gap " + (0 == i ? "0" : Long.toString(1L << (i-1))) +
+				(BUCKETS - 1 == i ? "+ us" : " - " + (1L << i) + " us") + " : " + counts[i] + "\n");
+		}
+
+		return stringBuffer.toString();
+	}
+
+	protected static String format(double value)
+	{
+		return Double.toString(Math.round(value * 10) / 10.0);
+	}
+
+	private UsbEndpoint usbEndpoint = null;
+	private long expectedPeriodNanos = 0;
+
+	private long lastSubmit = 0;
+	private long firstCompletion = 0;
+	private long lastCompletion = 0;
+	private long gapNanos = 0;
+	private long turnaroundNanos = 0;
+	private long waitNanos = 0;
+	private long minGapNanos = Long.MAX_VALUE;
+	private long maxGapNanos = 0;
+	private long bytes = 0;
+	private long[] histogram = new long[BUCKETS];
+	private volatile long completions = 0;
+
+	public static final long FRAME_NANOS = 1000000;
+
+	/* Each new sample has 1/16 of the weight. */
+	private static final int EWMA_SHIFT = 4;
+	private static final int BUCKETS = 32;
+}
@@ -23,42 +23,67 @@ public class ShowTopology
 	public static void main(String argv[])
 	{
 		UsbHub virtualRootUsbHub = getVirtualRootUsbHub();
+		UsbMetrics usbMetrics = UsbMetrics.getDefault();
 
 		/* This method recurses through the topology tree, using
 		 * the getAttachedUsbDevices() method.
+		 * Each walk is timed, and counts the devices it shows; see UsbMetrics.
 		 */
-		System.out.println("Using UsbHub.getAttachedUsbDevices() to show toplogy:");
-		processUsingGetAttachedUsbDevices(virtualRootUsbHub, "");
+		UsbLog.println("Using UsbHub.getAttachedUsbDevices() to show toplogy:");
+		long start = System.nanoTime();
+		int devices = processUsingGetAttachedUsbDevices(virtualRootUsbHub, "");
+		usbMetrics.recordEnumeration("ShowTopology.processUsingGetAttachedUsbDevices", System.nanoTime() - start, devices);
 
 		/* Let's go through the topology again, but using getUsbPorts()
 		 * this time.
 		 */
-		System.out.println("Using UsbHub.getUsbPorts() to show toplogy:");
-		processUsingGetUsbPorts(virtualRootUsbHub, "");
+		UsbLog.println("Using UsbHub.getUsbPorts() to show toplogy:");
+		start = System.nanoTime();
+		devices = processUsingGetUsbPorts(virtualRootUsbHub, "");
+		usbMetrics.recordEnumeration("ShowTopology.processUsingGetUsbPorts", System.nanoTime() - start, devices);
+
+		if (null != System.getProperty(UsbMetrics.PRINT_PROPERTY))
+			UsbLog.print(usbMetrics.snapshot());
 	}
 
 	/**
-	 * Get the virtual root UsbHub.
-	 * @return The virtual root UsbHub.
+	 * Get the UsbServices.
+	 * <p>
+	 * Normally this comes from the UsbHostManager, which uses the implementation
+	 * named in the javax.usb.properties file.  If the SimulatedUsbServices.SPEC_PROPERTY
+	 * system property is set, the (shared) simulated implementation is used instead,
+	 * so all the example code can run without any USB hardware.
+	 * @return The UsbServices.
 	 */
-	public static UsbHub getVirtualRootUsbHub()
+	public static UsbServices getUsbServices()
 	{
-		UsbServices services = null;
-		UsbHub virtualRootUsbHub = null;
+		if (null != System.getProperty(SimulatedUsbServices.SPEC_PROPERTY))
+			return SimulatedUsbServices.getInstance();
 
-		/* First we need to get the UsbServices.
-		 * This might throw either an UsbException or SecurityException.
+		/* This might throw either an UsbException or SecurityException.
 		 * A SecurityException means we're not allowed to access the USB bus,
 		 * while a UsbException indicates there is a problem either in
 		 * the javax.usb implementation or the OS USB support.
 		 */
 		try {
-			services = UsbHostManager.getUsbServices();
+			return UsbHostManager.getUsbServices();
 		} catch ( UsbException uE ) {
 			throw new RuntimeException("Error : " + uE.getMessage());
 		} catch ( SecurityException sE ) {
 			throw new RuntimeException("Error : " + sE.getMessage());
 		}
+	}
+
+	/**
+	 * Get the virtual root UsbHub.
+	 * @return The virtual root UsbHub.
+	 */
+	public static UsbHub getVirtualRootUsbHub()
+	{
+		UsbHub virtualRootUsbHub = null;
+
+		/* First we need to get the UsbServices. */
+		UsbServices services = getUsbServices();
 
 		/* Now we need to get the virtual root UsbHub,
 		 * everything is connected to it.  The Virtual Root UsbHub
@@ -86,15 +111,17 @@ public class ShowTopology
 	/**
 	 * Process all devices in the system using getAttachedUsbDevices().
 	 * Note that this accepts a UsbDevice, not a UsbHub, since UsbHubs are UsbDevices.
+	 * @return The number of devices processed, including this one.
 	 */
-	public static void processUsingGetAttachedUsbDevices(UsbDevice usbDevice, String prefix)
+	public static int processUsingGetAttachedUsbDevices(UsbDevice usbDevice, String prefix)
 	{
 		UsbHub usbHub = null;
+		int devices = 1;
 
 		/* If this is not a UsbHub, just display device and return. */
 		if (!usbDevice.isUsbHub()) {
-			System.out.println(prefix + "Device");
-			return;
+			UsbLog.println(prefix + "Device");
+			return devices;
 		} else {
 			/* We know it's a hub, so cast it. */
 			usbHub = (UsbHub)usbDevice;
@@ -102,10 +129,10 @@ public class ShowTopology
 
 		if (usbHub.isRootUsbHub()) {
 			/* This is the virtual root UsbHub. */
-			System.out.println(prefix + "Virtual root UsbHub");
+			UsbLog.println(prefix + "Virtual root UsbHub");
 		} else {
 			/* This is not the virtual root UsbHub. */
-			System.out.println(prefix + "UsbHub");
+			UsbLog.println(prefix + "UsbHub");
 		}
 
 		/* Now let's process each of this hub's devices. */
@@ -116,23 +143,29 @@ public class ShowTopology
 			UsbDevice device = (UsbDevice)attachedUsbDevices.get(i);
 
 			/* Recursively handle this device. */
-			processUsingGetAttachedUsbDevices(device, prefix+PREFIX);
+			devices += processUsingGetAttachedUsbDevices(device, prefix+PREFIX);
 		}
+
+		return devices;
 	}
 
 	/**
 	 * Process all devices in the system using getUsbPorts().
 	 * Notice that this looks the same as using getAttachedUsbDevices()
 	 * except this also displays UsbPorts that do not have a connected device.
+	 * Since this knows the ports, it also displays each device's (or empty port's)
+	 * port path, its physical location; see UsbPortPath.
+	 * @return The number of devices processed, including this one.
 	 */
-	public static void processUsingGetUsbPorts(UsbDevice usbDevice, String prefix)
+	public static int processUsingGetUsbPorts(UsbDevice usbDevice, String prefix)
 	{
 		UsbHub usbHub = null;
+		int devices = 1;
 
 		/* If this is not a UsbHub, just display device and return. */
 		if (!usbDevice.isUsbHub()) {
-			System.out.println(prefix + "Device");
-			return;
+			UsbLog.println(prefix + "Device " + UsbPortPath.getUsbPortPath(usbDevice));
+			return devices;
 		} else {
 			/* We know it's a hub, so cast it. */
 			usbHub = (UsbHub)usbDevice;
@@ -140,10 +173,10 @@ public class ShowTopology
 
 		if (usbHub.isRootUsbHub()) {
 			/* This is the virtual root UsbHub. */
-			System.out.println(prefix + "Virtual root UsbHub");
+			UsbLog.println(prefix + "Virtual root UsbHub");
 		} else {
 			/* This is not the virtual root UsbHub. */
-			System.out.println(prefix + "UsbHub");
+			UsbLog.println(prefix + "UsbHub " + UsbPortPath.getUsbPortPath(usbHub));
 		}
 
 		/* Now let's process each of this hub's ports. */
@@ -155,13 +188,15 @@ public class ShowTopology
 
 			/* If this doesn't have a device attached, just process the port. */
 			if (!port.isUsbDeviceAttached()) {
-				System.out.println(prefix+PREFIX + "UsbPort");
+				UsbLog.println(prefix+PREFIX + "UsbPort " + UsbPortPath.getUsbPortPath(port));
 				continue;
 			} else {
 				/* There is a device attached, so we'll process it. */
-				processUsingGetUsbPorts(port.getUsbDevice(), prefix+PREFIX);
+				devices += processUsingGetUsbPorts(port.getUsbDevice(), prefix+PREFIX);
 			}
 		}
+
+		return devices;
 	}
 
 	public static final String PREFIX = "  ";
@@ -0,0 +1,1879 @@
+/*
+ * Copyright (c) 1999 - 2001, International Business Machines Corporation.
+ * All Rights Reserved.
+ *
+ * This software is provided and licensed under the terms and conditions
+ * of the Common Public License:
+ * http://oss.software.ibm.com/developerworks/opensource/license-cpl.html
+ */
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.locks.*;
+
+import javax.usb.*;
+import javax.usb.event.*;
+import javax.usb.util.*;
+
+/**
+ * In-memory simulated javax.usb implementation.
+ * <p>
+ * This builds a synthetic topology from a spec, so the example code can be run
+ * (and measured) without any real USB hardware.  There are two ways to use it:
+ * <ul>
+ * <li>Set the {@link #SPEC_PROPERTY} system property (it may be empty, to use the defaults),
+ *     e.g. <code>java -Djsr80.example.simulated=devices=1000,latency=125 ShowTopology</code>.
+ *     ShowTopology.getUsbServices() then uses this instead of the UsbHostManager.</li>
+ * <li>Set <code>javax.usb.services = SimulatedUsbServices</code> in javax.usb.properties,
+ *     and optionally put the spec in the same file under the {@link #SPEC_PROPERTY} key.</li>
+ * </ul>
+ * <p>
+ * The spec is a comma-separated list of key=value pairs; see {@link Spec}.
+ * The simulated devices are:
+ * <ul>
+ * <li><code>hub</code> : a hub with the spec's number of ports.</li>
+ * <li><code>mouse</code> : a boot-protocol HID mouse, with an interrupt-in endpoint that reports
+ *     movement continuously at its bInterval (or the spec's reportRate).</li>
+ * <li><code>keyboard</code> : a boot-protocol HID keyboard, like the mouse.</li>
+ * <li><code>loopback</code> : a vendor-specific device with two interfaces.  Interface 0 has an
+ *     endless bulk-in source (0x81) and a bulk-out sink (0x01); interface 1 has a
+ *     bulk-out (0x02) whose data is looped back on its bulk-in (0x82).</li>
+ * <li><code>composite</code> : a device with 2 configurations, one of which has an
+ *     interface with 2 alternate settings.</li>
+ * </ul>
+ * Every transfer takes the spec's latency (plus or minus its jitter), and may fail
+ * with the spec's error rate.  A failed bulk or interrupt transfer halts its endpoint,
+ * just like a real STALL; the endpoint stays halted until a CLEAR_FEATURE(ENDPOINT_HALT)
+ * request is sent on the Default Control Pipe.
+ * <p>
+ * Devices can be attached and detached at runtime with {@link #attach(UsbHub,int,String) attach()}
+ * and {@link #detach(UsbDevice) detach()}, or randomly by the spec's churn setting;
+ * the normal UsbServicesListener and UsbDeviceListener events are fired.
+ * <p>
+ * This class should not be used except by other example code.
+ */
+public class SimulatedUsbServices implements UsbServices
+{
+	/**
+	 * Constructor.
+	 * <p>
+	 * This is used by the UsbHostManager.  The spec is taken from the
+	 * {@link #SPEC_PROPERTY} system property, or if that isn't set then from
+	 * the same property in javax.usb.properties.
+	 */
+	public SimulatedUsbServices()
+	{
+		this(getDefaultSpec());
+	}
+
+	/**
+	 * Constructor.
+	 * @param spec The topology/behavior spec.
+	 * @exception IllegalArgumentException If the spec is invalid.
+	 */
+	public SimulatedUsbServices(String spec)
+	{
+		this.spec = new Spec(spec);
+		random = new Random(this.spec.seed);
+		build();
+
+		if (0 < this.spec.churn) {
+			Thread churnThread = new Thread(new Runnable() {
+					public void run() { churn(); }
+				}, "SimulatedUsbServices churn");
+			churnThread.setDaemon(true);
+			churnThread.start();
+		}
+	}
+
+	/**
+	 * Get the shared instance, built from the {@link #SPEC_PROPERTY} system property.
+	 * @return The shared SimulatedUsbServices.
+	 */
+	public static synchronized SimulatedUsbServices getInstance()
+	{
+		if (null == instance)
+			instance = new SimulatedUsbServices();
+		return instance;
+	}
+
+	/** @return The virtual root UsbHub. */
+	public UsbHub getRootUsbHub() { return virtualRootUsbHub; }
+
+	public void addUsbServicesListener(UsbServicesListener listener)
+	{
+		synchronized (listeners) {
+			if (!listeners.contains(listener))
+				listeners.add(listener);
+		}
+	}
+
+	public void removeUsbServicesListener(UsbServicesListener listener)
+	{
+		synchronized (listeners) {
+			listeners.remove(listener);
+		}
+	}
+
+	public String getApiVersion() { return javax.usb.Version.getApiVersion(); }
+
+	public String getImpVersion() { return IMP_VERSION; }
+
+	public String getImpDescription() { return IMP_DESCRIPTION; }
+
+	/**
+	 * Get the Spec this was built from.
+	 * @return The Spec.
+	 */
+	public Spec getSpec() { return spec; }
+
+	/**
+	 * Attach a new simulated device.
+	 * @param usbHub The (simulated) UsbHub to attach to.
+	 * @param port The port number to attach at.
+	 * @param kind The kind of device, e.g. "mouse".
+	 * @return The new UsbDevice.
+	 * @exception IllegalArgumentException If the port is not empty or the kind is unknown.
+	 */
+	public UsbDevice attach(UsbHub usbHub, int port, String kind)
+	{
+		SimulatedHub hub = (SimulatedHub)usbHub;
+		SimulatedDevice device = null;
+
+		synchronized (topologyLock) {
+			device = createDevice(kind, hub.depth + 1);
+			hub.connect(port, device);
+		}
+
+		fireAttached(device);
+		return device;
+	}
+
+	/**
+	 * Detach a simulated device.
+	 * <p>
+	 * If the device is a hub, all its downstream devices are detached first.
+	 * @param usbDevice The UsbDevice to detach.
+	 */
+	public void detach(UsbDevice usbDevice)
+	{
+		SimulatedDevice device = (SimulatedDevice)usbDevice;
+
+		if (device.isUsbHub()) {
+			List devices = ((UsbHub)device).getAttachedUsbDevices();
+			for (int i=0; i<devices.size(); i++)
+				detach((UsbDevice)devices.get(i));
+		}
+
+		synchronized (topologyLock) {
+			SimulatedPort port = device.parentPort;
+			if (null == port || port.device != device)
+				return;
+			port.hub.disconnect(port.number);
+		}
+
+		device.disconnect();
+		fireDetached(device);
+	}
+
+	/**
+	 * Build the initial topology.
+	 */
+	protected void build()
+	{
+		virtualRootUsbHub = new SimulatedHub(this, KIND_VIRTUAL_ROOT_HUB, spec.controllers, -1);
+		virtualRootUsbHub.rootUsbHub = true;
+
+		LinkedList queue = new LinkedList();
+		int count = 0;
+		/* The number of ports, on hubs already created, that haven't been filled yet. */
+		int room = 0;
+
+		for (int i=1; i<=spec.controllers && count < spec.devices; i++) {
+			SimulatedHub rootHub = (SimulatedHub)createDevice(KIND_HUB, 0);
+			virtualRootUsbHub.connect(i, rootHub);
+			queue.add(rootHub);
+			count++;
+			room += rootHub.getPorts();
+		}
+
+		/* Fill the tree breadth-first, so it stays as shallow as it can. */
+		while (!queue.isEmpty() && count < spec.devices) {
+			SimulatedHub hub = (SimulatedHub)queue.removeFirst();
+
+			for (int port=1; port<=hub.getPorts() && count < spec.devices; port++, room--) {
+				if (!spec.isDeviceCountSet() && random.nextDouble() >= spec.fill)
+					continue;
+
+				boolean isHub = hub.depth < spec.depth && random.nextDouble() < spec.hubs;
+
+				/* If we need more devices than there are ports left, this has to be a hub. */
+				if (spec.isDeviceCountSet() && spec.devices - count > room)
+					isHub = true;
+
+				SimulatedDevice device = createDevice(isHub ? KIND_HUB : spec.nextKind(random), hub.depth + 1);
+				hub.connect(port, device);
+				count++;
+
+				if (isHub) {
+					queue.add(device);
+					room += ((SimulatedHub)device).getPorts();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Create a simulated device.
+	 * @param kind The kind of device.
+	 * @param depth The depth of the device (root hubs are at 0).
+	 * @return The new device.
+	 */
+	protected SimulatedDevice createDevice(String kind, int depth)
+	{
+		SimulatedDevice device = null;
+
+		if (KIND_HUB.equals(kind))
+			device = new SimulatedHub(this, kind, spec.ports, depth);
+		else if (KIND_MOUSE.equals(kind) || KIND_KEYBOARD.equals(kind) || KIND_LOOPBACK.equals(kind) || KIND_COMPOSITE.equals(kind))
+			device = new SimulatedDevice(this, kind, depth);
+		else
+			throw new IllegalArgumentException("Unknown device kind " + kind);
+
+		/* Some devices may be left unconfigured, as if no driver had been found for them. */
+		if (!device.isUsbHub() && random.nextDouble() < spec.unconfigured)
+			device.activeConfiguration = null;
+
+		return device;
+	}
+
+	/**
+	 * Randomly replace leaf devices, until the JVM exits.
+	 */
+	protected void churn()
+	{
+		while (true) {
+			try {
+				Thread.sleep(spec.churn);
+			} catch ( InterruptedException iE ) {
+				return;
+			}
+
+			List devices = FindUsbDevice.getAllUsbDevices(virtualRootUsbHub);
+			List leaves = new ArrayList();
+			for (int i=0; i<devices.size(); i++)
+				if (!((UsbDevice)devices.get(i)).isUsbHub())
+					leaves.add(devices.get(i));
+
+			if (leaves.isEmpty())
+				continue;
+
+			SimulatedDevice device = (SimulatedDevice)leaves.get(random.nextInt(leaves.size()));
+			SimulatedPort port = device.parentPort;
+
+			detach(device);
+			attach(port.hub, port.number, spec.nextKind(random));
+		}
+	}
+
+	protected void fireAttached(SimulatedDevice device)
+	{
+		UsbServicesEvent event = new UsbServicesEvent(this, device);
+		Object[] array = null;
+
+		synchronized (listeners) {
+			array = listeners.toArray();
+		}
+
+		for (int i=0; i<array.length; i++)
+			((UsbServicesListener)array[i]).usbDeviceAttached(event);
+
+		if (device.isUsbHub()) {
+			List devices = ((UsbHub)device).getAttachedUsbDevices();
+			for (int i=0; i<devices.size(); i++)
+				fireAttached((SimulatedDevice)devices.get(i));
+		}
+	}
+
+	protected void fireDetached(SimulatedDevice device)
+	{
+		UsbServicesEvent event = new UsbServicesEvent(this, device);
+		Object[] array = null;
+
+		synchronized (listeners) {
+			array = listeners.toArray();
+		}
+
+		for (int i=0; i<array.length; i++)
+			((UsbServicesListener)array[i]).usbDeviceDetached(event);
+	}
+
+	/**
+	 * Get the default spec.
+	 * @return The spec from the system property, or javax.usb.properties, or "".
+	 */
+	protected static String getDefaultSpec()
+	{
+		String spec = System.getProperty(SPEC_PROPERTY);
+
+		if (null == spec) {
+			try {
+				spec = UsbHostManager.getProperties().getProperty(SPEC_PROPERTY);
+			} catch ( UsbException uE ) {
+				/* There is no javax.usb.properties, so just use the defaults. */
+			} catch ( SecurityException sE ) {
+				/* We're not allowed to read it, so just use the defaults. */
+			}
+		}
+
+		return null == spec ? "" : spec;
+	}
+
+	/**
+	 * Wait for the specified number of nanoseconds.
+	 * @param nanos The time to wait.
+	 */
+	protected static void pause(long nanos)
+	{
+		long deadline = System.nanoTime() + nanos;
+		while (0 < nanos) {
+			LockSupport.parkNanos(nanos);
+			nanos = deadline - System.nanoTime();
+		}
+	}
+
+	/**
+	 * The topology and behavior spec.
+	 * <p>
+	 * The spec is a comma-separated list of key=value pairs.  The keys are:
+	 * <ul>
+	 * <li>controllers : the number of host controllers (root hubs), default 2.</li>
+	 * <li>ports : the number of ports on each hub, default 4.</li>
+	 * <li>depth : the maximum number of hub tiers below the root hubs, default 3.</li>
+	 * <li>hubs : the chance (0.0 - 1.0) that a device is a hub, default 0.3.</li>
+	 * <li>fill : the chance that a port has a device attached, default 0.75.
+	 *     This is ignored if the devices key is set.</li>
+	 * <li>devices : the exact number of devices (including root hubs) to create.
+	 *     If the depth doesn't allow that many, extra hubs are added (breadth-first)
+	 *     beyond the depth.</li>
+	 * <li>kinds : the relative weights of the non-hub device kinds, as kind:weight pairs
+	 *     separated by '+', default mouse:1+keyboard:1+loopback:1+composite:1.</li>
+	 * <li>unconfigured : the chance that a non-hub device is not configured, default 0.</li>
+	 * <li>latency : the time in microseconds each transfer takes, default 0.</li>
+	 * <li>jitter : the maximum random variation in microseconds of the latency, default 0.</li>
+	 * <li>bandwidth : the bulk data rate in bytes per second, or 0 for unlimited (the default).</li>
+	 * <li>errors : the chance that a bulk or interrupt transfer fails (and halts the endpoint), default 0.</li>
+	 * <li>controlErrors : the chance that a control transfer fails, default 0.</li>
+	 * <li>interval : the bInterval of the HID devices' interrupt-in endpoints, default 10.</li>
+	 * <li>reportRate : the HID report rate in Hz, default is as bInterval specifies.</li>
+	 * <li>churn : the time in milliseconds between random device replacements, or 0 for none (the default).</li>
+	 * <li>seed : the random seed, default 0.</li>
+	 * </ul>
+	 */
+	public static class Spec
+	{
+		/**
+		 * Constructor.
+		 * @param spec The spec String.
+		 * @exception IllegalArgumentException If the spec is invalid.
+		 */
+		public Spec(String spec)
+		{
+			StringTokenizer tokenizer = new StringTokenizer(spec, ", \t");
+			String kindsString = "mouse:1+keyboard:1+loopback:1+composite:1";
+
+			while (tokenizer.hasMoreTokens()) {
+				String token = tokenizer.nextToken();
+				int equalsIndex = token.indexOf('=');
+				if (0 > equalsIndex)
+					throw new IllegalArgumentException("Invalid spec key-value pair \"" + token + "\"");
+
+				String key = token.substring(0, equalsIndex);
+				String value = token.substring(equalsIndex+1);
+
+				try {
+					if (key.equals("controllers"))
+						controllers = Integer.decode(value).intValue();
+					else if (key.equals("ports"))
+						ports = Integer.decode(value).intValue();
+					else if (key.equals("depth"))
+						depth = Integer.decode(value).intValue();
+					else if (key.equals("hubs"))
+						hubs = Double.parseDouble(value);
+					else if (key.equals("fill"))
+						fill = Double.parseDouble(value);
+					else if (key.equals("devices"))
+						devices = Integer.decode(value).intValue();
+					else if (key.equals("kinds"))
+						kindsString = value;
+					else if (key.equals("unconfigured"))
+						unconfigured = Double.parseDouble(value);
+					else if (key.equals("latency"))
+						latency = Long.decode(value).longValue() * 1000;
+					else if (key.equals("jitter"))
+						jitter = Long.decode(value).longValue() * 1000;
+					else if (key.equals("bandwidth"))
+						bandwidth = Long.decode(value).longValue();
+					else if (key.equals("errors"))
+						errors = Double.parseDouble(value);
+					else if (key.equals("controlErrors"))
+						controlErrors = Double.parseDouble(value);
+					else if (key.equals("interval"))
+						interval = Integer.decode(value).intValue();
+					else if (key.equals("reportRate"))
+						reportRate = Integer.decode(value).intValue();
+					else if (key.equals("churn"))
+						churn = Long.decode(value).longValue();
+					else if (key.equals("seed"))
+						seed = Long.decode(value).longValue();
+					else
+						throw new IllegalArgumentException("Unrecognized spec key \"" + key + "\"");
+				} catch ( NumberFormatException nfE ) {
+					throw new IllegalArgumentException("Invalid spec key-value pair \"" + token + "\"");
+				}
+			}
+
+			if (1 > controllers || 1 > ports || 0 > depth || 0 > latency || 0 > jitter || 1 > interval || 255 < interval)
+				throw new IllegalArgumentException("Invalid spec \"" + spec + "\"");
+
+			parseKinds(kindsString);
+		}
+
+		/** @return If the exact device count was specified. */
+		public boolean isDeviceCountSet() { return Integer.MAX_VALUE != devices; }
+
+		/**
+		 * Get the latency of one transfer.
+		 * @param random The Random to use for jitter.
+		 * @return The latency in nanoseconds.
+		 */
+		public long nextLatency(Random random)
+		{
+			if (0 == jitter)
+				return latency;
+			return Math.max(0, latency + (long)((random.nextDouble() * 2 - 1) * jitter));
+		}
+
+		/**
+		 * Pick the next non-hub device kind, by weight.
+		 * @param random The Random to use.
+		 * @return The kind.
+		 */
+		public String nextKind(Random random)
+		{
+			int pick = random.nextInt(totalWeight);
+			for (int i=0; i<kinds.length; i++) {
+				pick -= weights[i];
+				if (0 > pick)
+					return kinds[i];
+			}
+			return kinds[kinds.length - 1];
+		}
+
+		protected void parseKinds(String kindsString)
+		{
+			StringTokenizer tokenizer = new StringTokenizer(kindsString, "+");
+			List kindList = new ArrayList();
+			List weightList = new ArrayList();
+
+			totalWeight = 0;
+
+			while (tokenizer.hasMoreTokens()) {
+				String token = tokenizer.nextToken();
+				int colonIndex = token.indexOf(':');
+				String kind = 0 > colonIndex ? token : token.substring(0, colonIndex);
+				int weight = 0 > colonIndex ? 1 : Integer.parseInt(token.substring(colonIndex+1));
+
+				if (!(KIND_MOUSE.equals(kind) || KIND_KEYBOARD.equals(kind) || KIND_LOOPBACK.equals(kind) || KIND_COMPOSITE.equals(kind)) || 0 > weight)
+					throw new IllegalArgumentException("Invalid device kind \"" + token + "\"");
+
+				kindList.add(kind);
+				weightList.add(Integer.valueOf(weight));
+				totalWeight += weight;
+			}
+
+			if (0 == totalWeight)
+				throw new IllegalArgumentException("No device kinds in \"" + kindsString + "\"");
+
+			kinds = (String[])kindList.toArray(new String[kindList.size()]);
+			weights = new int[weightList.size()];
+			for (int i=0; i<weights.length; i++)
+				weights[i] = ((Integer)weightList.get(i)).intValue();
+		}
+
+		public int controllers = 2;
+		public int ports = 4;
+		public int depth = 3;
+		public double hubs = 0.3;
+		public double fill = 0.75;
+		public int devices = Integer.MAX_VALUE;
+		public double unconfigured = 0;
+		public long latency = 0;
+		public long jitter = 0;
+		public long bandwidth = 0;
+		public double errors = 0;
+		public double controlErrors = 0;
+		public int interval = 10;
+		public int reportRate = 0;
+		public long churn = 0;
+		public long seed = 0;
+
+		private String[] kinds = null;
+		private int[] weights = null;
+		private int totalWeight = 0;
+	}
+
+	/**
+	 * Raw descriptor builder.
+	 */
+	protected static class DescriptorBuilder
+	{
+		public DescriptorBuilder configuration(int value)
+		{
+			configurationOffset = out.size();
+			write(new int[] { 9, UsbConst.DESCRIPTOR_TYPE_CONFIGURATION, 0, 0, 0, value, 0, 0xa0, 50 });
+			return this;
+		}
+
+		public DescriptorBuilder iface(int number, int setting, int endpoints, int interfaceClass, int subClass, int protocol)
+		{
+			write(new int[] { 9, UsbConst.DESCRIPTOR_TYPE_INTERFACE, number, setting, endpoints, interfaceClass, subClass, protocol, 0 });
+			if (0 == setting)
+				interfaces++;
+			return this;
+		}
+
+		public DescriptorBuilder hid(int reportLength)
+		{
+			write(new int[] { 9, DescriptorView.HidView.DESCRIPTOR_TYPE_HID, 0x11, 0x01, 0, 1, MouseDriver.HID_DESCRIPTOR_TYPE_REPORT, reportLength & 0xff, reportLength >> 8 });
+			return this;
+		}
+
+		public DescriptorBuilder endpoint(int address, int type, int maxPacketSize, int interval)
+		{
+			write(new int[] { 7, UsbConst.DESCRIPTOR_TYPE_ENDPOINT, address, type, maxPacketSize & 0xff, maxPacketSize >> 8, interval });
+			return this;
+		}
+
+		public byte[] toByteArray()
+		{
+			byte[] bytes = out.toByteArray();
+			bytes[configurationOffset + 2] = (byte)bytes.length;
+			bytes[configurationOffset + 3] = (byte)(bytes.length >> 8);
+			bytes[configurationOffset + 4] = (byte)interfaces;
+			return bytes;
+		}
+
+		protected void write(int[] values)
+		{
+			for (int i=0; i<values.length; i++)
+				out.write(values[i]);
+		}
+
+		public static byte[] device(int deviceClass, int maxPacketSize0, short vendorId, short productId, int configurations)
+		{
+			return new byte[] { 18, UsbConst.DESCRIPTOR_TYPE_DEVICE, 0x10, 0x01, (byte)deviceClass, 0, 0, (byte)maxPacketSize0,
+				(byte)vendorId, (byte)(vendorId >> 8), (byte)productId, (byte)(productId >> 8), 0x00, 0x01,
+				STRING_MANUFACTURER, STRING_PRODUCT, STRING_SERIAL_NUMBER, (byte)configurations };
+		}
+
+		public static byte[] string(String string)
+		{
+			byte[] bytes = new byte[2 + 2*string.length()];
+			bytes[0] = (byte)bytes.length;
+			bytes[1] = UsbConst.DESCRIPTOR_TYPE_STRING;
+			for (int i=0; i<string.length(); i++) {
+				bytes[2 + 2*i] = (byte)string.charAt(i);
+				bytes[3 + 2*i] = (byte)(string.charAt(i) >> 8);
+			}
+			return bytes;
+		}
+
+		private ByteArrayOutputStream out = new ByteArrayOutputStream();
+		private int configurationOffset = 0;
+		private int interfaces = 0;
+	}
+
+	/**
+	 * Simulated UsbDevice.
+	 */
+	public static class SimulatedDevice implements UsbDevice
+	{
+		public SimulatedDevice(SimulatedUsbServices services, String kind, int depth)
+		{
+			this.services = services;
+			this.kind = kind;
+			this.depth = depth;
+			this.id = services.nextId++;
+			this.random = new Random(services.spec.seed + id);
+
+			List bundles = new ArrayList();
+			int deviceClass = 0;
+			int maxPacketSize0 = 64;
+			short productId = 0;
+			int interval = services.spec.interval;
+
+			if (KIND_VIRTUAL_ROOT_HUB.equals(kind) || KIND_HUB.equals(kind)) {
+				deviceClass = UsbConst.HUB_CLASSCODE;
+				productId = KIND_VIRTUAL_ROOT_HUB.equals(kind) ? (short)0x0000 : (short)0x0001;
+				bundles.add(new DescriptorBuilder().configuration(1)
+					.iface(0, 0, 1, UsbConst.HUB_CLASSCODE, 0, 0)
+					.endpoint(0x81, UsbConst.ENDPOINT_TYPE_INTERRUPT, 1, 255).toByteArray());
+			} else if (KIND_MOUSE.equals(kind)) {
+				maxPacketSize0 = 8;
+				productId = 0x0002;
+				bundles.add(new DescriptorBuilder().configuration(1)
+					.iface(0, 0, 1, MouseDriver.HID_CLASS, MouseDriver.HID_SUBCLASS_BOOT_INTERFACE, MouseDriver.HID_PROTOCOL_MOUSE)
+					.hid(MOUSE_REPORT_DESCRIPTOR.length)
+					.endpoint(0x81, UsbConst.ENDPOINT_TYPE_INTERRUPT, 4, interval).toByteArray());
+			} else if (KIND_KEYBOARD.equals(kind)) {
+				maxPacketSize0 = 8;
+				productId = 0x0003;
+				bundles.add(new DescriptorBuilder().configuration(1)
+					.iface(0, 0, 1, MouseDriver.HID_CLASS, MouseDriver.HID_SUBCLASS_BOOT_INTERFACE, HID_PROTOCOL_KEYBOARD)
+					.hid(KEYBOARD_REPORT_DESCRIPTOR.length)
+					.endpoint(0x81, UsbConst.ENDPOINT_TYPE_INTERRUPT, 8, interval).toByteArray());
+			} else if (KIND_LOOPBACK.equals(kind)) {
+				productId = 0x0004;
+				bundles.add(new DescriptorBuilder().configuration(1)
+					.iface(0, 0, 2, VENDOR_CLASS, 0, 0)
+					.endpoint(0x81, UsbConst.ENDPOINT_TYPE_BULK, 64, 0)
+					.endpoint(0x01, UsbConst.ENDPOINT_TYPE_BULK, 64, 0)
+					.iface(1, 0, 2, VENDOR_CLASS, 0, 0)
+					.endpoint(0x82, UsbConst.ENDPOINT_TYPE_BULK, 64, 0)
+					.endpoint(0x02, UsbConst.ENDPOINT_TYPE_BULK, 64, 0).toByteArray());
+			} else if (KIND_COMPOSITE.equals(kind)) {
+				productId = 0x0005;
+				bundles.add(new DescriptorBuilder().configuration(1)
+					.iface(0, 0, 1, MouseDriver.HID_CLASS, MouseDriver.HID_SUBCLASS_BOOT_INTERFACE, HID_PROTOCOL_KEYBOARD)
+					.hid(KEYBOARD_REPORT_DESCRIPTOR.length)
+					.endpoint(0x81, UsbConst.ENDPOINT_TYPE_INTERRUPT, 8, interval)
+					.iface(1, 0, 0, VENDOR_CLASS, 0, 0)
+					.iface(1, 1, 2, VENDOR_CLASS, 0, 0)
+					.endpoint(0x82, UsbConst.ENDPOINT_TYPE_BULK, 64, 0)
+					.endpoint(0x02, UsbConst.ENDPOINT_TYPE_BULK, 64, 0).toByteArray());
+				bundles.add(new DescriptorBuilder().configuration(2)
+					.iface(0, 0, 1, 0x02, 0x02, 0x01)
+					.endpoint(0x83, UsbConst.ENDPOINT_TYPE_INTERRUPT, 8, 16)
+					.iface(1, 0, 2, 0x0a, 0, 0)
+					.endpoint(0x84, UsbConst.ENDPOINT_TYPE_BULK, 64, 0)
+					.endpoint(0x04, UsbConst.ENDPOINT_TYPE_BULK, 64, 0).toByteArray());
+			}
+
+			deviceDescriptor = DescriptorBuilder.device(deviceClass, maxPacketSize0, VENDOR_ID, productId, bundles.size());
+			usbDeviceDescriptor = (UsbDeviceDescriptor)new DescriptorView.DeviceView().wrap(deviceDescriptor, 0);
+
+			strings = new byte[][] {
+				LANGID_DESCRIPTOR,
+				DescriptorBuilder.string("Simulated"),
+				DescriptorBuilder.string("Simulated " + kind),
+				DescriptorBuilder.string("SIM" + (100000 + id)) };
+
+			for (int i=0; i<bundles.size(); i++)
+				configurations.add(new SimulatedConfiguration(this, (byte[])bundles.get(i)));
+
+			activeConfiguration = (SimulatedConfiguration)configurations.get(0);
+			speed = (KIND_MOUSE.equals(kind) || KIND_KEYBOARD.equals(kind)) ? UsbConst.DEVICE_SPEED_LOW : UsbConst.DEVICE_SPEED_FULL;
+		}
+
+		public UsbPort getParentUsbPort() throws UsbDisconnectedException
+		{
+			checkConnected();
+			return parentPort;
+		}
+
+		public boolean isUsbHub() { return false; }
+
+		public String getManufacturerString() throws UsbException,UnsupportedEncodingException,UsbDisconnectedException
+		{
+			return getString(usbDeviceDescriptor.iManufacturer());
+		}
+
+		public String getSerialNumberString() throws UsbException,UnsupportedEncodingException,UsbDisconnectedException
+		{
+			return getString(usbDeviceDescriptor.iSerialNumber());
+		}
+
+		public String getProductString() throws UsbException,UnsupportedEncodingException,UsbDisconnectedException
+		{
+			return getString(usbDeviceDescriptor.iProduct());
+		}
+
+		public Object getSpeed() { return speed; }
+
+		public List getUsbConfigurations() { return Collections.unmodifiableList(configurations); }
+
+		public UsbConfiguration getUsbConfiguration(byte number)
+		{
+			for (int i=0; i<configurations.size(); i++) {
+				UsbConfiguration configuration = (UsbConfiguration)configurations.get(i);
+				if (number == configuration.getUsbConfigurationDescriptor().bConfigurationValue())
+					return configuration;
+			}
+			return null;
+		}
+
+		public boolean containsUsbConfiguration(byte number) { return null != getUsbConfiguration(number); }
+
+		public byte getActiveUsbConfigurationNumber()
+		{
+			SimulatedConfiguration configuration = activeConfiguration;
+			return null == configuration ? 0 : configuration.getUsbConfigurationDescriptor().bConfigurationValue();
+		}
+
+		public UsbConfiguration getActiveUsbConfiguration() { return activeConfiguration; }
+
+		public boolean isConfigured() { return null != activeConfiguration; }
+
+		public UsbDeviceDescriptor getUsbDeviceDescriptor() { return usbDeviceDescriptor; }
+
+		public UsbStringDescriptor getUsbStringDescriptor(byte index) throws UsbException,UsbDisconnectedException
+		{
+			/* This goes through the DCP, so it costs a (simulated) transfer, like a real device. */
+			byte[] buffer = new byte[256];
+			UsbControlIrp usbControlIrp = createUsbControlIrp(
+				(byte)(UsbConst.REQUESTTYPE_DIRECTION_IN | UsbConst.REQUESTTYPE_TYPE_STANDARD | UsbConst.REQUESTTYPE_RECIPIENT_DEVICE),
+				UsbConst.REQUEST_GET_DESCRIPTOR, (short)((UsbConst.DESCRIPTOR_TYPE_STRING << 8) | UsbUtil.unsignedInt(index)), LANGID_EN_US);
+			usbControlIrp.setData(buffer);
+			syncSubmit(usbControlIrp);
+			return (UsbStringDescriptor)new DescriptorView.StringView().wrap(buffer, 0, usbControlIrp.getActualLength());
+		}
+
+		public String getString(byte index) throws UsbException,UnsupportedEncodingException,UsbDisconnectedException
+		{
+			if (0 == index)
+				return null;
+			return getUsbStringDescriptor(index).getString();
+		}
+
+		public void syncSubmit(UsbControlIrp usbControlIrp) throws UsbException,IllegalArgumentException,UsbDisconnectedException
+		{
+			checkConnected();
+			process(usbControlIrp);
+			if (usbControlIrp.isUsbException())
+				throw usbControlIrp.getUsbException();
+		}
+
+		public void asyncSubmit(final UsbControlIrp usbControlIrp) throws UsbException,IllegalArgumentException,UsbDisconnectedException
+		{
+			checkConnected();
+			Thread thread = new Thread(new Runnable() {
+					public void run() { process(usbControlIrp); }
+				});
+			thread.setDaemon(true);
+			thread.start();
+		}
+
+		public void syncSubmit(List list) throws UsbException,IllegalArgumentException,UsbDisconnectedException
+		{
+			for (int i=0; i<list.size(); i++)
+				syncSubmit((UsbControlIrp)list.get(i));
+		}
+
+		public void asyncSubmit(final List list) throws UsbException,IllegalArgumentException,UsbDisconnectedException
+		{
+			checkConnected();
+			Thread thread = new Thread(new Runnable() {
+					public void run()
+					{
+						for (int i=0; i<list.size(); i++)
+							process((UsbControlIrp)list.get(i));
+					}
+				});
+			thread.setDaemon(true);
+			thread.start();
+		}
+
+		public UsbControlIrp createUsbControlIrp(byte bmRequestType, byte bRequest, short wValue, short wIndex)
+		{
+			return new DefaultUsbControlIrp(bmRequestType, bRequest, wValue, wIndex);
+		}
+
+		public void addUsbDeviceListener(UsbDeviceListener listener)
+		{
+			synchronized (listeners) {
+				if (!listeners.contains(listener))
+					listeners.add(listener);
+			}
+		}
+
+		public void removeUsbDeviceListener(UsbDeviceListener listener)
+		{
+			synchronized (listeners) {
+				listeners.remove(listener);
+			}
+		}
+
+		/** @return The kind of simulated device. */
+		public String getKind() { return kind; }
+
+		public String toString() { return "Simulated " + kind + " " + id; }
+
+		/**
+		 * Run a control transfer.
+		 * @param usbControlIrp The UsbControlIrp.
+		 */
+		protected void process(UsbControlIrp usbControlIrp)
+		{
+			pause(services.spec.nextLatency(random));
+
+			try {
+				if (disconnected)
+					throw new UsbException("Device disconnected");
+				if (random.nextDouble() < services.spec.controlErrors)
+					throw new UsbStallException("Simulated control transfer error");
+				usbControlIrp.setActualLength(handleControl(usbControlIrp));
+			} catch ( UsbException uE ) {
+				usbControlIrp.setUsbException(uE);
+			}
+
+			usbControlIrp.complete();
+
+			Object[] array = null;
+			synchronized (listeners) {
+				array = listeners.toArray();
+			}
+			for (int i=0; i<array.length; i++) {
+				if (usbControlIrp.isUsbException())
+					((UsbDeviceListener)array[i]).errorEventOccurred(new UsbDeviceErrorEvent(this, usbControlIrp));
+				else
+					((UsbDeviceListener)array[i]).dataEventOccurred(new UsbDeviceDataEvent(this, usbControlIrp));
+			}
+		}
+
+		/**
+		 * Handle a control request, as the device would.
+		 * @param usbControlIrp The UsbControlIrp.
+		 * @return The number of bytes transferred.
+		 * @exception UsbException If the device would STALL the request.
+		 */
+		protected int handleControl(UsbControlIrp usbControlIrp) throws UsbException
+		{
+			int requestType = UsbUtil.unsignedInt(usbControlIrp.bmRequestType());
+			int recipient = requestType & UsbConst.REQUESTTYPE_RECIPIENT_MASK;
+			int value = UsbUtil.unsignedInt(usbControlIrp.wValue());
+			int index = UsbUtil.unsignedInt(usbControlIrp.wIndex());
+
+			if (UsbConst.REQUESTTYPE_TYPE_STANDARD != (requestType & UsbConst.REQUESTTYPE_TYPE_MASK))
+				throw new UsbStallException("Unsupported request type 0x" + UsbUtil.toHexString((byte)requestType));
+
+			SimulatedConfiguration configuration = activeConfiguration;
+
+			switch (usbControlIrp.bRequest()) {
+			case UsbConst.REQUEST_GET_DESCRIPTOR:
+				int type = value >> 8;
+				int descriptorIndex = value & 0xff;
+				if (UsbConst.REQUESTTYPE_RECIPIENT_DEVICE == recipient) {
+					if (UsbConst.DESCRIPTOR_TYPE_DEVICE == type)
+						return reply(usbControlIrp, deviceDescriptor);
+					if (UsbConst.DESCRIPTOR_TYPE_CONFIGURATION == type && descriptorIndex < configurations.size())
+						return reply(usbControlIrp, ((SimulatedConfiguration)configurations.get(descriptorIndex)).bundle);
+					if (UsbConst.DESCRIPTOR_TYPE_STRING == type && descriptorIndex < strings.length)
+						return reply(usbControlIrp, strings[descriptorIndex]);
+				} else if (UsbConst.REQUESTTYPE_RECIPIENT_INTERFACE == recipient && null != configuration) {
+					if (MouseDriver.HID_DESCRIPTOR_TYPE_REPORT == type) {
+						byte[] report = configuration.getReportDescriptor(index);
+						if (null != report)
+							return reply(usbControlIrp, report);
+					}
+				}
+				throw new UsbStallException("Unsupported descriptor 0x" + UsbUtil.toHexString((short)value));
+			case UsbConst.REQUEST_GET_CONFIGURATION:
+				return reply(usbControlIrp, new byte[] { getActiveUsbConfigurationNumber() });
+			case UsbConst.REQUEST_SET_CONFIGURATION:
+				if (0 == value) {
+					activeConfiguration = null;
+					return 0;
+				}
+				configuration = (SimulatedConfiguration)getUsbConfiguration((byte)value);
+				if (null == configuration)
+					throw new UsbStallException("No configuration " + value);
+				configuration.resetSettings();
+				activeConfiguration = configuration;
+				return 0;
+			case UsbConst.REQUEST_GET_INTERFACE:
+				if (null == configuration || null == configuration.getUsbInterface((byte)index))
+					throw new UsbStallException("No interface " + index);
+				return reply(usbControlIrp, new byte[] { configuration.getUsbInterface((byte)index).getActiveSettingNumber() });
+			case UsbConst.REQUEST_SET_INTERFACE:
+				if (null == configuration || !configuration.setSetting(index, value))
+					throw new UsbStallException("No interface " + index + " setting " + value);
+				return 0;
+			case UsbConst.REQUEST_GET_STATUS:
+				if (UsbConst.REQUESTTYPE_RECIPIENT_ENDPOINT == recipient) {
+					SimulatedEndpoint endpoint = getEndpoint(index);
+					return reply(usbControlIrp, new byte[] { (byte)(endpoint.halted ? 1 : 0), 0 });
+				}
+				return reply(usbControlIrp, new byte[] { 0, 0 });
+			case UsbConst.REQUEST_CLEAR_FEATURE:
+			case UsbConst.REQUEST_SET_FEATURE:
+				if (UsbConst.REQUESTTYPE_RECIPIENT_ENDPOINT == recipient && UsbConst.FEATURE_SELECTOR_ENDPOINT_HALT == value) {
+					getEndpoint(index).halted = UsbConst.REQUEST_SET_FEATURE == usbControlIrp.bRequest();
+					return 0;
+				}
+				if (UsbConst.REQUESTTYPE_RECIPIENT_DEVICE == recipient && UsbConst.FEATURE_SELECTOR_DEVICE_REMOTE_WAKEUP == value)
+					return 0;
+				throw new UsbStallException("Unsupported feature " + value);
+			default:
+				throw new UsbStallException("Unsupported request 0x" + UsbUtil.toHexString(usbControlIrp.bRequest()));
+			}
+		}
+
+		/**
+		 * Get an endpoint of the active configuration by address.
+		 * @param address The endpoint address.
+		 * @return The SimulatedEndpoint.
+		 * @exception UsbStallException If there is no such endpoint.
+		 */
+		protected SimulatedEndpoint getEndpoint(int address) throws UsbStallException
+		{
+			SimulatedConfiguration configuration = activeConfiguration;
+			if (null != configuration) {
+				List ifaces = configuration.getUsbInterfaces();
+				for (int i=0; i<ifaces.size(); i++) {
+					UsbEndpoint endpoint = ((UsbInterface)ifaces.get(i)).getUsbEndpoint((byte)address);
+					if (null != endpoint)
+						return (SimulatedEndpoint)endpoint;
+				}
+			}
+			throw new UsbStallException("No endpoint 0x" + UsbUtil.toHexString((byte)address));
+		}
+
+		/**
+		 * Copy reply data into the UsbControlIrp.
+		 * @param usbControlIrp The UsbControlIrp.
+		 * @param data The reply data.
+		 * @return The number of bytes copied.
+		 */
+		protected int reply(UsbControlIrp usbControlIrp, byte[] data)
+		{
+			int length = Math.min(data.length, usbControlIrp.getLength());
+			System.arraycopy(data, 0, usbControlIrp.getData(), usbControlIrp.getOffset(), length);
+			return length;
+		}
+
+		protected void checkConnected() throws UsbDisconnectedException
+		{
+			if (disconnected)
+				throw new UsbDisconnectedException("Device disconnected");
+		}
+
+		/**
+		 * Mark this device disconnected, abort all pipes, and tell its listeners.
+		 */
+		protected void disconnect()
+		{
+			disconnected = true;
+
+			for (int i=0; i<configurations.size(); i++)
+				((SimulatedConfiguration)configurations.get(i)).disconnect();
+
+			UsbDeviceEvent event = new UsbDeviceEvent(this);
+			Object[] array = null;
+			synchronized (listeners) {
+				array = listeners.toArray();
+			}
+			for (int i=0; i<array.length; i++)
+				((UsbDeviceListener)array[i]).usbDeviceDetached(event);
+		}
+
+		protected SimulatedUsbServices services = null;
+		protected String kind = null;
+		protected int depth = 0;
+		protected int id = 0;
+		protected Random random = null;
+		protected Object speed = null;
+		protected byte[] deviceDescriptor = null;
+		protected UsbDeviceDescriptor usbDeviceDescriptor = null;
+		protected byte[][] strings = null;
+		protected List configurations = new ArrayList();
+		protected volatile SimulatedConfiguration activeConfiguration = null;
+		protected volatile SimulatedPort parentPort = null;
+		protected volatile boolean disconnected = false;
+		protected List listeners = new ArrayList();
+	}
+
+	/**
+	 * Simulated UsbHub.
+	 */
+	public static class SimulatedHub extends SimulatedDevice implements UsbHub
+	{
+		public SimulatedHub(SimulatedUsbServices services, String kind, int ports, int depth)
+		{
+			super(services, kind, depth);
+
+			List list = new ArrayList();
+			for (int i=1; i<=ports; i++)
+				list.add(new SimulatedPort(this, i));
+			usbPorts = Collections.unmodifiableList(list);
+		}
+
+		public boolean isUsbHub() { return true; }
+
+		public byte getNumberOfPorts() { return (byte)usbPorts.size(); }
+
+		public List getUsbPorts() { return usbPorts; }
+
+		public UsbPort getUsbPort(byte number)
+		{
+			int index = UsbUtil.unsignedInt(number) - 1;
+			return 0 <= index && index < usbPorts.size() ? (UsbPort)usbPorts.get(index) : null;
+		}
+
+		/* The list is replaced (not changed) on attach/detach, so it's safe to return without copying. */
+		public List getAttachedUsbDevices() { return attachedUsbDevices; }
+
+		public boolean isRootUsbHub() { return rootUsbHub; }
+
+		protected int getPorts() { return usbPorts.size(); }
+
+		protected void connect(int number, SimulatedDevice device)
+		{
+			SimulatedPort port = (SimulatedPort)usbPorts.get(number - 1);
+			if (null != port.device)
+				throw new IllegalArgumentException("Port " + number + " is not empty");
+			port.device = device;
+			device.parentPort = port;
+			updateAttachedUsbDevices();
+		}
+
+		protected void disconnect(int number)
+		{
+			((SimulatedPort)usbPorts.get(number - 1)).device = null;
+			updateAttachedUsbDevices();
+		}
+
+		protected void updateAttachedUsbDevices()
+		{
+			List list = new ArrayList();
+			for (int i=0; i<usbPorts.size(); i++) {
+				UsbDevice device = ((SimulatedPort)usbPorts.get(i)).device;
+				if (null != device)
+					list.add(device);
+			}
+			attachedUsbDevices = Collections.unmodifiableList(list);
+		}
+
+		protected List usbPorts = null;
+		protected volatile List attachedUsbDevices = Collections.EMPTY_LIST;
+		protected boolean rootUsbHub = false;
+	}
+
+	/**
+	 * Simulated UsbPort.
+	 */
+	public static class SimulatedPort implements UsbPort
+	{
+		public SimulatedPort(SimulatedHub hub, int number)
+		{
+			this.hub = hub;
+			this.number = number;
+		}
+
+		public byte getPortNumber() { return (byte)number; }
+		public UsbHub getUsbHub() { return hub; }
+		public UsbDevice getUsbDevice() { return device; }
+		public boolean isUsbDeviceAttached() { return null != device; }
+
+		protected SimulatedHub hub = null;
+		protected int number = 0;
+		protected volatile SimulatedDevice device = null;
+	}
+
+	/**
+	 * Simulated UsbConfiguration.
+	 */
+	public static class SimulatedConfiguration implements UsbConfiguration
+	{
+		public SimulatedConfiguration(final SimulatedDevice device, byte[] bundle)
+		{
+			this.device = device;
+			this.bundle = bundle;
+
+			DescriptorView.ConfigurationView configurationView = new DescriptorView.ConfigurationView();
+			configurationView.wrap(bundle, 0);
+			usbConfigurationDescriptor = configurationView;
+
+			/* Walk the bundle, creating the interfaces (one per setting) and endpoints. */
+			final List settings = new ArrayList();
+			configurationView.walk(new DescriptorView.Visitor() {
+					public void visitInterface(DescriptorView.InterfaceView view)
+					{
+						DescriptorView.InterfaceView copy = new DescriptorView.InterfaceView();
+						copy.wrap(view, view.getOffset());
+						current = new SimulatedInterface(SimulatedConfiguration.this, copy);
+						settings.add(current);
+					}
+					public void visitEndpoint(DescriptorView.EndpointView view)
+					{
+						DescriptorView.EndpointView copy = new DescriptorView.EndpointView();
+						copy.wrap(view, view.getOffset());
+						current.addEndpoint(new SimulatedEndpoint(current, copy));
+					}
+					public void visitHid(DescriptorView.HidView view) { }
+					public void visitOther(DescriptorView.OtherView view) { }
+					private SimulatedInterface current = null;
+				});
+
+			for (int i=0; i<settings.size(); i++) {
+				SimulatedInterface setting = (SimulatedInterface)settings.get(i);
+				Integer number = Integer.valueOf(UsbUtil.unsignedInt(setting.getUsbInterfaceDescriptor().bInterfaceNumber()));
+				InterfaceState state = (InterfaceState)interfaces.get(number);
+				if (null == state) {
+					state = new InterfaceState();
+					interfaces.put(number, state);
+				}
+				setting.state = state;
+				state.settings.add(setting);
+			}
+
+			/* Loopback endpoints share their data between the in and out directions. */
+			LoopbackBuffer loopbackBuffer = new LoopbackBuffer();
+			for (int i=0; i<settings.size(); i++) {
+				List endpoints = ((SimulatedInterface)settings.get(i)).getUsbEndpoints();
+				for (int j=0; j<endpoints.size(); j++)
+					((SimulatedEndpoint)endpoints.get(j)).setBehavior(device.kind, loopbackBuffer);
+			}
+		}
+
+		public boolean isActive() { return device.activeConfiguration == this; }
+
+		public List getUsbInterfaces()
+		{
+			List list = new ArrayList();
+			Iterator iterator = interfaces.values().iterator();
+			while (iterator.hasNext())
+				list.add(((InterfaceState)iterator.next()).getActiveSetting());
+			return list;
+		}
+
+		public UsbInterface getUsbInterface(byte number)
+		{
+			InterfaceState state = (InterfaceState)interfaces.get(Integer.valueOf(UsbUtil.unsignedInt(number)));
+			return null == state ? null : state.getActiveSetting();
+		}
+
+		public boolean containsUsbInterface(byte number) { return null != getUsbInterface(number); }
+
+		public UsbDevice getUsbDevice() { return device; }
+
+		public UsbConfigurationDescriptor getUsbConfigurationDescriptor() { return usbConfigurationDescriptor; }
+
+		public String getConfigurationString() throws UsbException,UnsupportedEncodingException,UsbDisconnectedException
+		{
+			return device.getString(usbConfigurationDescriptor.iConfiguration());
+		}
+
+		/**
+		 * Get the HID Report descriptor for an interface.
+		 * @param number The interface number.
+		 * @return The Report descriptor, or null if the interface is not HID.
+		 */
+		protected byte[] getReportDescriptor(int number)
+		{
+			UsbInterface usbInterface = getUsbInterface((byte)number);
+			if (null == usbInterface || MouseDriver.HID_CLASS != usbInterface.getUsbInterfaceDescriptor().bInterfaceClass())
+				return null;
+			if (MouseDriver.HID_PROTOCOL_MOUSE == usbInterface.getUsbInterfaceDescriptor().bInterfaceProtocol())
+				return MOUSE_REPORT_DESCRIPTOR;
+			return KEYBOARD_REPORT_DESCRIPTOR;
+		}
+
+		protected boolean setSetting(int number, int setting)
+		{
+			InterfaceState state = (InterfaceState)interfaces.get(Integer.valueOf(number));
+			if (null == state || setting >= state.settings.size())
+				return false;
+			state.activeSetting = setting;
+			return true;
+		}
+
+		protected void resetSettings()
+		{
+			Iterator iterator = interfaces.values().iterator();
+			while (iterator.hasNext())
+				((InterfaceState)iterator.next()).activeSetting = 0;
+		}
+
+		protected void disconnect()
+		{
+			Iterator iterator = interfaces.values().iterator();
+			while (iterator.hasNext()) {
+				List settings = ((InterfaceState)iterator.next()).settings;
+				for (int i=0; i<settings.size(); i++) {
+					List endpoints = ((UsbInterface)settings.get(i)).getUsbEndpoints();
+					for (int j=0; j<endpoints.size(); j++)
+						((SimulatedEndpoint)endpoints.get(j)).pipe.disconnect();
+				}
+			}
+		}
+
+		protected SimulatedDevice device = null;
+		protected byte[] bundle = null;
+		protected UsbConfigurationDescriptor usbConfigurationDescriptor = null;
+		/* Sorted by interface number. */
+		protected SortedMap interfaces = new TreeMap();
+	}
+
+	/**
+	 * The state shared by all the settings of one interface.
+	 */
+	protected static class InterfaceState
+	{
+		public UsbInterface getActiveSetting() { return (UsbInterface)settings.get(activeSetting); }
+
+		public List settings = new ArrayList();
+		public volatile int activeSetting = 0;
+		public volatile boolean claimed = false;
+	}
+
+	/**
+	 * Simulated UsbInterface (one alternate setting).
+	 */
+	public static class SimulatedInterface implements UsbInterface
+	{
+		public SimulatedInterface(SimulatedConfiguration configuration, UsbInterfaceDescriptor usbInterfaceDescriptor)
+		{
+			this.configuration = configuration;
+			this.usbInterfaceDescriptor = usbInterfaceDescriptor;
+		}
+
+		public void claim() throws UsbClaimException,UsbException,UsbNotActiveException,UsbDisconnectedException
+		{
+			claim(null);
+		}
+
+		public void claim(UsbInterfacePolicy policy) throws UsbClaimException,UsbException,UsbNotActiveException,UsbDisconnectedException
+		{
+			configuration.device.checkConnected();
+			checkActive();
+			synchronized (state) {
+				if (state.claimed && (null == policy || !policy.forceClaim(this)))
+					throw new UsbClaimException("Interface already claimed");
+				state.claimed = true;
+			}
+		}
+
+		public void release() throws UsbClaimException,UsbException,UsbNotActiveException,UsbDisconnectedException
+		{
+			configuration.device.checkConnected();
+			checkActive();
+			synchronized (state) {
+				if (!state.claimed)
+					throw new UsbClaimException("Interface not claimed");
+				List endpoints = getUsbEndpoints();
+				for (int i=0; i<endpoints.size(); i++)
+					if (((UsbEndpoint)endpoints.get(i)).getUsbPipe().isOpen())
+						throw new UsbException("Pipes are still open");
+				state.claimed = false;
+			}
+		}
+
+		public boolean isClaimed() { return state.claimed; }
+
+		public boolean isActive() { return configuration.isActive() && state.getActiveSetting() == this; }
+
+		public int getNumSettings() { return state.settings.size(); }
+
+		public byte getActiveSettingNumber() throws UsbNotActiveException
+		{
+			if (!configuration.isActive())
+				throw new UsbNotActiveException("Configuration not active");
+			return state.getActiveSetting().getUsbInterfaceDescriptor().bAlternateSetting();
+		}
+
+		public UsbInterface getActiveSetting() throws UsbNotActiveException
+		{
+			if (!configuration.isActive())
+				throw new UsbNotActiveException("Configuration not active");
+			return state.getActiveSetting();
+		}
+
+		public UsbInterface getSetting(byte number)
+		{
+			for (int i=0; i<state.settings.size(); i++) {
+				UsbInterface setting = (UsbInterface)state.settings.get(i);
+				if (number == setting.getUsbInterfaceDescriptor().bAlternateSetting())
+					return setting;
+			}
+			return null;
+		}
+
+		public boolean containsSetting(byte number) { return null != getSetting(number); }
+
+		public List getSettings() { return Collections.unmodifiableList(state.settings); }
+
+		public List getUsbEndpoints() { return Collections.unmodifiableList(endpoints); }
+
+		public UsbEndpoint getUsbEndpoint(byte address)
+		{
+			for (int i=0; i<endpoints.size(); i++) {
+				UsbEndpoint endpoint = (UsbEndpoint)endpoints.get(i);
+				if (address == endpoint.getUsbEndpointDescriptor().bEndpointAddress())
+					return endpoint;
+			}
+			return null;
+		}
+
+		public boolean containsUsbEndpoint(byte address) { return null != getUsbEndpoint(address); }
+
+		public UsbConfiguration getUsbConfiguration() { return configuration; }
+
+		public UsbInterfaceDescriptor getUsbInterfaceDescriptor() { return usbInterfaceDescriptor; }
+
+		public String getInterfaceString() throws UsbException,UnsupportedEncodingException,UsbDisconnectedException
+		{
+			return configuration.device.getString(usbInterfaceDescriptor.iInterface());
+		}
+
+		protected void addEndpoint(SimulatedEndpoint endpoint) { endpoints.add(endpoint); }
+
+		protected void checkActive() throws UsbNotActiveException
+		{
+			if (!isActive())
+				throw new UsbNotActiveException("Interface setting not active");
+		}
+
+		protected SimulatedConfiguration configuration = null;
+		protected UsbInterfaceDescriptor usbInterfaceDescriptor = null;
+		protected InterfaceState state = null;
+		protected List endpoints = new ArrayList();
+	}
+
+	/**
+	 * Simulated UsbEndpoint.
+	 */
+	public static class SimulatedEndpoint implements UsbEndpoint
+	{
+		public SimulatedEndpoint(SimulatedInterface usbInterface, DescriptorView.EndpointView usbEndpointDescriptor)
+		{
+			this.usbInterface = usbInterface;
+			this.usbEndpointDescriptor = usbEndpointDescriptor;
+			pipe = new SimulatedPipe(this);
+		}
+
+		public UsbInterface getUsbInterface() { return usbInterface; }
+		public UsbEndpointDescriptor getUsbEndpointDescriptor() { return usbEndpointDescriptor; }
+		public byte getDirection() { return usbEndpointDescriptor.getDirection(); }
+		public byte getType() { return usbEndpointDescriptor.getType(); }
+		public UsbPipe getUsbPipe() { return pipe; }
+
+		/**
+		 * Set what this endpoint does with data.
+		 * @param kind The kind of device.
+		 * @param loopbackBuffer The configuration's LoopbackBuffer.
+		 */
+		protected void setBehavior(String kind, LoopbackBuffer loopbackBuffer)
+		{
+			int address = UsbUtil.unsignedInt(usbEndpointDescriptor.bEndpointAddress());
+			boolean in = UsbConst.ENDPOINT_DIRECTION_IN == getDirection();
+
+			if (UsbConst.ENDPOINT_TYPE_INTERRUPT == getType() && in && MouseDriver.HID_CLASS == usbInterface.getUsbInterfaceDescriptor().bInterfaceClass())
+				behavior = BEHAVIOR_REPORT;
+			else if (UsbConst.ENDPOINT_TYPE_INTERRUPT == getType() && in)
+				behavior = BEHAVIOR_STATUS;
+			else if ((KIND_LOOPBACK.equals(kind) && 0x82 == address) || (KIND_COMPOSITE.equals(kind) && 0x82 == address))
+				behavior = BEHAVIOR_LOOPBACK_IN;
+			else if ((KIND_LOOPBACK.equals(kind) && 0x02 == address) || (KIND_COMPOSITE.equals(kind) && 0x02 == address))
+				behavior = BEHAVIOR_LOOPBACK_OUT;
+			else if (in && UsbConst.ENDPOINT_TYPE_BULK == getType())
+				behavior = BEHAVIOR_SOURCE;
+			else if (in)
+				behavior = BEHAVIOR_STATUS;
+			else
+				behavior = BEHAVIOR_SINK;
+
+			this.loopbackBuffer = loopbackBuffer;
+			pipe.lock = BEHAVIOR_LOOPBACK_IN == behavior || BEHAVIOR_LOOPBACK_OUT == behavior ? (Object)loopbackBuffer : new Object();
+		}
+
+		/**
+		 * Get the time between HID reports.
+		 * @return The report period in nanoseconds.
+		 */
+		protected long getReportPeriod()
+		{
+			SimulatedUsbServices services = usbInterface.configuration.device.services;
+			if (0 < services.spec.reportRate)
+				return 1000000000L / services.spec.reportRate;
+			/* Low- and full-speed interrupt endpoints have their bInterval in (1ms) frames. */
+			return Math.max(1, UsbUtil.unsignedInt(usbEndpointDescriptor.bInterval())) * 1000000L;
+		}
+
+		protected SimulatedInterface usbInterface = null;
+		protected DescriptorView.EndpointView usbEndpointDescriptor = null;
+		protected SimulatedPipe pipe = null;
+		protected int behavior = BEHAVIOR_SINK;
+		protected LoopbackBuffer loopbackBuffer = null;
+		protected volatile boolean halted = false;
+	}
+
+	/**
+	 * Bounded byte queue connecting a loopback out-endpoint to its in-endpoint.
+	 * <p>
+	 * The SimulatedPipes of both endpoints use this as their lock.
+	 */
+	protected static class LoopbackBuffer
+	{
+		public byte[] data = new byte[64 * 1024];
+		public int head = 0;
+		public int count = 0;
+	}
+
+	/**
+	 * Simulated UsbPipe.
+	 * <p>
+	 * Each open pipe has a worker Thread that runs its submissions in order.
+	 */
+	public static class SimulatedPipe implements UsbPipe
+	{
+		public SimulatedPipe(SimulatedEndpoint endpoint)
+		{
+			this.endpoint = endpoint;
+			SimulatedDevice device = endpoint.usbInterface.configuration.device;
+			random = new Random(device.services.spec.seed + device.id * 256 + UsbUtil.unsignedInt(endpoint.usbEndpointDescriptor.bEndpointAddress()));
+		}
+
+		public void open() throws UsbException,UsbNotActiveException,UsbNotClaimedException,UsbDisconnectedException
+		{
+			endpoint.usbInterface.configuration.device.checkConnected();
+			if (!isActive())
+				throw new UsbNotActiveException("Pipe not active");
+			if (!endpoint.usbInterface.isClaimed())
+				throw new UsbNotClaimedException("Interface not claimed");
+
+			synchronized (lock) {
+				if (open)
+					throw new UsbException("Pipe already open");
+				open = true;
+				worker = new Thread(new Runnable() {
+						public void run() { work(); }
+					}, "SimulatedPipe 0x" + UsbUtil.toHexString(endpoint.usbEndpointDescriptor.bEndpointAddress()));
+				worker.setDaemon(true);
+				worker.start();
+			}
+		}
+
+		public void close() throws UsbException,UsbNotActiveException,UsbNotOpenException,UsbDisconnectedException
+		{
+			endpoint.usbInterface.configuration.device.checkConnected();
+			checkOpen();
+			abortAllSubmissions();
+			synchronized (lock) {
+				open = false;
+				lock.notifyAll();
+			}
+		}
+
+		public boolean isActive() { return endpoint.usbInterface.isActive(); }
+
+		public boolean isOpen() { return open; }
+
+		public UsbEndpoint getUsbEndpoint() { return endpoint; }
+
+		public int syncSubmit(byte[] data) throws UsbException,UsbNotActiveException,UsbNotOpenException,IllegalArgumentException,UsbDisconnectedException
+		{
+			UsbIrp usbIrp = createUsbIrp();
+			usbIrp.setData(data);
+			syncSubmit(usbIrp);
+			return usbIrp.getActualLength();
+		}
+
+		public UsbIrp asyncSubmit(byte[] data) throws UsbException,UsbNotActiveException,UsbNotOpenException,IllegalArgumentException,UsbDisconnectedException
+		{
+			UsbIrp usbIrp = createUsbIrp();
+			usbIrp.setData(data);
+			asyncSubmit(usbIrp);
+			return usbIrp;
+		}
+
+		public void syncSubmit(UsbIrp usbIrp) throws UsbException,UsbNotActiveException,UsbNotOpenException,IllegalArgumentException,UsbDisconnectedException
+		{
+			asyncSubmit(usbIrp);
+			usbIrp.waitUntilComplete();
+			if (usbIrp.isUsbException())
+				throw usbIrp.getUsbException();
+		}
+
+		public void asyncSubmit(UsbIrp usbIrp) throws UsbException,UsbNotActiveException,UsbNotOpenException,IllegalArgumentException,UsbDisconnectedException
+		{
+			if (null == usbIrp)
+				throw new IllegalArgumentException("UsbIrp cannot be null");
+			endpoint.usbInterface.configuration.device.checkConnected();
+			synchronized (lock) {
+				checkOpen();
+				queue.addLast(usbIrp);
+				submitTimes.addLast(Long.valueOf(System.nanoTime()));
+				lock.notifyAll();
+			}
+		}
+
+		public void syncSubmit(List list) throws UsbException,UsbNotActiveException,UsbNotOpenException,IllegalArgumentException,UsbDisconnectedException
+		{
+			asyncSubmit(list);
+			for (int i=0; i<list.size(); i++) {
+				UsbIrp usbIrp = (UsbIrp)list.get(i);
+				usbIrp.waitUntilComplete();
+				if (usbIrp.isUsbException())
+					throw usbIrp.getUsbException();
+			}
+		}
+
+		public void asyncSubmit(List list) throws UsbException,UsbNotActiveException,UsbNotOpenException,IllegalArgumentException,UsbDisconnectedException
+		{
+			for (int i=0; i<list.size(); i++)
+				asyncSubmit((UsbIrp)list.get(i));
+		}
+
+		public void abortAllSubmissions() throws UsbNotActiveException,UsbNotOpenException,UsbDisconnectedException
+		{
+			List aborted = null;
+
+			synchronized (lock) {
+				checkOpen();
+				generation++;
+				aborted = new ArrayList(queue);
+				queue.clear();
+				submitTimes.clear();
+				lock.notifyAll();
+			}
+
+			for (int i=0; i<aborted.size(); i++)
+				finish((UsbIrp)aborted.get(i), 0, new UsbAbortException("Submission aborted"));
+		}
+
+		public UsbIrp createUsbIrp() { return new DefaultUsbIrp(); }
+
+		public UsbControlIrp createUsbControlIrp(byte bmRequestType, byte bRequest, short wValue, short wIndex)
+		{
+			return new DefaultUsbControlIrp(bmRequestType, bRequest, wValue, wIndex);
+		}
+
+		public void addUsbPipeListener(UsbPipeListener listener)
+		{
+			synchronized (listeners) {
+				if (!listeners.contains(listener))
+					listeners.add(listener);
+			}
+		}
+
+		public void removeUsbPipeListener(UsbPipeListener listener)
+		{
+			synchronized (listeners) {
+				listeners.remove(listener);
+			}
+		}
+
+		/**
+		 * Run submissions until closed.
+		 */
+		protected void work()
+		{
+			while (true) {
+				UsbIrp usbIrp = null;
+				long submitTime = 0;
+				int currentGeneration = 0;
+
+				synchronized (lock) {
+					while (open && queue.isEmpty()) {
+						try { lock.wait(); }
+						catch ( InterruptedException iE ) { }
+					}
+					if (!open)
+						return;
+					usbIrp = (UsbIrp)queue.removeFirst();
+					submitTime = ((Long)submitTimes.removeFirst()).longValue();
+					currentGeneration = generation;
+				}
+
+				try {
+					finish(usbIrp, transfer(usbIrp, submitTime, currentGeneration), null);
+				} catch ( UsbException uE ) {
+					finish(usbIrp, 0, uE);
+				}
+			}
+		}
+
+		/**
+		 * Run one transfer.
+		 * <p>
+		 * The latency of queued submissions overlaps, as it would on a real bus;
+		 * only the time on the wire (if the spec limits the bandwidth) is serialized.
+		 * @param usbIrp The UsbIrp.
+		 * @param submitTime The time the UsbIrp was submitted.
+		 * @param currentGeneration The abort generation when the transfer started.
+		 * @return The actual length.
+		 * @exception UsbException If the transfer fails or is aborted.
+		 */
+		protected int transfer(UsbIrp usbIrp, long submitTime, int currentGeneration) throws UsbException
+		{
+			Spec spec = endpoint.usbInterface.configuration.device.services.spec;
+			byte[] data = usbIrp.getData();
+			int offset = usbIrp.getOffset();
+			int length = usbIrp.getLength();
+
+			if (endpoint.halted)
+				throw new UsbStallException("Endpoint halted");
+
+			long now = System.nanoTime();
+			long done = submitTime + spec.nextLatency(random);
+			if (0 < spec.bandwidth && UsbConst.ENDPOINT_TYPE_BULK == endpoint.getType())
+				done = Math.max(done, Math.max(lastDoneTime, now) + (length * 1000000000L) / spec.bandwidth);
+
+			switch (endpoint.behavior) {
+			case BEHAVIOR_REPORT:
+				/* Reports are ready once per period; an earlier submission waits for the next one. */
+				long period = endpoint.getReportPeriod();
+				nextReportTime = Math.max(nextReportTime + period, now);
+				waitUntil(Math.max(nextReportTime, done), currentGeneration);
+				length = fillReport(data, offset, length);
+				break;
+			case BEHAVIOR_STATUS:
+				/* Nothing ever changes, so this never completes unless aborted. */
+				waitUntil(Long.MAX_VALUE, currentGeneration);
+				break;
+			case BEHAVIOR_SOURCE:
+				waitUntil(done, currentGeneration);
+				for (int i=0; i<length; i++)
+					data[offset + i] = (byte)(sequence++);
+				break;
+			case BEHAVIOR_SINK:
+				waitUntil(done, currentGeneration);
+				break;
+			case BEHAVIOR_LOOPBACK_OUT:
+				waitUntil(done, currentGeneration);
+				length = loopbackOut(data, offset, length, currentGeneration);
+				break;
+			case BEHAVIOR_LOOPBACK_IN:
+				waitUntil(done, currentGeneration);
+				length = loopbackIn(data, offset, length, currentGeneration);
+				break;
+			}
+
+			lastDoneTime = System.nanoTime();
+
+			if (random.nextDouble() < spec.errors) {
+				endpoint.halted = true;
+				throw new UsbStallException("Simulated transfer error");
+			}
+
+			return length;
+		}
+
+		protected int fillReport(byte[] data, int offset, int length)
+		{
+			int n = sequence++;
+
+			if (MouseDriver.HID_PROTOCOL_MOUSE == endpoint.usbInterface.getUsbInterfaceDescriptor().bInterfaceProtocol()) {
+				/* Move in a square, clicking the left button now and then. */
+				byte[] report = { (byte)(0 == (n & 0x100) ? 0 : 1), (byte)(0 == (n & 0x20) ? 3 : -3), (byte)(0 == ((n + 0x10) & 0x20) ? 3 : -3), 0 };
+				length = Math.min(length, report.length);
+				System.arraycopy(report, 0, data, offset, length);
+			} else {
+				/* Type the alphabet, one key press and release at a time. */
+				length = Math.min(length, 8);
+				for (int i=0; i<length; i++)
+					data[offset + i] = 0;
+				if (2 < length && 0 == (n & 1))
+					data[offset + 2] = (byte)(0x04 + (n / 2) % 26);
+			}
+
+			return length;
+		}
+
+		protected int loopbackOut(byte[] data, int offset, int length, int currentGeneration) throws UsbException
+		{
+			LoopbackBuffer buffer = endpoint.loopbackBuffer;
+			int done = 0;
+
+			synchronized (lock) {
+				while (done < length) {
+					while (buffer.count == buffer.data.length)
+						await(currentGeneration);
+					int tail = (buffer.head + buffer.count) % buffer.data.length;
+					int chunk = Math.min(length - done, Math.min(buffer.data.length - buffer.count, buffer.data.length - tail));
+					System.arraycopy(data, offset + done, buffer.data, tail, chunk);
+					buffer.count += chunk;
+					done += chunk;
+					lock.notifyAll();
+				}
+			}
+
+			return done;
+		}
+
+		protected int loopbackIn(byte[] data, int offset, int length, int currentGeneration) throws UsbException
+		{
+			LoopbackBuffer buffer = endpoint.loopbackBuffer;
+
+			synchronized (lock) {
+				while (0 == buffer.count)
+					await(currentGeneration);
+				int chunk = Math.min(length, Math.min(buffer.count, buffer.data.length - buffer.head));
+				System.arraycopy(buffer.data, buffer.head, data, offset, chunk);
+				buffer.head = (buffer.head + chunk) % buffer.data.length;
+				buffer.count -= chunk;
+				lock.notifyAll();
+				return chunk;
+			}
+		}
+
+		/**
+		 * Wait on the lock once, unless aborted.
+		 * <p>
+		 * The caller must hold the lock.
+		 */
+		protected void await(int currentGeneration) throws UsbException
+		{
+			if (currentGeneration != generation || !open)
+				throw new UsbAbortException("Submission aborted");
+			try { lock.wait(); }
+			catch ( InterruptedException iE ) { }
+			if (currentGeneration != generation || !open)
+				throw new UsbAbortException("Submission aborted");
+		}
+
+		/**
+		 * Wait until the deadline, unless aborted.
+		 * <p>
+		 * Object.wait() only has millisecond resolution, so the last
+		 * couple of milliseconds are spent parked instead.
+		 */
+		protected void waitUntil(long deadline, int currentGeneration) throws UsbException
+		{
+			while (true) {
+				if (currentGeneration != generation || !open)
+					throw new UsbAbortException("Submission aborted");
+				long remaining = deadline - System.nanoTime();
+				if (0 >= remaining)
+					return;
+				if (2000000 < remaining) {
+					synchronized (lock) {
+						if (currentGeneration == generation && open) {
+							try { lock.wait((remaining - 1000000) / 1000000); }
+							catch ( InterruptedException iE ) { }
+						}
+					}
+				} else {
+					LockSupport.parkNanos(remaining);
+				}
+			}
+		}
+
+		protected void finish(UsbIrp usbIrp, int actualLength, UsbException usbException)
+		{
+			if (null == usbException)
+				usbIrp.setActualLength(actualLength);
+			else
+				usbIrp.setUsbException(usbException);
+
+			usbIrp.complete();
+
+			Object[] array = null;
+			synchronized (listeners) {
+				if (listeners.isEmpty())
+					return;
+				array = listeners.toArray();
+			}
+			for (int i=0; i<array.length; i++) {
+				if (null == usbException)
+					((UsbPipeListener)array[i]).dataEventOccurred(new UsbPipeDataEvent(this, usbIrp));
+				else
+					((UsbPipeListener)array[i]).errorEventOccurred(new UsbPipeErrorEvent(this, usbIrp));
+			}
+		}
+
+		protected void checkOpen() throws UsbNotOpenException
+		{
+			if (!open)
+				throw new UsbNotOpenException("Pipe not open");
+		}
+
+		protected void disconnect()
+		{
+			List aborted = null;
+
+			synchronized (lock) {
+				if (!open)
+					return;
+				generation++;
+				open = false;
+				aborted = new ArrayList(queue);
+				queue.clear();
+				submitTimes.clear();
+				lock.notifyAll();
+			}
+
+			for (int i=0; i<aborted.size(); i++)
+				finish((UsbIrp)aborted.get(i), 0, new UsbAbortException("Device disconnected"));
+		}
+
+		protected SimulatedEndpoint endpoint = null;
+		protected Random random = null;
+		protected Object lock = new Object();
+		protected LinkedList queue = new LinkedList();
+		protected LinkedList submitTimes = new LinkedList();
+		protected volatile boolean open = false;
+		protected volatile int generation = 0;
+		protected Thread worker = null;
+		protected long nextReportTime = 0;
+		protected long lastDoneTime = 0;
+		protected int sequence = 0;
+		protected List listeners = new ArrayList();
+	}
+
+	private Spec spec = null;
+	private Random random = null;
+	private SimulatedHub virtualRootUsbHub = null;
+	private List listeners = new ArrayList();
+	private Object topologyLock = new Object();
+	private int nextId = 0;
+
+	private static SimulatedUsbServices instance = null;
+
+	public static final String SPEC_PROPERTY = "jsr80.example.simulated";
+
+	public static final String KIND_HUB = "hub";
+	public static final String KIND_MOUSE = "mouse";
+	public static final String KIND_KEYBOARD = "keyboard";
+	public static final String KIND_LOOPBACK = "loopback";
+	public static final String KIND_COMPOSITE = "composite";
+	protected static final String KIND_VIRTUAL_ROOT_HUB = "virtual root hub";
+
+	public static final short VENDOR_ID = (short)0xf055;
+	public static final byte VENDOR_CLASS = (byte)0xff;
+	public static final byte HID_PROTOCOL_KEYBOARD = 0x01;
+	public static final short LANGID_EN_US = 0x0409;
+
+	protected static final byte STRING_MANUFACTURER = 1;
+	protected static final byte STRING_PRODUCT = 2;
+	protected static final byte STRING_SERIAL_NUMBER = 3;
+
+	protected static final int BEHAVIOR_SINK = 0;
+	protected static final int BEHAVIOR_SOURCE = 1;
+	protected static final int BEHAVIOR_REPORT = 2;
+	protected static final int BEHAVIOR_STATUS = 3;
+	protected static final int BEHAVIOR_LOOPBACK_OUT = 4;
+	protected static final int BEHAVIOR_LOOPBACK_IN = 5;
+
+	protected static final byte[] LANGID_DESCRIPTOR = { 4, UsbConst.DESCRIPTOR_TYPE_STRING, 0x09, 0x04 };
+
+	/* Boot-protocol mouse with a wheel; the Report descriptor starts with Usage Page (Generic Desktop), Usage (Mouse). */
+	protected static final byte[] MOUSE_REPORT_DESCRIPTOR = {
+		0x05, 0x01, 0x09, 0x02, (byte)0xa1, 0x01, 0x09, 0x01, (byte)0xa1, 0x00,
+		0x05, 0x09, 0x19, 0x01, 0x29, 0x03, 0x15, 0x00, 0x25, 0x01, (byte)0x95, 0x03, 0x75, 0x01, (byte)0x81, 0x02,
+		(byte)0x95, 0x01, 0x75, 0x05, (byte)0x81, 0x01,
+		0x05, 0x01, 0x09, 0x30, 0x09, 0x31, 0x09, 0x38, 0x15, (byte)0x81, 0x25, 0x7f, 0x75, 0x08, (byte)0x95, 0x03, (byte)0x81, 0x06,
+		(byte)0xc0, (byte)0xc0 };
+
+	/* Boot-protocol keyboard; the Report descriptor starts with Usage Page (Generic Desktop), Usage (Keyboard). */
+	protected static final byte[] KEYBOARD_REPORT_DESCRIPTOR = {
+		0x05, 0x01, 0x09, 0x06, (byte)0xa1, 0x01,
+		0x05, 0x07, 0x19, (byte)0xe0, 0x29, (byte)0xe7, 0x15, 0x00, 0x25, 0x01, 0x75, 0x01, (byte)0x95, 0x08, (byte)0x81, 0x02,
+		(byte)0x95, 0x01, 0x75, 0x08, (byte)0x81, 0x01,
+		(byte)0x95, 0x06, 0x75, 0x08, 0x15, 0x00, 0x25, 0x65, 0x05, 0x07, 0x19, 0x00, 0x29, 0x65, (byte)0x81, 0x00,
+		(byte)0xc0 };
+
+	protected static final String IMP_VERSION = "0.1";
+	protected static final String IMP_DESCRIPTION = "Simulated in-memory javax.usb implementation for the example code.";
+}
@@ -0,0 +1,554 @@
+/*
+ * Copyright (c) 1999 - 2001, International Business Machines Corporation.
+ * All Rights Reserved.
+ *
+ * This software is provided and licensed under the terms and conditions
+ * of the Common Public License:
+ * http://oss.software.ibm.com/developerworks/opensource/license-cpl.html
+ */
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import javax.usb.*;
+import javax.usb.event.*;
+import javax.usb.util.*;
+
+/**
+ * UsbPipe wrapper that recovers from endpoint halts and device re-attachment.
+ * <p>
+ * When a bulk or interrupt transfer fails, the device usually halts (STALLs) the
+ * endpoint, and every later submission fails too until the halt is cleared with a
+ * CLEAR_FEATURE(ENDPOINT_HALT) request on the Default Control Pipe.  When a synchronous
+ * submission on this pipe fails, this works out what happened and fixes it:
+ * <ul>
+ * <li>If the device is gone, it waits for a device with the same vendor and product
+ * IDs to show up at the same port (see {@link UsbPortPath}), and leases the same
+ * interface and endpoint on it from the {@link UsbHandlePool}.</li>
+ * <li>If the pipe is closed, it leases it again from the UsbHandlePool, which opens it.</li>
+ * <li>If the endpoint is halted (the submission failed with a UsbStallException, or
+ * GET_STATUS says so), it clears the halt.</li>
+ * </ul>
+ * and then resubmits.  If a step fails (e.g. the device isn't back yet, or the control
+ * transfer fails too) it tries again after an exponentially increasing delay.  The
+ * delay is jittered, so many pipes recovering from the same event (e.g. a hub
+ * reset) don't all retry at once.  After {@link #getMaxAttempts() getMaxAttempts()}
+ * attempts the original exception is thrown.  If there is nothing to fix (the device
+ * is there, the pipe is open and the endpoint isn't halted) the original exception is
+ * thrown straight away, since resubmitting would just fail again.  A submission is
+ * resubmitted at most getMaxAttempts() times, backing off the same way between
+ * resubmissions.  How long each recovery took, from the failure to being ready to
+ * resubmit, is recorded.
+ * <p>
+ * Only synchronous submissions are supervised; for a List of UsbIrps, the ones that
+ * did not complete successfully are resubmitted, so the whole list is primed again.
+ * Asynchronous submissions are passed through, since their failures aren't seen until
+ * completion.  An abortAllSubmissions() on this pipe is never recovered from, and it
+ * also stops any recovery in progress.
+ * <p>
+ * This class should not be used except by other example code.
+ */
+public class SupervisedUsbPipe implements UsbPipe
+{
+	/**
+	 * Constructor, with the default backoff.
+	 * @param usbPipe The real UsbPipe.
+	 */
+	public SupervisedUsbPipe(UsbPipe usbPipe)
+	{
+		this(usbPipe, DEFAULT_INITIAL_DELAY, DEFAULT_MAX_DELAY, DEFAULT_MAX_ATTEMPTS);
+	}
+
+	/**
+	 * Constructor.
+	 * @param usbPipe The real UsbPipe.
+	 * @param initialDelay The delay in ms before the second attempt; the first attempt is immediate.
+	 * @param maxDelay The maximum delay in ms between attempts.
+	 * @param maxAttempts The number of attempts before giving up.
+	 * @exception IllegalArgumentException If a delay is negative, or maxAttempts is not positive.
+	 */
+	public SupervisedUsbPipe(UsbPipe usbPipe, long initialDelay, long maxDelay, int maxAttempts) throws IllegalArgumentException
+	{
+		if (0 > initialDelay || initialDelay > maxDelay)
+			throw new IllegalArgumentException("Invalid delays " + initialDelay + " to " + maxDelay + " ms");
+		if (0 >= maxAttempts)
+			throw new IllegalArgumentException("Invalid number of attempts " + maxAttempts);
+
+		this.usbPipe = usbPipe;
+		this.initialDelay = initialDelay;
+		this.maxDelay = maxDelay;
+		this.maxAttempts = maxAttempts;
+
+		/* Remember where and what the endpoint is, to find it again if the device is re-attached. */
+		UsbEndpoint usbEndpoint = usbPipe.getUsbEndpoint();
+		UsbInterface usbInterface = usbEndpoint.getUsbInterface();
+		UsbDevice usbDevice = usbInterface.getUsbConfiguration().getUsbDevice();
+		usbPortPath = UsbPortPath.getUsbPortPath(usbDevice);
+		idVendor = usbDevice.getUsbDeviceDescriptor().idVendor();
+		idProduct = usbDevice.getUsbDeviceDescriptor().idProduct();
+		bConfigurationValue = usbInterface.getUsbConfiguration().getUsbConfigurationDescriptor().bConfigurationValue();
+		bInterfaceNumber = usbInterface.getUsbInterfaceDescriptor().bInterfaceNumber();
+		bEndpointAddress = usbEndpoint.getUsbEndpointDescriptor().bEndpointAddress();
+	}
+
+	/** @return The real UsbPipe currently in use; this changes if the device is re-attached. */
+	public UsbPipe getUsbPipe() { return usbPipe; }
+
+	/** @return The maximum number of attempts per recovery. */
+	public int getMaxAttempts() { return maxAttempts; }
+
+	public void open() throws UsbException,UsbNotActiveException,UsbNotClaimedException,UsbDisconnectedException { usbPipe.open(); }
+	public void close() throws UsbException,UsbNotActiveException,UsbNotOpenException,UsbDisconnectedException { usbPipe.close(); }
+	public boolean isActive() { return usbPipe.isActive(); }
+	public boolean isOpen() { return usbPipe.isOpen(); }
+	public UsbEndpoint getUsbEndpoint() { return usbPipe.getUsbEndpoint(); }
+
+	public int syncSubmit(byte[] data) throws UsbException,UsbNotActiveException,UsbNotOpenException,IllegalArgumentException,UsbDisconnectedException
+	{
+		for (int resubmits=0; ; resubmits++) {
+			int generation = recoveryGeneration;
+			int abort = abortGeneration;
+			try {
+				return usbPipe.syncSubmit(data);
+			} catch ( UsbException uE ) {
+				recover(uE, generation, abort, resubmits);
+			} catch ( UsbNotOpenException uNOE ) {
+				recover(uNOE, generation, abort, resubmits);
+			} catch ( UsbDisconnectedException uDE ) {
+				recover(uDE, generation, abort, resubmits);
+			}
+		}
+	}
+
+	public UsbIrp asyncSubmit(byte[] data) throws UsbException,UsbNotActiveException,UsbNotOpenException,IllegalArgumentException,UsbDisconnectedException
+	{
+		return usbPipe.asyncSubmit(data);
+	}
+
+	public void syncSubmit(UsbIrp irp) throws UsbException,UsbNotActiveException,UsbNotOpenException,IllegalArgumentException,UsbDisconnectedException
+	{
+		for (int resubmits=0; ; resubmits++) {
+			int generation = recoveryGeneration;
+			int abort = abortGeneration;
+			try {
+				usbPipe.syncSubmit(irp);
+				return;
+			} catch ( UsbException uE ) {
+				recover(uE, generation, abort, resubmits);
+			} catch ( UsbNotOpenException uNOE ) {
+				recover(uNOE, generation, abort, resubmits);
+			} catch ( UsbDisconnectedException uDE ) {
+				recover(uDE, generation, abort, resubmits);
+			}
+			reset(irp);
+		}
+	}
+
+	public void asyncSubmit(UsbIrp irp) throws UsbException,UsbNotActiveException,UsbNotOpenException,IllegalArgumentException,UsbDisconnectedException
+	{
+		usbPipe.asyncSubmit(irp);
+	}
+
+	public void syncSubmit(List list) throws UsbException,UsbNotActiveException,UsbNotOpenException,IllegalArgumentException,UsbDisconnectedException
+	{
+		List pending = list;
+
+		for (int resubmits=0; ; resubmits++) {
+			int generation = recoveryGeneration;
+			int abort = abortGeneration;
+			try {
+				usbPipe.syncSubmit(pending);
+				return;
+			} catch ( UsbException uE ) {
+				recover(uE, generation, abort, resubmits);
+			} catch ( UsbNotOpenException uNOE ) {
+				recover(uNOE, generation, abort, resubmits);
+			} catch ( UsbDisconnectedException uDE ) {
+				recover(uDE, generation, abort, resubmits);
+			}
+
+			/* Re-prime with whatever didn't make it, in the original order. */
+			List remaining = new ArrayList();
+			for (int i=0; i<pending.size(); i++) {
+				UsbIrp usbIrp = (UsbIrp)pending.get(i);
+				if (!usbIrp.isComplete() || usbIrp.isUsbException()) {
+					reset(usbIrp);
+					remaining.add(usbIrp);
+				}
+			}
+			if (remaining.isEmpty())
+				return;
+			pending = remaining;
+		}
+	}
+
+	public void asyncSubmit(List list) throws UsbException,UsbNotActiveException,UsbNotOpenException,IllegalArgumentException,UsbDisconnectedException
+	{
+		usbPipe.asyncSubmit(list);
+	}
+
+	/**
+	 * Abort all submissions, and any recovery in progress.
+	 */
+	public void abortAllSubmissions() throws UsbNotActiveException,UsbNotOpenException,UsbDisconnectedException
+	{
+		synchronized (this) { abortGeneration++; }
+
+		/* If the real pipe is already closed or gone, e.g. while waiting for the device
+		 * to come back, there is nothing to abort except the recovery.
+		 */
+		try {
+			usbPipe.abortAllSubmissions();
+		} catch ( UsbNotOpenException uNOE ) {
+			if (usbPipe.isOpen())
+				throw uNOE;
+		} catch ( UsbDisconnectedException uDE ) {
+		}
+	}
+
+	public UsbIrp createUsbIrp() { return usbPipe.createUsbIrp(); }
+	public UsbControlIrp createUsbControlIrp(byte bmRequestType, byte bRequest, short wValue, short wIndex)
+	{
+		return usbPipe.createUsbControlIrp(bmRequestType, bRequest, wValue, wIndex);
+	}
+
+	/* Listeners added here are on the real pipe, so they don't follow a re-attached device. */
+	public void addUsbPipeListener(UsbPipeListener listener) { usbPipe.addUsbPipeListener(listener); }
+	public void removeUsbPipeListener(UsbPipeListener listener) { usbPipe.removeUsbPipeListener(listener); }
+
+	/**
+	 * Release the interface and pipe leased for a re-attached device or a reopened pipe, if any.
+	 * <p>
+	 * The caller still owns (and must release) whatever it used to open the original pipe.
+	 */
+	public synchronized void release()
+	{
+		if (null != pipeLease)
+			pipeLease.release();
+		if (null != interfaceLease)
+			interfaceLease.release();
+		pipeLease = null;
+		interfaceLease = null;
+	}
+
+	/** @return The number of successful recoveries. */
+	public synchronized long getRecoveries() { return recoveries; }
+
+	/** @return The number of recoveries that gave up. */
+	public synchronized long getFailures() { return failures; }
+
+	/** @return The number of CLEAR_FEATURE(ENDPOINT_HALT) requests sent. */
+	public synchronized long getHaltsCleared() { return haltsCleared; }
+
+	/** @return The number of times the pipe was re-opened. */
+	public synchronized long getReopens() { return reopens; }
+
+	/** @return The number of times the device was found again after being re-attached. */
+	public synchronized long getReattaches() { return reattaches; }
+
+	/** @return The time the last successful recovery took, in ns. */
+	public synchronized long getLastRecoveryNanos() { return lastRecoveryNanos; }
+
+	/** @return The longest time a successful recovery took, in ns. */
+	public synchronized long getMaxRecoveryNanos() { return maxRecoveryNanos; }
+
+	/** @return The average time a successful recovery took, in ns. */
+	public synchronized long getAverageRecoveryNanos() { return 0 == recoveries ? 0 : totalRecoveryNanos / recoveries; }
+
+	public synchronized String toString()
+	{
+		return "Supervised endpoint 0x" + UsbUtil.toHexString(bEndpointAddress) + " at " + usbPortPath + " : " +
+			recoveries + " recoveries, " + failures + " failed, " + haltsCleared + " halts cleared, " +
+			reopens + " reopens, " + reattaches + " re-attaches; recovery time last " + (lastRecoveryNanos / 1000) +
+			" us, average " + (getAverageRecoveryNanos() / 1000) + " us, max " + (maxRecoveryNanos / 1000) + " us";
+	}
+
+	/**
+	 * Recover from a failed submission, so it can be resubmitted.
+	 * <p>
+	 * If another thread recovered the pipe since the submission started, there is nothing to do.
+	 * A submission is resubmitted at most getMaxAttempts() times, and each resubmission after
+	 * the first waits for the backoff delay, so a submission that keeps failing is eventually given up on.
+	 * @param exception What the submission threw.
+	 * @param generation The recovery generation when the submission started.
+	 * @param abort The abort generation when the submission started.
+	 * @param resubmits How many times the submission has already been resubmitted.
+	 * @exception UsbException If the submission shouldn't or couldn't be recovered; this is the original exception.
+	 */
+	protected void recover(UsbException exception, int generation, int abort, int resubmits) throws UsbException
+	{
+		if (!tryResubmit(exception, generation, abort, resubmits))
+			throw exception;
+	}
+
+	/**
+	 * Recover from a failed submission, so it can be resubmitted.
+	 * @param exception What the submission threw.
+	 * @param generation The recovery generation when the submission started.
+	 * @param abort The abort generation when the submission started.
+	 * @param resubmits How many times the submission has already been resubmitted.
+	 * @exception RuntimeException If the submission shouldn't or couldn't be recovered; this is the original exception.
+	 */
+	protected void recover(RuntimeException exception, int generation, int abort, int resubmits) throws RuntimeException
+	{
+		if (!tryResubmit(exception, generation, abort, resubmits))
+			throw exception;
+	}
+
+	/**
+	 * Check if a failed submission can be resubmitted, recovering and backing off first.
+	 * @param exception What the submission threw.
+	 * @param generation The recovery generation when the submission started.
+	 * @param abort The abort generation when the submission started.
+	 * @param resubmits How many times the submission has already been resubmitted.
+	 * @return If the submission should be resubmitted.
+	 */
+	protected boolean tryResubmit(Exception exception, int generation, int abort, int resubmits)
+	{
+		if (maxAttempts <= resubmits) {
+			synchronized (this) { failures++; }
+			return false;
+		}
+
+		if (!tryRecover(exception, generation, abort))
+			return false;
+
+		/* The first resubmission is immediate; after that, back off as for recovery attempts. */
+		if (0 < resubmits && !backoff(getDelay(resubmits)))
+			return false;
+
+		return abort == abortGeneration;
+	}
+
+	/**
+	 * Try to recover, with backoff.
+	 * <p>
+	 * Only one thread recovers at a time; the others wait for it, then just resubmit.
+	 * If there turns out to be nothing to fix (the device is there, the pipe is open and
+	 * the endpoint isn't halted), resubmitting would just fail the same way, so this doesn't.
+	 * @param exception What the submission threw.
+	 * @param generation The recovery generation when the submission started.
+	 * @param abort The abort generation when the submission started.
+	 * @return If the pipe was recovered and is ready to resubmit.
+	 */
+	protected boolean tryRecover(Exception exception, int generation, int abort)
+	{
+		/* Disconnecting a device aborts its submissions too; only an abort through this pipe is final. */
+		if (abort != abortGeneration)
+			return false;
+
+		synchronized (recoveryLock) {
+			if (generation != recoveryGeneration)
+				return true;
+
+			long start = System.nanoTime();
+
+			for (int attempt=0; attempt<maxAttempts; attempt++) {
+				if (0 < attempt && !backoff(getDelay(attempt)))
+					break;
+
+				if (abort != abortGeneration)
+					break;
+
+				try {
+					if (!recoverOnce(exception instanceof UsbStallException))
+						break;
+				} catch ( Exception e ) {
+					/* Not this time; back off and try again. */
+					continue;
+				}
+
+				recovered(System.nanoTime() - start);
+				recoveryGeneration++;
+				return true;
+			}
+
+			synchronized (this) { failures++; }
+			return false;
+		}
+	}
+
+	/**
+	 * Get the backoff delay before a retry.
+	 * @param retry The retry, from 1.
+	 * @return The delay in ms, doubling from the initial delay for each retry, up to the maximum delay.
+	 */
+	protected long getDelay(int retry)
+	{
+		long delay = initialDelay;
+		for (int i=1; i<retry && delay<maxDelay; i++)
+			delay = 2 * delay;
+		return Math.min(maxDelay, delay);
+	}
+
+	/**
+	 * Sleep for a backoff delay.
+	 * <p>
+	 * The sleep is "equal jitter": somewhere between half the delay and the whole delay.
+	 * @param delay The delay in ms.
+	 * @return If the sleep wasn't interrupted.
+	 */
+	protected static boolean backoff(long delay)
+	{
+		try {
+			Thread.sleep(delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1));
+			return true;
+		} catch ( InterruptedException iE ) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+	/**
+	 * Record a successful recovery.
+	 * @param nanos How long it took.
+	 */
+	protected synchronized void recovered(long nanos)
+	{
+		recoveries++;
+		lastRecoveryNanos = nanos;
+		maxRecoveryNanos = Math.max(maxRecoveryNanos, nanos);
+		totalRecoveryNanos += nanos;
+	}
+
+	/**
+	 * Make one attempt to get the pipe ready to resubmit.
+	 * @param stalled If the submission failed because the endpoint is halted.
+	 * @return If anything was fixed (the device re-attached, the pipe reopened, or a halt cleared).
+	 * @exception Exception If this attempt failed.
+	 */
+	protected boolean recoverOnce(boolean stalled) throws Exception
+	{
+		boolean fixed = false;
+
+		UsbDevice usbDevice = usbPipe.getUsbEndpoint().getUsbInterface().getUsbConfiguration().getUsbDevice();
+
+		if (null == UsbPortPath.getUsbPortPath(usbDevice) || !usbPipe.isActive()) {
+			reattach();
+			usbDevice = usbPipe.getUsbEndpoint().getUsbInterface().getUsbConfiguration().getUsbDevice();
+			/* A new device's endpoints aren't halted; but if it's the same device, it may still be. */
+			stalled = false;
+			fixed = true;
+		}
+
+		/* The pipe is in the UsbHandlePool, so it's only opened through the pool. */
+		if (!usbPipe.isOpen()) {
+			lease(usbPipe.getUsbEndpoint().getUsbInterface());
+			synchronized (this) { reopens++; }
+			fixed = true;
+		}
+
+		/* If the failure didn't say, ask the device if the endpoint is halted. */
+		if (!stalled)
+			stalled = 0 != (StandardRequest.getStatus(usbDevice, UsbConst.REQUESTTYPE_RECIPIENT_ENDPOINT, bEndpointAddress) & ENDPOINT_STATUS_HALT);
+
+		if (stalled) {
+			StandardRequest.clearFeature(usbDevice, UsbConst.REQUESTTYPE_RECIPIENT_ENDPOINT,
+				UsbConst.FEATURE_SELECTOR_ENDPOINT_HALT, (short)UsbUtil.unsignedInt(bEndpointAddress));
+			synchronized (this) { haltsCleared++; }
+			fixed = true;
+		}
+
+		return fixed;
+	}
+
+	/**
+	 * Find the endpoint on whatever device is now at the original port, and lease it.
+	 * @exception UsbException If it isn't there (yet), or couldn't be claimed or opened.
+	 */
+	protected void reattach() throws UsbException
+	{
+		UsbDevice usbDevice = null == usbPortPath ? null : usbPortPath.getUsbDevice(ShowTopology.getVirtualRootUsbHub());
+
+		if (null == usbDevice)
+			throw new UsbException("No device at " + usbPortPath);
+		if (idVendor != usbDevice.getUsbDeviceDescriptor().idVendor() || idProduct != usbDevice.getUsbDeviceDescriptor().idProduct())
+			throw new UsbException("Different device at " + usbPortPath);
+		if (!usbDevice.isConfigured() ||
+			bConfigurationValue != usbDevice.getActiveUsbConfiguration().getUsbConfigurationDescriptor().bConfigurationValue())
+			throw new UsbException("Device at " + usbPortPath + " is not in configuration " + UsbUtil.unsignedInt(bConfigurationValue));
+
+		UsbConfiguration usbConfiguration = usbDevice.getActiveUsbConfiguration();
+		if (!usbConfiguration.containsUsbInterface(bInterfaceNumber))
+			throw new UsbException("Device at " + usbPortPath + " has no interface " + UsbUtil.unsignedInt(bInterfaceNumber));
+		UsbInterface usbInterface = usbConfiguration.getUsbInterface(bInterfaceNumber);
+		if (!usbInterface.containsUsbEndpoint(bEndpointAddress))
+			throw new UsbException("Device at " + usbPortPath + " has no endpoint 0x" + UsbUtil.toHexString(bEndpointAddress));
+
+		lease(usbInterface);
+		synchronized (this) { reattaches++; }
+	}
+
+	/**
+	 * Lease the interface and the endpoint's pipe from the UsbHandlePool, and use that pipe.
+	 * <p>
+	 * The pool claims the interface and opens the pipe if they aren't.
+	 * Whatever this had leased before is released.
+	 * @param usbInterface The UsbInterface.
+	 * @exception UsbException If the interface couldn't be claimed or the pipe couldn't be opened.
+	 */
+	protected void lease(UsbInterface usbInterface) throws UsbException
+	{
+		UsbHandlePool.Lease newInterfaceLease = UsbHandlePool.getDefault().lease(usbInterface);
+		UsbHandlePool.Lease newPipeLease = null;
+		try {
+			newPipeLease = UsbHandlePool.getDefault().lease(usbInterface.getUsbEndpoint(bEndpointAddress).getUsbPipe());
+		} catch ( UsbException uE ) {
+			newInterfaceLease.release();
+			throw uE;
+		}
+
+		synchronized (this) {
+			release();
+			interfaceLease = newInterfaceLease;
+			pipeLease = newPipeLease;
+		}
+		usbPipe = newPipeLease.getUsbPipe();
+	}
+
+	/**
+	 * Reset a UsbIrp so it can be submitted again.
+	 * @param usbIrp The UsbIrp.
+	 */
+	protected static void reset(UsbIrp usbIrp)
+	{
+		usbIrp.setUsbException(null);
+		usbIrp.setActualLength(0);
+		usbIrp.setComplete(false);
+	}
+
+	private volatile UsbPipe usbPipe = null;
+	private long initialDelay = 0;
+	private long maxDelay = 0;
+	private int maxAttempts = 0;
+
+	private UsbPortPath usbPortPath = null;
+	private short idVendor = 0;
+	private short idProduct = 0;
+	private byte bConfigurationValue = 0;
+	private byte bInterfaceNumber = 0;
+	private byte bEndpointAddress = 0;
+
+	private UsbHandlePool.Lease interfaceLease = null;
+	private UsbHandlePool.Lease pipeLease = null;
+
+	private Object recoveryLock = new Object();
+	private volatile int recoveryGeneration = 0;
+	private volatile int abortGeneration = 0;
+
+	private long recoveries = 0;
+	private long failures = 0;
+	private long haltsCleared = 0;
+	private long reopens = 0;
+	private long reattaches = 0;
+	private long lastRecoveryNanos = 0;
+	private long maxRecoveryNanos = 0;
+	private long totalRecoveryNanos = 0;
+
+	public static final long DEFAULT_INITIAL_DELAY = 1;
+	public static final long DEFAULT_MAX_DELAY = 1000;
+	public static final int DEFAULT_MAX_ATTEMPTS = 12;
+
+	/* Bit 0 of an endpoint's GET_STATUS reply is HALT. */
+	private static final int ENDPOINT_STATUS_HALT = 0x0001;
+}
@@ -0,0 +1,404 @@
+/*
+ * Copyright (c) 1999 - 2001, International Business Machines Corporation.
+ * All Rights Reserved.
+ *
+ * This software is provided and licensed under the terms and conditions
+ * of the Common Public License:
+ * http://oss.software.ibm.com/developerworks/opensource/license-cpl.html
+ */
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import javax.usb.*;
+import javax.usb.event.*;
+import javax.usb.util.*;
+
+/**
+ * Index of the interfaces of every configuration of every device.
+ * <p>
+ * FindUsbInterface only looks at the active configuration of configured devices,
+ * since that's all a device's UsbInterfaces can be used in.  But to find out what
+ * a device could do (e.g. a device left unconfigured because no driver was found,
+ * or one whose other configuration has the interface we want) we need all of its
+ * configurations and all of their alternate settings.  A device answers
+ * get-configuration-descriptor requests whether configured or not, with the whole
+ * configuration bundle (the configuration descriptor and all its interface, endpoint
+ * and class-specific descriptors) in one transfer.
+ * <p>
+ * So this gets each configuration bundle of each device with a single request.
+ * The request is sized from the configuration's wTotalLength when it's known, so the
+ * usual "get 9 bytes to find out the total length, then get the rest" takes one
+ * round trip instead of two.  Each bundle is walked in place with a
+ * {@link DescriptorView.ConfigurationView}, and each interface descriptor (i.e. each
+ * alternate setting) is indexed by its interface class as an {@link Entry} that
+ * refers back into the bundle, so no descriptor objects are built.
+ * The initial enumeration runs one bus per thread, using a {@link UsbShardedExecutor}.
+ * The index is kept current by listening for devices being attached and detached;
+ * an attached device is enumerated on its bus's shard, not on the thread delivering
+ * the event.  A device that is indexed again (e.g. attached while the initial
+ * enumeration was running) replaces its previous Entries.
+ * <p>
+ * This class should not be used except by other example code.
+ */
+public class UsbConfigurationEnumerator implements UsbServicesListener
+{
+	/**
+	 * Constructor.
+	 * <p>
+	 * This registers with the UsbServices and enumerates all currently connected devices.
+	 * @param usbServices The UsbServices.
+	 * @exception UsbException If the virtual root UsbHub could not be gotten.
+	 */
+	public UsbConfigurationEnumerator(UsbServices usbServices) throws UsbException
+	{
+		this.usbServices = usbServices;
+
+		usbServices.addUsbServicesListener(this);
+
+		UsbHub virtualRootUsbHub = usbServices.getRootUsbHub();
+		usbShardedExecutor = new UsbShardedExecutor(virtualRootUsbHub);
+
+		long start = System.nanoTime();
+		List results = null;
+		try {
+			results = usbShardedExecutor.forEachDevice(new UsbShardedExecutor.DeviceOperation() {
+					public Object run(UsbDevice usbDevice) { add(usbDevice); return null; }
+				});
+		} catch ( InterruptedException iE ) {
+			Thread.currentThread().interrupt();
+			close();
+			throw new UsbException("Interrupted while enumerating configurations");
+		}
+		UsbMetrics.getDefault().recordEnumeration("UsbConfigurationEnumerator", System.nanoTime() - start, results.size());
+	}
+
+	/**
+	 * Get the default UsbConfigurationEnumerator, of the UsbServices from ShowTopology.getUsbServices().
+	 * @return The default UsbConfigurationEnumerator.
+	 * @exception UsbException If the topology could not be enumerated.
+	 */
+	public static synchronized UsbConfigurationEnumerator getDefault() throws UsbException
+	{
+		if (null == defaultUsbConfigurationEnumerator)
+			defaultUsbConfigurationEnumerator = new UsbConfigurationEnumerator(ShowTopology.getUsbServices());
+		return defaultUsbConfigurationEnumerator;
+	}
+
+	/**
+	 * Stop listening for topology changes, and stop the shards' workers.
+	 */
+	public void close()
+	{
+		usbServices.removeUsbServicesListener(this);
+		usbShardedExecutor.shutdown();
+	}
+
+	/**
+	 * Find every interface setting, in any configuration of any device, with an interface class.
+	 * @param interfaceClass The interface class.
+	 * @return A List of the matching Entries.
+	 */
+	public List find(byte interfaceClass)
+	{
+		Set set = (Set)byInterfaceClass.get(Integer.valueOf(UsbUtil.unsignedInt(interfaceClass)));
+		return null == set ? new ArrayList() : new ArrayList(set);
+	}
+
+	/**
+	 * Get the Entries of a device.
+	 * @param usbDevice The UsbDevice.
+	 * @return The Entries, in descriptor order, or null if the device isn't indexed.
+	 */
+	public Entry[] getEntries(UsbDevice usbDevice) { return (Entry[])byDevice.get(usbDevice); }
+
+	/** @return The number of indexed interface settings. */
+	public int size()
+	{
+		int size = 0;
+		Iterator iterator = byDevice.values().iterator();
+		while (iterator.hasNext())
+			size += ((Entry[])iterator.next()).length;
+		return size;
+	}
+
+	/** @return The number of get-configuration-descriptor requests made. */
+	public long getTransfers() { return transfers.get(); }
+
+	/** @return The number of configurations that could not be gotten. */
+	public long getFailures() { return failures.get(); }
+
+	/**
+	 * Enumerate an attached device on its bus's shard.
+	 * <p>
+	 * Getting the configurations takes a transfer for each, which shouldn't hold up
+	 * the delivery of hot-plug events.
+	 */
+	public void usbDeviceAttached(UsbServicesEvent usbServicesEvent)
+	{
+		final UsbDevice usbDevice = usbServicesEvent.getUsbDevice();
+
+		try {
+			usbShardedExecutor.submit(usbDevice, new Callable() {
+					public Object call() { add(usbDevice); return null; }
+				});
+		} catch ( IllegalArgumentException iaE ) {
+			/* Not on a bus there's a shard for (e.g. a new host controller); do it here. */
+			add(usbDevice);
+		} catch ( RejectedExecutionException reE ) {
+			/* Closed. */
+		}
+	}
+
+	public void usbDeviceDetached(UsbServicesEvent usbServicesEvent) { remove(usbServicesEvent.getUsbDevice()); }
+
+	/**
+	 * Get and index all configurations of a UsbDevice.
+	 * @param usbDevice The UsbDevice.
+	 */
+	protected void add(UsbDevice usbDevice)
+	{
+		/* The virtual root UsbHub is not a real device. */
+		if (usbDevice.isUsbHub() && ((UsbHub)usbDevice).isRootUsbHub())
+			return;
+
+		final List entries = new ArrayList();
+		final DescriptorView.ConfigurationView configurationView = new DescriptorView.ConfigurationView();
+		int configurations = UsbUtil.unsignedInt(usbDevice.getUsbDeviceDescriptor().bNumConfigurations());
+		List usbConfigurations = usbDevice.getUsbConfigurations();
+
+		for (int i=0; i<configurations; i++) {
+			/* The implementation usually already has the configuration descriptors, which give the size. */
+			int totalLength = 0;
+			if (i < usbConfigurations.size())
+				totalLength = UsbUtil.unsignedInt(((UsbConfiguration)usbConfigurations.get(i)).getUsbConfigurationDescriptor().wTotalLength());
+
+			final byte[] bundle;
+			try {
+				bundle = getBundle(usbDevice, i, totalLength, configurationView);
+			} catch ( UsbException uE ) {
+				failures.incrementAndGet();
+				continue;
+			} catch ( UsbDisconnectedException uDE ) {
+				return;
+			}
+
+			if (null == bundle) {
+				failures.incrementAndGet();
+				continue;
+			}
+
+			final UsbDevice device = usbDevice;
+			final byte configurationValue = configurationView.bConfigurationValue();
+
+			configurationView.walk(new DescriptorView.Visitor() {
+					public void visitInterface(DescriptorView.InterfaceView view)
+					{
+						entries.add(new Entry(device, configurationValue, bundle, view.getOffset(), view.bInterfaceClass()));
+					}
+					public void visitEndpoint(DescriptorView.EndpointView view) { }
+					public void visitHid(DescriptorView.HidView view) { }
+					public void visitOther(DescriptorView.OtherView view) { }
+				});
+		}
+
+		Entry[] array = (Entry[])entries.toArray(new Entry[entries.size()]);
+
+		/* Indexing is synchronized with remove(), so a device that was detached while its
+		 * configurations were being gotten (its port is disconnected before the detach event)
+		 * isn't indexed after its detach event is handled.
+		 */
+		synchronized (this) {
+			if (null == UsbPortPath.getUsbPortPath(usbDevice))
+				return;
+
+			remove(usbDevice);
+			byDevice.put(usbDevice, array);
+
+			for (int i=0; i<array.length; i++) {
+				Integer key = Integer.valueOf(UsbUtil.unsignedInt(array[i].getInterfaceClass()));
+				Set set = (Set)byInterfaceClass.get(key);
+				if (null == set) {
+					Set newSet = ConcurrentHashMap.newKeySet();
+					set = (Set)byInterfaceClass.putIfAbsent(key, newSet);
+					if (null == set)
+						set = newSet;
+				}
+				set.add(array[i]);
+			}
+		}
+	}
+
+	/**
+	 * Remove all configurations of a UsbDevice from the index.
+	 * @param usbDevice The UsbDevice.
+	 */
+	protected synchronized void remove(UsbDevice usbDevice)
+	{
+		Entry[] array = (Entry[])byDevice.remove(usbDevice);
+
+		if (null == array)
+			return;
+
+		for (int i=0; i<array.length; i++) {
+			Set set = (Set)byInterfaceClass.get(Integer.valueOf(UsbUtil.unsignedInt(array[i].getInterfaceClass())));
+			if (null != set)
+				set.remove(array[i]);
+		}
+	}
+
+	/**
+	 * Get a whole configuration bundle.
+	 * <p>
+	 * If the total length isn't known, this guesses; only if the guess was too small
+	 * is a second request (of the right size) needed.
+	 * @param usbDevice The UsbDevice.
+	 * @param index The configuration's descriptor index (not its bConfigurationValue).
+	 * @param totalLength The bundle's wTotalLength, or 0 if not known.
+	 * @param configurationView A ConfigurationView, which is left wrapped around the bundle.
+	 * @return The bundle, or null if the device returned an invalid configuration descriptor.
+	 * @exception UsbException If the request failed.
+	 */
+	protected byte[] getBundle(UsbDevice usbDevice, int index, int totalLength, DescriptorView.ConfigurationView configurationView) throws UsbException
+	{
+		byte[] buffer = new byte[0 < totalLength ? totalLength : DEFAULT_BUNDLE_LENGTH];
+
+		transfers.incrementAndGet();
+		int length = StandardRequest.getDescriptor(usbDevice, UsbConst.DESCRIPTOR_TYPE_CONFIGURATION, (byte)index, (short)0, buffer);
+		configurationView.wrap(buffer, 0, length);
+		if (!configurationView.isValid())
+			return null;
+
+		if (!configurationView.isComplete() && length == buffer.length) {
+			buffer = new byte[configurationView.getTotalLength()];
+			transfers.incrementAndGet();
+			length = StandardRequest.getDescriptor(usbDevice, UsbConst.DESCRIPTOR_TYPE_CONFIGURATION, (byte)index, (short)0, buffer);
+			configurationView.wrap(buffer, 0, length);
+			if (!configurationView.isValid())
+				return null;
+		}
+
+		/* Keep only the bundle itself, so its Entries don't hold on to a larger buffer. */
+		int bundleLength = Math.min(length, configurationView.getTotalLength());
+		if (bundleLength < buffer.length) {
+			byte[] bundle = new byte[bundleLength];
+			System.arraycopy(buffer, 0, bundle, 0, bundleLength);
+			configurationView.wrap(bundle, 0, bundleLength);
+			buffer = bundle;
+		}
+
+		return buffer;
+	}
+
+	/**
+	 * One interface setting, in one configuration of one device.
+	 * <p>
+	 * This refers to the interface descriptor inside the configuration bundle,
+	 * which is shared by all the bundle's Entries.
+	 */
+	public static class Entry
+	{
+		public Entry(UsbDevice usbDevice, byte configurationValue, byte[] bundle, int offset, byte interfaceClass)
+		{
+			this.usbDevice = usbDevice;
+			this.configurationValue = configurationValue;
+			this.bundle = bundle;
+			this.offset = offset;
+			this.interfaceClass = interfaceClass;
+		}
+
+		/** @return The UsbDevice. */
+		public UsbDevice getUsbDevice() { return usbDevice; }
+
+		/** @return The bConfigurationValue of the configuration this is in. */
+		public byte getConfigurationValue() { return configurationValue; }
+
+		/** @return The bInterfaceClass. */
+		public byte getInterfaceClass() { return interfaceClass; }
+
+		/**
+		 * Get a view of the interface descriptor.
+		 * @return A new InterfaceView, wrapped around the interface descriptor in the bundle.
+		 */
+		public DescriptorView.InterfaceView getInterfaceView()
+		{
+			return (DescriptorView.InterfaceView)new DescriptorView.InterfaceView().wrap(bundle, offset);
+		}
+
+		/**
+		 * Get a view of the whole configuration bundle, e.g. to walk this interface's endpoints.
+		 * @return A new ConfigurationView, wrapped around the bundle.
+		 */
+		public DescriptorView.ConfigurationView getConfigurationView()
+		{
+			return (DescriptorView.ConfigurationView)new DescriptorView.ConfigurationView().wrap(bundle, 0);
+		}
+
+		/**
+		 * Check if this is in the device's active configuration.
+		 * <p>
+		 * Note this doesn't check if this is the active alternate setting.
+		 * @return If the device is configured with this configuration.
+		 */
+		public boolean isActive()
+		{
+			try {
+				return usbDevice.isConfigured() && configurationValue == usbDevice.getActiveUsbConfigurationNumber();
+			} catch ( UsbDisconnectedException uDE ) {
+				return false;
+			}
+		}
+
+		/**
+		 * Get the UsbInterface setting this describes, if the implementation has one.
+		 * @return The UsbInterface, or null.
+		 */
+		public UsbInterface getUsbInterface()
+		{
+			DescriptorView.InterfaceView view = getInterfaceView();
+			UsbConfiguration usbConfiguration = usbDevice.getUsbConfiguration(configurationValue);
+
+			if (null == usbConfiguration || !usbConfiguration.containsUsbInterface(view.bInterfaceNumber()))
+				return null;
+
+			UsbInterface usbInterface = usbConfiguration.getUsbInterface(view.bInterfaceNumber());
+			if (!usbInterface.containsSetting(view.bAlternateSetting()))
+				return null;
+
+			return usbInterface.getSetting(view.bAlternateSetting());
+		}
+
+		public String toString()
+		{
+			DescriptorView.InterfaceView view = getInterfaceView();
+			UsbDeviceDescriptor desc = usbDevice.getUsbDeviceDescriptor();
+
+			return "Interface " + UsbUtil.unsignedInt(view.bInterfaceNumber()) +
+				" setting " + UsbUtil.unsignedInt(view.bAlternateSetting()) +
+				" class 0x" + UsbUtil.toHexString(view.bInterfaceClass()) +
+				" with " + UsbUtil.unsignedInt(view.bNumEndpoints()) + " endpoints" +
+				" in configuration " + UsbUtil.unsignedInt(configurationValue) + (isActive() ? " (active)" : "") +
+				" of device 0x" + UsbUtil.toHexString(desc.idVendor()) + ":0x" + UsbUtil.toHexString(desc.idProduct()) +
+				(usbDevice.isConfigured() ? "" : " (unconfigured)");
+		}
+
+		private UsbDevice usbDevice = null;
+		private byte configurationValue = 0;
+		private byte[] bundle = null;
+		private int offset = 0;
+		private byte interfaceClass = 0;
+	}
+
+	private UsbServices usbServices = null;
+	private UsbShardedExecutor usbShardedExecutor = null;
+	private Map byInterfaceClass = new ConcurrentHashMap();
+	private Map byDevice = new ConcurrentHashMap();
+	private AtomicLong transfers = new AtomicLong();
+	private AtomicLong failures = new AtomicLong();
+
+	private static UsbConfigurationEnumerator defaultUsbConfigurationEnumerator = null;
+
+	/* Big enough for most devices' configuration bundles. */
+	private static final int DEFAULT_BUNDLE_LENGTH = 256;
+}
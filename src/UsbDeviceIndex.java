@@ -0,0 +1,394 @@
+/*
+ * Copyright (c) 1999 - 2001, International Business Machines Corporation.
+ * All Rights Reserved.
+ *
+ * This software is provided and licensed under the terms and conditions
+ * of the Common Public License:
+ * http://oss.software.ibm.com/developerworks/opensource/license-cpl.html
+ */
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import javax.usb.*;
+import javax.usb.event.*;
+import javax.usb.util.*;
+
+/**
+ * Resident index of the USB topology.
+ * <p>
+ * The FindUsbDevice and FindUsbInterface examples walk the whole topology
+ * for every question.  This walks it once, then keeps indexes by
+ * vendor/product id, device class, manufacturer string and interface class,
+ * and keeps them current by listening for devices being attached and detached.
+ * <p>
+ * Getting a manufacturer string means communicating with the device, so each
+ * device's string is fetched at most once and then cached.  If the index is
+ * created to fetch strings up front, they are all fetched (and indexed) as
+ * devices are added, so manufacturer queries need no communication at all;
+ * otherwise each one is fetched the first time a query needs it, so queries
+ * that never ask about manufacturers never fetch any.
+ * <p>
+ * The index may be queried from any number of threads while it is being updated.
+ * <p>
+ * This class should not be used except by other example code.
+ */
+public class UsbDeviceIndex implements UsbServicesListener
+{
+	/**
+	 * Constructor.
+	 * <p>
+	 * This registers with the UsbServices and indexes all currently connected devices.
+	 * @param usbServices The UsbServices.
+	 * @param fetchStrings If manufacturer strings should be fetched as devices are added, instead of when first needed.
+	 * @exception UsbException If the virtual root UsbHub could not be gotten.
+	 */
+	public UsbDeviceIndex(UsbServices usbServices, boolean fetchStrings) throws UsbException
+	{
+		this.usbServices = usbServices;
+		this.fetchStrings = fetchStrings;
+
+		/* Listen first, so nothing attached during the walk is missed.
+		 * Anything seen twice is only indexed once.
+		 */
+		usbServices.addUsbServicesListener(this);
+
+		long start = System.nanoTime();
+		List usbDevices = FindUsbDevice.getAllUsbDevices(usbServices.getRootUsbHub());
+		for (int i=0; i<usbDevices.size(); i++)
+			add((UsbDevice)usbDevices.get(i));
+		UsbMetrics.getDefault().recordEnumeration("UsbDeviceIndex", System.nanoTime() - start, usbDevices.size());
+	}
+
+	/**
+	 * Stop listening for topology changes.
+	 */
+	public void close()
+	{
+		usbServices.removeUsbServicesListener(this);
+	}
+
+	/**
+	 * Run a Query.
+	 * @param query The Query.
+	 * @return A List of the matching UsbDevices, or (if the Query has an interface class) UsbInterfaces.
+	 */
+	public List find(Query query)
+	{
+		Collection candidates = null;
+
+		/* Start from the most selective index that the query uses. */
+		if (query.hasId())
+			candidates = get(byId, getIdKey(query.getVendorId(), query.getProductId()));
+		else if (query.hasManufacturerString() && fetchStrings)
+			candidates = get(byManufacturerString, query.getManufacturerString());
+		else if (query.hasDeviceClass())
+			candidates = get(byDeviceClass, Byte.valueOf(query.getDeviceClass()));
+		else if (query.hasInterfaceClass())
+			candidates = get(byInterfaceClass, Byte.valueOf(query.getInterfaceClass()));
+		else
+			candidates = entries.values();
+
+		/* Each entry is one device; check whatever the chosen index didn't. */
+		List list = new ArrayList();
+		Iterator iterator = candidates.iterator();
+		while (iterator.hasNext()) {
+			Entry entry = (Entry)iterator.next();
+			if (!query.matches(entry))
+				continue;
+			if (!query.hasInterfaceClass()) {
+				list.add(entry.usbDevice);
+				continue;
+			}
+			for (int i=0; i<entry.usbInterfaces.length; i++)
+				if (query.getInterfaceClass() == entry.usbInterfaces[i].getUsbInterfaceDescriptor().bInterfaceClass())
+					list.add(entry.usbInterfaces[i]);
+		}
+
+		return list;
+	}
+
+	/**
+	 * Get the manufacturer string of an indexed UsbDevice, if it has already been fetched.
+	 * @param usbDevice The UsbDevice.
+	 * @return The manufacturer string, or null if the device has none, couldn't provide it, isn't indexed, or it hasn't been fetched yet.
+	 */
+	public String getCachedManufacturerString(UsbDevice usbDevice)
+	{
+		Entry entry = (Entry)entries.get(usbDevice);
+		return null == entry ? null : entry.getCachedManufacturerString();
+	}
+
+	/**
+	 * @return The number of indexed devices.
+	 */
+	public int size() { return entries.size(); }
+
+	public void usbDeviceAttached(UsbServicesEvent usbServicesEvent) { add(usbServicesEvent.getUsbDevice()); }
+
+	public void usbDeviceDetached(UsbServicesEvent usbServicesEvent) { remove(usbServicesEvent.getUsbDevice()); }
+
+	/**
+	 * Index a UsbDevice.
+	 * <p>
+	 * If strings are fetched up front, this fetches the manufacturer string,
+	 * which requires communication with the device.
+	 * @param usbDevice The UsbDevice.
+	 */
+	protected void add(UsbDevice usbDevice)
+	{
+		if (entries.containsKey(usbDevice))
+			return;
+
+		Entry entry = new Entry(usbDevice);
+
+		/* The entry is complete before it's visible in any index. */
+		if (fetchStrings)
+			entry.getManufacturerString();
+		if (null != entries.putIfAbsent(usbDevice, entry))
+			return;
+
+		put(byId, entry.idKey, entry);
+		put(byDeviceClass, Byte.valueOf(entry.deviceClass), entry);
+		if (fetchStrings && null != entry.getCachedManufacturerString())
+			put(byManufacturerString, entry.getCachedManufacturerString(), entry);
+		for (int i=0; i<entry.usbInterfaces.length; i++)
+			put(byInterfaceClass, Byte.valueOf(entry.usbInterfaces[i].getUsbInterfaceDescriptor().bInterfaceClass()), entry);
+	}
+
+	/**
+	 * Remove a UsbDevice from the index.
+	 * @param usbDevice The UsbDevice.
+	 */
+	protected void remove(UsbDevice usbDevice)
+	{
+		Entry entry = (Entry)entries.remove(usbDevice);
+
+		if (null == entry)
+			return;
+
+		removeFrom(byId, entry.idKey, entry);
+		removeFrom(byDeviceClass, Byte.valueOf(entry.deviceClass), entry);
+		if (null != entry.getCachedManufacturerString())
+			removeFrom(byManufacturerString, entry.getCachedManufacturerString(), entry);
+		for (int i=0; i<entry.usbInterfaces.length; i++)
+			removeFrom(byInterfaceClass, Byte.valueOf(entry.usbInterfaces[i].getUsbInterfaceDescriptor().bInterfaceClass()), entry);
+	}
+
+	protected static Collection get(ConcurrentMap index, Object key)
+	{
+		Collection collection = (Collection)index.get(key);
+		return null == collection ? Collections.EMPTY_SET : collection;
+	}
+
+	protected static void put(ConcurrentMap index, Object key, Entry entry)
+	{
+		Set set = (Set)index.get(key);
+		if (null == set) {
+			Set newSet = ConcurrentHashMap.newKeySet();
+			set = (Set)index.putIfAbsent(key, newSet);
+			if (null == set)
+				set = newSet;
+		}
+		set.add(entry);
+	}
+
+	/* Empty sets are left in place; there are only as many as there are distinct keys ever seen. */
+	protected static void removeFrom(ConcurrentMap index, Object key, Entry entry)
+	{
+		Set set = (Set)index.get(key);
+		if (null != set)
+			set.remove(entry);
+	}
+
+	protected static Integer getIdKey(short vendorId, short productId)
+	{
+		return Integer.valueOf((UsbUtil.unsignedInt(vendorId) << 16) | UsbUtil.unsignedInt(productId));
+	}
+
+	/**
+	 * The indexed properties of one UsbDevice.
+	 */
+	public static class Entry
+	{
+		public Entry(UsbDevice usbDevice)
+		{
+			UsbDeviceDescriptor desc = usbDevice.getUsbDeviceDescriptor();
+
+			this.usbDevice = usbDevice;
+			this.vendorId = desc.idVendor();
+			this.productId = desc.idProduct();
+			this.idKey = getIdKey(vendorId, productId);
+			this.deviceClass = desc.bDeviceClass();
+
+			/* As in FindUsbInterface, only the active configuration's interfaces are used. */
+			List list = new ArrayList();
+			if (usbDevice.isConfigured())
+				list.addAll(usbDevice.getActiveUsbConfiguration().getUsbInterfaces());
+			this.usbInterfaces = (UsbInterface[])list.toArray(new UsbInterface[list.size()]);
+		}
+
+		/**
+		 * Get the manufacturer string, fetching it from the device the first time.
+		 * <p>
+		 * Concurrent callers wait for the first fetch instead of each fetching it.
+		 * @return The manufacturer string, or null if the device has none or couldn't provide it.
+		 */
+		public synchronized String getManufacturerString()
+		{
+			if (fetched)
+				return manufacturerString;
+
+			/* See FindUsbDevice.getUsbDevicesWithManufacturerString() about these exceptions.
+			 * Here, a device that can't provide its string just doesn't match any string;
+			 * it isn't asked again.
+			 */
+			try {
+				if (0 != usbDevice.getUsbDeviceDescriptor().iManufacturer())
+					manufacturerString = usbDevice.getManufacturerString();
+			} catch ( UsbException uE ) {
+			} catch ( UnsupportedEncodingException ueE ) {
+			} catch ( UsbDisconnectedException udE ) {
+			}
+
+			fetched = true;
+			return manufacturerString;
+		}
+
+		/**
+		 * @return The manufacturer string, or null if it hasn't been fetched (or the device has none).
+		 */
+		public String getCachedManufacturerString() { return manufacturerString; }
+
+		public final UsbDevice usbDevice;
+		public final short vendorId;
+		public final short productId;
+		public final byte deviceClass;
+		public final UsbInterface[] usbInterfaces;
+
+		protected final Integer idKey;
+
+		private volatile String manufacturerString = null;
+		private boolean fetched = false;
+	}
+
+	/**
+	 * A query, using the same keys as FindUsbDevice and FindUsbInterface.
+	 * <p>
+	 * Only the keys that were set are checked; all of them must match.
+	 */
+	public static class Query
+	{
+		/**
+		 * Parse a Query from key=value pairs.
+		 * <p>
+		 * An argument without an '=' is taken as part of the previous value, separated by a space;
+		 * so splitting a line on whitespace doesn't break up values like a manufacturer string.
+		 * @param argv The key=value pairs.
+		 * @return The Query.
+		 * @exception IllegalArgumentException If a key is unknown or a value is invalid.
+		 */
+		public static Query parse(String argv[]) throws IllegalArgumentException
+		{
+			Query query = new Query();
+			String lastKey = null;
+
+			for (int i=0; i<argv.length; i++) {
+				int equalsIndex = argv[i].indexOf('=');
+				if (0 > equalsIndex && FindUsbDevice.MANUFACTURER_STRING_KEY.equals(lastKey)) {
+					query.manufacturerString += " " + argv[i];
+					continue;
+				}
+				if (0 > equalsIndex)
+					throw new IllegalArgumentException("Invalid key-value pair \"" + argv[i] + "\"");
+
+				String key = argv[i].substring(0, equalsIndex);
+				String value = argv[i].substring(equalsIndex+1);
+				try {
+					if (key.equals(FindUsbDevice.VENDOR_ID_KEY))
+						query.setVendorId((short)Integer.decode(value).intValue());
+					else if (key.equals(FindUsbDevice.PRODUCT_ID_KEY))
+						query.setProductId((short)Integer.decode(value).intValue());
+					else if (key.equals(FindUsbDevice.DEVICE_CLASS_KEY))
+						query.setDeviceClass((byte)Integer.decode(value).intValue());
+					else if (key.equals(FindUsbDevice.MANUFACTURER_STRING_KEY))
+						query.setManufacturerString(value);
+					else if (key.equals(FindUsbInterface.INTERFACE_CLASS_KEY))
+						query.setInterfaceClass((byte)Integer.decode(value).intValue());
+					else
+						throw new IllegalArgumentException("Unrecognized key \"" + key + "\"");
+				} catch ( NumberFormatException nfE ) {
+					throw new IllegalArgumentException("Invalid key-value pair \"" + argv[i] + "\"");
+				}
+				lastKey = key;
+			}
+
+			return query;
+		}
+
+		public void setVendorId(short vendorId) { this.vendorId = vendorId; set |= VENDOR_ID; }
+		public void setProductId(short productId) { this.productId = productId; set |= PRODUCT_ID; }
+		public void setDeviceClass(byte deviceClass) { this.deviceClass = deviceClass; set |= DEVICE_CLASS; }
+		public void setManufacturerString(String manufacturerString) { this.manufacturerString = manufacturerString; set |= MANUFACTURER_STRING; }
+		public void setInterfaceClass(byte interfaceClass) { this.interfaceClass = interfaceClass; set |= INTERFACE_CLASS; }
+
+		public short getVendorId() { return vendorId; }
+		public short getProductId() { return productId; }
+		public byte getDeviceClass() { return deviceClass; }
+		public String getManufacturerString() { return manufacturerString; }
+		public byte getInterfaceClass() { return interfaceClass; }
+
+		/** @return If both the vendor and product id are set. */
+		public boolean hasId() { return (VENDOR_ID | PRODUCT_ID) == (set & (VENDOR_ID | PRODUCT_ID)); }
+		public boolean hasVendorId() { return 0 != (set & VENDOR_ID); }
+		public boolean hasProductId() { return 0 != (set & PRODUCT_ID); }
+		public boolean hasDeviceClass() { return 0 != (set & DEVICE_CLASS); }
+		public boolean hasManufacturerString() { return 0 != (set & MANUFACTURER_STRING); }
+		public boolean hasInterfaceClass() { return 0 != (set & INTERFACE_CLASS); }
+
+		/**
+		 * Check the device-level keys against an Entry.
+		 * <p>
+		 * The interface class is checked per-interface by the caller.
+		 * @param entry The Entry.
+		 * @return If the Entry matches.
+		 */
+		public boolean matches(Entry entry)
+		{
+			if (hasVendorId() && vendorId != entry.vendorId)
+				return false;
+			if (hasProductId() && productId != entry.productId)
+				return false;
+			if (hasDeviceClass() && deviceClass != entry.deviceClass)
+				return false;
+			/* This is last, as it may need to communicate with the device. */
+			if (hasManufacturerString() && !manufacturerString.equals(entry.getManufacturerString()))
+				return false;
+			return true;
+		}
+
+		private int set = 0;
+		private short vendorId = 0;
+		private short productId = 0;
+		private byte deviceClass = 0;
+		private String manufacturerString = null;
+		private byte interfaceClass = 0;
+
+		private static final int VENDOR_ID = 0x01;
+		private static final int PRODUCT_ID = 0x02;
+		private static final int DEVICE_CLASS = 0x04;
+		private static final int MANUFACTURER_STRING = 0x08;
+		private static final int INTERFACE_CLASS = 0x10;
+	}
+
+	private UsbServices usbServices = null;
+	private boolean fetchStrings = false;
+
+	/* UsbDevice -> Entry, and the indexes of key -> Set of Entry. */
+	private ConcurrentMap entries = new ConcurrentHashMap();
+	private ConcurrentMap byId = new ConcurrentHashMap();
+	private ConcurrentMap byDeviceClass = new ConcurrentHashMap();
+	private ConcurrentMap byManufacturerString = new ConcurrentHashMap();
+	private ConcurrentMap byInterfaceClass = new ConcurrentHashMap();
+}
@@ -0,0 +1,395 @@
+/*
+ * Copyright (c) 1999 - 2001, International Business Machines Corporation.
+ * All Rights Reserved.
+ *
+ * This software is provided and licensed under the terms and conditions
+ * of the Common Public License:
+ * http://oss.software.ibm.com/developerworks/opensource/license-cpl.html
+ */
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import javax.usb.*;
+import javax.usb.event.*;
+import javax.usb.util.*;
+
+/**
+ * Index of all endpoints in the USB topology.
+ * <p>
+ * Finding e.g. all interrupt-in endpoints on HID interfaces normally means
+ * walking every device, every interface of its active configuration, and
+ * every endpoint of those.  This does that walk once, and indexes each endpoint
+ * by its transfer type, direction and interface class together, so that
+ * lookup is a single map get; max packet size and interval are then checked on
+ * only the endpoints that already match.  The index is kept current by
+ * listening for devices being attached and detached.
+ * <p>
+ * It also keeps, per interface, its endpoints by type and direction, so
+ * finding e.g. an interface's interrupt-in endpoint doesn't need a scan
+ * of the interface's endpoints.
+ * <p>
+ * As in FindUsbInterface, only the active configuration of each device is indexed.
+ * <p>
+ * This class should not be used except by other example code.
+ */
+public class UsbEndpointIndex implements UsbServicesListener
+{
+	/**
+	 * Constructor.
+	 * <p>
+	 * This registers with the UsbServices and indexes all currently connected devices.
+	 * @param usbServices The UsbServices.
+	 * @exception UsbException If the virtual root UsbHub could not be gotten.
+	 */
+	public UsbEndpointIndex(UsbServices usbServices) throws UsbException
+	{
+		this.usbServices = usbServices;
+
+		usbServices.addUsbServicesListener(this);
+
+		long start = System.nanoTime();
+		List usbDevices = FindUsbDevice.getAllUsbDevices(usbServices.getRootUsbHub());
+		for (int i=0; i<usbDevices.size(); i++)
+			add((UsbDevice)usbDevices.get(i));
+		UsbMetrics.getDefault().recordEnumeration("UsbEndpointIndex", System.nanoTime() - start, usbDevices.size());
+	}
+
+	/**
+	 * Get the default UsbEndpointIndex, of the UsbServices from ShowTopology.getUsbServices().
+	 * @return The default UsbEndpointIndex.
+	 * @exception UsbException If the topology could not be indexed.
+	 */
+	public static synchronized UsbEndpointIndex getDefault() throws UsbException
+	{
+		if (null == defaultUsbEndpointIndex)
+			defaultUsbEndpointIndex = new UsbEndpointIndex(ShowTopology.getUsbServices());
+		return defaultUsbEndpointIndex;
+	}
+
+	/**
+	 * Stop listening for topology changes.
+	 */
+	public void close()
+	{
+		usbServices.removeUsbServicesListener(this);
+	}
+
+	/**
+	 * Find all endpoints that match a Query.
+	 * <p>
+	 * If the Query has a type, direction and interface class, this is a single
+	 * lookup; otherwise each indexed combination that fits is looked up.
+	 * @param query The Query.
+	 * @return A List of the matching UsbEndpoints.
+	 */
+	public List find(Query query)
+	{
+		List list = new ArrayList();
+
+		if (query.hasType() && query.hasDirection() && query.hasInterfaceClass()) {
+			addMatches(list, (Set)byKey.get(getKey(query.getType(), query.getDirection(), query.getInterfaceClass())), query);
+		} else {
+			Iterator iterator = byKey.entrySet().iterator();
+			while (iterator.hasNext()) {
+				Map.Entry mapEntry = (Map.Entry)iterator.next();
+				if (query.matchesKey(((Integer)mapEntry.getKey()).intValue()))
+					addMatches(list, (Set)mapEntry.getValue(), query);
+			}
+		}
+
+		return list;
+	}
+
+	/**
+	 * Get an interface's endpoints of one type and direction.
+	 * <p>
+	 * Interfaces that aren't indexed (e.g. an inactive alternate setting) have their
+	 * endpoints sorted now, but aren't added to the index, since nothing would remove them.
+	 * @param usbInterface The UsbInterface.
+	 * @param type The transfer type, e.g. UsbConst.ENDPOINT_TYPE_INTERRUPT.
+	 * @param direction The direction, e.g. UsbConst.ENDPOINT_DIRECTION_IN.
+	 * @return The matching UsbEndpoints, in the interface's order.
+	 */
+	public UsbEndpoint[] getUsbEndpoints(UsbInterface usbInterface, byte type, byte direction)
+	{
+		UsbEndpoint[][] slots = (UsbEndpoint[][])byInterface.get(usbInterface);
+
+		if (null == slots)
+			slots = getSlots(usbInterface);
+
+		return slots[getSlot(type, direction)];
+	}
+
+	/**
+	 * Get an interface's first endpoint of one type and direction.
+	 * @param usbInterface The UsbInterface.
+	 * @param type The transfer type, e.g. UsbConst.ENDPOINT_TYPE_INTERRUPT.
+	 * @param direction The direction, e.g. UsbConst.ENDPOINT_DIRECTION_IN.
+	 * @return The first matching UsbEndpoint, or null.
+	 */
+	public UsbEndpoint getUsbEndpoint(UsbInterface usbInterface, byte type, byte direction)
+	{
+		UsbEndpoint[][] slots = (UsbEndpoint[][])byInterface.get(usbInterface);
+
+		if (null == slots)
+			return getFirstUsbEndpoint(usbInterface, type, direction);
+
+		UsbEndpoint[] usbEndpoints = slots[getSlot(type, direction)];
+		return 0 == usbEndpoints.length ? null : usbEndpoints[0];
+	}
+
+	/**
+	 * @return The number of indexed endpoints.
+	 */
+	public int size()
+	{
+		int size = 0;
+		Iterator iterator = byKey.values().iterator();
+		while (iterator.hasNext())
+			size += ((Set)iterator.next()).size();
+		return size;
+	}
+
+	public void usbDeviceAttached(UsbServicesEvent usbServicesEvent) { add(usbServicesEvent.getUsbDevice()); }
+
+	public void usbDeviceDetached(UsbServicesEvent usbServicesEvent) { remove(usbServicesEvent.getUsbDevice()); }
+
+	/**
+	 * Index all endpoints of a UsbDevice's active configuration.
+	 * @param usbDevice The UsbDevice.
+	 */
+	protected void add(UsbDevice usbDevice)
+	{
+		List usbInterfaces = getUsbInterfaces(usbDevice);
+
+		byDevice.put(usbDevice, usbInterfaces);
+
+		for (int i=0; i<usbInterfaces.size(); i++) {
+			UsbInterface usbInterface = (UsbInterface)usbInterfaces.get(i);
+			byte interfaceClass = usbInterface.getUsbInterfaceDescriptor().bInterfaceClass();
+			List usbEndpoints = usbInterface.getUsbEndpoints();
+
+			byInterface.put(usbInterface, getSlots(usbInterface));
+
+			for (int j=0; j<usbEndpoints.size(); j++) {
+				UsbEndpoint usbEndpoint = (UsbEndpoint)usbEndpoints.get(j);
+				Integer key = getKey(usbEndpoint.getType(), usbEndpoint.getDirection(), interfaceClass);
+				Set set = (Set)byKey.get(key);
+				if (null == set) {
+					Set newSet = ConcurrentHashMap.newKeySet();
+					set = (Set)byKey.putIfAbsent(key, newSet);
+					if (null == set)
+						set = newSet;
+				}
+				set.add(usbEndpoint);
+			}
+		}
+	}
+
+	/**
+	 * Remove all endpoints of a UsbDevice from the index.
+	 * <p>
+	 * This removes the interfaces that were indexed, even if the device's
+	 * active configuration has changed since.
+	 * @param usbDevice The UsbDevice.
+	 */
+	protected void remove(UsbDevice usbDevice)
+	{
+		List usbInterfaces = (List)byDevice.remove(usbDevice);
+
+		if (null == usbInterfaces)
+			return;
+
+		for (int i=0; i<usbInterfaces.size(); i++) {
+			UsbInterface usbInterface = (UsbInterface)usbInterfaces.get(i);
+			byte interfaceClass = usbInterface.getUsbInterfaceDescriptor().bInterfaceClass();
+			List usbEndpoints = usbInterface.getUsbEndpoints();
+
+			byInterface.remove(usbInterface);
+
+			for (int j=0; j<usbEndpoints.size(); j++) {
+				UsbEndpoint usbEndpoint = (UsbEndpoint)usbEndpoints.get(j);
+				Set set = (Set)byKey.get(getKey(usbEndpoint.getType(), usbEndpoint.getDirection(), interfaceClass));
+				if (null != set)
+					set.remove(usbEndpoint);
+			}
+		}
+	}
+
+	protected static List getUsbInterfaces(UsbDevice usbDevice)
+	{
+		if (!usbDevice.isConfigured())
+			return Collections.EMPTY_LIST;
+		return usbDevice.getActiveUsbConfiguration().getUsbInterfaces();
+	}
+
+	protected static void addMatches(List list, Set set, Query query)
+	{
+		if (null == set)
+			return;
+
+		Iterator iterator = set.iterator();
+		while (iterator.hasNext()) {
+			UsbEndpoint usbEndpoint = (UsbEndpoint)iterator.next();
+			if (query.matches(usbEndpoint.getUsbEndpointDescriptor()))
+				list.add(usbEndpoint);
+		}
+	}
+
+	/**
+	 * Sort an interface's endpoints by type and direction.
+	 * <p>
+	 * This only looks at the one interface, so it can be used without an index.
+	 * @param usbInterface The UsbInterface.
+	 * @return The UsbEndpoints, by slot (see {@link #getSlot(byte,byte) getSlot()}), each in the interface's order.
+	 */
+	public static UsbEndpoint[][] getSlots(UsbInterface usbInterface)
+	{
+		List usbEndpoints = usbInterface.getUsbEndpoints();
+		List[] lists = new List[SLOTS];
+		UsbEndpoint[][] slots = new UsbEndpoint[SLOTS][];
+
+		for (int i=0; i<SLOTS; i++)
+			lists[i] = new ArrayList();
+
+		for (int i=0; i<usbEndpoints.size(); i++) {
+			UsbEndpoint usbEndpoint = (UsbEndpoint)usbEndpoints.get(i);
+			lists[getSlot(usbEndpoint.getType(), usbEndpoint.getDirection())].add(usbEndpoint);
+		}
+
+		for (int i=0; i<SLOTS; i++)
+			slots[i] = (UsbEndpoint[])lists[i].toArray(new UsbEndpoint[lists[i].size()]);
+
+		return slots;
+	}
+
+	/**
+	 * Get an interface's first endpoint of one type and direction.
+	 * <p>
+	 * This only looks at the one interface, so it can be used without an index;
+	 * unlike {@link #getSlots(UsbInterface) getSlots()}, it doesn't sort the other endpoints.
+	 * @param usbInterface The UsbInterface.
+	 * @param type The transfer type, e.g. UsbConst.ENDPOINT_TYPE_INTERRUPT.
+	 * @param direction The direction, e.g. UsbConst.ENDPOINT_DIRECTION_IN.
+	 * @return The first matching UsbEndpoint, or null.
+	 */
+	public static UsbEndpoint getFirstUsbEndpoint(UsbInterface usbInterface, byte type, byte direction)
+	{
+		List usbEndpoints = usbInterface.getUsbEndpoints();
+		int slot = getSlot(type, direction);
+
+		for (int i=0; i<usbEndpoints.size(); i++) {
+			UsbEndpoint usbEndpoint = (UsbEndpoint)usbEndpoints.get(i);
+			if (slot == getSlot(usbEndpoint.getType(), usbEndpoint.getDirection()))
+				return usbEndpoint;
+		}
+
+		return null;
+	}
+
+	/**
+	 * Get the slot for a type and direction.
+	 * <p>
+	 * The type is 2 bits and the direction 1 bit, so there are 8 slots.
+	 * @param type The transfer type, e.g. UsbConst.ENDPOINT_TYPE_INTERRUPT.
+	 * @param direction The direction, e.g. UsbConst.ENDPOINT_DIRECTION_IN.
+	 * @return The slot.
+	 */
+	public static int getSlot(byte type, byte direction)
+	{
+		return ((type & UsbConst.ENDPOINT_TYPE_MASK) << 1) | (UsbConst.ENDPOINT_DIRECTION_IN == (direction & UsbConst.ENDPOINT_DIRECTION_MASK) ? 1 : 0);
+	}
+
+	/* The key is the slot above the interface class. */
+	protected static Integer getKey(byte type, byte direction, byte interfaceClass)
+	{
+		return Integer.valueOf((getSlot(type, direction) << 8) | UsbUtil.unsignedInt(interfaceClass));
+	}
+
+	/**
+	 * A query on the endpoint index.
+	 * <p>
+	 * Only the criteria that were set are checked; all of them must match.
+	 */
+	public static class Query
+	{
+		public void setType(byte type) { this.type = type; set |= TYPE; }
+		public void setDirection(byte direction) { this.direction = direction; set |= DIRECTION; }
+		public void setInterfaceClass(byte interfaceClass) { this.interfaceClass = interfaceClass; set |= INTERFACE_CLASS; }
+		/** @param minMaxPacketSize The smallest wMaxPacketSize that matches. */
+		public void setMinMaxPacketSize(int minMaxPacketSize) { this.minMaxPacketSize = minMaxPacketSize; set |= MIN_MAX_PACKET_SIZE; }
+		/** @param maxInterval The largest bInterval that matches. */
+		public void setMaxInterval(int maxInterval) { this.maxInterval = maxInterval; set |= MAX_INTERVAL; }
+
+		public byte getType() { return type; }
+		public byte getDirection() { return direction; }
+		public byte getInterfaceClass() { return interfaceClass; }
+		public int getMinMaxPacketSize() { return minMaxPacketSize; }
+		public int getMaxInterval() { return maxInterval; }
+
+		public boolean hasType() { return 0 != (set & TYPE); }
+		public boolean hasDirection() { return 0 != (set & DIRECTION); }
+		public boolean hasInterfaceClass() { return 0 != (set & INTERFACE_CLASS); }
+		public boolean hasMinMaxPacketSize() { return 0 != (set & MIN_MAX_PACKET_SIZE); }
+		public boolean hasMaxInterval() { return 0 != (set & MAX_INTERVAL); }
+
+		/**
+		 * Check the indexed criteria against an index key.
+		 * @param key The index key.
+		 * @return If the key matches.
+		 */
+		public boolean matchesKey(int key)
+		{
+			if (hasType() && (key >> 9) != (type & UsbConst.ENDPOINT_TYPE_MASK))
+				return false;
+			if (hasDirection() && ((key >> 8) & 1) != (UsbConst.ENDPOINT_DIRECTION_IN == (direction & UsbConst.ENDPOINT_DIRECTION_MASK) ? 1 : 0))
+				return false;
+			if (hasInterfaceClass() && (key & 0xff) != UsbUtil.unsignedInt(interfaceClass))
+				return false;
+			return true;
+		}
+
+		/**
+		 * Check the non-indexed criteria against an endpoint descriptor.
+		 * @param desc The UsbEndpointDescriptor.
+		 * @return If the descriptor matches.
+		 */
+		public boolean matches(UsbEndpointDescriptor desc)
+		{
+			if (hasMinMaxPacketSize() && minMaxPacketSize > UsbUtil.unsignedInt(desc.wMaxPacketSize()))
+				return false;
+			if (hasMaxInterval() && maxInterval < UsbUtil.unsignedInt(desc.bInterval()))
+				return false;
+			return true;
+		}
+
+		private int set = 0;
+		private byte type = 0;
+		private byte direction = 0;
+		private byte interfaceClass = 0;
+		private int minMaxPacketSize = 0;
+		private int maxInterval = 0;
+
+		private static final int TYPE = 0x01;
+		private static final int DIRECTION = 0x02;
+		private static final int INTERFACE_CLASS = 0x04;
+		private static final int MIN_MAX_PACKET_SIZE = 0x08;
+		private static final int MAX_INTERVAL = 0x10;
+	}
+
+	private UsbServices usbServices = null;
+
+	/* Key (type, direction, interface class) -> Set of UsbEndpoint. */
+	private ConcurrentMap byKey = new ConcurrentHashMap();
+
+	/* UsbInterface -> UsbEndpoint[slot][]. */
+	private ConcurrentMap byInterface = new ConcurrentHashMap();
+
+	/* UsbDevice -> List of its indexed UsbInterfaces. */
+	private ConcurrentMap byDevice = new ConcurrentHashMap();
+
+	private static UsbEndpointIndex defaultUsbEndpointIndex = null;
+
+	private static final int SLOTS = 8;
+}
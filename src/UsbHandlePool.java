@@ -0,0 +1,364 @@
+/*
+ * Copyright (c) 1999 - 2001, International Business Machines Corporation.
+ * All Rights Reserved.
+ *
+ * This software is provided and licensed under the terms and conditions
+ * of the Common Public License:
+ * http://oss.software.ibm.com/developerworks/opensource/license-cpl.html
+ */
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import javax.usb.*;
+
+/**
+ * Pool of claimed UsbInterfaces and open UsbPipes.
+ * <p>
+ * Claiming an interface and opening a pipe both cost communication with the
+ * OS (and sometimes the device), and code that does many short operations
+ * tends to claim, open, close and release around every one of them.
+ * This hands out reference-counted {@link Lease}s instead; the first lease
+ * on an interface claims it (or on a pipe, opens it), and when the last lease is
+ * released, the interface stays claimed (or the pipe open) for the idle timeout.
+ * If it's leased again within that time, nothing needs to be claimed or opened.
+ * Otherwise a (daemon) timer thread closes or releases it.
+ * <p>
+ * A pipe lease also holds a lease on the pipe's interface, since the interface
+ * must stay claimed while the pipe is open.
+ * <p>
+ * Interfaces and pipes in the pool should not be claimed, released, opened or closed
+ * except through the pool.  Call {@link #close()} before exiting, so nothing
+ * is left claimed until the idle timeout.
+ * <p>
+ * This class should not be used except by other example code.
+ */
+public class UsbHandlePool
+{
+	/**
+	 * Constructor.
+	 * @param idleTimeout How long (in ms) to keep an unleased interface claimed or pipe open.
+	 */
+	public UsbHandlePool(long idleTimeout)
+	{
+		this.idleTimeout = idleTimeout;
+
+		timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable r)
+				{
+					Thread thread = new Thread(r, "UsbHandlePool idle timer");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+	}
+
+	/**
+	 * Get the default UsbHandlePool.
+	 * <p>
+	 * Its idle timeout is {@link #DEFAULT_IDLE_TIMEOUT}, unless the
+	 * {@link #IDLE_TIMEOUT_PROPERTY} system property is set.
+	 * @return The default UsbHandlePool.
+	 */
+	public static synchronized UsbHandlePool getDefault()
+	{
+		if (null == defaultUsbHandlePool)
+			defaultUsbHandlePool = new UsbHandlePool(Long.getLong(IDLE_TIMEOUT_PROPERTY, DEFAULT_IDLE_TIMEOUT).longValue());
+		return defaultUsbHandlePool;
+	}
+
+	/**
+	 * Lease a claimed UsbInterface.
+	 * @param usbInterface The UsbInterface.
+	 * @return A Lease, which must be released.
+	 * @exception UsbException If the interface could not be claimed.
+	 */
+	public Lease lease(UsbInterface usbInterface) throws UsbException
+	{
+		Handle handle = acquire(usbInterface);
+
+		synchronized (handle) {
+			try {
+				/* It may have been released behind the pool's back, e.g. by a device reset. */
+				if (!handle.active || !usbInterface.isClaimed()) {
+					usbInterface.claim();
+					handle.active = true;
+					claims.incrementAndGet();
+				}
+			} catch ( UsbException uE ) {
+				handle.release();
+				throw uE;
+			} catch ( RuntimeException rE ) {
+				handle.release();
+				throw rE;
+			}
+		}
+
+		return new Lease(handle, null);
+	}
+
+	/**
+	 * Lease an open UsbPipe.
+	 * <p>
+	 * This also leases the pipe's UsbInterface, which is claimed if needed.
+	 * @param usbPipe The UsbPipe.
+	 * @return A Lease, which must be released.
+	 * @exception UsbException If the interface could not be claimed or the pipe could not be opened.
+	 */
+	public Lease lease(UsbPipe usbPipe) throws UsbException
+	{
+		Lease interfaceLease = lease(usbPipe.getUsbEndpoint().getUsbInterface());
+		Handle handle = acquire(usbPipe);
+
+		synchronized (handle) {
+			try {
+				/* It may have been closed behind the pool's back, e.g. after an error. */
+				if (!handle.active || !usbPipe.isOpen()) {
+					usbPipe.open();
+					handle.active = true;
+					opens.incrementAndGet();
+				}
+			} catch ( UsbException uE ) {
+				handle.release();
+				interfaceLease.release();
+				throw uE;
+			} catch ( RuntimeException rE ) {
+				handle.release();
+				interfaceLease.release();
+				throw rE;
+			}
+		}
+
+		return new Lease(handle, interfaceLease);
+	}
+
+	/**
+	 * Close all pipes and release all interfaces that aren't leased, and stop the timer.
+	 * <p>
+	 * Leased pipes and interfaces are closed or released when their last Lease is released.
+	 */
+	public void close()
+	{
+		List list = null;
+
+		synchronized (handles) {
+			closed = true;
+			list = new ArrayList(handles.values());
+		}
+
+		/* Pipes first, since their interfaces can't be released while they're open. */
+		for (int i=0; i<list.size(); i++)
+			if (((Handle)list.get(i)).target instanceof UsbPipe)
+				((Handle)list.get(i)).expire(-1);
+		for (int i=0; i<list.size(); i++)
+			if (((Handle)list.get(i)).target instanceof UsbInterface)
+				((Handle)list.get(i)).expire(-1);
+
+		timer.shutdownNow();
+	}
+
+	/** @return How many times an interface was actually claimed. */
+	public int getClaims() { return claims.get(); }
+
+	/** @return How many times a pipe was actually opened. */
+	public int getOpens() { return opens.get(); }
+
+	/**
+	 * Get the Handle for a target, with one more reference.
+	 * <p>
+	 * A Handle that expired (and was removed from the pool) after it was
+	 * gotten can't be used; in that case, this gets the target's new Handle.
+	 */
+	protected Handle acquire(Object target)
+	{
+		while (true) {
+			Handle handle = getHandle(target);
+			synchronized (handle) {
+				if (handle.acquire())
+					return handle;
+			}
+		}
+	}
+
+	protected Handle getHandle(Object target)
+	{
+		synchronized (handles) {
+			Handle handle = (Handle)handles.get(target);
+			if (null == handle) {
+				handle = new Handle(target);
+				handles.put(target, handle);
+			}
+			return handle;
+		}
+	}
+
+	/**
+	 * Called when a Handle has no more Leases.
+	 */
+	protected void idle(final Handle handle, final int generation)
+	{
+		/* Schedule while holding the lock close() sets closed with, so the timer isn't shut down in between. */
+		synchronized (handles) {
+			if (!closed && 0 < idleTimeout) {
+				timer.schedule(new Runnable() {
+						public void run() { handle.expire(generation); }
+					}, idleTimeout, TimeUnit.MILLISECONDS);
+				return;
+			}
+		}
+
+		handle.expire(generation);
+	}
+
+	/**
+	 * Called when a Handle has expired with no Leases.
+	 * <p>
+	 * Must be called while synchronized on the Handle.
+	 */
+	protected void remove(Handle handle)
+	{
+		synchronized (handles) {
+			if (handle == handles.get(handle.target))
+				handles.remove(handle.target);
+		}
+		handle.removed = true;
+	}
+
+	/**
+	 * A reference-counted claimed UsbInterface or open UsbPipe.
+	 */
+	protected class Handle
+	{
+		public Handle(Object target) { this.target = target; }
+
+		/**
+		 * Add a reference, unless this was removed from the pool.
+		 * <p>
+		 * Must be called while synchronized on this.
+		 */
+		public boolean acquire()
+		{
+			if (removed)
+				return false;
+			references++;
+			generation++;
+			return true;
+		}
+
+		public void release()
+		{
+			int idleGeneration = -1;
+
+			synchronized (this) {
+				if (0 == --references)
+					idleGeneration = generation;
+			}
+
+			if (0 <= idleGeneration)
+				idle(this, idleGeneration);
+		}
+
+		/**
+		 * Close or release, and remove this from the pool, if there are still no Leases
+		 * and there haven't been any since the given generation (-1 means regardless of generation).
+		 */
+		public void expire(int expectedGeneration)
+		{
+			synchronized (this) {
+				if (0 != references || removed)
+					return;
+				if (0 <= expectedGeneration && expectedGeneration != generation)
+					return;
+
+				if (active) {
+					active = false;
+
+					/* Failures here mean the device went away or something else
+					 * took over; either way there is nothing left for the pool to undo.
+					 */
+					try {
+						if (target instanceof UsbPipe)
+							((UsbPipe)target).close();
+						else
+							((UsbInterface)target).release();
+					} catch ( UsbException uE ) {
+					} catch ( RuntimeException rE ) {
+					}
+				}
+
+				remove(this);
+			}
+		}
+
+		public final Object target;
+		public int references = 0;
+		public int generation = 0;
+		public boolean active = false;
+		public boolean removed = false;
+	}
+
+	/**
+	 * A lease on a claimed UsbInterface or open UsbPipe.
+	 */
+	public class Lease
+	{
+		protected Lease(Handle handle, Lease interfaceLease)
+		{
+			this.handle = handle;
+			this.interfaceLease = interfaceLease;
+		}
+
+		/** @return The leased UsbInterface (for a pipe lease, the pipe's UsbInterface). */
+		public UsbInterface getUsbInterface()
+		{
+			if (null != interfaceLease)
+				return interfaceLease.getUsbInterface();
+			return (UsbInterface)handle.target;
+		}
+
+		/** @return The leased UsbPipe, or null if this is an interface lease. */
+		public UsbPipe getUsbPipe()
+		{
+			return null == interfaceLease ? null : (UsbPipe)handle.target;
+		}
+
+		/**
+		 * Release this Lease.
+		 * <p>
+		 * Releasing a Lease more than once has no effect.
+		 */
+		public void release()
+		{
+			synchronized (this) {
+				if (released)
+					return;
+				released = true;
+			}
+
+			handle.release();
+			if (null != interfaceLease)
+				interfaceLease.release();
+		}
+
+		private Handle handle = null;
+		private Lease interfaceLease = null;
+		private boolean released = false;
+	}
+
+	private long idleTimeout = 0;
+	private ScheduledExecutorService timer = null;
+	/* A Handle is removed from the map when it expires with no Leases, so the map only holds
+	 * interfaces and pipes that are leased or idle.  A removed Handle is never used again
+	 * (see acquire()), so a new Handle for the same target never overlaps with it.
+	 */
+	private Map handles = new HashMap();
+	private boolean closed = false;
+	private AtomicInteger claims = new AtomicInteger();
+	private AtomicInteger opens = new AtomicInteger();
+
+	private static UsbHandlePool defaultUsbHandlePool = null;
+
+	public static final long DEFAULT_IDLE_TIMEOUT = 5000;
+	public static final String IDLE_TIMEOUT_PROPERTY = "jsr80.example.idleTimeout";
+}
@@ -0,0 +1,643 @@
+/*
+ * Copyright (c) 1999 - 2001, International Business Machines Corporation.
+ * All Rights Reserved.
+ *
+ * This software is provided and licensed under the terms and conditions
+ * of the Common Public License:
+ * http://oss.software.ibm.com/developerworks/opensource/license-cpl.html
+ */
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+
+import javax.usb.util.*;
+
+/**
+ * Output for the example programs.
+ * <p>
+ * By default this just prints to System.out, the same as the examples always did.
+ * But console output is slow, and printing from the thread doing USB work
+ * (e.g. the HID mouse reader) slows that work down to the speed of the console.
+ * If the {@link #LOG_PROPERTY} system property is set, output is instead put
+ * on a bounded lock-free queue, and a background thread takes it off the queue and writes it,
+ * as text or as a compact binary log:
+ * <ul>
+ * <li><code>text</code> : text to System.out</li>
+ * <li><code>text:&lt;file&gt;</code> : text to a file</li>
+ * <li><code>binary:&lt;file&gt;</code> : binary records to a file; use <code>java UsbLog file=&lt;file&gt;</code> to read it</li>
+ * </ul>
+ * Data (e.g. a HID report) is logged with {@link #data(String,byte[],int,int)},
+ * which only copies the bytes; formatting them as hex is done by the writer thread
+ * (or, in a binary log, by whoever reads it).
+ * <p>
+ * Everything logged is written (in order) before the JVM exits normally;
+ * {@link #flush()} waits until everything logged so far has been written.
+ * If output is logged faster than it can be written and the queue fills up,
+ * further output is dropped (and counted) rather than using more and more memory;
+ * the writer notes how much was dropped once it catches up.
+ * Usage messages and other errors that end the program still go to System.err.
+ * <p>
+ * This class should not be used except by other example code.
+ */
+public class UsbLog
+{
+	/**
+	 * Read a binary log and print it as text.
+	 * @param argv The command-line parameters.
+	 */
+	public static void main(String argv[])
+	{
+		parseArgv(argv);
+
+		if (null == staticFileName) {
+			System.err.println(USAGE);
+			System.exit(1);
+		}
+
+		try {
+			DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(staticFileName)));
+			try {
+				BinarySink.read(input, new PrintWriter(new OutputStreamWriter(System.out), true));
+			} finally {
+				input.close();
+			}
+		} catch ( IOException ioE ) {
+			System.err.println("Could not read log " + staticFileName + " : " + ioE.getMessage());
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Log some text, followed by a newline.
+	 * @param object The text (or an Object to log the String value of).
+	 */
+	public static void println(Object object) { getSink().text(String.valueOf(object), true); }
+
+	/**
+	 * Log a newline.
+	 */
+	public static void println() { getSink().text("", true); }
+
+	/**
+	 * Log some text.
+	 * @param object The text (or an Object to log the String value of).
+	 */
+	public static void print(Object object) { getSink().text(String.valueOf(object), false); }
+
+	/**
+	 * Log some data.
+	 * <p>
+	 * This is shown as "Got &lt;length&gt; bytes of data from &lt;source&gt; : 0x.. 0x..".
+	 * The data is copied, so the buffer may be reused as soon as this returns.
+	 * @param source What the data came from, e.g. "HID mouse".
+	 * @param data The buffer.
+	 * @param offset The offset of the data in the buffer.
+	 * @param length The length of the data.
+	 */
+	public static void data(String source, byte[] data, int offset, int length) { getSink().data(source, data, offset, length); }
+
+	/**
+	 * Wait until everything logged so far has been written.
+	 */
+	public static void flush() { getSink().flush(); }
+
+	/**
+	 * Get a Writer that logs what is written to it (as text) each time it is flushed.
+	 * <p>
+	 * This is for code that writes to a Writer, so its output is kept in order with everything else.
+	 * @return A new Writer.
+	 */
+	public static Writer getWriter()
+	{
+		return new Writer() {
+				public void write(char[] cbuf, int off, int len) { stringBuffer.append(cbuf, off, len); }
+				public void flush()
+				{
+					if (0 < stringBuffer.length())
+						print(stringBuffer.toString());
+					stringBuffer.setLength(0);
+				}
+				public void close() { flush(); }
+
+				private StringBuffer stringBuffer = new StringBuffer();
+			};
+	}
+
+	/**
+	 * Get the Sink everything is logged to.
+	 * <p>
+	 * This is created, based on the {@link #LOG_PROPERTY} system property, when first used.
+	 * Once it exists, getting it doesn't lock, since everything logged goes through here.
+	 * @return The Sink.
+	 */
+	public static Sink getSink()
+	{
+		Sink currentSink = sink;
+
+		if (null == currentSink)
+			currentSink = createDefaultSink();
+
+		return currentSink;
+	}
+
+	/**
+	 * Set the Sink everything is logged to.
+	 * <p>
+	 * The previous Sink is flushed first.
+	 * @param newSink The new Sink.
+	 */
+	public static synchronized void setSink(Sink newSink)
+	{
+		if (null != sink)
+			sink.flush();
+		else
+			Runtime.getRuntime().addShutdownHook(new Thread() {
+					public void run() { flush(); }
+				});
+		sink = newSink;
+	}
+
+	/**
+	 * Create and set the Sink from the {@link #LOG_PROPERTY} system property, unless there already is one.
+	 * @return The Sink.
+	 */
+	protected static synchronized Sink createDefaultSink()
+	{
+		if (null == sink)
+			setSink(createSink(System.getProperty(LOG_PROPERTY)));
+		return sink;
+	}
+
+	/**
+	 * Create a Sink.
+	 * @param spec "text", "text:&lt;file&gt;", "binary:&lt;file&gt;", or null (or "console") for plain System.out.
+	 * @return The Sink.
+	 */
+	public static Sink createSink(String spec)
+	{
+		if (null == spec || "console".equals(spec))
+			return new ConsoleSink();
+
+		try {
+			if ("text".equals(spec))
+				return new AsyncSink(new TextSink(new OutputStreamWriter(System.out)));
+			if (spec.startsWith("text:"))
+				return new AsyncSink(new TextSink(new FileWriter(spec.substring(5))));
+			if (spec.startsWith("binary:"))
+				return new AsyncSink(new BinarySink(new FileOutputStream(spec.substring(7))));
+		} catch ( IOException ioE ) {
+			System.err.println("Could not open log " + spec + " : " + ioE.getMessage() + "; using System.out");
+			return new ConsoleSink();
+		}
+
+		System.err.println("Unknown log " + spec + "; using System.out");
+		return new ConsoleSink();
+	}
+
+	/**
+	 * Format some data the way {@link #data(String,byte[],int,int)} shows it.
+	 * @param source What the data came from.
+	 * @param data The buffer.
+	 * @param offset The offset of the data in the buffer.
+	 * @param length The length of the data.
+	 * @return The formatted data.
+	 */
+	public static String format(String source, byte[] data, int offset, int length)
+	{
+		StringBuffer stringBuffer = new StringBuffer(40 + source.length() + 5 * length);
+		stringBuffer.append("Got ").append(length).append(" bytes of data from ").append(source).append(" :");
+		for (int i=0; i<length; i++)
+			stringBuffer.append(" 0x").append(UsbUtil.toHexString(data[offset+i]));
+		return stringBuffer.toString();
+	}
+
+	/**
+	 * Where logged output goes.
+	 */
+	public static interface Sink
+	{
+		/**
+		 * Log text.
+		 * @param string The text.
+		 * @param newline If a newline follows the text.
+		 */
+		public void text(String string, boolean newline);
+
+		/**
+		 * Log data.  Implementations that keep the data must copy it.
+		 * @param source What the data came from.
+		 * @param data The buffer.
+		 * @param offset The offset of the data in the buffer.
+		 * @param length The length of the data.
+		 */
+		public void data(String source, byte[] data, int offset, int length);
+
+		/**
+		 * Write everything logged so far.
+		 */
+		public void flush();
+	}
+
+	/**
+	 * Sink that prints to System.out in the calling thread.
+	 */
+	public static class ConsoleSink implements Sink
+	{
+		public void text(String string, boolean newline)
+		{
+			if (newline)
+				System.out.println(string);
+			else
+				System.out.print(string);
+		}
+
+		public void data(String source, byte[] data, int offset, int length) { System.out.println(format(source, data, offset, length)); }
+
+		public void flush() { System.out.flush(); }
+	}
+
+	/**
+	 * Sink that writes text to a Writer.
+	 * <p>
+	 * This is not thread-safe; it is meant to be used by an AsyncSink's writer thread.
+	 */
+	public static class TextSink implements Sink
+	{
+		public TextSink(Writer writer) { this.writer = new BufferedWriter(writer); }
+
+		public void text(String string, boolean newline)
+		{
+			try {
+				writer.write(string);
+				if (newline)
+					writer.write(LINE_SEPARATOR);
+			} catch ( IOException ioE ) {
+				failed(ioE);
+			}
+		}
+
+		public void data(String source, byte[] data, int offset, int length) { text(format(source, data, offset, length), true); }
+
+		public void flush()
+		{
+			try {
+				writer.flush();
+			} catch ( IOException ioE ) {
+				failed(ioE);
+			}
+		}
+
+		/* Log output must not take down the program; complain once and carry on. */
+		protected void failed(IOException ioE)
+		{
+			if (!failed)
+				System.err.println("Log write failed : " + ioE.getMessage());
+			failed = true;
+		}
+
+		private Writer writer = null;
+		private boolean failed = false;
+	}
+
+	/**
+	 * Sink that writes binary records to an OutputStream.
+	 * <p>
+	 * The stream starts with {@link #MAGIC}; then each record is a type byte,
+	 * the System.nanoTime() it was logged at, and then for text a newline flag and
+	 * the (modified UTF-8) text, or for data the source and the data as a
+	 * byte array prefixed with its int length.
+	 * This is not thread-safe; it is meant to be used by an AsyncSink's writer thread.
+	 */
+	public static class BinarySink implements Sink
+	{
+		public BinarySink(OutputStream outputStream) throws IOException
+		{
+			output = new DataOutputStream(new BufferedOutputStream(outputStream));
+			output.writeLong(MAGIC);
+		}
+
+		public void text(String string, boolean newline) { text(System.nanoTime(), string, newline); }
+
+		public void data(String source, byte[] data, int offset, int length) { data(System.nanoTime(), source, data, offset, length); }
+
+		public void text(long nanos, String string, boolean newline)
+		{
+			try {
+				/* writeUTF() is limited to 64k bytes; longer text is split over records. */
+				for (int i=0; i<string.length() || 0 == i; i+=MAX_TEXT) {
+					boolean last = i + MAX_TEXT >= string.length();
+					output.writeByte(TYPE_TEXT);
+					output.writeLong(nanos);
+					output.writeBoolean(newline && last);
+					output.writeUTF(string.substring(i, Math.min(string.length(), i + MAX_TEXT)));
+				}
+			} catch ( IOException ioE ) {
+				failed(ioE);
+			}
+		}
+
+		public void data(long nanos, String source, byte[] data, int offset, int length)
+		{
+			try {
+				output.writeByte(TYPE_DATA);
+				output.writeLong(nanos);
+				output.writeUTF(source);
+				output.writeInt(length);
+				output.write(data, offset, length);
+			} catch ( IOException ioE ) {
+				failed(ioE);
+			}
+		}
+
+		public void flush()
+		{
+			try {
+				output.flush();
+			} catch ( IOException ioE ) {
+				failed(ioE);
+			}
+		}
+
+		/**
+		 * Read a binary log, and print it as text.
+		 * <p>
+		 * Each line is prefixed with its time, in ms since the first record.
+		 * @param input The binary log.
+		 * @param printWriter Where to print it.
+		 * @exception IOException If the log could not be read or is not a binary log.
+		 */
+		public static void read(DataInputStream input, PrintWriter printWriter) throws IOException
+		{
+			if (MAGIC != input.readLong())
+				throw new IOException("Not a binary log");
+
+			long start = 0;
+			boolean lineStart = true;
+
+			while (true) {
+				int type = input.read();
+				if (0 > type)
+					break;
+
+				long nanos = input.readLong();
+				if (0 == start)
+					start = nanos;
+				String time = "[" + ((nanos - start) / 1000) / 1000.0 + " ms] ";
+
+				if (TYPE_TEXT == type) {
+					boolean newline = input.readBoolean();
+					String string = input.readUTF();
+					printWriter.print((lineStart ? time : "") + string);
+					if (newline)
+						printWriter.println();
+					lineStart = newline;
+				} else if (TYPE_DATA == type) {
+					String source = input.readUTF();
+					int length = input.readInt();
+					if (0 > length)
+						throw new IOException("Invalid data length " + length);
+					byte[] data = new byte[length];
+					input.readFully(data);
+					if (!lineStart)
+						printWriter.println();
+					printWriter.println(time + format(source, data, 0, data.length));
+					lineStart = true;
+				} else {
+					throw new IOException("Unknown record type " + type);
+				}
+			}
+
+			printWriter.flush();
+		}
+
+		protected void failed(IOException ioE)
+		{
+			if (!failed)
+				System.err.println("Log write failed : " + ioE.getMessage());
+			failed = true;
+		}
+
+		private DataOutputStream output = null;
+		private boolean failed = false;
+
+		public static final long MAGIC = 0x4a535238304c4f47L; /* "JSR80LOG" */
+
+		private static final int TYPE_TEXT = 1;
+		private static final int TYPE_DATA = 2;
+		private static final int MAX_TEXT = 16384;
+	}
+
+	/**
+	 * Sink that queues everything for a background thread to pass to another Sink.
+	 * <p>
+	 * Logging adds to a lock-free queue and, only if the writer thread is idle, wakes
+	 * it up; it never waits for output.  The writer thread flushes the other Sink
+	 * whenever it empties the queue, so output still appears promptly.
+	 * <p>
+	 * The queue holds at most a given number of things; when it is full, what is logged
+	 * is dropped and counted instead, and the writer logs how many were dropped
+	 * when it next empties the queue.  Flushes are never dropped.
+	 */
+	public static class AsyncSink implements Sink
+	{
+		public AsyncSink(Sink sink) { this(sink, DEFAULT_CAPACITY); }
+
+		/**
+		 * Constructor.
+		 * @param sink The Sink to pass everything to.
+		 * @param capacity The most things to queue.
+		 */
+		public AsyncSink(Sink sink, int capacity)
+		{
+			this.sink = sink;
+			this.capacity = capacity;
+
+			writer = new Thread(new Runnable() {
+					public void run() { write(); }
+				}, "UsbLog writer");
+			writer.setDaemon(true);
+			writer.start();
+		}
+
+		public void text(String string, boolean newline)
+		{
+			if (reserve())
+				add(new Event(System.nanoTime(), string, newline, null, null));
+		}
+
+		public void data(String source, byte[] data, int offset, int length)
+		{
+			if (!reserve())
+				return;
+
+			byte[] copy = new byte[length];
+			System.arraycopy(data, offset, copy, 0, length);
+			add(new Event(System.nanoTime(), null, false, source, copy));
+		}
+
+		/**
+		 * Wait until the writer thread has written and flushed everything logged before this.
+		 */
+		public void flush()
+		{
+			CountDownLatch latch = new CountDownLatch(1);
+			add(new Event(0, null, false, null, null, latch));
+			try {
+				latch.await();
+			} catch ( InterruptedException iE ) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		/**
+		 * Get the number of things dropped because the queue was full.
+		 * @return The number dropped so far.
+		 */
+		public long getDropped() { return dropped.get(); }
+
+		/**
+		 * Reserve room in the queue for one thing.
+		 * @return If there is room; if not, the thing is counted as dropped.
+		 */
+		protected boolean reserve()
+		{
+			if (queued.incrementAndGet() <= capacity)
+				return true;
+
+			queued.decrementAndGet();
+			dropped.incrementAndGet();
+			return false;
+		}
+
+		protected void add(Event event)
+		{
+			queue.offer(event);
+			if (idle)
+				LockSupport.unpark(writer);
+		}
+
+		protected void write()
+		{
+			while (true) {
+				Event event = (Event)queue.poll();
+
+				if (null == event) {
+					long newlyDropped = dropped.get() - reportedDropped;
+					if (0 < newlyDropped) {
+						reportedDropped += newlyDropped;
+						sink.text("UsbLog dropped " + newlyDropped + " messages (" + reportedDropped + " in total) because the queue was full", true);
+					}
+					sink.flush();
+					idle = true;
+					/* Check again, in case something was added before idle was set. */
+					if (queue.isEmpty())
+						LockSupport.park(this);
+					idle = false;
+					continue;
+				}
+
+				if (null != event.latch) {
+					sink.flush();
+					event.latch.countDown();
+					continue;
+				}
+
+				queued.decrementAndGet();
+
+				if (null != event.data) {
+					if (sink instanceof BinarySink)
+						((BinarySink)sink).data(event.nanos, event.source, event.data, 0, event.data.length);
+					else
+						sink.data(event.source, event.data, 0, event.data.length);
+				} else {
+					if (sink instanceof BinarySink)
+						((BinarySink)sink).text(event.nanos, event.string, event.newline);
+					else
+						sink.text(event.string, event.newline);
+				}
+			}
+		}
+
+		/**
+		 * One logged thing.
+		 */
+		protected static class Event
+		{
+			public Event(long nanos, String string, boolean newline, String source, byte[] data) { this(nanos, string, newline, source, data, null); }
+
+			public Event(long nanos, String string, boolean newline, String source, byte[] data, CountDownLatch latch)
+			{
+				this.nanos = nanos;
+				this.string = string;
+				this.newline = newline;
+				this.source = source;
+				this.data = data;
+				this.latch = latch;
+			}
+
+			public final long nanos;
+			public final String string;
+			public final boolean newline;
+			public final String source;
+			public final byte[] data;
+			public final CountDownLatch latch;
+		}
+
+		private Sink sink = null;
+		private Thread writer = null;
+		private Queue queue = new ConcurrentLinkedQueue();
+		private volatile boolean idle = false;
+		private int capacity = DEFAULT_CAPACITY;
+		private AtomicInteger queued = new AtomicInteger();
+		private AtomicLong dropped = new AtomicLong();
+		/* Only used by the writer thread. */
+		private long reportedDropped = 0;
+
+		public static final int DEFAULT_CAPACITY = 65536;
+	}
+
+	/**
+	 * Parse the parameters.
+	 * @param argv The command-line parameters.
+	 */
+	public static void parseArgv(String argv[])
+	{
+		for (int i=0; i<argv.length; i++) {
+			int equalsIndex = argv[i].indexOf('=');
+			try {
+				String key = argv[i].substring(0, equalsIndex);
+				String value = argv[i].substring(equalsIndex+1);
+				if (key.equals(FILE_KEY))
+					staticFileName = value;
+				else {
+					System.err.println("Unrecognized key \"" + key + "\"\n" + USAGE);
+					System.exit(1);
+				}
+			} catch ( Exception e ) {
+				System.err.println("Invalid key-value pair \"" + argv[i] + "\"\n" + USAGE);
+				System.exit(1);
+			}
+		}
+	}
+
+	private static volatile Sink sink = null;
+
+	private static String staticFileName = null;
+
+	public static final String LOG_PROPERTY = "jsr80.example.log";
+
+	private static final String LINE_SEPARATOR = System.getProperty("line.separator");
+
+	private static final String FILE_KEY = "file";
+
+	private static final String KEYS =
+		"\t" + FILE_KEY + " (a binary log to show as text)";
+
+	private static final String USAGE =
+		"Usage : java UsbLog <key=value>\n" +
+		"\n" +
+		"\tvalid keys are:\n" + KEYS;
+}
@@ -0,0 +1,569 @@
+/*
+ * Copyright (c) 1999 - 2001, International Business Machines Corporation.
+ * All Rights Reserved.
+ *
+ * This software is provided and licensed under the terms and conditions
+ * of the Common Public License:
+ * http://oss.software.ibm.com/developerworks/opensource/license-cpl.html
+ */
+
+import java.lang.management.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.*;
+
+import javax.management.*;
+import javax.usb.*;
+import javax.usb.event.*;
+import javax.usb.util.*;
+
+/**
+ * Metrics for pipes, devices and topology enumeration.
+ * <p>
+ * Pipes and devices are metered by wrapping them, see {@link #meter(UsbPipe)}
+ * and {@link #meter(UsbDevice)}; topology walks are timed by the code doing
+ * the walk, see {@link #recordEnumeration(String,long,int)}.
+ * All the counters are LongAdders, which are striped internally, so threads
+ * updating the same counters don't contend with each other; the only cost on
+ * the submission path is a few uncontended adds.
+ * <p>
+ * The counters can be read in two ways: pulled as a consistent-enough
+ * {@link Snapshot} with {@link #snapshot()}, or through JMX, once
+ * {@link #registerMBeans()} has been called (or the {@link #JMX_PROPERTY}
+ * system property is set for the default instance).  Each pipe, device and
+ * enumeration gets its own MBean under the {@link #JMX_DOMAIN} domain.
+ * <p>
+ * Pipe and device counters are kept by where the device is (its {@link UsbPortPath})
+ * and the endpoint address, not by the UsbPipe or UsbDevice object, so metering the
+ * same endpoint again (e.g. through a new wrapper) shares its counters.  When a device
+ * is detached its counters and MBeans are dropped, so hot-plugging doesn't make them
+ * pile up.  Devices that aren't on a bus (e.g. already disconnected) get counters that
+ * work but aren't kept.
+ * The example programs print a Snapshot before exiting if the
+ * {@link #PRINT_PROPERTY} system property is set.
+ * <p>
+ * This class should not be used except by other example code.
+ */
+public class UsbMetrics implements UsbServicesListener
+{
+	/**
+	 * Get the default UsbMetrics.
+	 * <p>
+	 * If the {@link #JMX_PROPERTY} system property is set, its MBeans are registered.
+	 * @return The default UsbMetrics.
+	 */
+	public static synchronized UsbMetrics getDefault()
+	{
+		if (null == defaultUsbMetrics) {
+			defaultUsbMetrics = new UsbMetrics();
+			if (null != System.getProperty(JMX_PROPERTY))
+				defaultUsbMetrics.registerMBeans();
+		}
+		return defaultUsbMetrics;
+	}
+
+	/**
+	 * Wrap a UsbPipe so its submissions are counted.
+	 * <p>
+	 * Metering the same UsbPipe more than once shares the same counters.
+	 * @param usbPipe The UsbPipe.
+	 * @return A metered UsbPipe.
+	 */
+	public UsbPipe meter(UsbPipe usbPipe)
+	{
+		if (usbPipe instanceof MeteredUsbPipe)
+			return usbPipe;
+		return new MeteredUsbPipe(usbPipe, getCounters(usbPipe));
+	}
+
+	/**
+	 * Wrap a UsbDevice so its (Default Control Pipe) submissions are counted.
+	 * <p>
+	 * Metering the same UsbDevice more than once shares the same counters.
+	 * @param usbDevice The UsbDevice.
+	 * @return A metered UsbDevice.
+	 */
+	public UsbDevice meter(UsbDevice usbDevice)
+	{
+		if (usbDevice instanceof MeteredUsbDevice)
+			return usbDevice;
+		return new MeteredUsbDevice(usbDevice, getCounters(usbDevice));
+	}
+
+	/**
+	 * Get the SubmissionCounters for a UsbPipe.
+	 * @param usbPipe The (unwrapped) UsbPipe.
+	 * @return The SubmissionCounters.
+	 */
+	public SubmissionCounters getCounters(UsbPipe usbPipe)
+	{
+		UsbEndpoint usbEndpoint = usbPipe.getUsbEndpoint();
+		UsbDevice usbDevice = usbEndpoint.getUsbInterface().getUsbConfiguration().getUsbDevice();
+		UsbPortPath usbPortPath = UsbPortPath.getUsbPortPath(usbDevice);
+		String endpoint = " endpoint 0x" + UsbUtil.toHexString(usbEndpoint.getUsbEndpointDescriptor().bEndpointAddress());
+
+		if (null == usbPortPath)
+			return new SubmissionCounters(TYPE_PIPE, getName(usbDevice, null) + endpoint);
+
+		String key = usbPortPath + endpoint;
+		SubmissionCounters counters = (SubmissionCounters)submissionCounters.get(key);
+		if (null == counters)
+			counters = addCounters(usbDevice, key, new SubmissionCounters(TYPE_PIPE, getName(usbDevice, usbPortPath) + endpoint));
+		return counters;
+	}
+
+	/**
+	 * Get the SubmissionCounters for a UsbDevice.
+	 * @param usbDevice The (unwrapped) UsbDevice.
+	 * @return The SubmissionCounters.
+	 */
+	public SubmissionCounters getCounters(UsbDevice usbDevice)
+	{
+		UsbPortPath usbPortPath = UsbPortPath.getUsbPortPath(usbDevice);
+
+		if (null == usbPortPath)
+			return new SubmissionCounters(TYPE_DEVICE, getName(usbDevice, null));
+
+		String key = usbPortPath.toString();
+		SubmissionCounters counters = (SubmissionCounters)submissionCounters.get(key);
+		if (null == counters)
+			counters = addCounters(usbDevice, key, new SubmissionCounters(TYPE_DEVICE, getName(usbDevice, usbPortPath)));
+		return counters;
+	}
+
+	public void usbDeviceAttached(UsbServicesEvent usbServicesEvent) { }
+
+	public void usbDeviceDetached(UsbServicesEvent usbServicesEvent) { remove(usbServicesEvent.getUsbDevice()); }
+
+	/**
+	 * Drop the counters of a UsbDevice and its pipes, and unregister their MBeans.
+	 * @param usbDevice The UsbDevice.
+	 */
+	public void remove(UsbDevice usbDevice)
+	{
+		Set keys = (Set)keysByDevice.remove(usbDevice);
+
+		if (null == keys)
+			return;
+
+		Iterator iterator = keys.iterator();
+		while (iterator.hasNext()) {
+			SubmissionCounters counters = (SubmissionCounters)submissionCounters.remove(iterator.next());
+			if (null != counters)
+				unregister(counters.type, counters.name);
+		}
+	}
+
+	/**
+	 * Record one topology walk.
+	 * @param name The name of the walk, e.g. "FindUsbDevice.getAllUsbDevices".
+	 * @param nanos The time the walk took, in nanoseconds.
+	 * @param devices The number of devices the walk found (or visited).
+	 */
+	public void recordEnumeration(String name, long nanos, int devices)
+	{
+		EnumerationCounters counters = (EnumerationCounters)enumerationCounters.get(name);
+
+		if (null == counters) {
+			EnumerationCounters newCounters = new EnumerationCounters(name);
+			counters = (EnumerationCounters)enumerationCounters.putIfAbsent(name, newCounters);
+			if (null == counters) {
+				counters = newCounters;
+				register(counters, EnumerationCountersMBean.class, TYPE_ENUMERATION, name);
+			}
+		}
+
+		counters.walks.increment();
+		counters.devices.add(devices);
+		counters.nanos.add(nanos);
+		counters.maxNanos.accumulate(nanos);
+	}
+
+	/**
+	 * Take a Snapshot of all the counters.
+	 * <p>
+	 * Each counter is read once; counters still being updated may be slightly
+	 * inconsistent with each other, but never go backwards.
+	 * @return A Snapshot.
+	 */
+	public Snapshot snapshot()
+	{
+		List submissions = new ArrayList();
+		List enumerations = new ArrayList();
+
+		Iterator iterator = submissionCounters.values().iterator();
+		while (iterator.hasNext())
+			submissions.add(((SubmissionCounters)iterator.next()).snapshot());
+
+		iterator = enumerationCounters.values().iterator();
+		while (iterator.hasNext())
+			enumerations.add(((EnumerationCounters)iterator.next()).snapshot());
+
+		return new Snapshot(submissions, enumerations);
+	}
+
+	/**
+	 * Register MBeans for all current and future counters with the platform MBeanServer.
+	 */
+	public void registerMBeans()
+	{
+		List all = new ArrayList();
+
+		synchronized (this) {
+			if (null != mBeanServer)
+				return;
+			mBeanServer = ManagementFactory.getPlatformMBeanServer();
+			all.addAll(submissionCounters.values());
+			all.addAll(enumerationCounters.values());
+		}
+
+		for (int i=0; i<all.size(); i++) {
+			Object counters = all.get(i);
+			if (counters instanceof SubmissionCounters)
+				register(counters, SubmissionCountersMBean.class, ((SubmissionCounters)counters).type, ((SubmissionCounters)counters).name);
+			else
+				register(counters, EnumerationCountersMBean.class, TYPE_ENUMERATION, ((EnumerationCounters)counters).name);
+		}
+	}
+
+	/**
+	 * Add counters, unless there already are some for the key.
+	 * @param usbDevice The UsbDevice the counters belong to, so they can be dropped when it is detached.
+	 * @param key The key.
+	 * @param newCounters The counters to add.
+	 * @return The counters for the key.
+	 */
+	protected SubmissionCounters addCounters(UsbDevice usbDevice, String key, SubmissionCounters newCounters)
+	{
+		SubmissionCounters counters = (SubmissionCounters)submissionCounters.putIfAbsent(key, newCounters);
+		if (null != counters)
+			return counters;
+
+		listen();
+
+		Set keys = (Set)keysByDevice.get(usbDevice);
+		if (null == keys) {
+			Set newKeys = ConcurrentHashMap.newKeySet();
+			keys = (Set)keysByDevice.putIfAbsent(usbDevice, newKeys);
+			if (null == keys)
+				keys = newKeys;
+		}
+		keys.add(key);
+
+		register(newCounters, SubmissionCountersMBean.class, newCounters.type, newCounters.name);
+		return newCounters;
+	}
+
+	/**
+	 * Start listening for detached devices, if not already.
+	 */
+	protected synchronized void listen()
+	{
+		if (listening)
+			return;
+
+		try {
+			ShowTopology.getUsbServices().addUsbServicesListener(this);
+			listening = true;
+		} catch ( RuntimeException rE ) {
+			/* Without the UsbServices, counters just aren't dropped; they still work. */
+		}
+	}
+
+	/**
+	 * Register an MBean, if registration is enabled.
+	 */
+	protected void register(Object counters, Class mBeanInterface, String type, String name)
+	{
+		MBeanServer server = mBeanServer;
+
+		if (null == server)
+			return;
+
+		try {
+			ObjectName objectName = getObjectName(type, name);
+			if (!server.isRegistered(objectName))
+				server.registerMBean(new StandardMBean(counters, mBeanInterface), objectName);
+		} catch ( JMException jmE ) {
+			/* Metrics are not worth failing over; the counters still work without JMX. */
+			System.err.println("Couldn't register MBean for " + name + " : " + jmE.getMessage());
+		}
+	}
+
+	/**
+	 * Unregister an MBean, if registration is enabled.
+	 */
+	protected void unregister(String type, String name)
+	{
+		MBeanServer server = mBeanServer;
+
+		if (null == server)
+			return;
+
+		try {
+			ObjectName objectName = getObjectName(type, name);
+			if (server.isRegistered(objectName))
+				server.unregisterMBean(objectName);
+		} catch ( JMException jmE ) {
+			System.err.println("Couldn't unregister MBean for " + name + " : " + jmE.getMessage());
+		}
+	}
+
+	protected ObjectName getObjectName(String type, String name) throws MalformedObjectNameException
+	{
+		return new ObjectName(JMX_DOMAIN + ":type=" + type + ",name=" + ObjectName.quote(name));
+	}
+
+	/**
+	 * Get a name for a UsbDevice.
+	 * @param usbDevice The UsbDevice.
+	 * @param usbPortPath Where the device is, or null if it isn't on a bus.
+	 * @return The name, which is unique while the device is attached.
+	 */
+	protected String getName(UsbDevice usbDevice, UsbPortPath usbPortPath)
+	{
+		UsbDeviceDescriptor desc = usbDevice.getUsbDeviceDescriptor();
+		return "0x" + UsbUtil.toHexString(desc.idVendor()) + ":0x" + UsbUtil.toHexString(desc.idProduct()) +
+			(null == usbPortPath ? " #" + sequence.incrementAndGet() : " at " + usbPortPath);
+	}
+
+	/**
+	 * MBean interface for SubmissionCounters.
+	 */
+	public static interface SubmissionCountersMBean
+	{
+		/** @return The number of UsbIrps submitted. */
+		public long getSubmissions();
+		/** @return The number of UsbIrps completed successfully. */
+		public long getCompletions();
+		/** @return The number of bytes moved by completed UsbIrps. */
+		public long getBytes();
+		/** @return The number of UsbIrps completed with an error (not counting aborts). */
+		public long getErrors();
+		/** @return The number of UsbIrps aborted. */
+		public long getAborts();
+		/** @return The number of times abortAllSubmissions() was called. */
+		public long getAbortRequests();
+		/** @return The number of UsbIrps submitted but not yet completed. */
+		public long getInFlight();
+	}
+
+	/**
+	 * Counters for a UsbPipe or the Default Control Pipe of a UsbDevice.
+	 */
+	public static class SubmissionCounters implements SubmissionCountersMBean
+	{
+		public SubmissionCounters(String type, String name)
+		{
+			this.type = type;
+			this.name = name;
+		}
+
+		public long getSubmissions() { return submissions.sum(); }
+		public long getCompletions() { return completions.sum(); }
+		public long getBytes() { return bytes.sum(); }
+		public long getErrors() { return errors.sum(); }
+		public long getAborts() { return aborts.sum(); }
+		public long getAbortRequests() { return abortRequests.sum(); }
+		public long getInFlight() { return Math.max(0, getSubmissions() - getCompletions() - getErrors() - getAborts()); }
+
+		/** @return The name. */
+		public String getName() { return name; }
+
+		/**
+		 * Count one completed UsbIrp.
+		 * @param usbIrp The completed UsbIrp.
+		 */
+		public void complete(UsbIrp usbIrp)
+		{
+			if (!usbIrp.isUsbException()) {
+				completions.increment();
+				bytes.add(usbIrp.getActualLength());
+			} else if (usbIrp.getUsbException() instanceof UsbAbortException) {
+				aborts.increment();
+			} else {
+				errors.increment();
+			}
+		}
+
+		protected SubmissionSnapshot snapshot()
+		{
+			return new SubmissionSnapshot(type, name, getSubmissions(), getCompletions(), getBytes(), getErrors(), getAborts(), getAbortRequests());
+		}
+
+		public final LongAdder submissions = new LongAdder();
+		public final LongAdder completions = new LongAdder();
+		public final LongAdder bytes = new LongAdder();
+		public final LongAdder errors = new LongAdder();
+		public final LongAdder aborts = new LongAdder();
+		public final LongAdder abortRequests = new LongAdder();
+
+		protected final String type;
+		protected final String name;
+	}
+
+	/**
+	 * MBean interface for EnumerationCounters.
+	 */
+	public static interface EnumerationCountersMBean
+	{
+		/** @return The number of walks. */
+		public long getWalks();
+		/** @return The total number of devices found by all walks. */
+		public long getDevices();
+		/** @return The total time of all walks, in nanoseconds. */
+		public long getTotalNanos();
+		/** @return The time of the slowest walk, in nanoseconds. */
+		public long getMaxNanos();
+		/** @return The average time of a walk, in milliseconds. */
+		public double getAverageMillis();
+	}
+
+	/**
+	 * Counters for one kind of topology walk.
+	 */
+	public static class EnumerationCounters implements EnumerationCountersMBean
+	{
+		public EnumerationCounters(String name) { this.name = name; }
+
+		public long getWalks() { return walks.sum(); }
+		public long getDevices() { return devices.sum(); }
+		public long getTotalNanos() { return nanos.sum(); }
+		public long getMaxNanos() { return maxNanos.get(); }
+
+		public double getAverageMillis()
+		{
+			long count = getWalks();
+			return 0 == count ? 0 : getTotalNanos() / (count * 1000000.0);
+		}
+
+		protected EnumerationSnapshot snapshot()
+		{
+			return new EnumerationSnapshot(name, getWalks(), getDevices(), getTotalNanos(), getMaxNanos());
+		}
+
+		public final LongAdder walks = new LongAdder();
+		public final LongAdder devices = new LongAdder();
+		public final LongAdder nanos = new LongAdder();
+		public final LongAccumulator maxNanos = new LongAccumulator(new LongBinaryOperator() {
+				public long applyAsLong(long left, long right) { return Math.max(left, right); }
+			}, 0);
+
+		protected final String name;
+	}
+
+	/**
+	 * Immutable copy of one SubmissionCounters.
+	 */
+	public static class SubmissionSnapshot
+	{
+		public SubmissionSnapshot(String type, String name, long submissions, long completions, long bytes, long errors, long aborts, long abortRequests)
+		{
+			this.type = type;
+			this.name = name;
+			this.submissions = submissions;
+			this.completions = completions;
+			this.bytes = bytes;
+			this.errors = errors;
+			this.aborts = aborts;
+			this.abortRequests = abortRequests;
+		}
+
+		public String toString()
+		{
+			return type + " " + name + " : submissions " + submissions + " completions " + completions + " bytes " + bytes +
+				" errors " + errors + " aborts " + aborts + " abortRequests " + abortRequests;
+		}
+
+		public final String type;
+		public final String name;
+		public final long submissions;
+		public final long completions;
+		public final long bytes;
+		public final long errors;
+		public final long aborts;
+		public final long abortRequests;
+	}
+
+	/**
+	 * Immutable copy of one EnumerationCounters.
+	 */
+	public static class EnumerationSnapshot
+	{
+		public EnumerationSnapshot(String name, long walks, long devices, long nanos, long maxNanos)
+		{
+			this.name = name;
+			this.walks = walks;
+			this.devices = devices;
+			this.nanos = nanos;
+			this.maxNanos = maxNanos;
+		}
+
+		public String toString()
+		{
+			return TYPE_ENUMERATION + " " + name + " : walks " + walks + " devices " + devices +
+				" total " + (nanos / 1000) + " us max " + (maxNanos / 1000) + " us";
+		}
+
+		public final String name;
+		public final long walks;
+		public final long devices;
+		public final long nanos;
+		public final long maxNanos;
+	}
+
+	/**
+	 * Immutable copy of all the counters at one time.
+	 */
+	public static class Snapshot
+	{
+		public Snapshot(List submissions, List enumerations)
+		{
+			this.submissions = Collections.unmodifiableList(submissions);
+			this.enumerations = Collections.unmodifiableList(enumerations);
+			this.time = System.currentTimeMillis();
+		}
+
+		/** @return The SubmissionSnapshots, one per metered pipe or device. */
+		public List getSubmissionSnapshots() { return submissions; }
+
+		/** @return The EnumerationSnapshots, one per kind of walk. */
+		public List getEnumerationSnapshots() { return enumerations; }
+
+		/** @return The time (as System.currentTimeMillis()) the Snapshot was taken. */
+		public long getTime() { return time; }
+
+		public String toString()
+		{
+			StringBuffer stringBuffer = new StringBuffer();
+			for (int i=0; i<enumerations.size(); i++)
+				stringBuffer.append(enumerations.get(i)).append('\n');
+			for (int i=0; i<submissions.size(); i++)
+				stringBuffer.append(submissions.get(i)).append('\n');
+			return stringBuffer.toString();
+		}
+
+		private final List submissions;
+		private final List enumerations;
+		private final long time;
+	}
+
+	/* Key (port path, plus endpoint for pipes) -> SubmissionCounters, and UsbDevice -> Set of its keys. */
+	private ConcurrentMap submissionCounters = new ConcurrentHashMap();
+	private ConcurrentMap keysByDevice = new ConcurrentHashMap();
+	private boolean listening = false;
+	private ConcurrentMap enumerationCounters = new ConcurrentHashMap();
+	private AtomicLong sequence = new AtomicLong();
+	private volatile MBeanServer mBeanServer = null;
+
+	private static UsbMetrics defaultUsbMetrics = null;
+
+	public static final String JMX_PROPERTY = "jsr80.example.jmx";
+	public static final String PRINT_PROPERTY = "jsr80.example.metrics";
+	public static final String JMX_DOMAIN = "jsr80.example";
+
+	public static final String TYPE_PIPE = "UsbPipe";
+	public static final String TYPE_DEVICE = "UsbDevice";
+	public static final String TYPE_ENUMERATION = "Enumeration";
+}
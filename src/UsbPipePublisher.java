@@ -0,0 +1,629 @@
+/*
+ * Copyright (c) 1999 - 2001, International Business Machines Corporation.
+ * All Rights Reserved.
+ *
+ * This software is provided and licensed under the terms and conditions
+ * of the Common Public License:
+ * http://oss.software.ibm.com/developerworks/opensource/license-cpl.html
+ */
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import javax.usb.*;
+import javax.usb.util.*;
+
+/**
+ * Publish the data from an in-direction UsbPipe as a Flow.Publisher.
+ * <p>
+ * MouseDriver.HidMouseRunnable reads as fast as the device sends, whether or not
+ * anyone is ready for the data.  This instead lets the Subscriber's demand decide how
+ * many UsbIrps are outstanding on the pipe: with no demand, nothing is submitted,
+ * so the host stops polling the endpoint and the device holds on to its data.  As the
+ * Subscriber requests more, more UsbIrps (up to maxOutstanding) are submitted, each
+ * with its own buffer of the endpoint's wMaxPacketSize, and each is resubmitted as soon
+ * as it completes while there is still demand.
+ * <p>
+ * The pipe can also be kept polling without demand (minOutstanding), so that the data
+ * is read promptly and only the Subscriber has to catch up; and UsbIrps already
+ * submitted can complete after demand has dropped.  Data that arrives without demand
+ * is buffered, up to bufferSize; when the buffer is full the {@link OverflowPolicy}
+ * decides what happens to the new data.  Dropped and coalesced counts are kept,
+ * so loss is never silent.
+ * <p>
+ * The Subscriber is called by an Executor (by default the common ForkJoinPool), never
+ * by the pipe's completion thread, so a slow Subscriber doesn't hold up the pipe;
+ * completed UsbIrps are resubmitted straight away, whatever the Subscriber is doing.
+ * Each onNext gets a new byte[] of the transferred length.  Only one Subscriber is
+ * allowed; the pipe must be open, and isn't closed by this.  Cancelling the
+ * Subscription aborts all submissions on the pipe.  A failed submission ends the
+ * stream with onError, after any buffered data the Subscriber has demand for.
+ * <p>
+ * This class should not be used except by other example code.
+ */
+public class UsbPipePublisher implements Flow.Publisher<byte[]>
+{
+	public static void main(String argv[])
+	{
+		parseArgv(argv);
+
+		UsbEndpointIndex.Query query = new UsbEndpointIndex.Query();
+		query.setType(UsbConst.ENDPOINT_TYPE_INTERRUPT);
+		query.setDirection(UsbConst.ENDPOINT_DIRECTION_IN);
+		query.setInterfaceClass(MouseDriver.HID_CLASS);
+
+		List usbEndpoints = null;
+		try {
+			usbEndpoints = UsbEndpointIndex.getDefault().find(query);
+		} catch ( UsbException uE ) {
+			UsbLog.println("Could not index the topology : " + uE.getMessage());
+			return;
+		}
+
+		/* The MOUSE_COALESCER only makes sense for a mouse. */
+		UsbEndpoint usbEndpoint = null;
+		for (int i=0; i<usbEndpoints.size() && null == usbEndpoint; i++)
+			if (MouseDriver.checkUsbInterfaceIsMouse(((UsbEndpoint)usbEndpoints.get(i)).getUsbInterface()))
+				usbEndpoint = (UsbEndpoint)usbEndpoints.get(i);
+
+		if (null == usbEndpoint) {
+			UsbLog.println("No HID mouse interrupt-in endpoints were found.");
+			return;
+		}
+		UsbHandlePool.Lease interfaceLease = null;
+		UsbHandlePool.Lease pipeLease = null;
+
+		try {
+			interfaceLease = UsbHandlePool.getDefault().lease(usbEndpoint.getUsbInterface());
+			pipeLease = UsbHandlePool.getDefault().lease(usbEndpoint.getUsbPipe());
+		} catch ( UsbException uE ) {
+			UsbLog.println("Could not claim interface or open pipe : " + uE.getMessage());
+			if (null != interfaceLease)
+				interfaceLease.release();
+			return;
+		}
+
+		UsbPipePublisher publisher = new UsbPipePublisher(pipeLease.getUsbPipe(), staticMaxOutstanding, staticMinOutstanding,
+			staticBufferSize, staticOverflowPolicy, MOUSE_COALESCER);
+		final CountDownLatch done = new CountDownLatch(1);
+		final long delay = staticDelay;
+
+		UsbLog.println("Reading endpoint 0x" + UsbUtil.toHexString(usbEndpoint.getUsbEndpointDescriptor().bEndpointAddress()) +
+			" for " + staticTime + " ms, taking " + delay + " ms to handle each report.");
+
+		/* This Subscriber is slow, and only asks for one report at a time. */
+		publisher.subscribe(new Flow.Subscriber<byte[]>() {
+				public void onSubscribe(Flow.Subscription subscription)
+				{
+					this.subscription = subscription;
+					subscription.request(1);
+				}
+				public void onNext(byte[] data)
+				{
+					UsbLog.data("HID endpoint", data, 0, data.length);
+					try {
+						Thread.sleep(delay);
+					} catch ( InterruptedException iE ) {
+					}
+					subscription.request(1);
+				}
+				public void onError(Throwable throwable)
+				{
+					UsbLog.println("Stream failed : " + throwable.getMessage());
+					done.countDown();
+				}
+				public void onComplete() { done.countDown(); }
+
+				private Flow.Subscription subscription = null;
+			});
+
+		try {
+			done.await(staticTime, TimeUnit.MILLISECONDS);
+		} catch ( InterruptedException iE ) {
+		}
+
+		publisher.cancel();
+
+		UsbLog.println(publisher.toString());
+
+		pipeLease.release();
+		interfaceLease.release();
+		UsbHandlePool.getDefault().close();
+	}
+
+	/**
+	 * Constructor.
+	 * @param usbPipe The (open) in-direction UsbPipe.
+	 * @param maxOutstanding The most UsbIrps to have submitted at once.
+	 * @param minOutstanding The number of UsbIrps to keep submitted even without demand.
+	 * @param bufferSize The most data to keep for the Subscriber.
+	 * @param overflowPolicy What to do when the buffer is full.
+	 * @param coalescer How to combine data, for OverflowPolicy.COALESCE; otherwise it may be null.
+	 * @exception IllegalArgumentException If the pipe isn't in-direction, or the numbers don't make sense.
+	 */
+	public UsbPipePublisher(UsbPipe usbPipe, int maxOutstanding, int minOutstanding, int bufferSize, OverflowPolicy overflowPolicy, Coalescer coalescer)
+		throws IllegalArgumentException
+	{
+		this(usbPipe, maxOutstanding, minOutstanding, bufferSize, overflowPolicy, coalescer, ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * Constructor.
+	 * @param usbPipe The (open) in-direction UsbPipe.
+	 * @param maxOutstanding The most UsbIrps to have submitted at once.
+	 * @param minOutstanding The number of UsbIrps to keep submitted even without demand.
+	 * @param bufferSize The most data to keep for the Subscriber.
+	 * @param overflowPolicy What to do when the buffer is full.
+	 * @param coalescer How to combine data, for OverflowPolicy.COALESCE; otherwise it may be null.
+	 * @param executor What to call the Subscriber with.
+	 * @exception IllegalArgumentException If the pipe isn't in-direction, or the numbers don't make sense.
+	 */
+	public UsbPipePublisher(UsbPipe usbPipe, int maxOutstanding, int minOutstanding, int bufferSize, OverflowPolicy overflowPolicy, Coalescer coalescer,
+		Executor executor) throws IllegalArgumentException
+	{
+		if (UsbConst.ENDPOINT_DIRECTION_IN != usbPipe.getUsbEndpoint().getDirection())
+			throw new IllegalArgumentException("The pipe must be in-direction");
+		if (1 > maxOutstanding || 0 > minOutstanding || minOutstanding > maxOutstanding || 1 > bufferSize)
+			throw new IllegalArgumentException("Invalid maxOutstanding " + maxOutstanding + ", minOutstanding " + minOutstanding + " or bufferSize " + bufferSize);
+		if (OverflowPolicy.COALESCE == overflowPolicy && null == coalescer)
+			throw new IllegalArgumentException("OverflowPolicy.COALESCE needs a Coalescer");
+
+		this.usbPipe = usbPipe;
+		this.minOutstanding = minOutstanding;
+		this.bufferSize = bufferSize;
+		this.overflowPolicy = overflowPolicy;
+		this.coalescer = coalescer;
+		this.executor = executor;
+
+		int packetSize = UsbUtil.unsignedInt(usbPipe.getUsbEndpoint().getUsbEndpointDescriptor().wMaxPacketSize());
+		for (int i=0; i<maxOutstanding; i++)
+			idleIrps.add(new PublisherUsbIrp(new byte[packetSize]));
+	}
+
+	/**
+	 * Constructor, polling only on demand, with the buffer the size of maxOutstanding and dropping the oldest data.
+	 * @param usbPipe The (open) in-direction UsbPipe.
+	 * @param maxOutstanding The most UsbIrps to have submitted at once.
+	 */
+	public UsbPipePublisher(UsbPipe usbPipe, int maxOutstanding)
+	{
+		this(usbPipe, maxOutstanding, 0, maxOutstanding, OverflowPolicy.DROP_OLDEST, null);
+	}
+
+	public void subscribe(Flow.Subscriber<? super byte[]> subscriber)
+	{
+		synchronized (this) {
+			if (null == this.subscriber) {
+				this.subscriber = subscriber;
+				subscriber = null;
+			}
+		}
+
+		/* Only one Subscriber; the pipe's data can only go one place. */
+		if (null != subscriber) {
+			subscriber.onSubscribe(new Flow.Subscription() {
+					public void request(long n) { }
+					public void cancel() { }
+				});
+			subscriber.onError(new IllegalStateException("UsbPipePublisher allows only one Subscriber"));
+			return;
+		}
+
+		this.subscriber.onSubscribe(new Flow.Subscription() {
+				public void request(long n) { UsbPipePublisher.this.request(n); }
+				public void cancel() { UsbPipePublisher.this.cancel(); }
+			});
+
+		drain();
+	}
+
+	/**
+	 * Stop publishing, and abort all submissions.
+	 */
+	public void cancel()
+	{
+		synchronized (this) {
+			if (cancelled)
+				return;
+			cancelled = true;
+			buffer.clear();
+		}
+
+		try {
+			usbPipe.abortAllSubmissions();
+		} catch ( RuntimeException rE ) {
+			/* The pipe is already closed or gone (e.g. UsbNotOpenException), so nothing is outstanding. */
+		}
+	}
+
+	/** @return The number of UsbIrps currently submitted. */
+	public synchronized int getOutstanding() { return outstanding; }
+
+	/** @return The number of data transfers received. */
+	public long getReceived() { return received.get(); }
+
+	/** @return The number of data transfers passed to the Subscriber. */
+	public long getDelivered() { return delivered.get(); }
+
+	/** @return The number of data transfers dropped because the buffer was full. */
+	public long getDropped() { return dropped.get(); }
+
+	/** @return The number of data transfers coalesced into buffered data because the buffer was full. */
+	public long getCoalesced() { return coalesced.get(); }
+
+	public String toString()
+	{
+		return "UsbPipePublisher (" + overflowPolicy + ") : " + getReceived() + " received, " + getDelivered() + " delivered, " +
+			getDropped() + " dropped, " + getCoalesced() + " coalesced";
+	}
+
+	/**
+	 * Add demand.
+	 * @param n The number of items requested.
+	 */
+	protected void request(long n)
+	{
+		if (0 >= n) {
+			fail(new IllegalArgumentException("Request must be positive, not " + n));
+			return;
+		}
+
+		synchronized (this) {
+			demand += n;
+			/* Demand is unbounded once it overflows. */
+			if (0 > demand)
+				demand = Long.MAX_VALUE;
+		}
+
+		drain();
+	}
+
+	/**
+	 * Handle a completed UsbIrp.
+	 * @param usbIrp The UsbIrp.
+	 */
+	protected void completed(PublisherUsbIrp usbIrp)
+	{
+		synchronized (this) {
+			outstanding--;
+
+			if (cancelled || null != error) {
+				idleIrps.add(usbIrp);
+				return;
+			}
+
+			if (usbIrp.isUsbException()) {
+				error = usbIrp.getUsbException();
+			} else {
+				received.incrementAndGet();
+				byte[] data = new byte[usbIrp.getActualLength()];
+				System.arraycopy(usbIrp.getData(), usbIrp.getOffset(), data, 0, data.length);
+				offer(data);
+			}
+
+			idleIrps.add(usbIrp);
+		}
+
+		/* Resubmit right away, rather than waiting for the Subscriber to finish with earlier data. */
+		List submit = reserve();
+		if (null != submit)
+			submit(submit);
+
+		drain();
+	}
+
+	/**
+	 * Add data to the buffer, applying the OverflowPolicy if it's full.
+	 * This must be called while synchronized.
+	 * @param data The data.
+	 */
+	protected void offer(byte[] data)
+	{
+		if (buffer.size() < bufferSize) {
+			buffer.addLast(data);
+			return;
+		}
+
+		switch (overflowPolicy) {
+		case DROP_OLDEST:
+			buffer.removeFirst();
+			buffer.addLast(data);
+			dropped.incrementAndGet();
+			break;
+		case DROP_NEWEST:
+			dropped.incrementAndGet();
+			break;
+		case COALESCE:
+			buffer.addLast(coalescer.coalesce((byte[])buffer.removeLast(), data));
+			coalesced.incrementAndGet();
+			break;
+		}
+	}
+
+	/**
+	 * End the stream with an error, and abort all submissions.
+	 * @param throwable The error.
+	 */
+	protected void fail(Throwable throwable)
+	{
+		synchronized (this) {
+			if (null == error)
+				error = throwable;
+			buffer.clear();
+		}
+
+		drain();
+
+		try {
+			usbPipe.abortAllSubmissions();
+		} catch ( RuntimeException rE ) {
+		}
+	}
+
+	/**
+	 * Get the UsbIrps to submit: enough to cover the demand not already covered
+	 * by buffered data, but at least minOutstanding.
+	 * @return The UsbIrps, which are counted as outstanding, or null if none should be submitted.
+	 */
+	protected synchronized List reserve()
+	{
+		if (null == subscriber || terminated || cancelled || null != error)
+			return null;
+
+		List usbIrps = null;
+		long wanted = Math.max(minOutstanding, Math.min(Integer.MAX_VALUE, demand - buffer.size()));
+		while (outstanding < wanted && !idleIrps.isEmpty()) {
+			if (null == usbIrps)
+				usbIrps = new ArrayList();
+			usbIrps.add(idleIrps.removeFirst());
+			outstanding++;
+		}
+		return usbIrps;
+	}
+
+	/**
+	 * Have the Executor deliver what there is demand for, and submit UsbIrps for the rest.
+	 * <p>
+	 * This may be called from any thread, but only one delivery task runs at a time;
+	 * calls while it's running just make it go around again.
+	 */
+	protected void drain()
+	{
+		if (0 == wip.getAndIncrement())
+			executor.execute(new Runnable() {
+					public void run() { deliver(); }
+				});
+	}
+
+	protected void deliver()
+	{
+		int missed = 1;
+
+		while (true) {
+			Flow.Subscriber<? super byte[]> target = null;
+			byte[] data = null;
+			Throwable terminal = null;
+
+			synchronized (this) {
+				target = subscriber;
+
+				/* After cancel(), the Subscriber gets nothing more. */
+				if (null != target && !terminated && !cancelled) {
+					if (0 < demand && !buffer.isEmpty()) {
+						data = (byte[])buffer.removeFirst();
+						if (Long.MAX_VALUE != demand)
+							demand--;
+					} else if (null != error && (buffer.isEmpty() || 0 == demand)) {
+						terminal = error;
+						terminated = true;
+					}
+				}
+			}
+
+			if (null != data) {
+				delivered.incrementAndGet();
+				target.onNext(data);
+				continue;
+			}
+
+			if (null != terminal)
+				target.onError(terminal);
+
+			/* If a submission was rejected, go around again to deliver the error. */
+			List submit = reserve();
+			if (null != submit && !submit(submit))
+				continue;
+
+			missed = wip.addAndGet(-missed);
+			if (0 == missed)
+				return;
+		}
+	}
+
+	/**
+	 * Submit UsbIrps.
+	 * @param usbIrps The UsbIrps.
+	 * @return If they were all submitted; if not, the error is set.
+	 */
+	protected boolean submit(List usbIrps)
+	{
+		for (int i=0; i<usbIrps.size(); i++) {
+			PublisherUsbIrp usbIrp = (PublisherUsbIrp)usbIrps.get(i);
+			usbIrp.reset();
+			try {
+				usbPipe.asyncSubmit(usbIrp);
+			} catch ( UsbException uE ) {
+				rejected(usbIrps, i, uE);
+				return false;
+			} catch ( RuntimeException rE ) {
+				/* e.g. UsbNotOpenException or UsbDisconnectedException. */
+				rejected(usbIrps, i, rE);
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/* The rest of the UsbIrps were never submitted. */
+	protected void rejected(List usbIrps, int index, Throwable throwable)
+	{
+		synchronized (this) {
+			for (int i=index; i<usbIrps.size(); i++) {
+				idleIrps.add(usbIrps.get(i));
+				outstanding--;
+			}
+			if (null == error)
+				error = throwable;
+		}
+	}
+
+	/**
+	 * What to do with data that arrives when the buffer is full.
+	 */
+	public static enum OverflowPolicy
+	{
+		/** Drop the oldest buffered data to make room. */
+		DROP_OLDEST,
+		/** Drop the new data. */
+		DROP_NEWEST,
+		/** Combine the new data into the newest buffered data, using a Coalescer. */
+		COALESCE
+	}
+
+	/**
+	 * Combines two pieces of data into one, for OverflowPolicy.COALESCE.
+	 */
+	public static interface Coalescer
+	{
+		/**
+		 * Combine data.
+		 * @param older The older data.
+		 * @param newer The newer data.
+		 * @return The combined data; this may be either of the parameters, modified.
+		 */
+		public byte[] coalesce(byte[] older, byte[] newer);
+	}
+
+	/**
+	 * Coalescer for boot-protocol mouse reports.
+	 * <p>
+	 * The buttons (byte 0) are the newest state, and the movements (bytes 1 and up,
+	 * signed relative X, Y and wheel) are added together, so no movement is lost.
+	 */
+	public static final Coalescer MOUSE_COALESCER = new Coalescer() {
+			public byte[] coalesce(byte[] older, byte[] newer)
+			{
+				if (older.length != newer.length || 0 == newer.length)
+					return newer;
+				for (int i=1; i<newer.length; i++)
+					newer[i] = (byte)Math.max(-127, Math.min(127, older[i] + newer[i]));
+				return newer;
+			}
+		};
+
+	/**
+	 * UsbIrp that tells the publisher when it's complete.
+	 */
+	protected class PublisherUsbIrp extends DefaultUsbIrp
+	{
+		public PublisherUsbIrp(byte[] data) { super(data); }
+
+		public void reset()
+		{
+			setComplete(false);
+			setUsbException(null);
+			setActualLength(0);
+			setData(getData(), 0, getData().length);
+		}
+
+		public void complete()
+		{
+			super.complete();
+			completed(this);
+		}
+	}
+
+	/**
+	 * Parse the parameters.
+	 * @param argv The command-line parameters.
+	 */
+	public static void parseArgv(String argv[])
+	{
+		for (int i=0; i<argv.length; i++) {
+			int equalsIndex = argv[i].indexOf('=');
+			try {
+				String key = argv[i].substring(0, equalsIndex);
+				String value = argv[i].substring(equalsIndex+1);
+				if (key.equals(POLICY_KEY))
+					staticOverflowPolicy = OverflowPolicy.valueOf(value.toUpperCase());
+				else if (key.equals(MAX_OUTSTANDING_KEY))
+					staticMaxOutstanding = Integer.decode(value).intValue();
+				else if (key.equals(MIN_OUTSTANDING_KEY))
+					staticMinOutstanding = Integer.decode(value).intValue();
+				else if (key.equals(BUFFER_KEY))
+					staticBufferSize = Integer.decode(value).intValue();
+				else if (key.equals(DELAY_KEY))
+					staticDelay = Long.decode(value).longValue();
+				else if (key.equals(TIME_KEY))
+					staticTime = Long.decode(value).longValue();
+				else {
+					System.err.println("Unrecognized key \"" + key + "\"\n" + USAGE);
+					System.exit(1);
+				}
+			} catch ( Exception e ) {
+				System.err.println("Invalid key-value pair \"" + argv[i] + "\"\n" + USAGE);
+				System.exit(1);
+			}
+		}
+	}
+
+	private UsbPipe usbPipe = null;
+	private int minOutstanding = 0;
+	private int bufferSize = 0;
+	private OverflowPolicy overflowPolicy = null;
+	private Coalescer coalescer = null;
+	private Executor executor = null;
+
+	private Flow.Subscriber<? super byte[]> subscriber = null;
+	private long demand = 0;
+	private int outstanding = 0;
+	private LinkedList idleIrps = new LinkedList();
+	private LinkedList buffer = new LinkedList();
+	private Throwable error = null;
+	private boolean terminated = false;
+	private volatile boolean cancelled = false;
+
+	private AtomicInteger wip = new AtomicInteger();
+	private AtomicLong received = new AtomicLong();
+	private AtomicLong delivered = new AtomicLong();
+	private AtomicLong dropped = new AtomicLong();
+	private AtomicLong coalesced = new AtomicLong();
+
+	private static OverflowPolicy staticOverflowPolicy = OverflowPolicy.DROP_OLDEST;
+	private static int staticMaxOutstanding = 2;
+	private static int staticMinOutstanding = 1;
+	private static int staticBufferSize = 4;
+	private static long staticDelay = 50;
+	private static long staticTime = 1000;
+
+	public static final String POLICY_KEY = "policy";
+	public static final String MAX_OUTSTANDING_KEY = "maxOutstanding";
+	public static final String MIN_OUTSTANDING_KEY = "minOutstanding";
+	public static final String BUFFER_KEY = "buffer";
+	public static final String DELAY_KEY = "delay";
+	public static final String TIME_KEY = "time";
+
+	private static final String KEYS =
+		"\t" + POLICY_KEY + " (drop_oldest, drop_newest or coalesce)\n" +
+		"\t" + MAX_OUTSTANDING_KEY + " (the most UsbIrps submitted at once)\n" +
+		"\t" + MIN_OUTSTANDING_KEY + " (the UsbIrps kept submitted without demand)\n" +
+		"\t" + BUFFER_KEY + " (the most reports buffered)\n" +
+		"\t" + DELAY_KEY + " (ms the subscriber takes per report)\n" +
+		"\t" + TIME_KEY + " (ms to run)";
+
+	private static final String USAGE =
+		"Usage : java UsbPipePublisher <key=value>\n" +
+		"\n" +
+		"\tvalid keys are:\n" + KEYS;
+}
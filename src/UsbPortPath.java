@@ -0,0 +1,212 @@
+/*
+ * Copyright (c) 1999 - 2001, International Business Machines Corporation.
+ * All Rights Reserved.
+ *
+ * This software is provided and licensed under the terms and conditions
+ * of the Common Public License:
+ * http://oss.software.ibm.com/developerworks/opensource/license-cpl.html
+ */
+
+import java.util.*;
+
+import javax.usb.*;
+import javax.usb.util.*;
+
+/**
+ * The physical location of a device, as the port numbers from the virtual root UsbHub down to it.
+ * <p>
+ * This is written the same way Linux names USB devices: the bus (the virtual root
+ * UsbHub's port number, i.e. which host controller), then a '-', then the port
+ * numbers from the host controller's root hub down, separated by '.'.
+ * So "1-2.4.1" is the device at port 1 of the hub at port 4 of the hub at
+ * root port 2 of bus 1, and "1" is bus 1's root hub itself.
+ * <p>
+ * Unlike the UsbDevice object, this stays the same if a device is unplugged and
+ * plugged back into the same port, and it says where to find the device.
+ * Port paths are immutable, and can be used as Map keys.
+ * <p>
+ * This class should not be used except by other example code.
+ */
+public class UsbPortPath
+{
+	/**
+	 * Constructor.
+	 * @param ports The port numbers, starting with the bus.
+	 * @exception IllegalArgumentException If there are no port numbers, or any is not positive.
+	 */
+	public UsbPortPath(int[] ports) throws IllegalArgumentException
+	{
+		if (0 == ports.length)
+			throw new IllegalArgumentException("A port path needs at least a bus number");
+		for (int i=0; i<ports.length; i++)
+			if (0 >= ports[i])
+				throw new IllegalArgumentException("Invalid port number " + ports[i]);
+
+		this.ports = (int[])ports.clone();
+		this.hashCode = Arrays.hashCode(this.ports);
+	}
+
+	/**
+	 * Parse a port path, e.g. "1-2.4.1".
+	 * @param path The port path.
+	 * @return The UsbPortPath.
+	 * @exception IllegalArgumentException If the path is not valid.
+	 */
+	public static UsbPortPath parse(String path) throws IllegalArgumentException
+	{
+		int dashIndex = path.indexOf('-');
+		String bus = -1 == dashIndex ? path : path.substring(0, dashIndex);
+		String[] rest = -1 == dashIndex ? new String[0] : path.substring(dashIndex+1).split("\\.", -1);
+		int[] ports = new int[1 + rest.length];
+
+		try {
+			ports[0] = Integer.parseInt(bus);
+			for (int i=0; i<rest.length; i++)
+				ports[i+1] = Integer.parseInt(rest[i]);
+		} catch ( NumberFormatException nfE ) {
+			throw new IllegalArgumentException("Invalid port path \"" + path + "\"");
+		}
+
+		return new UsbPortPath(ports);
+	}
+
+	/**
+	 * Get the port path of a UsbDevice.
+	 * <p>
+	 * This walks up the parent UsbPorts to the virtual root UsbHub.
+	 * @param usbDevice The UsbDevice.
+	 * @return The UsbPortPath, or null if the device is the virtual root UsbHub or is disconnected.
+	 */
+	public static UsbPortPath getUsbPortPath(UsbDevice usbDevice)
+	{
+		try {
+			return getUsbPortPath(usbDevice.getParentUsbPort());
+		} catch ( UsbDisconnectedException uDE ) {
+			return null;
+		}
+	}
+
+	/**
+	 * Get the port path of a UsbPort, i.e. of whatever device is (or would be) attached to it.
+	 * @param usbPort The UsbPort.
+	 * @return The UsbPortPath, or null if the port is null or its hub is disconnected.
+	 */
+	public static UsbPortPath getUsbPortPath(UsbPort usbPort)
+	{
+		LinkedList list = new LinkedList();
+
+		try {
+			while (null != usbPort) {
+				list.addFirst(Integer.valueOf(UsbUtil.unsignedInt(usbPort.getPortNumber())));
+				UsbHub usbHub = usbPort.getUsbHub();
+				usbPort = usbHub.isRootUsbHub() ? null : usbHub.getParentUsbPort();
+			}
+		} catch ( UsbDisconnectedException uDE ) {
+			return null;
+		}
+
+		if (list.isEmpty())
+			return null;
+
+		int[] ports = new int[list.size()];
+		for (int i=0; i<ports.length; i++)
+			ports[i] = ((Integer)list.get(i)).intValue();
+		return new UsbPortPath(ports);
+	}
+
+	/**
+	 * Get the device at this path, by following the ports down from the virtual root UsbHub.
+	 * <p>
+	 * This only looks at one port per tier, so unlike a search it doesn't depend on the size of the topology.
+	 * @param virtualRootUsbHub The virtual root UsbHub.
+	 * @return The UsbDevice, or null if there is none at this path.
+	 */
+	public UsbDevice getUsbDevice(UsbHub virtualRootUsbHub)
+	{
+		UsbDevice usbDevice = virtualRootUsbHub;
+
+		try {
+			for (int i=0; i<ports.length; i++) {
+				if (!usbDevice.isUsbHub() || UsbUtil.unsignedInt(((UsbHub)usbDevice).getNumberOfPorts()) < ports[i])
+					return null;
+				UsbPort usbPort = ((UsbHub)usbDevice).getUsbPort((byte)ports[i]);
+				if (null == usbPort || !usbPort.isUsbDeviceAttached())
+					return null;
+				usbDevice = usbPort.getUsbDevice();
+			}
+		} catch ( UsbDisconnectedException uDE ) {
+			return null;
+		}
+
+		return usbDevice;
+	}
+
+	/** @return The bus number, i.e. the virtual root UsbHub's port number. */
+	public int getBus() { return ports[0]; }
+
+	/** @return The number of port numbers, including the bus; 1 for a host controller's root hub. */
+	public int getDepth() { return ports.length; }
+
+	/**
+	 * @param index Which port number, 0 being the bus.
+	 * @return The port number.
+	 */
+	public int getPort(int index) { return ports[index]; }
+
+	/** @return The port path of the hub this is attached to, or null for a host controller's root hub. */
+	public UsbPortPath getParent()
+	{
+		if (1 == ports.length)
+			return null;
+		int[] parent = new int[ports.length - 1];
+		System.arraycopy(ports, 0, parent, 0, parent.length);
+		return new UsbPortPath(parent);
+	}
+
+	/**
+	 * Get the port path of a port on the hub at this path.
+	 * @param port The port number.
+	 * @return The port path.
+	 */
+	public UsbPortPath getChild(int port)
+	{
+		int[] child = new int[ports.length + 1];
+		System.arraycopy(ports, 0, child, 0, ports.length);
+		child[ports.length] = port;
+		return new UsbPortPath(child);
+	}
+
+	/**
+	 * Check if this is another path, or is downstream of it.
+	 * @param usbPortPath The other path.
+	 * @return If this starts with the other path.
+	 */
+	public boolean startsWith(UsbPortPath usbPortPath)
+	{
+		if (usbPortPath.ports.length > ports.length)
+			return false;
+		for (int i=0; i<usbPortPath.ports.length; i++)
+			if (usbPortPath.ports[i] != ports[i])
+				return false;
+		return true;
+	}
+
+	public boolean equals(Object object)
+	{
+		return object instanceof UsbPortPath && hashCode == object.hashCode() && Arrays.equals(ports, ((UsbPortPath)object).ports);
+	}
+
+	public int hashCode() { return hashCode; }
+
+	public String toString()
+	{
+		StringBuffer stringBuffer = new StringBuffer();
+		stringBuffer.append(ports[0]);
+		for (int i=1; i<ports.length; i++)
+			stringBuffer.append(1 == i ? '-' : '.').append(ports[i]);
+		return stringBuffer.toString();
+	}
+
+	private int[] ports = null;
+	private int hashCode = 0;
+}
@@ -0,0 +1,240 @@
+/*
+ * Copyright (c) 1999 - 2001, International Business Machines Corporation.
+ * All Rights Reserved.
+ *
+ * This software is provided and licensed under the terms and conditions
+ * of the Common Public License:
+ * http://oss.software.ibm.com/developerworks/opensource/license-cpl.html
+ */
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import javax.usb.*;
+import javax.usb.event.*;
+import javax.usb.util.*;
+
+/**
+ * Index of all devices by their physical location.
+ * <p>
+ * Finding the device at e.g. root port 2, hub port 4, port 1 normally means
+ * walking down the UsbPorts.  This keeps a map from {@link UsbPortPath} to UsbDevice,
+ * so that lookup is a single map get, and a map back from UsbDevice to UsbPortPath.
+ * Both are kept current by listening for devices being attached and detached;
+ * the map back is needed for that, since a detached device no longer has a parent UsbPort.
+ * <p>
+ * This class should not be used except by other example code.
+ */
+public class UsbPortPathIndex implements UsbServicesListener
+{
+	public static void main(String argv[])
+	{
+		parseArgv(argv);
+
+		UsbPortPathIndex usbPortPathIndex = null;
+
+		try {
+			usbPortPathIndex = UsbPortPathIndex.getDefault();
+		} catch ( UsbException uE ) {
+			UsbLog.println("Could not index the topology : " + uE.getMessage());
+			return;
+		}
+
+		if (null == staticUsbPortPath) {
+			/* No path, so show them all. */
+			List usbPortPaths = usbPortPathIndex.getUsbPortPaths();
+			for (int i=0; i<usbPortPaths.size(); i++) {
+				UsbPortPath usbPortPath = (UsbPortPath)usbPortPaths.get(i);
+				UsbLog.println(usbPortPath + " : " + getName(usbPortPathIndex.getUsbDevice(usbPortPath)));
+			}
+			UsbLog.println("Indexed " + usbPortPaths.size() + " devices.");
+			return;
+		}
+
+		long start = System.nanoTime();
+		UsbDevice usbDevice = usbPortPathIndex.getUsbDevice(staticUsbPortPath);
+		long nanos = System.nanoTime() - start;
+
+		if (null == usbDevice)
+			UsbLog.println("No device at " + staticUsbPortPath + ".");
+		else
+			UsbLog.println(staticUsbPortPath + " : " + getName(usbDevice) + " (found in " + nanos + " ns)");
+	}
+
+	/**
+	 * Constructor.
+	 * <p>
+	 * This registers with the UsbServices and indexes all currently connected devices.
+	 * @param usbServices The UsbServices.
+	 * @exception UsbException If the virtual root UsbHub could not be gotten.
+	 */
+	public UsbPortPathIndex(UsbServices usbServices) throws UsbException
+	{
+		this.usbServices = usbServices;
+
+		usbServices.addUsbServicesListener(this);
+
+		long start = System.nanoTime();
+		List usbDevices = FindUsbDevice.getAllUsbDevices(usbServices.getRootUsbHub());
+		for (int i=0; i<usbDevices.size(); i++)
+			add((UsbDevice)usbDevices.get(i));
+		UsbMetrics.getDefault().recordEnumeration("UsbPortPathIndex", System.nanoTime() - start, usbDevices.size());
+	}
+
+	/**
+	 * Get the default UsbPortPathIndex, of the UsbServices from ShowTopology.getUsbServices().
+	 * @return The default UsbPortPathIndex.
+	 * @exception UsbException If the topology could not be indexed.
+	 */
+	public static synchronized UsbPortPathIndex getDefault() throws UsbException
+	{
+		if (null == defaultUsbPortPathIndex)
+			defaultUsbPortPathIndex = new UsbPortPathIndex(ShowTopology.getUsbServices());
+		return defaultUsbPortPathIndex;
+	}
+
+	/**
+	 * Stop listening for topology changes.
+	 */
+	public void close()
+	{
+		usbServices.removeUsbServicesListener(this);
+	}
+
+	/**
+	 * Get the device at a port path.
+	 * @param usbPortPath The UsbPortPath.
+	 * @return The UsbDevice, or null if there is none.
+	 */
+	public UsbDevice getUsbDevice(UsbPortPath usbPortPath) { return (UsbDevice)byPath.get(usbPortPath); }
+
+	/**
+	 * Get the device at a port path.
+	 * @param path The port path, e.g. "1-2.4.1".
+	 * @return The UsbDevice, or null if there is none.
+	 * @exception IllegalArgumentException If the path is not valid.
+	 */
+	public UsbDevice getUsbDevice(String path) throws IllegalArgumentException { return getUsbDevice(UsbPortPath.parse(path)); }
+
+	/**
+	 * Get the port path of a device.
+	 * <p>
+	 * This also works for a device that was just detached.
+	 * @param usbDevice The UsbDevice.
+	 * @return The UsbPortPath, or null if the device isn't indexed.
+	 */
+	public UsbPortPath getUsbPortPath(UsbDevice usbDevice) { return (UsbPortPath)byDevice.get(usbDevice); }
+
+	/**
+	 * @return All indexed port paths, in order.
+	 */
+	public List getUsbPortPaths()
+	{
+		List list = new ArrayList(byPath.keySet());
+		Collections.sort(list, PATH_COMPARATOR);
+		return list;
+	}
+
+	/**
+	 * @return The number of indexed devices.
+	 */
+	public int size() { return byPath.size(); }
+
+	public void usbDeviceAttached(UsbServicesEvent usbServicesEvent) { add(usbServicesEvent.getUsbDevice()); }
+
+	public void usbDeviceDetached(UsbServicesEvent usbServicesEvent) { remove(usbServicesEvent.getUsbDevice()); }
+
+	/**
+	 * Index a UsbDevice.
+	 * @param usbDevice The UsbDevice.
+	 */
+	protected void add(UsbDevice usbDevice)
+	{
+		UsbPortPath usbPortPath = UsbPortPath.getUsbPortPath(usbDevice);
+
+		/* The virtual root UsbHub has no path, and a device may already be gone again. */
+		if (null == usbPortPath)
+			return;
+
+		/* If something else was at this path, it's been replaced. */
+		Object previous = byPath.put(usbPortPath, usbDevice);
+		if (null != previous && previous != usbDevice)
+			byDevice.remove(previous);
+		byDevice.put(usbDevice, usbPortPath);
+	}
+
+	/**
+	 * Remove a UsbDevice from the index.
+	 * @param usbDevice The UsbDevice.
+	 */
+	protected void remove(UsbDevice usbDevice)
+	{
+		UsbPortPath usbPortPath = (UsbPortPath)byDevice.remove(usbDevice);
+
+		/* Only remove the path if a new device hasn't already been attached there. */
+		if (null != usbPortPath)
+			byPath.remove(usbPortPath, usbDevice);
+	}
+
+	protected static String getName(UsbDevice usbDevice)
+	{
+		UsbDeviceDescriptor desc = usbDevice.getUsbDeviceDescriptor();
+		return (usbDevice.isUsbHub() ? "UsbHub" : "Device") +
+			" 0x" + UsbUtil.toHexString(desc.idVendor()) + ":0x" + UsbUtil.toHexString(desc.idProduct());
+	}
+
+	/**
+	 * Parse the parameters.
+	 * @param argv The command-line parameters.
+	 */
+	public static void parseArgv(String argv[])
+	{
+		for (int i=0; i<argv.length; i++) {
+			int equalsIndex = argv[i].indexOf('=');
+			try {
+				String key = argv[i].substring(0, equalsIndex);
+				String value = argv[i].substring(equalsIndex+1);
+				if (key.equals(PATH_KEY))
+					staticUsbPortPath = UsbPortPath.parse(value);
+				else {
+					System.err.println("Unrecognized key \"" + key + "\"\n" + USAGE);
+					System.exit(1);
+				}
+			} catch ( Exception e ) {
+				System.err.println("Invalid key-value pair \"" + argv[i] + "\"\n" + USAGE);
+				System.exit(1);
+			}
+		}
+	}
+
+	private UsbServices usbServices = null;
+	private Map byPath = new ConcurrentHashMap();
+	private Map byDevice = new ConcurrentHashMap();
+
+	private static UsbPortPathIndex defaultUsbPortPathIndex = null;
+
+	private static UsbPortPath staticUsbPortPath = null;
+
+	/* Paths sort by bus, then by port numbers, with a hub before its downstream devices. */
+	private static final Comparator PATH_COMPARATOR = new Comparator() {
+			public int compare(Object o1, Object o2)
+			{
+				UsbPortPath p1 = (UsbPortPath)o1;
+				UsbPortPath p2 = (UsbPortPath)o2;
+				for (int i=0; i<p1.getDepth() && i<p2.getDepth(); i++)
+					if (p1.getPort(i) != p2.getPort(i))
+						return p1.getPort(i) - p2.getPort(i);
+				return p1.getDepth() - p2.getDepth();
+			}
+		};
+
+	public static final String PATH_KEY = "path";
+
+	private static final String KEYS =
+		"\t" + PATH_KEY + " (e.g. 1-2.4.1; without it, all paths are shown)";
+
+	private static final String USAGE =
+		"Usage : java UsbPortPathIndex <key=value>\n" +
+		"\n" +
+		"\tvalid keys are:\n" + KEYS;
+}
@@ -0,0 +1,283 @@
+/*
+ * Copyright (c) 1999 - 2001, International Business Machines Corporation.
+ * All Rights Reserved.
+ *
+ * This software is provided and licensed under the terms and conditions
+ * of the Common Public License:
+ * http://oss.software.ibm.com/developerworks/opensource/license-cpl.html
+ */
+
+import java.io.*;
+import java.net.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.nio.file.attribute.*;
+import java.util.*;
+
+import javax.usb.*;
+import javax.usb.util.*;
+
+/**
+ * Daemon that answers FindUsbDevice/FindUsbInterface queries over a Unix domain socket.
+ * <p>
+ * Running FindUsbDevice or FindUsbInterface once per question pays for JVM startup,
+ * javax.usb initialization and a full topology walk every time.  This keeps a
+ * {@link UsbDeviceIndex} resident (kept current by hot-plug events) and answers
+ * queries from it, which takes well under a millisecond.
+ * <p>
+ * Each request is one line of whitespace-separated key=value pairs, using the same keys
+ * as FindUsbDevice and FindUsbInterface; all given keys must match.  Without bInterfaceClass
+ * the matching devices are returned, with it the matching interfaces are.  The response is one
+ * line per match, in the same key=value form, then a line "OK &lt;count&gt;", or a single
+ * line "ERROR &lt;message&gt;" if the request was invalid.  For example:
+ * <pre>
+ *   $ echo "idVendor=0xf055 bInterfaceClass=0x03" | socat - UNIX-CONNECT:/tmp/jsr80-usb.sock
+ * </pre>
+ * A connection may send any number of requests.
+ * <p>
+ * This class should not be used except by other example code.
+ */
+public class UsbQueryDaemon
+{
+	public static void main(String argv[])
+	{
+		parseArgv(argv);
+
+		UsbDeviceIndex usbDeviceIndex = null;
+
+		try {
+			usbDeviceIndex = new UsbDeviceIndex(ShowTopology.getUsbServices(), true);
+		} catch ( UsbException uE ) {
+			UsbLog.println("Could not index the topology : " + uE.getMessage());
+			return;
+		}
+
+		UsbLog.println("Indexed " + usbDeviceIndex.size() + " devices.");
+
+		try {
+			new UsbQueryDaemon(usbDeviceIndex, Paths.get(staticSocketPath)).run();
+		} catch ( IOException ioE ) {
+			UsbLog.println("Socket failed : " + ioE.getMessage());
+		}
+	}
+
+	/**
+	 * Constructor.
+	 * @param usbDeviceIndex The UsbDeviceIndex to answer from.
+	 * @param socketPath The path of the Unix domain socket.
+	 */
+	public UsbQueryDaemon(UsbDeviceIndex usbDeviceIndex, Path socketPath)
+	{
+		this.usbDeviceIndex = usbDeviceIndex;
+		this.socketPath = socketPath;
+	}
+
+	/**
+	 * Accept connections until the socket is closed.
+	 * <p>
+	 * Each connection gets its own (daemon) thread.  A leftover socket file
+	 * from a previous run is replaced (see {@link #removeStaleSocket()}),
+	 * and the socket file is removed on exit.
+	 * @exception IOException If the socket could not be bound, or something else is at the socket path.
+	 */
+	public void run() throws IOException
+	{
+		removeStaleSocket();
+
+		serverSocketChannel = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+		serverSocketChannel.bind(UnixDomainSocketAddress.of(socketPath));
+
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+				public void run() { close(); }
+			});
+
+		UsbLog.println("Listening on " + socketPath);
+
+		while (serverSocketChannel.isOpen()) {
+			final SocketChannel socketChannel;
+			try {
+				socketChannel = serverSocketChannel.accept();
+			} catch ( ClosedChannelException ccE ) {
+				break;
+			}
+
+			Thread thread = new Thread(new Runnable() {
+					public void run() { serve(socketChannel); }
+				}, "UsbQueryDaemon connection");
+			thread.setDaemon(true);
+			thread.start();
+		}
+	}
+
+	/**
+	 * Remove a socket file left over from a previous run.
+	 * <p>
+	 * Only a socket that nothing is listening on is removed.  Anything else at the
+	 * socket path (a regular file, a directory, a link, or a live socket) is left alone.
+	 * @exception IOException If there is something else at the socket path.
+	 */
+	protected void removeStaleSocket() throws IOException
+	{
+		BasicFileAttributes attributes = null;
+
+		try {
+			attributes = Files.readAttributes(socketPath, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+		} catch ( NoSuchFileException nsfE ) {
+			return;
+		}
+
+		if (!attributes.isOther())
+			throw new FileAlreadyExistsException(socketPath.toString(), null, "Not a socket");
+
+		SocketChannel socketChannel = SocketChannel.open(StandardProtocolFamily.UNIX);
+		try {
+			socketChannel.connect(UnixDomainSocketAddress.of(socketPath));
+			throw new FileAlreadyExistsException(socketPath.toString(), null, "Socket is in use");
+		} catch ( ConnectException cE ) {
+			/* Nothing is listening, so it is left over. */
+		} finally {
+			socketChannel.close();
+		}
+
+		Files.delete(socketPath);
+	}
+
+	/**
+	 * Close the socket and remove the socket file.
+	 */
+	public void close()
+	{
+		try {
+			if (null != serverSocketChannel)
+				serverSocketChannel.close();
+			Files.deleteIfExists(socketPath);
+		} catch ( IOException ioE ) {
+			/* Nothing else to do while shutting down. */
+		}
+	}
+
+	/**
+	 * Answer requests on one connection until it is closed.
+	 * @param socketChannel The connection.
+	 */
+	protected void serve(SocketChannel socketChannel)
+	{
+		try {
+			BufferedReader reader = new BufferedReader(new InputStreamReader(Channels.newInputStream(socketChannel), CHARSET));
+			Writer writer = new BufferedWriter(new OutputStreamWriter(Channels.newOutputStream(socketChannel), CHARSET));
+			String line = null;
+
+			while (null != (line = reader.readLine())) {
+				answer(usbDeviceIndex, line, writer);
+				writer.flush();
+			}
+		} catch ( IOException ioE ) {
+			/* The client went away. */
+		} finally {
+			try { socketChannel.close(); }
+			catch ( IOException ioE ) { }
+		}
+	}
+
+	/**
+	 * Answer one request.
+	 * <p>
+	 * Devices' manufacturer strings are included if they have already been fetched.
+	 * @param usbDeviceIndex The UsbDeviceIndex to answer from.
+	 * @param line The request.
+	 * @param writer Where to write the response.
+	 * @exception IOException If the response could not be written.
+	 */
+	public static void answer(UsbDeviceIndex usbDeviceIndex, String line, Writer writer) throws IOException
+	{
+		String request = line.trim();
+		UsbDeviceIndex.Query query = null;
+
+		try {
+			query = UsbDeviceIndex.Query.parse(0 == request.length() ? new String[0] : request.split("\\s+"));
+		} catch ( IllegalArgumentException iaE ) {
+			writer.write("ERROR " + iaE.getMessage() + "\n");
+			return;
+		}
+
+		List results = usbDeviceIndex.find(query);
+
+		for (int i=0; i<results.size(); i++) {
+			if (results.get(i) instanceof UsbInterface)
+				writeUsbInterface((UsbInterface)results.get(i), writer);
+			else
+				writeUsbDevice((UsbDevice)results.get(i), usbDeviceIndex.getCachedManufacturerString((UsbDevice)results.get(i)), writer);
+			writer.write('\n');
+		}
+
+		writer.write("OK " + results.size() + "\n");
+	}
+
+	protected static void writeUsbDevice(UsbDevice usbDevice, String manufacturerString, Writer writer) throws IOException
+	{
+		UsbDeviceDescriptor desc = usbDevice.getUsbDeviceDescriptor();
+
+		writer.write(FindUsbDevice.VENDOR_ID_KEY + "=0x" + UsbUtil.toHexString(desc.idVendor()));
+		writer.write(" " + FindUsbDevice.PRODUCT_ID_KEY + "=0x" + UsbUtil.toHexString(desc.idProduct()));
+		writer.write(" " + FindUsbDevice.DEVICE_CLASS_KEY + "=0x" + UsbUtil.toHexString(desc.bDeviceClass()));
+		/* This is last, since it may contain spaces. */
+		if (null != manufacturerString)
+			writer.write(" " + FindUsbDevice.MANUFACTURER_STRING_KEY + "=" + manufacturerString);
+	}
+
+	protected static void writeUsbInterface(UsbInterface usbInterface, Writer writer) throws IOException
+	{
+		UsbDeviceDescriptor desc = usbInterface.getUsbConfiguration().getUsbDevice().getUsbDeviceDescriptor();
+		UsbInterfaceDescriptor ifaceDesc = usbInterface.getUsbInterfaceDescriptor();
+
+		writer.write(FindUsbDevice.VENDOR_ID_KEY + "=0x" + UsbUtil.toHexString(desc.idVendor()));
+		writer.write(" " + FindUsbDevice.PRODUCT_ID_KEY + "=0x" + UsbUtil.toHexString(desc.idProduct()));
+		writer.write(" bInterfaceNumber=" + UsbUtil.unsignedInt(ifaceDesc.bInterfaceNumber()));
+		writer.write(" " + FindUsbInterface.INTERFACE_CLASS_KEY + "=0x" + UsbUtil.toHexString(ifaceDesc.bInterfaceClass()));
+	}
+
+	/**
+	 * Parse the parameters.
+	 * @param argv The command-line parameters.
+	 */
+	public static void parseArgv(String argv[])
+	{
+		for (int i=0; i<argv.length; i++) {
+			int equalsIndex = argv[i].indexOf('=');
+			try {
+				String key = argv[i].substring(0, equalsIndex);
+				String value = argv[i].substring(equalsIndex+1);
+				if (key.equals(SOCKET_KEY))
+					staticSocketPath = value;
+				else {
+					System.err.println("Unrecognized key \"" + key + "\"\n" + USAGE);
+					System.exit(1);
+				}
+			} catch ( Exception e ) {
+				System.err.println("Invalid key-value pair \"" + argv[i] + "\"\n" + USAGE);
+				System.exit(1);
+			}
+		}
+	}
+
+	private UsbDeviceIndex usbDeviceIndex = null;
+	private Path socketPath = null;
+	private ServerSocketChannel serverSocketChannel = null;
+
+	public static final String DEFAULT_SOCKET_PATH = "/tmp/jsr80-usb.sock";
+
+	private static String staticSocketPath = DEFAULT_SOCKET_PATH;
+
+	private static final Charset CHARSET = Charset.forName("UTF-8");
+
+	private static final String SOCKET_KEY = "socket";
+
+	private static final String KEYS =
+		"\t" + SOCKET_KEY;
+
+	private static final String USAGE =
+		"Usage : java UsbQueryDaemon <key=value>\n" +
+		"\n" +
+		"\tvalid keys are:\n" + KEYS;
+}
@@ -0,0 +1,339 @@
+/*
+ * Copyright (c) 1999 - 2001, International Business Machines Corporation.
+ * All Rights Reserved.
+ *
+ * This software is provided and licensed under the terms and conditions
+ * of the Common Public License:
+ * http://oss.software.ibm.com/developerworks/opensource/license-cpl.html
+ */
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import javax.usb.*;
+import javax.usb.util.*;
+
+/**
+ * Run work on USB devices with one worker thread per bus.
+ * <p>
+ * Each port of the virtual root UsbHub is a separate host controller (bus), and
+ * transfers on different buses don't compete with each other.  So work like reading
+ * descriptors from every device can run one bus per thread without any bus seeing
+ * more than one transfer from it at a time.  This keeps a shard per virtual root
+ * port, each with its own worker thread and queue; work for a device goes to the
+ * shard of the bus it's on (see {@link UsbPortPath#getBus()}), so shards never
+ * contend for a queue.  Within a shard, work runs in the order it was submitted.
+ * <p>
+ * The main method reads the device descriptor of every device, first on the
+ * calling thread and then using {@link #forEachDevice(DeviceOperation) forEachDevice()},
+ * and shows how long each took.
+ * <p>
+ * This class should not be used except by other example code.
+ */
+public class UsbShardedExecutor
+{
+	public static void main(String argv[])
+	{
+		UsbHub virtualRootUsbHub = ShowTopology.getVirtualRootUsbHub();
+		UsbShardedExecutor usbShardedExecutor = new UsbShardedExecutor(virtualRootUsbHub);
+		DeviceOperation getDeviceDescriptor = new DeviceOperation() {
+				public Object run(UsbDevice usbDevice) throws Exception
+				{
+					byte[] buffer = new byte[DEVICE_DESCRIPTOR_LENGTH];
+					StandardRequest.getDescriptor(usbDevice, UsbConst.DESCRIPTOR_TYPE_DEVICE, (byte)0, (short)0, buffer);
+					return buffer;
+				}
+			};
+
+		List usbDevices = FindUsbDevice.getAllUsbDevices(virtualRootUsbHub);
+		usbDevices.remove(virtualRootUsbHub);
+
+		UsbLog.println("Reading the device descriptors of " + usbDevices.size() + " devices on " +
+			usbShardedExecutor.getShardCount() + " buses.");
+
+		long start = System.nanoTime();
+		int failures = 0;
+		for (int i=0; i<usbDevices.size(); i++) {
+			try {
+				getDeviceDescriptor.run((UsbDevice)usbDevices.get(i));
+			} catch ( Exception e ) {
+				failures++;
+			}
+		}
+		UsbLog.println("One thread : " + ((System.nanoTime() - start) / 1000) + " us, " + failures + " failed.");
+
+		List results = null;
+		start = System.nanoTime();
+		try {
+			results = usbShardedExecutor.forEachDevice(getDeviceDescriptor);
+		} catch ( InterruptedException iE ) {
+			UsbLog.println("Interrupted while waiting for the shards.");
+			return;
+		}
+		long nanos = System.nanoTime() - start;
+
+		failures = 0;
+		for (int i=0; i<results.size(); i++)
+			if (null != ((Result)results.get(i)).getException())
+				failures++;
+		UsbLog.println("One thread per bus : " + (nanos / 1000) + " us, " + failures + " failed.");
+
+		for (int i=0; i<usbShardedExecutor.getShardCount(); i++)
+			UsbLog.println(ShowTopology.PREFIX + usbShardedExecutor.getShard(i));
+
+		usbShardedExecutor.shutdown();
+	}
+
+	/**
+	 * Constructor.
+	 * <p>
+	 * This creates a shard for each port of the virtual root UsbHub.
+	 * @param virtualRootUsbHub The virtual root UsbHub.
+	 */
+	public UsbShardedExecutor(UsbHub virtualRootUsbHub)
+	{
+		List usbPorts = virtualRootUsbHub.getUsbPorts();
+		shards = new Shard[usbPorts.size()];
+		for (int i=0; i<shards.length; i++)
+			shards[i] = new Shard((UsbPort)usbPorts.get(i));
+	}
+
+	/**
+	 * Get the default UsbShardedExecutor, for the virtual root UsbHub from ShowTopology.getVirtualRootUsbHub().
+	 * @return The default UsbShardedExecutor.
+	 */
+	public static synchronized UsbShardedExecutor getDefault()
+	{
+		if (null == defaultUsbShardedExecutor)
+			defaultUsbShardedExecutor = new UsbShardedExecutor(ShowTopology.getVirtualRootUsbHub());
+		return defaultUsbShardedExecutor;
+	}
+
+	/** @return The number of shards, i.e. ports of the virtual root UsbHub. */
+	public int getShardCount() { return shards.length; }
+
+	/**
+	 * @param index The index of the shard, from 0 to getShardCount() - 1.
+	 * @return The Shard.
+	 */
+	public Shard getShard(int index) { return shards[index]; }
+
+	/**
+	 * Get the shard of the bus a device is on.
+	 * @param usbDevice The UsbDevice.
+	 * @return The Shard.
+	 * @exception IllegalArgumentException If the device is the virtual root UsbHub, or is disconnected.
+	 */
+	public Shard getShard(UsbDevice usbDevice) throws IllegalArgumentException
+	{
+		UsbPortPath usbPortPath = UsbPortPath.getUsbPortPath(usbDevice);
+
+		if (null == usbPortPath)
+			throw new IllegalArgumentException("Device " + usbDevice + " is not on a bus");
+
+		return getShardForBus(usbPortPath.getBus());
+	}
+
+	/**
+	 * Get the shard of a bus.
+	 * @param bus The bus number, i.e. the virtual root UsbHub's port number.
+	 * @return The Shard.
+	 * @exception IllegalArgumentException If there is no such bus.
+	 */
+	public Shard getShardForBus(int bus) throws IllegalArgumentException
+	{
+		/* Port numbers normally are 1 to the number of ports, but don't count on it. */
+		if (0 < bus && bus <= shards.length && bus == shards[bus-1].getBus())
+			return shards[bus-1];
+		for (int i=0; i<shards.length; i++)
+			if (bus == shards[i].getBus())
+				return shards[i];
+		throw new IllegalArgumentException("No bus " + bus);
+	}
+
+	/**
+	 * Run something on the shard of a device's bus.
+	 * @param usbDevice The UsbDevice.
+	 * @param callable What to run.
+	 * @return The Future of the result.
+	 * @exception IllegalArgumentException If the device is not on a bus.
+	 * @exception RejectedExecutionException If this has been shut down.
+	 */
+	public Future submit(UsbDevice usbDevice, Callable callable) throws IllegalArgumentException,RejectedExecutionException
+	{
+		return getShard(usbDevice).submit(callable);
+	}
+
+	/**
+	 * Run an operation on every device, each on its bus's shard.
+	 * <p>
+	 * Each shard walks its own bus's part of the topology, so the walk is
+	 * sharded too.  This waits until every shard is done.  An exception from
+	 * the operation is kept in that device's Result, and doesn't stop the others.
+	 * @param deviceOperation The operation.
+	 * @return A List of the Results, grouped by bus, each bus in topology order.
+	 * @exception InterruptedException If interrupted while waiting.
+	 * @exception RejectedExecutionException If this has been shut down.
+	 */
+	public List forEachDevice(final DeviceOperation deviceOperation) throws InterruptedException,RejectedExecutionException
+	{
+		Future[] futures = new Future[shards.length];
+
+		for (int i=0; i<shards.length; i++) {
+			final Shard shard = shards[i];
+			futures[i] = shard.submit(new Callable() {
+					public Object call() { return shard.runOnBus(deviceOperation); }
+				});
+		}
+
+		List results = new ArrayList();
+		for (int i=0; i<futures.length; i++) {
+			try {
+				results.addAll((List)futures[i].get());
+			} catch ( ExecutionException eE ) {
+				/* runOnBus() catches everything from the operation itself. */
+				throw new RuntimeException("Shard " + shards[i] + " failed : " + eE.getCause(), eE.getCause());
+			}
+		}
+		return results;
+	}
+
+	/**
+	 * Stop all shards' workers, after they finish the work already submitted.
+	 */
+	public void shutdown()
+	{
+		for (int i=0; i<shards.length; i++)
+			shards[i].shutdown();
+	}
+
+	/**
+	 * Something to do to a device.
+	 */
+	public static interface DeviceOperation
+	{
+		/**
+		 * Do the operation.
+		 * @param usbDevice The UsbDevice.
+		 * @return The result, if any.
+		 * @exception Exception If the operation failed.
+		 */
+		public Object run(UsbDevice usbDevice) throws Exception;
+	}
+
+	/**
+	 * The result of a DeviceOperation on one device.
+	 */
+	public static class Result
+	{
+		public Result(UsbDevice usbDevice, Object value, Exception exception)
+		{
+			this.usbDevice = usbDevice;
+			this.value = value;
+			this.exception = exception;
+		}
+
+		/** @return The UsbDevice. */
+		public UsbDevice getUsbDevice() { return usbDevice; }
+
+		/** @return What the operation returned, or null if it failed. */
+		public Object getValue() { return value; }
+
+		/** @return What the operation threw, or null if it succeeded. */
+		public Exception getException() { return exception; }
+
+		private UsbDevice usbDevice = null;
+		private Object value = null;
+		private Exception exception = null;
+	}
+
+	/**
+	 * One bus's worker thread and queue.
+	 */
+	public static class Shard
+	{
+		public Shard(UsbPort usbPort)
+		{
+			this.usbPort = usbPort;
+			this.bus = UsbUtil.unsignedInt(usbPort.getPortNumber());
+
+			executor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue(),
+				new ThreadFactory() {
+					public Thread newThread(Runnable runnable)
+					{
+						Thread thread = new Thread(runnable, "USB bus " + bus);
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		}
+
+		/** @return The bus number, i.e. the virtual root UsbHub's port number. */
+		public int getBus() { return bus; }
+
+		/** @return The virtual root UsbHub's port for this bus. */
+		public UsbPort getUsbPort() { return usbPort; }
+
+		/** @return The number of tasks waiting in this shard's queue. */
+		public int getQueued() { return executor.getQueue().size(); }
+
+		/** @return The number of tasks this shard has run. */
+		public long getCompleted() { return executor.getCompletedTaskCount(); }
+
+		/** @return The number of DeviceOperations this shard has run. */
+		public long getOperations() { return operations.get(); }
+
+		/**
+		 * Run something on this shard.
+		 * @param callable What to run.
+		 * @return The Future of the result.
+		 * @exception RejectedExecutionException If this has been shut down.
+		 */
+		public Future submit(Callable callable) throws RejectedExecutionException { return executor.submit(callable); }
+
+		/**
+		 * Run an operation on every device on this bus, in the calling thread.
+		 * @param deviceOperation The operation.
+		 * @return A List of the Results.
+		 */
+		public List runOnBus(DeviceOperation deviceOperation)
+		{
+			List results = new ArrayList();
+
+			if (!usbPort.isUsbDeviceAttached())
+				return results;
+
+			List usbDevices = FindUsbDevice.getAllUsbDevices(usbPort.getUsbDevice());
+			for (int i=0; i<usbDevices.size(); i++) {
+				UsbDevice usbDevice = (UsbDevice)usbDevices.get(i);
+				operations.incrementAndGet();
+				try {
+					results.add(new Result(usbDevice, deviceOperation.run(usbDevice), null));
+				} catch ( Exception e ) {
+					results.add(new Result(usbDevice, null, e));
+				}
+			}
+
+			return results;
+		}
+
+		/**
+		 * Stop the worker, after it finishes the work already submitted.
+		 */
+		public void shutdown() { executor.shutdown(); }
+
+		public String toString() { return "Bus " + bus + " : " + getOperations() + " device operations run, " + getQueued() + " tasks queued"; }
+
+		private UsbPort usbPort = null;
+		private int bus = 0;
+		private ThreadPoolExecutor executor = null;
+		private AtomicLong operations = new AtomicLong();
+	}
+
+	private Shard[] shards = null;
+
+	private static UsbShardedExecutor defaultUsbShardedExecutor = null;
+
+	private static final int DEVICE_DESCRIPTOR_LENGTH = 18;
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright (c) 1999 - 2001, International Business Machines Corporation.
+ * All Rights Reserved.
+ *
+ * This software is provided and licensed under the terms and conditions
+ * of the Common Public License:
+ * http://oss.software.ibm.com/developerworks/opensource/license-cpl.html
+ */
+
+import java.util.*;
+import java.util.function.*;
+import java.util.stream.*;
+
+import javax.usb.*;
+
+/**
+ * Spliterator over a UsbDevice and all devices connected to it.
+ * <p>
+ * The devices are in the same order as FindUsbDevice.getAllUsbDevices(): each device,
+ * then the devices attached to it (if it's a hub), recursively.  But instead of
+ * walking the whole topology up front, this keeps a stack of the subtrees it hasn't
+ * visited yet, and only asks a hub for its attached devices when it gets to that hub.
+ * So a Stream that stops early (findFirst(), anyMatch(), limit()...) only walks the
+ * topology up to the device it stops at; how long that takes depends on where that
+ * device is, not on how big the topology is.
+ * <p>
+ * Splitting hands the first half of the pending subtrees to the new Spliterator,
+ * so the two cover separate parts of the topology with no coordination.  If there is only
+ * one pending subtree, its root is expanded first (i.e. the hub itself becomes a pending
+ * device of its own, and each attached device a pending subtree).  With the virtual root
+ * UsbHub, the first split gives each half some of the host controllers.
+ * The size of a subtree isn't known without walking it, so this is not SIZED.
+ * <p>
+ * Use {@link #stream(UsbDevice, boolean) stream()} to get a Stream of UsbDevices.
+ * <p>
+ * This class should not be used except by other example code.
+ */
+public class UsbTopologySpliterator implements Spliterator<UsbDevice>
+{
+	/**
+	 * Constructor.
+	 * @param usbDevice The UsbDevice to start from; it is the first device.
+	 */
+	public UsbTopologySpliterator(UsbDevice usbDevice)
+	{
+		pending.push(usbDevice);
+	}
+
+	/**
+	 * Constructor for a split.
+	 * @param pending The pending entries, the next one first.
+	 * @param estimate The estimated number of devices.
+	 */
+	protected UsbTopologySpliterator(ArrayDeque pending, long estimate)
+	{
+		this.pending = pending;
+		this.estimate = estimate;
+	}
+
+	/**
+	 * Get a Stream of a UsbDevice and all devices connected to it.
+	 * @param usbDevice The UsbDevice to start from.
+	 * @param parallel If the Stream should be parallel.
+	 * @return The Stream.
+	 */
+	public static Stream<UsbDevice> stream(UsbDevice usbDevice, boolean parallel)
+	{
+		return StreamSupport.stream(new UsbTopologySpliterator(usbDevice), parallel);
+	}
+
+	public boolean tryAdvance(Consumer<? super UsbDevice> action)
+	{
+		Object next = pending.poll();
+
+		if (null == next)
+			return false;
+
+		action.accept(visit(next));
+		return true;
+	}
+
+	public void forEachRemaining(Consumer<? super UsbDevice> action)
+	{
+		Object next = null;
+
+		while (null != (next = pending.poll()))
+			action.accept(visit(next));
+	}
+
+	public Spliterator<UsbDevice> trySplit()
+	{
+		/* With a single subtree, split its root from its attached devices. */
+		if (1 == pending.size() && pending.peek() instanceof UsbHub) {
+			UsbDevice usbDevice = (UsbDevice)pending.poll();
+			push(((UsbHub)usbDevice).getAttachedUsbDevices());
+			pending.push(new Visited(usbDevice));
+		}
+
+		if (2 > pending.size())
+			return null;
+
+		/* The first half (the next entries) goes to the new Spliterator, as ORDERED needs. */
+		ArrayDeque prefix = new ArrayDeque();
+		for (int i=pending.size()/2; i>0; i--)
+			prefix.addLast(pending.poll());
+
+		estimate >>>= 1;
+		return new UsbTopologySpliterator(prefix, estimate);
+	}
+
+	/**
+	 * Estimate the number of devices.
+	 * <p>
+	 * Nothing is known about the subtrees not visited yet, so like
+	 * Spliterators.AbstractSpliterator this starts at Long.MAX_VALUE and halves with
+	 * each split; a parallel Stream then splits a few times, not down to every hub.
+	 * @return The estimate.
+	 */
+	public long estimateSize() { return estimate; }
+
+	public int characteristics() { return ORDERED | DISTINCT | NONNULL; }
+
+	/**
+	 * Visit a pending entry.
+	 * <p>
+	 * For a subtree, this pushes its attached devices, so the first of them is next.
+	 * @param next The entry.
+	 * @return The UsbDevice.
+	 */
+	protected UsbDevice visit(Object next)
+	{
+		if (next instanceof Visited)
+			return ((Visited)next).usbDevice;
+
+		UsbDevice usbDevice = (UsbDevice)next;
+		if (usbDevice.isUsbHub())
+			push(((UsbHub)usbDevice).getAttachedUsbDevices());
+		return usbDevice;
+	}
+
+	/**
+	 * Push subtrees, so the first is next.
+	 * @param usbDevices The UsbDevices.
+	 */
+	protected void push(List usbDevices)
+	{
+		for (int i=usbDevices.size()-1; i>=0; i--)
+			pending.push(usbDevices.get(i));
+	}
+
+	/**
+	 * A device whose attached devices are already pending.
+	 */
+	protected static class Visited
+	{
+		public Visited(UsbDevice usbDevice) { this.usbDevice = usbDevice; }
+
+		public final UsbDevice usbDevice;
+	}
+
+	/* Each entry is either a UsbDevice, meaning the device and everything attached to it, or a Visited. */
+	private ArrayDeque pending = new ArrayDeque();
+	private long estimate = Long.MAX_VALUE;
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright (c) 1999 - 2001, International Business Machines Corporation.
+ * All Rights Reserved.
+ *
+ * This software is provided and licensed under the terms and conditions
+ * of the Common Public License:
+ * http://oss.software.ibm.com/developerworks/opensource/license-cpl.html
+ */
+
+import java.util.*;
+
+import javax.usb.*;
+import javax.usb.util.*;
+
+/**
+ * Test that MeteredUsbPipe counts every failed submission.
+ * <p>
+ * Every kind of submission is made to a closed pipe on a simulated loopback device.
+ * Each one throws a (runtime) UsbNotOpenException, and each should be counted as an
+ * error, so nothing is left in flight.
+ * <p>
+ * This class should not be used except by other example code.
+ */
+public class MeteredUsbPipeTest
+{
+	public static void main(String argv[]) throws Exception
+	{
+		if (null == System.getProperty(SimulatedUsbServices.SPEC_PROPERTY))
+			System.setProperty(SimulatedUsbServices.SPEC_PROPERTY, "controllers=1,devices=2,kinds=loopback:1");
+
+		UsbPipe usbPipe = getLoopbackPipe();
+		UsbInterface usbInterface = usbPipe.getUsbEndpoint().getUsbInterface();
+
+		/* Open and close it, so it's closed rather than never opened. */
+		usbInterface.claim();
+		usbPipe.open();
+		usbPipe.close();
+
+		UsbMetrics.SubmissionCounters counters = new UsbMetrics.SubmissionCounters("pipe", "test");
+		MeteredUsbPipe meteredUsbPipe = new MeteredUsbPipe(usbPipe, counters);
+
+		try {
+			meteredUsbPipe.syncSubmit(new byte[64]);
+			fail("syncSubmit(byte[]) didn't throw");
+		} catch ( UsbNotOpenException uNOE ) { }
+		checkInFlight(counters, "syncSubmit(byte[])");
+
+		try {
+			meteredUsbPipe.asyncSubmit(new byte[64]);
+			fail("asyncSubmit(byte[]) didn't throw");
+		} catch ( UsbNotOpenException uNOE ) { }
+		checkInFlight(counters, "asyncSubmit(byte[])");
+
+		try {
+			meteredUsbPipe.syncSubmit(createUsbIrp());
+			fail("syncSubmit(UsbIrp) didn't throw");
+		} catch ( UsbNotOpenException uNOE ) { }
+		checkInFlight(counters, "syncSubmit(UsbIrp)");
+
+		try {
+			meteredUsbPipe.asyncSubmit(createUsbIrp());
+			fail("asyncSubmit(UsbIrp) didn't throw");
+		} catch ( UsbNotOpenException uNOE ) { }
+		checkInFlight(counters, "asyncSubmit(UsbIrp)");
+
+		try {
+			meteredUsbPipe.syncSubmit(createUsbIrps(3));
+			fail("syncSubmit(List) didn't throw");
+		} catch ( UsbNotOpenException uNOE ) { }
+		checkInFlight(counters, "syncSubmit(List)");
+
+		try {
+			meteredUsbPipe.asyncSubmit(createUsbIrps(3));
+			fail("asyncSubmit(List) didn't throw");
+		} catch ( UsbNotOpenException uNOE ) { }
+		checkInFlight(counters, "asyncSubmit(List)");
+
+		if (10 != counters.getSubmissions() || 10 != counters.getErrors())
+			fail("expected 10 submissions and 10 errors, got " + counters.getSubmissions() + " and " + counters.getErrors());
+
+		usbInterface.release();
+
+		if (0 < failures) {
+			System.out.println("MeteredUsbPipeTest : " + failures + " failures");
+			System.exit(1);
+		}
+		System.out.println("MeteredUsbPipeTest : passed");
+	}
+
+	/**
+	 * Get the bulk-in source pipe of the simulated loopback device.
+	 * @return The UsbPipe.
+	 */
+	public static UsbPipe getLoopbackPipe() throws Exception
+	{
+		List usbDevices = FindUsbDevice.getAllUsbDevices(ShowTopology.getVirtualRootUsbHub());
+		for (int i=0; i<usbDevices.size(); i++) {
+			UsbDevice usbDevice = (UsbDevice)usbDevices.get(i);
+			if (usbDevice.isUsbHub() || !usbDevice.isConfigured())
+				continue;
+			UsbEndpoint usbEndpoint = usbDevice.getActiveUsbConfiguration().getUsbInterface((byte)0).getUsbEndpoint((byte)0x81);
+			if (null != usbEndpoint)
+				return usbEndpoint.getUsbPipe();
+		}
+		throw new UsbException("No simulated loopback device");
+	}
+
+	public static UsbIrp createUsbIrp()
+	{
+		UsbIrp usbIrp = new DefaultUsbIrp();
+		usbIrp.setData(new byte[64]);
+		return usbIrp;
+	}
+
+	public static List createUsbIrps(int count)
+	{
+		List list = new ArrayList();
+		for (int i=0; i<count; i++)
+			list.add(createUsbIrp());
+		return list;
+	}
+
+	public static void checkInFlight(UsbMetrics.SubmissionCounters counters, String what)
+	{
+		if (0 != counters.getInFlight())
+			fail(what + " left " + counters.getInFlight() + " in flight");
+	}
+
+	public static void fail(String message)
+	{
+		System.out.println("MeteredUsbPipeTest : FAILED : " + message);
+		failures++;
+	}
+
+	private static int failures = 0;
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright (c) 1999 - 2001, International Business Machines Corporation.
+ * All Rights Reserved.
+ *
+ * This software is provided and licensed under the terms and conditions
+ * of the Common Public License:
+ * http://oss.software.ibm.com/developerworks/opensource/license-cpl.html
+ */
+
+import java.io.*;
+
+/**
+ * Test that a UsbLog.BinarySink log reads back the same as it was written.
+ * <p>
+ * The data record is over 64k bytes, which a 16-bit length can't hold;
+ * the text record after it must still read back correctly.
+ * <p>
+ * This class should not be used except by other example code.
+ */
+public class UsbLogTest
+{
+	public static void main(String argv[]) throws Exception
+	{
+		byte[] data = new byte[70000];
+		for (int i=0; i<data.length; i++)
+			data[i] = (byte)i;
+
+		ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+		UsbLog.BinarySink sink = new UsbLog.BinarySink(outputStream);
+		sink.text("before", true);
+		sink.data("test", data, 0, data.length);
+		sink.text("after", true);
+		sink.flush();
+
+		StringWriter stringWriter = new StringWriter();
+		try {
+			UsbLog.BinarySink.read(new DataInputStream(new ByteArrayInputStream(outputStream.toByteArray())), new PrintWriter(stringWriter));
+		} catch ( IOException ioE ) {
+			fail("reading the log failed : " + ioE.getMessage());
+		}
+
+		BufferedReader reader = new BufferedReader(new StringReader(stringWriter.toString()));
+		checkLine(reader.readLine(), "before");
+		checkLine(reader.readLine(), UsbLog.format("test", data, 0, data.length));
+		checkLine(reader.readLine(), "after");
+		if (null != reader.readLine())
+			fail("more than 3 lines read back");
+
+		if (0 < failures) {
+			System.out.println("UsbLogTest : " + failures + " failures");
+			System.exit(1);
+		}
+		System.out.println("UsbLogTest : passed");
+	}
+
+	/**
+	 * Check a line read back, without its time prefix.
+	 * @param line The line read back.
+	 * @param expected What was logged.
+	 */
+	public static void checkLine(String line, String expected)
+	{
+		if (null == line) {
+			fail("expected \"" + abbreviate(expected) + "\", got nothing");
+			return;
+		}
+
+		int timeEnd = line.indexOf("] ");
+		String logged = 0 > timeEnd ? line : line.substring(timeEnd + 2);
+		if (!expected.equals(logged))
+			fail("expected \"" + abbreviate(expected) + "\", got \"" + abbreviate(logged) + "\"");
+	}
+
+	public static String abbreviate(String string)
+	{
+		return 80 < string.length() ? string.substring(0, 80) + "..." : string;
+	}
+
+	public static void fail(String message)
+	{
+		System.out.println("UsbLogTest : FAILED : " + message);
+		failures++;
+	}
+
+	private static int failures = 0;
+}